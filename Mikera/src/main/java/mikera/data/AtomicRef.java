@@ -0,0 +1,125 @@
+package mikera.data;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicReference;
+
+import mikera.annotations.Mutable;
+import mikera.util.UnaryFunction;
+
+/**
+ * Thread safe reference intended for holding immutable values such as
+ * persistent collections.
+ *
+ * Reads never block. Updates are made with a single compare-and-set, with
+ * swap(...) retrying the update function until it succeeds. The update
+ * function may therefore be called more than once and should be free of
+ * side effects.
+ *
+ * Watchers are notified after each successful change, on the thread that
+ * made the change.
+ *
+ * @author Mike Anderson
+ *
+ * @param <T> Type of reference stored
+ */
+@Mutable
+public final class AtomicRef<T> extends MutableObject {
+	private static final long serialVersionUID = 4170513294846521876L;
+
+	/**
+	 * Callback interface for changes to an AtomicRef
+	 */
+	public interface Watcher<T> {
+		public void changed(AtomicRef<T> ref, T oldValue, T newValue);
+	}
+
+	private AtomicReference<T> data;
+	private transient volatile CopyOnWriteArrayList<Watcher<T>> watchers=null;
+
+	public AtomicRef() {
+		this(null);
+	}
+
+	public AtomicRef(T value) {
+		data=new AtomicReference<T>(value);
+	}
+
+	public T get() {
+		return data.get();
+	}
+
+	public void set(T newValue) {
+		replace(newValue);
+	}
+
+	/**
+	 * Sets a new value, returning the previous value
+	 */
+	public T replace(T newValue) {
+		T oldValue=data.getAndSet(newValue);
+		notifyWatchers(oldValue,newValue);
+		return oldValue;
+	}
+
+	/**
+	 * Sets a new value only if the current value is identical to the expected value
+	 *
+	 * @return true if the value was changed
+	 */
+	public boolean compareAndSet(T expected, T newValue) {
+		if (!data.compareAndSet(expected, newValue)) return false;
+		notifyWatchers(expected,newValue);
+		return true;
+	}
+
+	/**
+	 * Atomically replaces the current value with the result of applying
+	 * the given function to it, retrying if another thread changes the value
+	 * concurrently.
+	 *
+	 * @return The new value
+	 */
+	public T swap(UnaryFunction<T,T> f) {
+		while (true) {
+			T oldValue=data.get();
+			T newValue=f.apply(oldValue);
+			if (data.compareAndSet(oldValue, newValue)) {
+				notifyWatchers(oldValue,newValue);
+				return newValue;
+			}
+		}
+	}
+
+	public synchronized void addWatcher(Watcher<T> w) {
+		if (watchers==null) watchers=new CopyOnWriteArrayList<Watcher<T>>();
+		watchers.add(w);
+	}
+
+	public synchronized boolean removeWatcher(Watcher<T> w) {
+		if (watchers==null) return false;
+		return watchers.remove(w);
+	}
+
+	private void notifyWatchers(T oldValue, T newValue) {
+		CopyOnWriteArrayList<Watcher<T>> ws=watchers;
+		if ((ws==null)||(oldValue==newValue)) return;
+		for (Watcher<T> w: ws) {
+			w.changed(this, oldValue, newValue);
+		}
+	}
+
+	/**
+	 * Creates a new AtomicRef with the current value and no watchers
+	 */
+	@SuppressWarnings("unchecked")
+	public AtomicRef<T> clone() {
+		AtomicRef<T> r=(AtomicRef<T>)super.clone();
+		r.data=new AtomicReference<T>(get());
+		r.watchers=null;
+		return r;
+	}
+
+	public String toString() {
+		return "AtomicRef("+String.valueOf(get())+")";
+	}
+}
@@ -12,6 +12,7 @@ import java.util.List;
 
 import mikera.annotations.Mutable;
 import mikera.net.BufferCache;
+import mikera.persistent.ASCIIString;
 import mikera.util.Bits;
 import mikera.util.Maths;
 import mikera.util.TextUtils;
@@ -301,6 +302,30 @@ public final class Data extends AbstractList<Byte> implements List<Byte>, Clonea
 		return size;
 	}
 	
+	/**
+	 * Appends an ASCIIString as a length followed by one byte per character
+	 */
+	public int appendASCIIString(ASCIIString s) {
+		int len=s.length();
+		int size=appendVarInt(len);
+		ensureCapacity(count+len);
+		s.getBytes(0, len, data, count);
+		count+=len;
+		return size+len;
+	}
+	
+	public ASCIIString getASCIIString(int pos) {
+		int len=getVarInt(pos);
+		pos+=sizeOfVarInt(len);
+		if ((pos+len)>count) throw new IndexOutOfBoundsException();
+		return ASCIIString.create(data, pos, len);
+	}
+	
+	public static int sizeOfASCIIString(ASCIIString s) {
+		int len=s.length();
+		return sizeOfVarInt(len)+len;
+	}
+	
 	public String getString(int pos) {
 		return new String(getCharArray(pos));	
 	}
@@ -5,6 +5,8 @@ import mikera.annotations.Mutable;
 /**
  * Basic mutable reference class
  * 
+ * Not thread safe: see AtomicRef for a reference that supports concurrent updates
+ * 
  * @author Mike Anderson
  *
  * @param <T> Type of reference stored
@@ -0,0 +1,188 @@
+package mikera.data;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.util.ArrayList;
+
+import mikera.persistent.ASCIIString;
+import mikera.persistent.IntMap;
+import mikera.persistent.ListFactory;
+import mikera.persistent.PersistentHashMap;
+import mikera.persistent.Text;
+import mikera.persistent.impl.RRBList;
+
+/**
+ * Reads snapshots written by a SharedDataWriter.
+ * 
+ * Nodes referenced in more than one place are read only once, so structure 
+ * shared between values (including values in different snapshots) is also 
+ * shared after reading. Nodes are forgotten whenever a snapshot indicates 
+ * that the writer started afresh.
+ * 
+ * @author Mike Anderson
+ *
+ */
+public final class SharedDataReader {
+	private final ArrayList<Object> nodes=new ArrayList<Object>();
+	private Data data;
+	private int pos;
+	
+	/**
+	 * Reads the next snapshot from the given data
+	 */
+	public Object readSnapshot(Data d) {
+		data=d;
+		pos=0;
+		if (readByte()!=0) nodes.clear();
+		Object result=readValue();
+		if (pos!=d.size()) throw new Error("Unexpected data at end of snapshot: "+(d.size()-pos)+" bytes");
+		return result;
+	}
+	
+	public int getNodeCount() {
+		return nodes.size();
+	}
+	
+	/**
+	 * Forgets all previously read nodes. Not normally needed, since the
+	 * writer marks the first snapshot after a reset.
+	 */
+	public void reset() {
+		nodes.clear();
+	}
+	
+	/**
+	 * Reads a node reference. Returns a header that can be tested with isNew(),
+	 * where the header of a new node must later be passed to putNode().
+	 */
+	public int readReference() {
+		return readVarInt();
+	}
+	
+	public static boolean isNew(int header) {
+		return (header&1)!=0;
+	}
+
+	/**
+	 * Gets a previously read node given its reference header
+	 */
+	public Object getNode(int header) {
+		int id=header>>>1;
+		Object node=(id<nodes.size())?nodes.get(id):null;
+		if (node==null) throw new Error("Reference to unknown node: "+id);
+		return node;
+	}
+	
+	/**
+	 * Registers a newly read node against its reference header
+	 */
+	public <T> T putNode(int header, T node) {
+		int id=header>>>1;
+		while (nodes.size()<=id) nodes.add(null);
+		nodes.set(id, node);
+		return node;
+	}
+	
+	public byte readByte() {
+		return data.getByte(pos++);
+	}
+	
+	public int readVarInt() {
+		int result=data.getVarInt(pos);
+		pos+=Data.sizeOfVarInt(result);
+		return result;
+	}
+	
+	public long readVarLong() {
+		long result=data.getVarLong(pos);
+		pos+=Data.sizeOfVarLong(result);
+		return result;
+	}
+	
+	public int readFullInt() {
+		int result=data.getFullInt(pos);
+		pos+=4;
+		return result;
+	}
+	
+	public char readVarChar() {
+		char c=data.getVarChar(pos);
+		pos+=Data.sizeOfVarChar(c);
+		return c;
+	}
+	
+	public char[] readChars() {
+		int n=readVarInt();
+		char[] chars=new char[n];
+		for (int i=0; i<n; i++) {
+			chars[i]=readVarChar();
+		}
+		return chars;
+	}
+	
+	public Object readValue() {
+		byte type=readByte();
+		switch (type) {
+			case SharedDataWriter.TYPE_NULL: return null;
+			case SharedDataWriter.TYPE_INTEGER: return Integer.valueOf(readVarInt());
+			case SharedDataWriter.TYPE_LONG: return Long.valueOf(readVarLong());
+			case SharedDataWriter.TYPE_DOUBLE: {
+				double d=data.getDouble(pos);
+				pos+=8;
+				return Double.valueOf(d);
+			}
+			case SharedDataWriter.TYPE_TRUE: return Boolean.TRUE;
+			case SharedDataWriter.TYPE_FALSE: return Boolean.FALSE;
+			case SharedDataWriter.TYPE_CHARACTER: return Character.valueOf(readVarChar());
+			case SharedDataWriter.TYPE_STRING: {
+				int header=readReference();
+				if (!isNew(header)) return getNode(header);
+				return putNode(header,new String(readChars()));
+			}
+			case SharedDataWriter.TYPE_ASCII_STRING: {
+				int header=readReference();
+				if (!isNew(header)) return getNode(header);
+				ASCIIString s=data.getASCIIString(pos);
+				pos+=Data.sizeOfASCIIString(s);
+				return putNode(header,s);
+			}
+			case SharedDataWriter.TYPE_HASHMAP: return PersistentHashMap.readFrom(this);
+			case SharedDataWriter.TYPE_INTMAP: return IntMap.readFrom(this);
+			case SharedDataWriter.TYPE_LIST: return readList();
+			case SharedDataWriter.TYPE_TEXT: return Text.readFrom(this);
+			case SharedDataWriter.TYPE_SERIALIZED: {
+				int n=readVarInt();
+				byte[] bytes=new byte[n];
+				data.copyTo(pos, bytes, 0, n);
+				pos+=n;
+				return deserialize(bytes);
+			}
+			default: throw new Error("Unknown type tag: "+type);
+		}
+	}
+	
+	private Object readList() {
+		byte kind=readByte();
+		if (kind==1) return RRBList.readFrom(this);
+		int n=readVarInt();
+		Object[] values=new Object[n];
+		for (int i=0; i<n; i++) {
+			values[i]=readValue();
+		}
+		return ListFactory.createFromArray(values);
+	}
+	
+	private static Object deserialize(byte[] bytes) {
+		try {
+			ObjectInputStream ois=new ObjectInputStream(new ByteArrayInputStream(bytes));
+			Object o=ois.readObject();
+			ois.close();
+			return o;
+		} catch (IOException e) {
+			throw new Error(e);
+		} catch (ClassNotFoundException e) {
+			throw new Error(e);
+		}
+	}
+}
@@ -0,0 +1,239 @@
+package mikera.data;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.IdentityHashMap;
+
+import mikera.persistent.ASCIIString;
+import mikera.persistent.IntMap;
+import mikera.persistent.PersistentHashMap;
+import mikera.persistent.PersistentList;
+import mikera.persistent.Text;
+import mikera.persistent.impl.RRBList;
+
+/**
+ * Writes a stream of snapshots of persistent data structures in a compact
+ * binary format.
+ * 
+ * Every shared node (trie node, rope node, string etc.) is written only once.
+ * Later references to the same node, whether in the same snapshot or in any
+ * later snapshot written by this writer, are encoded as a reference to the
+ * id assigned when the node was first written. Successive versions of a large
+ * structure therefore only cost the size of the nodes that changed.
+ * 
+ * Only immutable values (persistent collection nodes, Strings, ASCIIStrings)
+ * are shared by reference. Other Serializable values may be mutable, so they
+ * are serialized again each time they are written.
+ * 
+ * Snapshots must be read in the same order by a single SharedDataReader.
+ * 
+ * The writer retains every node it has written so that later snapshots can
+ * refer to it. To bound memory use, once maxNodes nodes are retained the next
+ * snapshot starts afresh, forgetting all previous nodes and writing everything
+ * it contains in full. Each snapshot records whether it starts afresh, so the
+ * reader forgets its nodes at the same point.
+ * 
+ * @author Mike Anderson
+ *
+ */
+public final class SharedDataWriter {
+	public static final byte TYPE_NULL=0;
+	public static final byte TYPE_INTEGER=1;
+	public static final byte TYPE_LONG=2;
+	public static final byte TYPE_DOUBLE=3;
+	public static final byte TYPE_TRUE=4;
+	public static final byte TYPE_FALSE=5;
+	public static final byte TYPE_CHARACTER=6;
+	public static final byte TYPE_STRING=7;
+	public static final byte TYPE_HASHMAP=8;
+	public static final byte TYPE_INTMAP=9;
+	public static final byte TYPE_LIST=10;
+	public static final byte TYPE_TEXT=11;
+	public static final byte TYPE_SERIALIZED=12;
+	public static final byte TYPE_ASCII_STRING=13;
+	
+	public static final int DEFAULT_MAX_NODES=1<<20;
+	
+	private final IdentityHashMap<Object,Integer> ids=new IdentityHashMap<Object,Integer>();
+	private final int maxNodes;
+	private boolean resetPending=true;
+	private Data data=new Data();
+	
+	public SharedDataWriter() {
+		this(DEFAULT_MAX_NODES);
+	}
+	
+	/**
+	 * Creates a writer that starts afresh once maxNodes nodes are retained
+	 */
+	public SharedDataWriter(int maxNodes) {
+		if (maxNodes<1) throw new IllegalArgumentException("Invalid node limit: "+maxNodes);
+		this.maxNodes=maxNodes;
+	}
+	
+	/**
+	 * Writes a snapshot of the given value, returning the encoded data
+	 */
+	public Data writeSnapshot(Object value) {
+		data=new Data();
+		boolean fresh=resetPending||(ids.size()>=maxNodes);
+		if (fresh) {
+			ids.clear();
+			resetPending=false;
+		}
+		data.appendByte(fresh?(byte)1:(byte)0);
+		writeValue(value);
+		return data;
+	}
+	
+	/**
+	 * Returns the data for the snapshot currently being written
+	 */
+	public Data getData() {
+		return data;
+	}
+	
+	/**
+	 * Returns the number of distinct nodes written so far
+	 */
+	public int getNodeCount() {
+		return ids.size();
+	}
+	
+	public int getMaxNodes() {
+		return maxNodes;
+	}
+	
+	/**
+	 * Forgets all previously written nodes. The next snapshot is written in
+	 * full and causes the reader to forget its nodes too.
+	 */
+	public void reset() {
+		ids.clear();
+		resetPending=true;
+	}
+	
+	/**
+	 * Writes a reference to an immutable node. Returns true if the node has not 
+	 * been written before, in which case the caller must write the node contents 
+	 * immediately afterwards.
+	 */
+	public boolean writeReference(Object node) {
+		Integer id=ids.get(node);
+		if (id!=null) {
+			data.appendVarInt(id<<1);
+			return false;
+		}
+		int newId=ids.size();
+		ids.put(node, newId);
+		data.appendVarInt((newId<<1)|1);
+		return true;
+	}
+	
+	public void writeByte(byte b) {
+		data.appendByte(b);
+	}
+	
+	public void writeVarInt(int i) {
+		data.appendVarInt(i);
+	}
+	
+	public void writeVarLong(long l) {
+		data.appendVarLong(l);
+	}
+	
+	public void writeFullInt(int i) {
+		data.appendFullInt(i);
+	}
+	
+	public void writeChars(char[] chars, int offset, int length) {
+		data.appendVarInt(length);
+		for (int i=0; i<length; i++) {
+			data.appendVarChar(chars[offset+i]);
+		}
+	}
+	
+	/**
+	 * Writes an arbitrary value. Persistent collections are written with 
+	 * structural sharing, other Serializable objects fall back to standard 
+	 * Java serialization and are never shared.
+	 */
+	public void writeValue(Object o) {
+		if (o==null) {
+			data.appendByte(TYPE_NULL);
+		} else if (o instanceof Integer) {
+			data.appendByte(TYPE_INTEGER);
+			data.appendVarInt((Integer)o);
+		} else if (o instanceof Long) {
+			data.appendByte(TYPE_LONG);
+			data.appendVarLong((Long)o);
+		} else if (o instanceof Double) {
+			data.appendByte(TYPE_DOUBLE);
+			data.appendDouble((Double)o);
+		} else if (o instanceof Boolean) {
+			data.appendByte(((Boolean)o)?TYPE_TRUE:TYPE_FALSE);
+		} else if (o instanceof Character) {
+			data.appendByte(TYPE_CHARACTER);
+			data.appendVarChar((Character)o);
+		} else if (o instanceof String) {
+			data.appendByte(TYPE_STRING);
+			String s=(String)o;
+			if (writeReference(s)) {
+				writeChars(s.toCharArray(),0,s.length());
+			}
+		} else if (o instanceof ASCIIString) {
+			data.appendByte(TYPE_ASCII_STRING);
+			ASCIIString s=(ASCIIString)o;
+			if (writeReference(s)) {
+				data.appendASCIIString(s);
+			}
+		} else if (o instanceof PersistentHashMap<?,?>) {
+			data.appendByte(TYPE_HASHMAP);
+			((PersistentHashMap<?,?>)o).writeTo(this);
+		} else if (o instanceof IntMap<?>) {
+			data.appendByte(TYPE_INTMAP);
+			((IntMap<?>)o).writeTo(this);
+		} else if (o instanceof PersistentList<?>) {
+			data.appendByte(TYPE_LIST);
+			writeList((PersistentList<?>)o);
+		} else if (o instanceof Text) {
+			data.appendByte(TYPE_TEXT);
+			((Text)o).writeTo(this);
+		} else if (o instanceof Serializable) {
+			data.appendByte(TYPE_SERIALIZED);
+			byte[] bytes=serialize((Serializable)o);
+			data.appendVarInt(bytes.length);
+			data.append(bytes, 0, bytes.length);
+		} else {
+			throw new IllegalArgumentException("Cannot write value of class: "+o.getClass());
+		}
+	}
+	
+	private void writeList(PersistentList<?> list) {
+		if (list instanceof RRBList<?>) {
+			data.appendByte((byte)1);
+			((RRBList<?>)list).writeTo(this);
+		} else {
+			data.appendByte((byte)0);
+			int n=list.size();
+			data.appendVarInt(n);
+			for (int i=0; i<n; i++) {
+				writeValue(list.get(i));
+			}
+		}
+	}
+	
+	private static byte[] serialize(Serializable o) {
+		try {
+			ByteArrayOutputStream bos=new ByteArrayOutputStream();
+			ObjectOutputStream oos=new ObjectOutputStream(bos);
+			oos.writeObject(o);
+			oos.close();
+			return bos.toByteArray();
+		} catch (IOException e) {
+			throw new Error(e);
+		}
+	}
+}
@@ -0,0 +1,190 @@
+package mikera.data;
+
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+import mikera.annotations.Mutable;
+import mikera.persistent.PersistentTreeMap;
+import mikera.util.UnaryFunction;
+
+/**
+ * Multi-version store for immutable state such as persistent collections.
+ *
+ * Each commit creates a new numbered version. The most recent versions are
+ * always retained, older versions are retained only while pinned by a reader.
+ * Since persistent values share structure, retaining many versions is cheap.
+ *
+ * Reading the latest or any retained version never blocks. Commits and
+ * pinning are synchronised on the store.
+ *
+ * @author Mike Anderson
+ *
+ * @param <T> Type of stored state, which should be immutable
+ */
+@Mutable
+public final class SnapshotStore<T> {
+	private final int retainCount;
+	private volatile PersistentTreeMap<Long,Version<T>> versions;
+	private volatile Version<T> latest;
+
+	/**
+	 * Committed version of the stored state
+	 */
+	private static final class Version<T> {
+		private final long number;
+		private final T value;
+		private int pins=0; // guarded by the store
+
+		private Version(long number, T value) {
+			this.number=number;
+			this.value=value;
+		}
+	}
+
+	/**
+	 * Handle that keeps a version retained until released
+	 */
+	public final class Pin {
+		private final Version<T> version;
+		private boolean released=false;
+
+		private Pin(Version<T> version) {
+			this.version=version;
+		}
+
+		public long getVersion() {
+			return version.number;
+		}
+
+		public T get() {
+			return version.value;
+		}
+
+		/**
+		 * Releases this pin, allowing the version to be collected once it is
+		 * no longer one of the most recent versions. Releasing more than once
+		 * has no effect.
+		 */
+		public void release() {
+			synchronized (SnapshotStore.this) {
+				if (released) return;
+				released=true;
+				version.pins--;
+				collect();
+			}
+		}
+	}
+
+	/**
+	 * Creates a store with the given initial state as version 0
+	 *
+	 * @param retainCount Number of most recent versions that are always retained
+	 */
+	public SnapshotStore(T initialValue, int retainCount) {
+		if (retainCount<1) throw new IllegalArgumentException("Must retain at least one version");
+		this.retainCount=retainCount;
+		latest=new Version<T>(0,initialValue);
+		versions=PersistentTreeMap.<Long,Version<T>>create().include(0L, latest);
+	}
+
+	/**
+	 * Returns the latest committed state
+	 */
+	public T get() {
+		return latest.value;
+	}
+
+	public long getLatestVersion() {
+		return latest.number;
+	}
+
+	public long getOldestVersion() {
+		return versions.firstKey();
+	}
+
+	/**
+	 * Returns the number of versions currently retained
+	 */
+	public int getVersionCount() {
+		return versions.size();
+	}
+
+	/**
+	 * Returns the state at the given version, or null if that version is not retained
+	 */
+	public T get(long version) {
+		Version<T> v=versions.get(version);
+		return (v==null)?null:v.value;
+	}
+
+	/**
+	 * Returns the most recent retained state committed at or before the given
+	 * version, or null if no such version is retained
+	 */
+	public T getAsOf(long version) {
+		Map.Entry<Long,Version<T>> e=versions.floorEntry(version);
+		return (e==null)?null:e.getValue().value;
+	}
+
+	/**
+	 * Commits a new state, returning the new version number
+	 */
+	public synchronized long commit(T newValue) {
+		Version<T> v=new Version<T>(latest.number+1,newValue);
+		versions=versions.include(v.number, v);
+		latest=v;
+		collect();
+		return v.number;
+	}
+
+	/**
+	 * Commits the result of applying a function to the latest state,
+	 * returning the new version number
+	 */
+	public synchronized long commit(UnaryFunction<T,T> f) {
+		return commit(f.apply(latest.value));
+	}
+
+	/**
+	 * Pins the latest version
+	 */
+	public synchronized Pin pin() {
+		return pin(latest);
+	}
+
+	/**
+	 * Pins the given version, which must currently be retained
+	 */
+	public synchronized Pin pin(long version) {
+		Version<T> v=versions.get(version);
+		if (v==null) throw new NoSuchElementException("Version not retained: "+version);
+		return pin(v);
+	}
+
+	private Pin pin(Version<T> v) {
+		v.pins++;
+		return new Pin(v);
+	}
+
+	/**
+	 * Removes unpinned versions that are older than the most recent retainCount versions
+	 */
+	private void collect() {
+		int n=versions.size();
+		if (n<=retainCount) return;
+		long threshold=versions.entryAt(n-retainCount).getKey();
+		ArrayList<Long> expired=null;
+		for (Map.Entry<Long,Version<T>> e: versions.headMap(threshold).entrySet()) {
+			if (e.getValue().pins>0) continue;
+			if (expired==null) expired=new ArrayList<Long>();
+			expired.add(e.getKey());
+		}
+		if (expired==null) return;
+		PersistentTreeMap<Long,Version<T>> vs=versions;
+		for (Long k: expired) {
+			vs=vs.delete(k);
+		}
+		versions=vs;
+	}
+}
@@ -0,0 +1,733 @@
+package mikera.engine;
+
+import java.util.HashMap;
+
+import mikera.util.BooleanFilter;
+import mikera.util.Footprint;
+
+/**
+ * Array-backed version of Octreap, with the same z-order treap structure
+ * and operations.
+ *
+ * Nodes are stored in parallel primitive arrays and linked by index. Each
+ * distinct value is stored once in a palette, and nodes hold a palette index.
+ * Node priorities are derived from the node index, so each node takes 28 bytes
+ * with no object header, compared to 48 bytes for an Octreap.ZNode.
+ *
+ * Deleted nodes are recycled through a free list. clone() copies each
+ * array with a single System.arraycopy.
+ *
+ * @author Mike Anderson
+ *
+ * @param <T> type of object to store in each cell
+ */
+public final class ArrayOctreap<T> extends BaseGrid<T> implements Footprint.Measurable {
+	private static final int NONE=-1;
+	private static final int INITIAL_CAPACITY=16;
+
+	private long[] z1s;
+	private long[] z2s;
+	private int[] lefts;
+	private int[] rights;
+	private int[] vals;
+
+	private int head=NONE;
+	private int free=NONE; // free list of nodes, linked through lefts
+	private int used=0; // number of node slots in use or on the free list
+	private int count=0;
+
+	private Object[] palette;
+	private int[] paletteRefs;
+	private int paletteFree=NONE; // free list of palette slots, linked through paletteRefs
+	private int paletteUsed=0;
+	private HashMap<Object,Integer> paletteIndex;
+
+	public ArrayOctreap() {
+		init(INITIAL_CAPACITY);
+	}
+
+	public ArrayOctreap(Grid<T> o) {
+		this();
+		set(o);
+	}
+
+	private void init(int capacity) {
+		z1s=new long[capacity];
+		z2s=new long[capacity];
+		lefts=new int[capacity];
+		rights=new int[capacity];
+		vals=new int[capacity];
+		head=NONE;
+		free=NONE;
+		used=0;
+		count=0;
+		palette=new Object[INITIAL_CAPACITY];
+		paletteRefs=new int[INITIAL_CAPACITY];
+		paletteFree=NONE;
+		paletteUsed=0;
+		paletteIndex=new HashMap<Object,Integer>();
+	}
+
+	/**
+	 * Pseudo-random treap priority for a node slot
+	 */
+	private static int priority(int n) {
+		int h=n*0x9E3779B9;
+		h^=h>>>16;
+		h*=0x85EBCA6B;
+		h^=h>>>13;
+		h*=0xC2B2AE35;
+		h^=h>>>16;
+		return h;
+	}
+
+	private static long[] resize(long[] a, int size) {
+		long[] na=new long[size];
+		System.arraycopy(a, 0, na, 0, Math.min(a.length,size));
+		return na;
+	}
+
+	private static int[] resize(int[] a, int size) {
+		int[] na=new int[size];
+		System.arraycopy(a, 0, na, 0, Math.min(a.length,size));
+		return na;
+	}
+
+	private static Object[] resize(Object[] a, int size) {
+		Object[] na=new Object[size];
+		System.arraycopy(a, 0, na, 0, Math.min(a.length,size));
+		return na;
+	}
+
+	private int newNode(long z1, long z2, int pi) {
+		int n;
+		if (free!=NONE) {
+			n=free;
+			free=lefts[n];
+		} else {
+			if (used==z1s.length) {
+				int size=used*2;
+				z1s=resize(z1s,size);
+				z2s=resize(z2s,size);
+				lefts=resize(lefts,size);
+				rights=resize(rights,size);
+				vals=resize(vals,size);
+			}
+			n=used++;
+		}
+		z1s[n]=z1;
+		z2s[n]=z2;
+		lefts[n]=NONE;
+		rights[n]=NONE;
+		vals[n]=pi;
+		paletteRefs[pi]++;
+		count++;
+		return n;
+	}
+
+	private void freeNode(int n) {
+		releaseValue(vals[n]);
+		lefts[n]=free;
+		free=n;
+		count--;
+	}
+
+	/**
+	 * Gets the palette index for a value, adding it to the palette if needed.
+	 * The reference count is not changed.
+	 */
+	private int valueIndex(Object value) {
+		Integer i=paletteIndex.get(value);
+		if (i!=null) return i;
+		int pi;
+		if (paletteFree!=NONE) {
+			pi=paletteFree;
+			paletteFree=paletteRefs[pi];
+		} else {
+			if (paletteUsed==palette.length) {
+				palette=resize(palette,paletteUsed*2);
+				paletteRefs=resize(paletteRefs,paletteUsed*2);
+			}
+			pi=paletteUsed++;
+		}
+		palette[pi]=value;
+		paletteRefs[pi]=0;
+		paletteIndex.put(value, pi);
+		return pi;
+	}
+
+	private void releaseValue(int pi) {
+		if ((--paletteRefs[pi])>0) return;
+		paletteIndex.remove(palette[pi]);
+		palette[pi]=null;
+		paletteRefs[pi]=paletteFree;
+		paletteFree=pi;
+	}
+
+	private void setValue(int n, int pi) {
+		int old=vals[n];
+		if (old==pi) return;
+		paletteRefs[pi]++;
+		vals[n]=pi;
+		releaseValue(old);
+	}
+
+	@SuppressWarnings("unchecked")
+	private T value(int n) {
+		return (T)palette[vals[n]];
+	}
+
+	public ArrayOctreap<T> set(int x, int y, int z, T value) {
+		long zz=Octreap.calculateZ(x,y,z);
+		setRange(zz,zz,value);
+		return this;
+	}
+
+	public final T get(int x, int y, int z) {
+		return get(Octreap.calculateZ(x,y,z));
+	}
+
+	public final T get(long zz) {
+		int n=getNode(zz);
+		if (n==NONE) return null;
+		return value(n);
+	}
+
+	private int getNode(long zz) {
+		int n=head;
+		while (n!=NONE) {
+			if (zz<z1s[n]) {
+				n=lefts[n];
+				continue;
+			}
+			if (zz>z2s[n]) {
+				n=rights[n];
+				continue;
+			}
+			return n;
+		}
+		return NONE;
+	}
+
+	/**
+	 * Returns the first node that ends at or after the given position
+	 */
+	private int ceilingNode(long zz) {
+		int result=NONE;
+		int n=head;
+		while (n!=NONE) {
+			if (z2s[n]<zz) {
+				n=rights[n];
+			} else {
+				result=n;
+				if (z1s[n]<=zz) return n;
+				n=lefts[n];
+			}
+		}
+		return result;
+	}
+
+	@Override
+	public ArrayOctreap<T> clear() {
+		init(INITIAL_CAPACITY);
+		return this;
+	}
+
+	@Override
+	public ArrayOctreap<T> clearContents() {
+		return clear();
+	}
+
+	/**
+	 * Sets this grid to the contents of another grid, building the node
+	 * arrays directly in z-order.
+	 */
+	@Override
+	@SuppressWarnings("unchecked")
+	public ArrayOctreap<T> set(Grid<T> o) {
+		if (o==this) return this;
+		if (o instanceof ArrayOctreap<?>) {
+			copyFrom((ArrayOctreap<T>)o);
+			return this;
+		}
+		Octreap<T> src=(o instanceof Octreap<?>)?(Octreap<T>)o:new Octreap<T>(o);
+		init(Math.max(INITIAL_CAPACITY,src.countNodes()));
+		final Appender appender=new Appender();
+		src.visitNodes(new Octreap.NodeVisitor() {
+			public Object visit(Octreap.ZNode n) {
+				appender.append(n.z1, n.z2, n.value());
+				return null;
+			}
+		});
+		return this;
+	}
+
+	/**
+	 * Appends nodes in ascending z-order along the right spine of the treap
+	 */
+	private final class Appender {
+		private int[] spine=new int[INITIAL_CAPACITY];
+		private int size=0;
+
+		private void append(long z1, long z2, Object value) {
+			int n=newNode(z1,z2,valueIndex(value));
+			int p=priority(n);
+			int child=NONE;
+			while ((size>0)&&(priority(spine[size-1])<p)) {
+				child=spine[--size];
+			}
+			lefts[n]=child;
+			if (size>0) {
+				rights[spine[size-1]]=n;
+			} else {
+				head=n;
+			}
+			if (size==spine.length) spine=resize(spine,size*2);
+			spine[size++]=n;
+		}
+	}
+
+	/**
+	 * Adds all runs to an Octreap builder in z-order
+	 */
+	void addRuns(Octreap.Builder<T> b) {
+		addRuns(b,head);
+	}
+
+	private void addRuns(Octreap.Builder<T> b, int n) {
+		if (n==NONE) return;
+		addRuns(b,lefts[n]);
+		b.add(z1s[n], z2s[n], value(n));
+		addRuns(b,rights[n]);
+	}
+
+	private void copyFrom(ArrayOctreap<T> o) {
+		z1s=resize(o.z1s,o.z1s.length);
+		z2s=resize(o.z2s,o.z2s.length);
+		lefts=resize(o.lefts,o.lefts.length);
+		rights=resize(o.rights,o.rights.length);
+		vals=resize(o.vals,o.vals.length);
+		head=o.head;
+		free=o.free;
+		used=o.used;
+		count=o.count;
+		palette=resize(o.palette,o.palette.length);
+		paletteRefs=resize(o.paletteRefs,o.paletteRefs.length);
+		paletteFree=o.paletteFree;
+		paletteUsed=o.paletteUsed;
+		paletteIndex=new HashMap<Object,Integer>(o.paletteIndex);
+	}
+
+	@SuppressWarnings("unchecked")
+	public ArrayOctreap<T> clone() {
+		try {
+			ArrayOctreap<T> a=(ArrayOctreap<T>)super.clone();
+			a.copyFrom(this);
+			return a;
+		} catch (Throwable t) {
+			throw new Error(t);
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	public boolean equals(Object b) {
+		if (!(b instanceof ArrayOctreap)) return false;
+		if (this==b) return true;
+		ArrayOctreap<T> o=(ArrayOctreap<T>) b;
+		if (count!=o.count) return false;
+		int an=this.ceilingNode(Octreap.MIN_ZVALUE);
+		int bn=o.ceilingNode(Octreap.MIN_ZVALUE);
+		while ((an!=NONE)&&(bn!=NONE)) {
+			if (z1s[an]!=o.z1s[bn]) return false;
+			if (z2s[an]!=o.z2s[bn]) return false;
+			if (!value(an).equals(o.value(bn))) return false;
+			an=this.ceilingNode(z2s[an]+1);
+			bn=o.ceilingNode(o.z2s[bn]+1);
+		}
+		return (an==NONE)&&(bn==NONE);
+	}
+
+	/**
+	 * Hash code combining the hash codes of all runs in z-order
+	 */
+	public int hashCode() {
+		int result=0;
+		int n=ceilingNode(Octreap.MIN_ZVALUE);
+		while (n!=NONE) {
+			result^=value(n).hashCode()+(int)(z1s[n]*7+z2s[n]*1234567);
+			result=Integer.rotateRight(result, 1);
+			n=ceilingNode(z2s[n]+1);
+		}
+		return result;
+	}
+
+	public void visitBlocks(BlockVisitor<T> bf) {
+		visitBlocks(head,bf);
+	}
+
+	private void visitBlocks(int n, BlockVisitor<T> bf) {
+		if (n==NONE) return;
+		visitBlocks(lefts[n],bf);
+
+		long pos=z1s[n];
+		long end=z2s[n];
+		T value=value(n);
+		while (pos<=end) {
+			long size=Octreap.blockSize(pos,end);
+			long pos2=pos+size-1;
+			bf.visit(Octreap.extractX(pos), Octreap.extractY(pos), Octreap.extractZ(pos), Octreap.extractX(pos2), Octreap.extractY(pos2), Octreap.extractZ(pos2), value);
+			pos+=size;
+		}
+
+		visitBlocks(rights[n],bf);
+	}
+
+	/**
+	 * Visits the parts of all non-null blocks that lie within the given box
+	 */
+	@Override
+	public void visitBlocks(BlockVisitor<T> bf, int x1, int y1, int z1, int x2, int y2, int z2) {
+		visitBox(bf,x1,y1,z1,x2,y2,z2,false);
+	}
+
+	/**
+	 * Counts the non-null cells within the given box
+	 */
+	public long countNonNull(int x1, int y1, int z1, int x2, int y2, int z2) {
+		final long[] total=new long[1];
+		visitBox(new BlockVisitor<T>() {
+			public Object visit(int x1, int y1, int z1, int x2, int y2, int z2, T value) {
+				total[0]+=((long)(x2-x1+1))*(y2-y1+1)*(z2-z1+1);
+				return null;
+			}
+		},x1,y1,z1,x2,y2,z2,false);
+		return total[0];
+	}
+
+	/**
+	 * Returns true if any cell within the given box has a non-null value
+	 * accepted by the filter. Stops at the first match.
+	 */
+	public boolean anyMatch(int x1, int y1, int z1, int x2, int y2, int z2, final BooleanFilter<? super T> filter) {
+		return visitBox(new BlockVisitor<T>() {
+			public Object visit(int x1, int y1, int z1, int x2, int y2, int z2, T value) {
+				return filter.test(value)?value:null;
+			}
+		},x1,y1,z1,x2,y2,z2,true);
+	}
+
+	/**
+	 * Checks whether an entire box is empty (null)
+	 */
+	public boolean isEmpty(int x1, int y1, int z1, int x2, int y2, int z2) {
+		return !visitBox(new BlockVisitor<T>() {
+			public Object visit(int x1, int y1, int z1, int x2, int y2, int z2, T value) {
+				return value;
+			}
+		},x1,y1,z1,x2,y2,z2,true);
+	}
+
+	/**
+	 * Visits blocks within a box, using the same query as Octreap
+	 */
+	private boolean visitBox(BlockVisitor<T> bf, int x1, int y1, int z1, int x2, int y2, int z2, boolean stopOnResult) {
+		return new Octreap.BoxQuery<T>() {
+			@Override
+			protected boolean seek(long zz) {
+				int n=ceilingNode(zz);
+				if (n==NONE) return false;
+				runStart=z1s[n];
+				runEnd=z2s[n];
+				runValue=value(n);
+				return true;
+			}
+		}.visitBox(bf,x1,y1,z1,x2,y2,z2,stopOnResult);
+	}
+
+	@Override
+	public ArrayOctreap<T> setBlock(int x1, int y1, int z1, int x2, int y2, int z2, T value) {
+		if (x1>(x2)) {int temp=x1; x1=x2; x2=temp;}
+		if (y1>(y2)) {int temp=y1; y1=y2; y2=temp;}
+		if (z1>(z2)) {int temp=z1; z1=z2; z2=temp;}
+		setBlock(Octreap.calculateZ(x1,y1,z1),Octreap.calculateZ(x2,y2,z2),value,Octreap.MAX_ZVALUE);
+		return this;
+	}
+
+	public void setBlock(long zz1, long zz2, final T value, long mask) {
+		Octreap.splitBlock(zz1,zz2,mask,new Octreap.RangeVisitor() {
+			public void visit(long za, long zb) {
+				setRange(za,zb,value);
+			}
+		});
+	}
+
+	public void fillSpace(T value) {
+		clear();
+		setRange(Octreap.MIN_ZVALUE,Octreap.MAX_ZVALUE,value);
+	}
+
+	/**
+	 * Checks whether entire range is empty (null)
+	 */
+	public boolean isEmpty(long za, long zb) {
+		int n=ceilingNode(za);
+		return (n==NONE)||(z1s[n]>zb);
+	}
+
+	public void setRange(long za, long zb, T value) {
+		// special null case
+		if (value==null) {
+			deleteRange(za,zb);
+			return;
+		}
+
+		Integer vi=paletteIndex.get(value);
+		int n=head;
+		while (n!=NONE) {
+			if (zb<z1s[n]) {
+				n=lefts[n];
+				continue;
+			}
+			if (za>z2s[n]) {
+				n=rights[n];
+				continue;
+			}
+			boolean matchValue=(vi!=null)&&(vi==vals[n]);
+
+			// check for complete overwrite or extend case
+			if (((za<=z1s[n])&&(zb>=z2s[n]))||matchValue) {
+				boolean setLow=(za<z1s[n]);
+				boolean setHigh=(zb>z2s[n]);
+				if (!matchValue) setValue(n,valueIndex(value));
+				if (setLow) {
+					deleteRange(za,z1s[n]-1);
+					z1s[n]=za;
+				}
+				if (setHigh) {
+					deleteRange(z2s[n]+1,zb);
+					z2s[n]=zb;
+				}
+				if (setLow||(!matchValue)) tryMerge(za);
+				if (setHigh||(!matchValue)) tryMerge(zb+1);
+				return;
+			}
+
+			// otherwise cut out
+			deleteRange(za,zb);
+			break;
+		}
+
+		// fall back to generic option - guaranteed that range is empty
+		addRange(za,zb,valueIndex(value));
+		tryMerge(za);
+		tryMerge(zb+1);
+	}
+
+	/**
+	 * Adds a range with a palette value, guaranteed to add one node
+	 * Does not check for merging!
+	 */
+	private void addRange(long za, long zb, int pi) {
+		int n=newNode(za,zb,pi);
+		head=addNode(n,head);
+	}
+
+	private int addNode(int n, int h) {
+		if (h==NONE) return n;
+
+		boolean addToLeft=z1s[n]<z1s[h];
+		if (addToLeft) {
+			int l=addNode(n,lefts[h]);
+			lefts[h]=l;
+			if (priority(l)>priority(h)) return pivot(h,true);
+		} else {
+			int r=addNode(n,rights[h]);
+			rights[h]=r;
+			if (priority(r)>priority(h)) return pivot(h,false);
+		}
+		return h;
+	}
+
+	private int pivot(int h, boolean toLeft) {
+		int newHead;
+		if (toLeft) {
+			newHead=lefts[h];
+			lefts[h]=rights[newHead];
+			rights[newHead]=h;
+		} else {
+			newHead=rights[h];
+			rights[h]=lefts[newHead];
+			lefts[newHead]=h;
+		}
+		return newHead;
+	}
+
+	private boolean tryMerge(long zz) {
+		int a=getNode(zz-1);
+		if (a==NONE) return false; // gap
+		if (z2s[a]>=zz) return false; // already merged
+
+		int b=getNode(zz);
+		if (b==NONE) return false; // gap
+		if (vals[a]==vals[b]) {
+			long temp=z2s[b];
+			deleteNode(b);
+			z2s[a]=temp; // ok since we have just deleted entire b range
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Deletes a range, setting to null
+	 * Guarantees all nodes outside this area continue to exist
+	 */
+	public void deleteRange(long za, long zb) {
+		deleteRange(za,zb,head);
+	}
+
+	private void deleteRange(long za, long zb, int n) {
+		if (n==NONE) return;
+
+		if ((za>z1s[n])&&(zb<z2s[n])) {
+			// cut out hole!
+			long nza=zb+1;
+			long nzb=z2s[n];
+
+			z2s[n]=za-1; // shrink range
+			addRange(nza,nzb,vals[n]);
+			return;
+		} else {
+			// delete ranges on either side
+			if (za<z1s[n]) deleteRange(za,zb,lefts[n]);
+			if (zb>z2s[n]) deleteRange(za,zb,rights[n]);
+
+			// exit if no overlap
+			if ((zb<z1s[n])||(za>z2s[n])) return;
+		}
+
+		// at least some overlap, not a hole....
+		if ((za<=z1s[n])&&(zb>=z2s[n])) {
+			deleteNode(n);
+		} else {
+			// cut off edges of node from correct side
+			if (zb<z2s[n]) {
+				z1s[n]=zb+1;
+			} else {
+				z2s[n]=za-1;
+			}
+		}
+	}
+
+	private void deleteNode(int n) {
+		head=unlinkNode(n,head);
+		freeNode(n);
+	}
+
+	private int unlinkNode(int n, int h) {
+		if (h==NONE) throw new Error("deleteNode: Node not found");
+		if (n==h) return raiseUp(lefts[n],rights[n]);
+		if (z1s[n]<z1s[h]) {
+			int l=unlinkNode(n,lefts[h]);
+			lefts[h]=l;
+		} else {
+			int r=unlinkNode(n,rights[h]);
+			rights[h]=r;
+		}
+		return h;
+	}
+
+	// makes one of two nodes the parent of the other based on priority
+	private int raiseUp(int a, int b) {
+		if (a==NONE) return b;
+		if (b==NONE) return a;
+		if (priority(a)>priority(b)) {
+			int r=raiseUp(rights[a],b);
+			rights[a]=r;
+			return a;
+		} else {
+			int l=raiseUp(a,lefts[b]);
+			lefts[b]=l;
+			return b;
+		}
+	}
+
+	public int countNodes() {
+		return count;
+	}
+
+	public int countLevels() {
+		return countLevels(head);
+	}
+
+	private int countLevels(int n) {
+		if (n==NONE) return 0;
+		return 1+Math.max(countLevels(lefts[n]), countLevels(rights[n]));
+	}
+
+	public int countArea() {
+		return countArea(head);
+	}
+
+	public int countNonNull() {
+		return countArea();
+	}
+
+	private int countArea(int n) {
+		if (n==NONE) return 0;
+		return 1+(int)(z2s[n]-z1s[n])+countArea(lefts[n])+countArea(rights[n]);
+	}
+
+	/**
+	 * Checks for consistency of node tree and palette
+	 */
+	public boolean check() {
+		int[] refs=new int[paletteUsed];
+		if (check(head,refs)!=count) throw new Error("Node count problem");
+		for (int i=0; i<paletteUsed; i++) {
+			if ((palette[i]!=null)&&(paletteRefs[i]!=refs[i])) throw new Error("Palette reference count problem");
+		}
+		return true;
+	}
+
+	private int check(int n, int[] refs) {
+		if (n==NONE) return 0;
+		if (z1s[n]>z2s[n]) throw new Error("Inverted node");
+		if (palette[vals[n]]==null) throw new Error("Null object");
+		refs[vals[n]]++;
+
+		int l=lefts[n];
+		if (l!=NONE) {
+			if (priority(n)<priority(l)) throw new Error("Priority problem");
+			if (z1s[n]<=z2s[l]) throw new Error("Bounds problem");
+			if ((z1s[n]==z2s[l]+1)&&(vals[n]==vals[l])) throw new Error("Unmerged blocks");
+		}
+
+		int r=rights[n];
+		if (r!=NONE) {
+			if (priority(n)<priority(r)) throw new Error("Priority problem");
+			if (z2s[n]>=z1s[r]) throw new Error("Bounds problem");
+			if ((z2s[n]+1==z1s[r])&&(vals[n]==vals[r])) throw new Error("Unmerged blocks");
+		}
+
+		return 1+check(l,refs)+check(r,refs);
+	}
+
+	@Override
+	public void validate() {
+		super.validate();
+		check();
+	}
+
+	public void addFootprint(Footprint f) {
+		if (f.addNode(this, "ArrayOctreap", Footprint.objectSize(8,24))) {
+			f.addNode(z1s, "long[]", Footprint.arraySize(z1s.length,8));
+			f.addNode(z2s, "long[]", Footprint.arraySize(z2s.length,8));
+			f.addNode(lefts, "int[]", Footprint.arraySize(lefts.length,4));
+			f.addNode(rights, "int[]", Footprint.arraySize(rights.length,4));
+			f.addNode(vals, "int[]", Footprint.arraySize(vals.length,4));
+			f.addNode(palette, "Object[]", Footprint.arraySize(palette.length,Footprint.REFERENCE_BYTES));
+			f.addNode(paletteRefs, "int[]", Footprint.arraySize(paletteRefs.length,4));
+		}
+	}
+}
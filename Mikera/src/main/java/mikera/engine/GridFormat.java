@@ -0,0 +1,334 @@
+package mikera.engine;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import mikera.data.Data;
+import mikera.data.SharedDataReader;
+import mikera.data.SharedDataWriter;
+import mikera.persistent.ListFactory;
+import mikera.persistent.PersistentList;
+
+/**
+ * Compact chunked binary format for grids, built on Data varints.
+ *
+ * Cells are stored as z-order runs, in the same order as Octreap nodes, so
+ * any Grid (Octreap, ArrayOctreap, TreeGrid, PersistentTreeGrid...) can be
+ * written and read back into any other Grid.
+ *
+ * Layout:
+ *   header:  MAGIC (full int), VERSION, chunk count
+ *   index:   for each chunk - gap from end of previous chunk, z-span, byte length
+ *   chunks:  for each chunk - palette length and palette, run count, then
+ *            for each run - gap from end of previous run, length-1, palette index
+ *
+ * All numbers except MAGIC are varints, and coordinates are deltas so
+ * typical runs take only a few bytes. Each chunk has its own value palette,
+ * written as a SharedDataWriter snapshot, so chunks can be decoded
+ * independently. The index lets a Reader load only the chunks overlapping
+ * a region.
+ *
+ * @author Mike Anderson
+ *
+ */
+public final class GridFormat {
+	public static final int MAGIC=0x4F435452; // "OCTR"
+	public static final int VERSION=1;
+	public static final int DEFAULT_CHUNK_RUNS=4096;
+
+	// largest aligned block that does not cross zero in any dimension
+	private static final long MAX_SIGNED_BLOCK=1L<<57;
+
+	private GridFormat() {
+		// static methods only
+	}
+
+	public static <T> Data write(Grid<T> grid) {
+		return write(grid,DEFAULT_CHUNK_RUNS);
+	}
+
+	/**
+	 * Writes a grid with up to chunkRuns z-order runs per chunk
+	 */
+	@SuppressWarnings("unchecked")
+	public static <T> Data write(Grid<T> grid, int chunkRuns) {
+		if (chunkRuns<1) throw new IllegalArgumentException("Invalid chunk size: "+chunkRuns);
+		Octreap<T> o=(grid instanceof Octreap<?>)?(Octreap<T>)grid:new Octreap<T>(grid);
+		ChunkWriter cw=new ChunkWriter(chunkRuns);
+		o.visitNodes(cw);
+		cw.endChunk();
+
+		Data data=new Data();
+		data.appendFullInt(MAGIC);
+		data.appendVarInt(VERSION);
+		int n=cw.chunkStarts.size();
+		data.appendVarInt(n);
+		long end=Octreap.MIN_ZVALUE-1;
+		for (int i=0; i<n; i++) {
+			long z1=cw.chunkStarts.get(i);
+			long z2=cw.chunkEnds.get(i);
+			data.appendVarLong(z1-end-1);
+			data.appendVarLong(z2-z1);
+			data.appendVarInt(cw.chunkLengths.get(i));
+			end=z2;
+		}
+		data.append(cw.chunks);
+		return data;
+	}
+
+	/**
+	 * Encodes runs into chunks as they are visited in z-order
+	 */
+	private static final class ChunkWriter implements Octreap.NodeVisitor {
+		private final int chunkRuns;
+		private final Data chunks=new Data();
+		private final ArrayList<Long> chunkStarts=new ArrayList<Long>();
+		private final ArrayList<Long> chunkEnds=new ArrayList<Long>();
+		private final ArrayList<Integer> chunkLengths=new ArrayList<Integer>();
+
+		private final HashMap<Object,Integer> paletteIndex=new HashMap<Object,Integer>();
+		private final ArrayList<Object> palette=new ArrayList<Object>();
+		private Data runs=new Data();
+		private int runCount=0;
+		private long start;
+		private long end;
+
+		private ChunkWriter(int chunkRuns) {
+			this.chunkRuns=chunkRuns;
+		}
+
+		public Object visit(Octreap.ZNode n) {
+			if (runCount==0) {
+				start=n.z1;
+				end=n.z1-1;
+			}
+			Object value=n.value();
+			Integer pi=paletteIndex.get(value);
+			if (pi==null) {
+				pi=palette.size();
+				palette.add(value);
+				paletteIndex.put(value, pi);
+			}
+			runs.appendVarLong(n.z1-end-1);
+			runs.appendVarLong(n.z2-n.z1);
+			runs.appendVarInt(pi);
+			end=n.z2;
+			if ((++runCount)>=chunkRuns) endChunk();
+			return null;
+		}
+
+		private void endChunk() {
+			if (runCount==0) return;
+			int size=chunks.size();
+			Data p=new SharedDataWriter().writeSnapshot(ListFactory.createFromList(palette));
+			chunks.appendVarInt(p.size());
+			chunks.append(p);
+			chunks.appendVarInt(runCount);
+			chunks.append(runs);
+
+			chunkStarts.add(start);
+			chunkEnds.add(end);
+			chunkLengths.add(chunks.size()-size);
+			paletteIndex.clear();
+			palette.clear();
+			runs=new Data();
+			runCount=0;
+		}
+	}
+
+	public static <T> Octreap<T> read(Data data) {
+		return new Reader<T>(data).readOctreap();
+	}
+
+	/**
+	 * Replaces the contents of a target grid with all cells, returning the updated grid
+	 */
+	public static <T> Grid<T> read(Data data, Grid<T> target) {
+		return new Reader<T>(data).readInto(target);
+	}
+
+	/**
+	 * Reads chunks from data in the grid format. The header and chunk index
+	 * are decoded on construction, chunks are decoded only when requested.
+	 *
+	 * @param <T> type of values in the grid
+	 */
+	public static final class Reader<T> {
+		private final Data data;
+		private final long[] chunkStarts;
+		private final long[] chunkEnds;
+		private final int[] chunkOffsets;
+		private int pos;
+
+		public Reader(Data data) {
+			this.data=data;
+			pos=0;
+			if (data.getFullInt(pos)!=MAGIC) throw new Error("Not grid data");
+			pos+=4;
+			int version=readVarInt();
+			if (version!=VERSION) throw new Error("Unsupported grid data version: "+version);
+			int n=readVarInt();
+			chunkStarts=new long[n];
+			chunkEnds=new long[n];
+			chunkOffsets=new int[n+1];
+			long end=Octreap.MIN_ZVALUE-1;
+			for (int i=0; i<n; i++) {
+				chunkStarts[i]=end+1+readVarLong();
+				chunkEnds[i]=chunkStarts[i]+readVarLong();
+				chunkOffsets[i+1]=chunkOffsets[i]+readVarInt();
+				end=chunkEnds[i];
+			}
+			for (int i=0; i<=n; i++) {
+				chunkOffsets[i]+=pos;
+			}
+			if (chunkOffsets[n]!=data.size()) throw new Error("Grid data has wrong length");
+		}
+
+		private int readVarInt() {
+			int result=data.getVarInt(pos);
+			pos+=Data.sizeOfVarInt(result);
+			return result;
+		}
+
+		private long readVarLong() {
+			long result=data.getVarLong(pos);
+			pos+=Data.sizeOfVarLong(result);
+			return result;
+		}
+
+		public int getChunkCount() {
+			return chunkStarts.length;
+		}
+
+		/**
+		 * First z-value in the given chunk
+		 */
+		public long getChunkStart(int i) {
+			return chunkStarts[i];
+		}
+
+		/**
+		 * Last z-value in the given chunk
+		 */
+		public long getChunkEnd(int i) {
+			return chunkEnds[i];
+		}
+
+		/**
+		 * Decodes the runs of a chunk into a builder. Chunks must be read
+		 * in ascending order into the same builder.
+		 */
+		@SuppressWarnings("unchecked")
+		public void readChunk(int i, Octreap.Builder<T> b) {
+			pos=chunkOffsets[i];
+			int plen=readVarInt();
+			PersistentList<Object> plist=(PersistentList<Object>)new SharedDataReader().readSnapshot(data.subset(pos, pos+plen));
+			Object[] palette=plist.toArray();
+			pos+=plen;
+
+			int runCount=readVarInt();
+			long end=chunkStarts[i]-1;
+			for (int j=0; j<runCount; j++) {
+				long z1=end+1+readVarLong();
+				end=z1+readVarLong();
+				b.add(z1, end, (T)palette[readVarInt()]);
+			}
+			if (pos!=chunkOffsets[i+1]) throw new Error("Chunk "+i+" has wrong length");
+		}
+
+		public Octreap<T> readOctreap() {
+			Octreap.Builder<T> b=Octreap.builder();
+			for (int i=0; i<chunkStarts.length; i++) {
+				readChunk(i,b);
+			}
+			return b.toOctreap();
+		}
+
+		/**
+		 * Replaces the contents of a target grid with all cells, returning the
+		 * updated grid. Any existing cells in the target are cleared first.
+		 * Octreap targets are bulk built, other grids are set block by block.
+		 */
+		@SuppressWarnings("unchecked")
+		public Grid<T> readInto(Grid<T> target) {
+			if (target instanceof Octreap<?>) {
+				Octreap<T> t=(Octreap<T>)target;
+				Octreap.Builder<T> b=t.contentBuilder();
+				for (int i=0; i<chunkStarts.length; i++) {
+					readChunk(i,b);
+				}
+				return t.setContents(b);
+			}
+			return copyBlocks(readOctreap(),target.clear());
+		}
+
+		/**
+		 * Reads only the chunks overlapping the given box, and sets the cells
+		 * within the box in the target grid. Returns the updated grid.
+		 */
+		@SuppressWarnings("unchecked")
+		public Grid<T> readRegion(Grid<T> target, int x1, int y1, int z1, int x2, int y2, int z2) {
+			if (x1>x2) {int temp=x1; x1=x2; x2=temp;}
+			if (y1>y2) {int temp=y1; y1=y2; y2=temp;}
+			if (z1>z2) {int temp=z1; z1=z2; z2=temp;}
+			int[] xr=Octreap.splitSign(Octreap.clampCoordinate(x1),Octreap.clampCoordinate(x2));
+			int[] yr=Octreap.splitSign(Octreap.clampCoordinate(y1),Octreap.clampCoordinate(y2));
+			int[] zr=Octreap.splitSign(Octreap.clampCoordinate(z1),Octreap.clampCoordinate(z2));
+
+			Octreap.Builder<T> b=Octreap.builder();
+			for (int i=0; i<chunkStarts.length; i++) {
+				if (overlaps(chunkStarts[i],chunkEnds[i],xr,yr,zr)) readChunk(i,b);
+			}
+			Octreap<T> o=b.toOctreap();
+
+			@SuppressWarnings("rawtypes")
+			final Grid<T>[] result=new Grid[] {target};
+			o.visitBlocks(new BlockVisitor<T>() {
+				public Object visit(int x1, int y1, int z1, int x2, int y2, int z2, T value) {
+					result[0]=result[0].setBlock(x1, y1, z1, x2, y2, z2, value);
+					return null;
+				}
+			},x1,y1,z1,x2,y2,z2);
+			return result[0];
+		}
+	}
+
+	/**
+	 * Tests whether a z-range overlaps the z-range of any part of a box
+	 */
+	private static boolean overlaps(long za, long zb, int[] xr, int[] yr, int[] zr) {
+		for (int k=0; k<zr.length; k+=2) {
+			for (int j=0; j<yr.length; j+=2) {
+				for (int i=0; i<xr.length; i+=2) {
+					long zmin=Octreap.calculateZ(xr[i],yr[j],zr[k]);
+					long zmax=Octreap.calculateZ(xr[i+1],yr[j+1],zr[k+1]);
+					if ((za<=zmax)&&(zb>=zmin)) return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Sets each node of an Octreap in a target grid as aligned blocks
+	 */
+	private static <T> Grid<T> copyBlocks(Octreap<T> o, Grid<T> target) {
+		@SuppressWarnings({ "unchecked", "rawtypes" })
+		final Grid<T>[] result=new Grid[] {target};
+		o.visitNodes(new Octreap.NodeVisitor() {
+			@SuppressWarnings("unchecked")
+			public Object visit(Octreap.ZNode n) {
+				long pos=n.z1;
+				while (pos<=n.z2) {
+					long size=Math.min(Octreap.blockSize(pos,n.z2),MAX_SIGNED_BLOCK);
+					long pos2=pos+size-1;
+					result[0]=result[0].setBlock(Octreap.extractX(pos), Octreap.extractY(pos), Octreap.extractZ(pos),
+							Octreap.extractX(pos2), Octreap.extractY(pos2), Octreap.extractZ(pos2), (T)n.value());
+					pos+=size;
+				}
+				return null;
+			}
+		});
+		return result[0];
+	}
+}
@@ -1,7 +1,12 @@
 package mikera.engine;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
 
+import mikera.util.BooleanFilter;
+import mikera.util.Footprint;
+import mikera.util.Maths;
 import mikera.util.Rand;
 
 /**
@@ -15,11 +20,19 @@ import mikera.util.Rand;
  * 
  * Adjacent nodes automatically combine on write
  * 
+ * Nodes are shared between an Octreap and its snapshots, and are copied 
+ * before modification when shared. snapshot() and clone() are O(1), and 
+ * writes copy at most the O(log n) nodes on the paths they modify. A snapshot 
+ * is never changed by writes to the original, so it can be read by other 
+ * threads without locking once it has been safely published (e.g. through a
+ * volatile field or a concurrent queue). Nodes returned by the public node 
+ * access methods must be treated as read-only.
+ * 
  * @author Mike Anderson
  *
  * @param <T> type of object to store in each cell
  */
-public final class Octreap<T> extends BaseGrid<T> {
+public final class Octreap<T> extends BaseGrid<T> implements Footprint.Measurable {
 	private static final int BITS=20;
 	private static final int BITS_POWER2=1<<BITS;
 	private static final int BITS_MASK=BITS_POWER2-1;
@@ -31,6 +44,10 @@ public final class Octreap<T> extends BaseGrid<T> {
 		public Object visit(ZNode n);
 	}
 	
+	static interface RangeVisitor {
+		public void visit(long z1, long z2);
+	}
+	
 	public static final class ZNode implements Comparable<ZNode>, Cloneable {
 		public long z1;
 		public long z2;
@@ -38,11 +55,29 @@ public final class Octreap<T> extends BaseGrid<T> {
 		private ZNode right;
 		private Object object;
 		private int priority;
+		private Object edit; // owner allowed to modify this node in place
 		
 		public ZNode() {
 			priority=Rand.nextInt();
 		}
 		
+		private ZNode(ZNode n, Object edit) {
+			this.z1=n.z1;
+			this.z2=n.z2;
+			this.left=n.left;
+			this.right=n.right;
+			this.object=n.object;
+			this.priority=n.priority;
+			this.edit=edit;
+		}
+		
+		private ZNode(long z1, long z2, Object value) {
+			this();
+			this.z1=z1;
+			this.z2=z2;
+			this.object=value;
+		}
+		
 		public int compareTo(ZNode b) {
 			long a=z1-b.z1;
 			if (a>0) return 1;
@@ -95,6 +130,9 @@ public final class Octreap<T> extends BaseGrid<T> {
 	
 	public ZNode head;
 	
+	// nodes owned by this token may be modified in place
+	private Object edit=new Object();
+	
 	public Octreap<T> set(int x, int y, int z, T value) {
 		long zz=calculateZ(x,y,z);
 		setRange(zz,zz,value);
@@ -109,9 +147,159 @@ public final class Octreap<T> extends BaseGrid<T> {
 		set(o);
 	}
 	
+	/**
+	 * Sets this Octreap to the contents of another grid. The result is bulk 
+	 * built rather than constructed by individual insertions.
+	 */
 	@Override
+	@SuppressWarnings("unchecked")
 	public Octreap<T> set(Grid<T> o) {
-		return (Octreap<T>) clear().paste(o);
+		if (o==this) return this;
+		final Builder<T> b=new Builder<T>(edit);
+		if (o instanceof Octreap<?>) {
+			// nodes are already in z-order
+			((Octreap<T>)o).visitNodes(new NodeVisitor() {
+				public Object visit(ZNode n) {
+					b.add(n.z1, n.z2, (T)n.object);
+					return null;
+				}
+			});
+		} else if (o instanceof ArrayOctreap<?>) {
+			((ArrayOctreap<T>)o).addRuns(b);
+		} else {
+			final ArrayList<ZNode> nodes=new ArrayList<ZNode>();
+			o.visitBlocks(new BlockVisitor<T>() {
+				public Object visit(int x1, int y1, int z1, int x2, int y2, int z2, final T value) {
+					if (value==null) return null;
+					splitBlock(calculateZ(x1,y1,z1),calculateZ(x2,y2,z2),FULL_MASK,new RangeVisitor() {
+						public void visit(long za, long zb) {
+							nodes.add(new ZNode(za,zb,value));
+						}
+					});
+					return null;
+				}
+			});
+			ZNode[] sorted=nodes.toArray(new ZNode[nodes.size()]);
+			Arrays.sort(sorted);
+			for (ZNode n: sorted) {
+				b.addNode(n);
+			}
+		}
+		head=b.buildHead();
+		return this;
+	}
+	
+	public static <T> Builder<T> builder() {
+		return new Builder<T>();
+	}
+	
+	/**
+	 * Creates a builder for new contents of this Octreap, see setContents(...)
+	 */
+	Builder<T> contentBuilder() {
+		return new Builder<T>(edit);
+	}
+	
+	/**
+	 * Replaces the contents of this Octreap with the result of a builder
+	 * created by contentBuilder()
+	 */
+	Octreap<T> setContents(Builder<T> b) {
+		if (b.edit!=edit) throw new IllegalArgumentException("Builder not created by this Octreap");
+		head=b.buildHead();
+		return this;
+	}
+	
+	/**
+	 * Builds an Octreap from runs of cells given in ascending z-order.
+	 * 
+	 * Adjacent runs with equal values are merged. Each new node is linked onto 
+	 * the right spine of the treap, so building takes linear time in total 
+	 * and the tree has the same expected depth as one built by insertion.
+	 * 
+	 * @author Mike Anderson
+	 *
+	 * @param <T>
+	 */
+	public static final class Builder<T> {
+		private final ArrayList<ZNode> spine=new ArrayList<ZNode>();
+		private ZNode last=null;
+		private long end=MIN_ZVALUE-1;
+		private Object edit;
+		
+		public Builder() {
+			this(new Object());
+		}
+		
+		private Builder(Object edit) {
+			this.edit=edit;
+		}
+		
+		/**
+		 * Adds a run of cells from z1 to z2 inclusive. Runs must not overlap and 
+		 * must be added in ascending order. Null values leave the run empty.
+		 */
+		public Builder<T> add(long z1, long z2, T value) {
+			if (z1>z2) throw new IllegalArgumentException("Inverted run: "+z1+" to "+z2);
+			if ((z1<=end)||(z2>MAX_ZVALUE)) throw new IllegalArgumentException("Run out of order: "+z1+" to "+z2);
+			if (value==null) {
+				end=z2;
+				return this;
+			}
+			if ((last!=null)&&(last.z2+1==z1)&&last.object.equals(value)) {
+				last.z2=z2;
+				end=z2;
+				return this;
+			}
+			return addNode(new ZNode(z1,z2,value));
+		}
+		
+		public Builder<T> add(int x, int y, int z, T value) {
+			long zz=calculateZ(x,y,z);
+			return add(zz,zz,value);
+		}
+		
+		private Builder<T> addNode(ZNode node) {
+			if (node.z1<=end) throw new IllegalArgumentException("Run out of order: "+node.z1+" to "+node.z2);
+			end=node.z2;
+			if ((last!=null)&&(last.z2+1==node.z1)&&last.object.equals(node.object)) {
+				last.z2=node.z2;
+				return this;
+			}
+			
+			// nodes with lower priority than the new node become its left subtree
+			int n=spine.size();
+			ZNode child=null;
+			while ((n>0)&&(spine.get(n-1).priority<node.priority)) {
+				child=spine.remove(--n);
+			}
+			node.left=child;
+			node.right=null;
+			node.edit=edit;
+			if (n>0) spine.get(n-1).right=node;
+			spine.add(node);
+			last=node;
+			return this;
+		}
+		
+		private ZNode buildHead() {
+			ZNode head=spine.isEmpty()?null:spine.get(0);
+			spine.clear();
+			last=null;
+			end=MIN_ZVALUE-1;
+			return head;
+		}
+		
+		/**
+		 * Creates an Octreap from the runs added so far, and resets the builder
+		 */
+		public Octreap<T> toOctreap() {
+			Octreap<T> result=new Octreap<T>();
+			result.edit=edit;
+			result.head=buildHead();
+			edit=new Object();
+			return result;
+		}
 	}
 	
 	@Override
@@ -209,6 +397,229 @@ public final class Octreap<T> extends BaseGrid<T> {
 		visitBlocks(node.right,bf);
 	}
 	
+	/**
+	 * Visits the parts of all non-null blocks that lie within the given box
+	 */
+	@Override
+	public void visitBlocks(BlockVisitor<T> bf, int x1, int y1, int z1, int x2, int y2, int z2) {
+		visitBox(bf,x1,y1,z1,x2,y2,z2,false);
+	}
+	
+	/**
+	 * Counts the non-null cells within the given box
+	 */
+	public long countNonNull(int x1, int y1, int z1, int x2, int y2, int z2) {
+		final long[] count=new long[1];
+		visitBox(new BlockVisitor<T>() {
+			public Object visit(int x1, int y1, int z1, int x2, int y2, int z2, T value) {
+				count[0]+=((long)(x2-x1+1))*(y2-y1+1)*(z2-z1+1);
+				return null;
+			}
+		},x1,y1,z1,x2,y2,z2,false);
+		return count[0];
+	}
+	
+	/**
+	 * Returns true if any cell within the given box has a non-null value 
+	 * accepted by the filter. Stops at the first match.
+	 */
+	public boolean anyMatch(int x1, int y1, int z1, int x2, int y2, int z2, final BooleanFilter<? super T> filter) {
+		return visitBox(new BlockVisitor<T>() {
+			public Object visit(int x1, int y1, int z1, int x2, int y2, int z2, T value) {
+				return filter.test(value)?value:null;
+			}
+		},x1,y1,z1,x2,y2,z2,true);
+	}
+	
+	/**
+	 * Checks whether an entire box is empty (null)
+	 */
+	public boolean isEmpty(int x1, int y1, int z1, int x2, int y2, int z2) {
+		return !visitBox(new BlockVisitor<T>() {
+			public Object visit(int x1, int y1, int z1, int x2, int y2, int z2, T value) {
+				return value;
+			}
+		},x1,y1,z1,x2,y2,z2,true);
+	}
+	
+	/**
+	 * Visits blocks within a box. Returns true if stopped early by the
+	 * visitor returning a non-null value.
+	 */
+	private boolean visitBox(BlockVisitor<T> bf, int x1, int y1, int z1, int x2, int y2, int z2, boolean stopOnResult) {
+		return new BoxQuery<T>() {
+			@SuppressWarnings("unchecked")
+			@Override
+			protected boolean seek(long zz) {
+				ZNode node=ceilingNode(zz);
+				if (node==null) return false;
+				runStart=node.z1;
+				runEnd=node.z2;
+				runValue=(T)node.object;
+				return true;
+			}
+		}.visitBox(bf,x1,y1,z1,x2,y2,z2,stopOnResult);
+	}
+	
+	/**
+	 * Box query over any ordered set of non-overlapping z-ranges, e.g. the 
+	 * nodes of an Octreap or ArrayOctreap. Subclasses implement seek(...) 
+	 * to find the first range ending at or after a given z-value.
+	 */
+	static abstract class BoxQuery<T> {
+		protected long runStart;
+		protected long runEnd;
+		protected T runValue;
+		
+		/**
+		 * Finds the first range that ends at or after zz, setting runStart, runEnd and runValue.
+		 * Returns false if there is no such range.
+		 */
+		protected abstract boolean seek(long zz);
+		
+		/**
+		 * Visits blocks within a box. Returns true if stopped early by the
+		 * visitor returning a non-null value.
+		 * 
+		 * The z-order of coordinates is unsigned, so a box that crosses zero in
+		 * any dimension is split into up to eight boxes that do not.
+		 */
+		boolean visitBox(BlockVisitor<T> bf, int x1, int y1, int z1, int x2, int y2, int z2, boolean stopOnResult) {
+			if (x1>x2) {int temp=x1; x1=x2; x2=temp;}
+			if (y1>y2) {int temp=y1; y1=y2; y2=temp;}
+			if (z1>z2) {int temp=z1; z1=z2; z2=temp;}
+			x1=clampCoordinate(x1); x2=clampCoordinate(x2);
+			y1=clampCoordinate(y1); y2=clampCoordinate(y2);
+			z1=clampCoordinate(z1); z2=clampCoordinate(z2);
+			
+			int[] xr=splitSign(x1,x2);
+			int[] yr=splitSign(y1,y2);
+			int[] zr=splitSign(z1,z2);
+			for (int k=0; k<zr.length; k+=2) {
+				for (int j=0; j<yr.length; j+=2) {
+					for (int i=0; i<xr.length; i+=2) {
+						if (visitUnsignedBox(bf,xr[i],yr[j],zr[k],xr[i+1],yr[j+1],zr[k+1],stopOnResult)) return true;
+					}
+				}
+			}
+			return false;
+		}
+		
+		/**
+		 * Visits blocks within a box whose coordinates all have the same sign in
+		 * each dimension, so that the box corners are the lowest and highest 
+		 * z-values in the box. 
+		 * 
+		 * Whenever the traversal leaves the box, it skips to the next z-value
+		 * inside the box with bigMin(...) and seeks the first range ending at or 
+		 * after that point, so ranges lying entirely outside the box are never visited.
+		 */
+		private boolean visitUnsignedBox(BlockVisitor<T> bf, int x1, int y1, int z1, int x2, int y2, int z2, boolean stopOnResult) {
+			long zmin=calculateZ(x1,y1,z1);
+			long zmax=calculateZ(x2,y2,z2);
+			int ux1=x1&BITS_MASK; int ux2=x2&BITS_MASK;
+			int uy1=y1&BITS_MASK; int uy2=y2&BITS_MASK;
+			int uz1=z1&BITS_MASK; int uz2=z2&BITS_MASK;
+			
+			long pos=zmin;
+			while (pos<=zmax) {
+				if ((!seek(pos))||(runStart>zmax)) return false;
+				if (pos<runStart) pos=runStart;
+				long end=Math.min(runEnd, zmax);
+				while (pos<=end) {
+					int px=extractUnsigned(pos);
+					int py=extractUnsigned(pos>>1);
+					int pz=extractUnsigned(pos>>2);
+					if ((px<ux1)||(px>ux2)||(py<uy1)||(py>uy2)||(pz<uz1)||(pz>uz2)) {
+						pos=bigMin(pos,zmin,zmax);
+						continue;
+					}
+					
+					long size=blockSize(pos,end);
+					long pos2=pos+size-1;
+					int bx2=Math.min(extractUnsigned(pos2),ux2);
+					int by2=Math.min(extractUnsigned(pos2>>1),uy2);
+					int bz2=Math.min(extractUnsigned(pos2>>2),uz2);
+					Object result=bf.visit(signExtend(px), signExtend(py), signExtend(pz), 
+							signExtend(bx2), signExtend(by2), signExtend(bz2), runValue);
+					if (stopOnResult&&(result!=null)) return true;
+					pos+=size;
+				}
+			}
+			return false;
+		}
+	}
+	
+	static int clampCoordinate(int a) {
+		return Maths.middle(-(BITS_POWER2>>1),a,(BITS_POWER2>>1)-1);
+	}
+	
+	/**
+	 * Splits a coordinate range into ranges with a single sign
+	 */
+	static int[] splitSign(int a, int b) {
+		if ((a<0)&&(b>=0)) return new int[] {0,b,a,-1};
+		return new int[] {a,b};
+	}
+	
+	/**
+	 * Returns the first node that ends at or after the given position
+	 */
+	private ZNode ceilingNode(long zz) {
+		ZNode result=null;
+		ZNode ze=head;
+		while (ze!=null) {
+			if (ze.z2<zz) {
+				ze=ze.right;
+			} else {
+				result=ze;
+				if (ze.z1<=zz) return ze;
+				ze=ze.left;
+			}
+		}
+		return result;
+	}
+	
+	/**
+	 * Calculates the smallest z-value greater than zz that lies within the box 
+	 * with corners zmin and zmax, where zz is between zmin and zmax but 
+	 * outside the box (the BIGMIN algorithm of Tropf and Herzog)
+	 */
+	public static long bigMin(long zz, long zmin, long zmax) {
+		long bigmin=zmax;
+		for (long bit=1L<<(BITS*3-1); bit!=0; bit>>>=1) {
+			long lower=fillBits3(bit>>3); // lower bits in same dimension
+			boolean z=(zz&bit)!=0;
+			boolean min=(zmin&bit)!=0;
+			boolean max=(zmax&bit)!=0;
+			if (!z) {
+				if (!min&&max) {
+					bigmin=(zmin|bit)&~lower;
+					zmax=(zmax&~bit)|lower;
+				} else if (min&&max) {
+					return zmin;
+				}
+			} else {
+				if (!min&&!max) {
+					return bigmin;
+				} else if (!min&&max) {
+					zmin=(zmin|bit)&~lower;
+				}
+			}
+		}
+		return bigmin;
+	}
+	
+	static int signExtend(int a) {
+		return (a<<(32-BITS))>>(32-BITS);
+	}
+	
+	static int extractUnsigned(long z) {
+		int lo=((int)(z))&01111111111;
+		int hi=((int)(z>>30))&01111111111;
+		return (compressInt3(hi)<<10)+compressInt3(lo);
+	}
+	
 	public void visitCells(BlockVisitor<T> bf, int x1, int y1, int z1, int x2, int y2, int z2, int dx, int dy, int dz) {
 		visitCells(bf,x1,y1,z1,x2,y2,z2,dx,dy,dz,head);
 	}
@@ -222,8 +633,12 @@ public final class Octreap<T> extends BaseGrid<T> {
 	 * look at trailing zeros
 	 */
 	protected static final long blockSize(long pos, ZNode node) {
+		return blockSize(pos,node.z2);
+	}
+	
+	protected static final long blockSize(long pos, long end) {
 		long size=1;
-		while (((pos&size)==0)&&((pos+size*2-1)<=node.z2)) {
+		while (((pos&size)==0)&&((pos+size*2-1)<=end)) {
 			size=size<<1;
 		}		
 		return size;
@@ -278,47 +693,34 @@ public final class Octreap<T> extends BaseGrid<T> {
 		setRange(0,FULL_MASK,value);
 	}
 	
-	public void changeAll(T value) {
-		changeAll(head,value);
-	}
-	
-	private boolean changeAll(ZNode head, T value) {
-		if (head==null) return false;
-
-		head.object=value;
-		if (changeAll(head.left,value)) {
-			tryMerge(head.z1);
-		}
-		if (changeAll(head.right,value)) {
-			tryMerge(head.z2+1);
-		}
-		return true;
+	/**
+	 * Changes all non-null cells to the given value. Rebuilds the tree in O(n).
+	 */
+	public void changeAll(final T value) {
+		final Builder<T> b=new Builder<T>(edit);
+		visitNodes(new NodeVisitor() {
+			public Object visit(ZNode n) {
+				b.add(n.z1, n.z2, value);
+				return null;
+			}
+		});
+		head=b.buildHead();
 	}
 	
-	public void changeAll(T oldValue, T newValue) {
+	/**
+	 * Changes all cells with oldValue to newValue. Rebuilds the tree in O(n).
+	 */
+	public void changeAll(final T oldValue, final T newValue) {
 		if (oldValue.equals(newValue)) return;
-		changeAll(head,oldValue,newValue);
-	}
-	
-	private boolean changeAll(ZNode head, T oldValue, T newValue) {
-		if (head==null) return false;
-
-		boolean checkMerge=false;
-		if (head.object.equals(oldValue)) {
-			head.object=newValue;
-			checkMerge=true;
-		} else if (head.object.equals(newValue)) {
-			// might merge so need to check
-			checkMerge=true;
-		}  
-		
-		if (changeAll(head.left,oldValue,newValue)&&checkMerge) {
-			tryMerge(head.z1);
-		}
-		if (changeAll(head.right,oldValue,newValue)&&checkMerge) {
-			tryMerge(head.z2+1);
-		}
-		return true;
+		final Builder<T> b=new Builder<T>(edit);
+		visitNodes(new NodeVisitor() {
+			@SuppressWarnings("unchecked")
+			public Object visit(ZNode n) {
+				b.add(n.z1, n.z2, oldValue.equals(n.object)?newValue:(T)n.object);
+				return null;
+			}
+		});
+		head=b.buildHead();
 	}
 	
 	public void floodFill(int x, int y, int z, T value) {
@@ -347,17 +749,78 @@ public final class Octreap<T> extends BaseGrid<T> {
 		return o3;
 	}
 	
+	/**
+	 * Returns a copy of this Octreap in O(1) time. All nodes become shared, 
+	 * so are copied by either Octreap before being modified.
+	 * 
+	 * Like snapshot(), this ends in-place editing of the existing nodes 
+	 * by this Octreap.
+	 */
 	@SuppressWarnings("unchecked")
 	public Octreap<T> clone() {
 		try {
 			Octreap<T> zn=(Octreap<T>)super.clone();
-			if (zn.head!=null) zn.head=(ZNode)(zn.head.clone());
+			zn.edit=new Object();
+			releaseNodes();
 			return zn;
 		} catch (Throwable t) {
 			throw new Error(t);
 		}
 	}
 	
+	/**
+	 * Returns an independent snapshot of the current contents in O(1) time. 
+	 * The snapshot is not affected by subsequent writes to this Octreap.
+	 * 
+	 * Taking a snapshot invalidates in-place editing: all current nodes 
+	 * become shared, so each later write to this Octreap first copies the 
+	 * O(log n) nodes on the path it modifies.
+	 */
+	public Octreap<T> snapshot() {
+		Octreap<T> result=new Octreap<T>();
+		result.head=head;
+		releaseNodes();
+		return result;
+	}
+	
+	/**
+	 * Gives up ownership of all current nodes by taking a new edit token, 
+	 * so that they are copied rather than modified by later writes
+	 */
+	private void releaseNodes() {
+		edit=new Object();
+	}
+	
+	/**
+	 * Returns a node that can be modified in place, copying it if shared
+	 */
+	private ZNode editable(ZNode node) {
+		if (node.edit==edit) return node;
+		return new ZNode(node,edit);
+	}
+	
+	/**
+	 * Gets the node containing zz for modification, copying any shared 
+	 * nodes on the path from the head. The node must exist.
+	 */
+	private ZNode editNode(long zz) {
+		ZNode node=editable(head);
+		head=node;
+		while (true) {
+			if (zz<node.z1) {
+				ZNode child=editable(node.left);
+				node.left=child;
+				node=child;
+			} else if (zz>node.z2) {
+				ZNode child=editable(node.right);
+				node.right=child;
+				node=child;
+			} else {
+				return node;
+			}
+		}
+	}
+	
 	private void visitNodes(ZNode node, NodeVisitor nf) {
 		if (node==null) return;
 		visitNodes(node.left,nf);
@@ -381,9 +844,20 @@ public final class Octreap<T> extends BaseGrid<T> {
 		setBlock(zz1,zz2,value,mask);
 	}
 	
-	public void setBlock(long zz1, long zz2, T value, long mask) {
+	public void setBlock(long zz1, long zz2, final T value, long mask) {
+		splitBlock(zz1,zz2,mask,new RangeVisitor() {
+			public void visit(long za, long zb) {
+				setRange(za,zb,value);
+			}
+		});
+	}
+	
+	/**
+	 * Splits a block with the given corners into z-order ranges
+	 */
+	static void splitBlock(long zz1, long zz2, long mask, RangeVisitor rv) {
 		if (zz1==zz2) {
-			setRange(zz1,zz2,value);
+			rv.visit(zz1,zz2);
 			return;
 		}
 			
@@ -393,7 +867,7 @@ public final class Octreap<T> extends BaseGrid<T> {
 		while ((zz1&hb)==(zz2&hb)) {
 			// escape if at single point or adjacent points
 			if (mask<=3) {
-				setRange(zz1,zz2,value);
+				rv.visit(zz1,zz2);
 				return;
 			}
 			
@@ -404,7 +878,7 @@ public final class Octreap<T> extends BaseGrid<T> {
 		
 		// check if single block
 		if (((zz1&mask)==0)&&((zz2&mask)==mask)) {
-			setRange(zz1,zz2,value);
+			rv.visit(zz1,zz2);
 			return;
 		}
 		
@@ -414,8 +888,8 @@ public final class Octreap<T> extends BaseGrid<T> {
 		
 		long dmask=fillBits3(hb>>3); // lower bits of dimension being split
 		long omask=hm-dmask; // other bits
-		setBlock(zz1,highbits|(zz1&hb)|dmask|(zz2&omask),value,hm);
-		setBlock(highbits|(zz2&hb)|(zz1&omask),zz2,value,hm);
+		splitBlock(zz1,highbits|(zz1&hb)|dmask|(zz2&omask),hm,rv);
+		splitBlock(highbits|(zz2&hb)|(zz1&omask),zz2,hm,rv);
 		
 	}
 	
@@ -524,7 +998,7 @@ public final class Octreap<T> extends BaseGrid<T> {
 	
 	public boolean isEmpty(long za, long zb, ZNode node) {
 		while (node!=null) {
-			if ((za<node.z2)&&(zb>=node.z1)) return false;
+			if ((za<=node.z2)&&(zb>=node.z1)) return false;
 			node=(zb<node.z1)?node.left:node.right;
 		}
 		return true;
@@ -556,6 +1030,7 @@ public final class Octreap<T> extends BaseGrid<T> {
 			
 			// check for complete overwrite case		
 			if ((za<=node.z1)&&(zb>=node.z2)) {
+				node=editNode(node.z1);
 				boolean setLow=false;
 				boolean setHigh=false;
 				if (za<node.z1) setLow=true;
@@ -579,6 +1054,7 @@ public final class Octreap<T> extends BaseGrid<T> {
 			
 			// check for extend case
 			if (node.object.equals(value)) {
+				node=editNode(node.z1);
 				boolean setLow=false;
 				boolean setHigh=false;
 				if (za<node.z1) setLow=true;
@@ -617,6 +1093,7 @@ public final class Octreap<T> extends BaseGrid<T> {
 		nze.object=value;
 		nze.z1=za;	
 		nze.z2=zb;
+		nze.edit=edit;
 		head=addNode(nze,head);
 	}
 	
@@ -671,6 +1148,7 @@ public final class Octreap<T> extends BaseGrid<T> {
 			//check();
 			deleteNode(b);
 			//check();
+			a=editNode(zz-1);
 			a.z2=temp; // ok since we have just deleted entire b range
 			//check();
 			return true;
@@ -681,6 +1159,7 @@ public final class Octreap<T> extends BaseGrid<T> {
 	private final ZNode addNode(ZNode node, ZNode head) {
 		if (head==null) return node;
 		
+		head=editable(head);
 		boolean addToLeft=node.compareTo(head)<0;
 		if (addToLeft) {
 			head.left=addNode(node,head.left);
@@ -712,46 +1191,64 @@ public final class Octreap<T> extends BaseGrid<T> {
 	/**
 	 * Deletes a range, setting to null
 	 * Guarantees all nodes outside this area continue to exist
+	 * 
+	 * Nodes overlapping the ends of the range are trimmed, then all nodes 
+	 * inside the range are removed together by splitting the treap at each end 
+	 * and joining the outer parts. 
 	 * @param za
 	 * @param zb
 	 */
+	@SuppressWarnings("unchecked")
 	public void deleteRange(long za, long zb) {
-		deleteRange(za,zb,head);
+		if (za>zb) return;
+		ZNode node=getNode(za);
+		if ((node!=null)&&(node.z1<za)) {
+			node=editNode(za);
+			if (node.z2>zb) {
+				// cut out hole!
+				long nzb=node.z2;
+				node.z2=za-1;
+				addRange(zb+1,nzb,(T)node.object);
+				return;
+			}
+			node.z2=za-1;
+		}
+		node=getNode(zb);
+		if ((node!=null)&&(node.z2>zb)) {
+			node=editNode(zb);
+			node.z1=zb+1;
+		}
+		
+		// exit if nothing left to delete
+		node=ceilingNode(za);
+		if ((node==null)||(node.z1>zb)) return;
+		
+		ZNode[] parts=new ZNode[2];
+		split(head,za,parts);
+		ZNode low=parts[0];
+		split(parts[1],zb+1,parts);
+		head=raiseUp(low,parts[1]);
 	}
 	
-	@SuppressWarnings("unchecked")
-	private void deleteRange(long za, long zb, ZNode node) {
-		if (node==null) return;
-		
-		if ((za>node.z1)&&(zb<node.z2)) {
-			// cut out hole!
-			long nza=zb+1;
-			long nzb=node.z2;
-			
-			node.z2=za-1; // shrink range
-			addRange(nza,nzb,(T)node.object);
+	/**
+	 * Splits a tree into nodes before zz (parts[0]) and nodes starting at
+	 * or after zz (parts[1]). No node may contain both zz-1 and zz.
+	 */
+	private void split(ZNode node, long zz, ZNode[] parts) {
+		if (node==null) {
+			parts[0]=null;
+			parts[1]=null;
 			return;
-		} else {
-			// delete ranges on either side 
-			// this does not alter structure since can't be cutting out any holes 
-			if (za<node.z1) deleteRange(za,zb,node.left);
-			if (zb>node.z2) deleteRange(za,zb,node.right);
-			
-			// exit if no overlap
-			if ((zb<node.z1)||(za>node.z2)) return;
 		}
-		
-		// at least some overlap, not a hole....
-		if ((za<=node.z1)&&(zb>=node.z2)) {
-			// delete whole node
-			deleteNode(node);
+		node=editable(node);
+		if (node.z1<zz) {
+			split(node.right,zz,parts);
+			node.right=parts[0];
+			parts[0]=node;
 		} else {
-			// cut off edges of node from correct side
-			if (zb<node.z2) {
-				node.z1=zb+1;
-			} else {
-				node.z2=za-1;
-			}
+			split(node.left,zz,parts);
+			node.left=parts[1];
+			parts[1]=node;
 		}
 	}
 	
@@ -759,41 +1256,38 @@ public final class Octreap<T> extends BaseGrid<T> {
 		head=deleteNode(node,head);
 	}
 	
+	/**
+	 * Deletes the node with the same start position as the given node
+	 */
 	public ZNode deleteNode(ZNode node, ZNode head) {
 		if (head==null) throw new Error("deleteNode: Node not found");
-		if (node==head) {
-			ZNode result= raiseUp(node);
-			return result;
+		if (node.z1==head.z1) {
+			return raiseUp(head.left,head.right);
+		}
+		head=editable(head);
+		if (node.z1<head.z1) {
+			head.left=deleteNode(node,head.left);
 		} else {
-			int dir=node.compareTo(head);
-			if (dir<0) {
-				head.left=deleteNode(node,head.left);
-			} else {
-				// if (dir==0) throw new Error("Duplicate z1 in deleteNode");
-				head.right=deleteNode(node,head.right);
-			}
+			head.right=deleteNode(node,head.right);
 		}
 		return head;
 	}
 	
-	private ZNode raiseUp(ZNode node) {
-		return raiseUp(node.left,node.right);
-	}
-		
 	// makes one of two nodes the parent of the other based on priority
 	private ZNode raiseUp(ZNode a, ZNode b) {
 		if (a==null) return b;
 		if (b==null) return a;
-		boolean raiseA=(a.priority>b.priority);
-		if (raiseA) {
+		if (a.priority>b.priority) {
+			a=editable(a);
 			a.right=raiseUp(a.right,b);
+			return a;
 		} else {
+			b=editable(b);
 			b.left=raiseUp(a,b.left);
+			return b;
 		}
-		return raiseA?a:b;
 	}
 
-	
 	public final static long calculateZ(int x, int y, int z) {
 		return split3(x)+(split3(y)<<1)+(split3(z)<<2);
 	}
@@ -898,4 +1392,17 @@ public final class Octreap<T> extends BaseGrid<T> {
 		super.validate();
 		if (head!=null) head.validate();
 	}
+	
+	public void addFootprint(Footprint f) {
+		if (f.addNode(this, "Octreap", Footprint.objectSize(2,0))) {
+			addFootprint(f,head);
+		}
+	}
+	
+	private static void addFootprint(Footprint f, ZNode node) {
+		if (node==null) return;
+		if (!f.addNode(node, "ZNode", Footprint.objectSize(4,20))) return;
+		addFootprint(f,node.left);
+		addFootprint(f,node.right);
+	}
 }
@@ -3,6 +3,7 @@ package mikera.engine;
 import java.util.ArrayList;
 import java.util.Arrays;
 
+import mikera.util.Footprint;
 import mikera.util.Maths;
 import mikera.util.Tools;
 
@@ -15,7 +16,7 @@ import mikera.util.Tools;
  *
  * @param <T>
  */
-public class TreeGrid<T> extends BaseGrid<T> {
+public class TreeGrid<T> extends BaseGrid<T> implements Footprint.Measurable {
 
 	private static final int DIM_SPLIT_BITS=2;
 	private static final int DIM_SPLIT_MASK=(1<<DIM_SPLIT_BITS)-1;
@@ -370,4 +371,14 @@ public class TreeGrid<T> extends BaseGrid<T> {
 			}
 		}
 	}
+	
+	public void addFootprint(Footprint f) {
+		if (!f.addNode(this, "TreeGrid", Footprint.objectSize(1,0)+Footprint.arraySize(DATA_ARRAY_SIZE,Footprint.REFERENCE_BYTES))) return;
+		for (int i=0; i<DATA_ARRAY_SIZE; i++) {
+			Object d=data[i];
+			if (d instanceof TreeGrid<?>) {
+				((TreeGrid<?>)d).addFootprint(f);
+			}
+		}
+	}
 }
@@ -1,25 +1,42 @@
 package mikera.persistent;
 
-import java.io.UnsupportedEncodingException;
+import java.nio.charset.Charset;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.regex.Pattern;
 
-public class ASCIIString implements CharSequence, java.io.Serializable,
-		Comparable<ASCIIString> {
+import mikera.annotations.Immutable;
+import mikera.util.Footprint;
+
+/**
+ * Compact immutable string storing one byte per character (ISO-8859-1).
+ *
+ * Substrings share the backing byte array of the original string. The hash
+ * code is cached, and is the same as the hash code of the equivalent String.
+ *
+ * Strings can be interned in a shared concurrent pool, which is useful for
+ * large numbers of repeated identifiers.
+ *
+ * @author Mike Anderson
+ *
+ */
+@Immutable
+public final class ASCIIString implements CharSequence, java.io.Serializable,
+		Comparable<ASCIIString>, Footprint.Measurable {
+	private static final long serialVersionUID = -2594826815423478812L;
+
+	private static final Charset LATIN_1=Charset.forName("ISO-8859-1");
+
+	public static final ASCIIString EMPTY=new ASCIIString(0);
+
+	private static final ConcurrentHashMap<ASCIIString,ASCIIString> internPool=new ConcurrentHashMap<ASCIIString,ASCIIString>();
 
-	private final int count;
 	private final byte[] value;
+	private final int offset;
+	private final int count;
 	private int hash = 0;
 
 	public ASCIIString(String s) {
-		this(s.length());
-		for (int i = 0; i < count; i++) {
-			char c = s.charAt(i);
-			if (c == (c & 0xFF)) {
-				value[i] = (byte) c;
-			} else {
-				throw new Error("Non-ANSI character value found: " + (int) c);
-			}
-		}
+		this((CharSequence)s);
 	}
 
 	public ASCIIString(CharSequence s) {
@@ -36,23 +53,84 @@ public class ASCIIString implements CharSequence, java.io.Serializable,
 
 	public ASCIIString(ASCIIString s) {
 		this(s.count);
-		System.arraycopy(s.value, 0, value, 0, count);
+		System.arraycopy(s.value, s.offset, value, 0, count);
 	}
 
 	public ASCIIString(ASCIIString a, ASCIIString b) {
 		this(a.count + b.count);
-		System.arraycopy(a.value, 0, value, 0, a.count);
-		System.arraycopy(b.value, 0, value, a.count, b.count);
+		System.arraycopy(a.value, a.offset, value, 0, a.count);
+		System.arraycopy(b.value, b.offset, value, a.count, b.count);
 	}
 
 	private ASCIIString(int newLength) {
-		count = newLength;
-		value = new byte[newLength];
+		this(new byte[newLength],0,newLength);
+	}
+
+	private ASCIIString(byte[] bytes, int offset, int length) {
+		this.value = bytes;
+		this.offset = offset;
+		this.count = length;
+	}
+
+	/**
+	 * Creates a string from a copy of the given bytes, interpreted as ISO-8859-1
+	 */
+	public static ASCIIString create(byte[] bytes, int offset, int length) {
+		if ((offset<0)||(length<0)||((offset+length)>bytes.length)) throw new IndexOutOfBoundsException();
+		if (length==0) return EMPTY;
+		byte[] nbytes=new byte[length];
+		System.arraycopy(bytes, offset, nbytes, 0, length);
+		return new ASCIIString(nbytes,0,length);
+	}
+
+	public static ASCIIString create(CharSequence s) {
+		if (s instanceof ASCIIString) return (ASCIIString)s;
+		if (s.length()==0) return EMPTY;
+		return new ASCIIString(s);
+	}
+
+	/**
+	 * Returns true if all characters in the given sequence can be stored in an ASCIIString
+	 */
+	public static boolean isValid(CharSequence s) {
+		for (int i=0; i<s.length(); i++) {
+			if (s.charAt(i)>0xFF) return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Returns a canonical instance of this string from a shared pool.
+	 *
+	 * Interned strings that are substrings of a larger string are copied first,
+	 * so that the pool does not retain the larger backing array. Strings in
+	 * the pool are retained until clearInternPool() is called.
+	 */
+	public ASCIIString intern() {
+		ASCIIString s=internPool.get(this);
+		if (s!=null) return s;
+		s=isCompact()?this:new ASCIIString(this);
+		ASCIIString existing=internPool.putIfAbsent(s, s);
+		return (existing!=null)?existing:s;
+	}
+
+	public static void clearInternPool() {
+		internPool.clear();
+	}
+
+	private boolean isCompact() {
+		return (offset==0)&&(count==value.length);
 	}
 
 	@Override
 	public char charAt(int position) {
-		return (char) value[position];
+		if ((position<0)||(position>=count)) throw new IndexOutOfBoundsException();
+		return (char) (value[offset+position]&0xFF);
+	}
+
+	public byte byteAt(int position) {
+		if ((position<0)||(position>=count)) throw new IndexOutOfBoundsException();
+		return value[offset+position];
 	}
 
 	@Override
@@ -66,13 +144,15 @@ public class ASCIIString implements CharSequence, java.io.Serializable,
 	}
 
 	public ASCIIString concat(ASCIIString str) {
+		if (str.count==0) return this;
+		if (count==0) return str;
 		return new ASCIIString(this, str);
 	}
 
 	public int hashCode() {
 		int h = hash;
 		if (h == 0 && count > 0) {
-			int off = 0;
+			int off = offset;
 			byte val[] = value;
 			int len = count;
 
@@ -84,6 +164,30 @@ public class ASCIIString implements CharSequence, java.io.Serializable,
 		return h;
 	}
 
+	public boolean equals(Object o) {
+		if (o==this) return true;
+		if (!(o instanceof ASCIIString)) return false;
+		return equals((ASCIIString)o);
+	}
+
+	public boolean equals(ASCIIString s) {
+		if (s==this) return true;
+		int len=count;
+		if (s.count!=len) return false;
+		int h1=hash;
+		int h2=s.hash;
+		if ((h1!=0)&&(h2!=0)&&(h1!=h2)) return false;
+		byte[] a=value;
+		byte[] b=s.value;
+		int ao=offset;
+		int bo=s.offset;
+		if ((a==b)&&(ao==bo)) return true;
+		for (int i=0; i<len; i++) {
+			if (a[ao+i]!=b[bo+i]) return false;
+		}
+		return true;
+	}
+
 	public ASCIIString replace(char oldChar, char newChar) {
 		return replace((byte) oldChar, (byte) newChar);
 	}
@@ -91,15 +195,14 @@ public class ASCIIString implements CharSequence, java.io.Serializable,
 	public ASCIIString replace(byte oldByte, byte newByte) {
 		int pos = 0;
 
-		while ((pos < count) && (value[pos] != oldByte))
+		while ((pos < count) && (value[offset+pos] != oldByte))
 			pos++;
 
 		if (pos < count) {
 			ASCIIString s = new ASCIIString(this);
-			s.value[pos] = newByte;
-			for (int i = pos + 1; i < count; i++) {
-				if (s.value[pos] == oldByte)
-					s.value[pos] = newByte;
+			for (int i = pos; i < count; i++) {
+				if (s.value[i] == oldByte)
+					s.value[i] = newByte;
 			}
 			return s;
 		} else {
@@ -108,19 +211,32 @@ public class ASCIIString implements CharSequence, java.io.Serializable,
 	}
 
 	public boolean matches(String regex) {
-		return Pattern.matches(regex, toString());
+		return Pattern.matches(regex, this);
 	}
 
 	public ASCIIString substring(int beginIndex) {
 		return substring(beginIndex, count);
 	}
 
+	/**
+	 * Returns a substring sharing the same backing array
+	 */
+	public ASCIIString substring(int beginIndex, int endIndex) {
+		if ((beginIndex<0)||(endIndex>count)) throw new IndexOutOfBoundsException();
+		int newLength = endIndex - beginIndex;
+		if (newLength<0) throw new IllegalArgumentException("Negative length: "+newLength);
+		if (newLength==count) return this;
+		if (newLength==0) return EMPTY;
+		return new ASCIIString(value,offset+beginIndex,newLength);
+	}
+
 	public boolean contains(CharSequence s) {
 		return indexOf(s) >= 0;
 	}
 
 	public int indexOf(CharSequence s) {
 		final int sl = s.length();
+		if (sl==0) return 0;
 		for (int i = 0; i <= count - sl; i++) {
 			for (int j = 0; j < sl; j++) {
 				if (s.charAt(j) != charAt(i + j))
@@ -142,53 +258,53 @@ public class ASCIIString implements CharSequence, java.io.Serializable,
 		int len=srcEnd-srcBegin;
 		if (len<0) throw new IllegalArgumentException("Negative length: "+len);
 		for (int i=0; i<len; i++) {
-  			dst[dstBegin+i]=(char)(value[srcBegin+i]&0xFF);	
+  			dst[dstBegin+i]=(char)(value[offset+srcBegin+i]&0xFF);
 		}
 	}
 	
 	public void getBytes(int srcBegin, int srcEnd, byte dst[], int dstBegin) {
 		int len=srcEnd-srcBegin;
-		System.arraycopy(value,srcBegin,dst,dstBegin,len);	
+		System.arraycopy(value,offset+srcBegin,dst,dstBegin,len);
 	}
 
-	private ASCIIString substring(int beginIndex, int endIndex) {
-		int newLength = endIndex - beginIndex;
-		ASCIIString s = new ASCIIString(newLength);
-		System.arraycopy(value, beginIndex, s.value, 0, newLength);
-		return s;
+	public byte[] toByteArray() {
+		byte[] result=new byte[count];
+		System.arraycopy(value, offset, result, 0, count);
+		return result;
+	}
+
+	public Text toText() {
+		return Text.create(toString());
 	}
 
 	@Override
 	public String toString() {
-		try {
-			return new String(value, "US-ASCII");
-		} catch (UnsupportedEncodingException e) {
-			throw new Error(e);
-		}
+		return new String(value, offset, count, LATIN_1);
 	}
 
+	/**
+	 * Compares strings by unsigned byte values, so that ordering is consistent
+	 * with the ordering of the equivalent Strings
+	 */
 	@Override
 	public int compareTo(ASCIIString t) {
 		if (t == this)
 			return 0;
-		int pos = 0;
-		int len1 = count;
-		int len2 = t.count;
-
-		while (true) {
-			if (pos >= len1) {
-				if (pos >= len2) {
-					return 0;
-				} else {
-					return 1;
-				}
-			} else if (pos >= len2) {
-				return -1;
-			}
-			int c = this.value[pos] - t.value[pos];
+		int n=Math.min(count, t.count);
+		for (int i=0; i<n; i++) {
+			int c = (value[offset+i]&0xFF) - (t.value[t.offset+i]&0xFF);
 			if (c != 0)
 				return c;
-			pos++;
+		}
+		return count-t.count;
+	}
+
+	/**
+	 * Counts the backing array, which may be shared with other substrings
+	 */
+	public void addFootprint(Footprint f) {
+		if (f.addNode(this, "ASCIIString", Footprint.objectSize(1,12))) {
+			f.addNode(value, "byte[]", Footprint.arraySize(value.length,1));
 		}
 	}
 }
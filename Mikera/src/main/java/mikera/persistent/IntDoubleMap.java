@@ -0,0 +1,83 @@
+package mikera.persistent;
+
+import java.util.Map;
+
+import mikera.persistent.impl.BaseIntPrimitiveMap;
+
+/**
+ * Persistent map from integer keys to primitive double values.
+ * 
+ * Values are stored unboxed in the leaf entries of an underlying IntLongMap. 
+ * Use getDouble(...) and visitEntries(...) to avoid boxing when reading from the map.
+ * 
+ * @author Mike Anderson
+ */
+public final class IntDoubleMap extends BaseIntPrimitiveMap<Double,IntDoubleMap> {
+	private static final long serialVersionUID = 7530719424190962558L;
+
+	public static final IntDoubleMap EMPTY=new IntDoubleMap(IntLongMap.EMPTY);
+	
+	private IntDoubleMap(IntLongMap data) {
+		super(data);
+	}
+	
+	public static IntDoubleMap create() {
+		return EMPTY;
+	}
+	
+	public static IntDoubleMap create(int key, double value) {
+		return new IntDoubleMap(IntLongMap.create(key, Double.doubleToLongBits(value)));
+	}
+	
+	public static IntDoubleMap create(Map<Integer,Double> values) {
+		return EMPTY.include(values);
+	}
+	
+	@Override
+	protected IntDoubleMap wrap(IntLongMap data) {
+		return new IntDoubleMap(data);
+	}
+	
+	@Override
+	protected Double toValue(long bits) {
+		return Double.valueOf(Double.longBitsToDouble(bits));
+	}
+	
+	@Override
+	protected long toBits(Double value) {
+		return Double.doubleToLongBits(value.doubleValue());
+	}
+	
+	/**
+	 * Visitor for IntDoubleMap entries, allowing iteration without boxing
+	 */
+	public interface EntryVisitor {
+		public void visit(int key, double value);
+	}
+	
+	/**
+	 * Visits every entry in the map with the given visitor
+	 */
+	public void visitEntries(final EntryVisitor visitor) {
+		data.visitEntries(new IntLongMap.EntryVisitor() {
+			public void visit(int key, long value) {
+				visitor.visit(key, Double.longBitsToDouble(value));
+			}
+		});
+	}
+	
+	/**
+	 * Gets the value for the given key without boxing
+	 * 
+	 * @param notFound Value to return if the key is not present
+	 */
+	public double getDouble(int key, double notFound) {
+		IntLongMap.ILEntry entry=getEntry(key);
+		if (entry!=null) return Double.longBitsToDouble(entry.value());
+		return notFound;
+	}
+	
+	public IntDoubleMap include(int key, double value) {
+		return includeBits(key, Double.doubleToLongBits(value));
+	}
+}
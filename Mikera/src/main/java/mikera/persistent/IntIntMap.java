@@ -0,0 +1,83 @@
+package mikera.persistent;
+
+import java.util.Map;
+
+import mikera.persistent.impl.BaseIntPrimitiveMap;
+
+/**
+ * Persistent map from integer keys to primitive int values.
+ * 
+ * Values are stored unboxed in the leaf entries of an underlying IntLongMap. 
+ * Use getInt(...) and visitEntries(...) to avoid boxing when reading from the map.
+ * 
+ * @author Mike Anderson
+ */
+public final class IntIntMap extends BaseIntPrimitiveMap<Integer,IntIntMap> {
+	private static final long serialVersionUID = -3712850943817263011L;
+
+	public static final IntIntMap EMPTY=new IntIntMap(IntLongMap.EMPTY);
+	
+	private IntIntMap(IntLongMap data) {
+		super(data);
+	}
+	
+	public static IntIntMap create() {
+		return EMPTY;
+	}
+	
+	public static IntIntMap create(int key, int value) {
+		return new IntIntMap(IntLongMap.create(key, value));
+	}
+	
+	public static IntIntMap create(Map<Integer,Integer> values) {
+		return EMPTY.include(values);
+	}
+	
+	@Override
+	protected IntIntMap wrap(IntLongMap data) {
+		return new IntIntMap(data);
+	}
+	
+	@Override
+	protected Integer toValue(long bits) {
+		return Integer.valueOf((int)bits);
+	}
+	
+	@Override
+	protected long toBits(Integer value) {
+		return value.intValue();
+	}
+	
+	/**
+	 * Visitor for IntIntMap entries, allowing iteration without boxing
+	 */
+	public interface EntryVisitor {
+		public void visit(int key, int value);
+	}
+	
+	/**
+	 * Visits every entry in the map with the given visitor
+	 */
+	public void visitEntries(final EntryVisitor visitor) {
+		data.visitEntries(new IntLongMap.EntryVisitor() {
+			public void visit(int key, long value) {
+				visitor.visit(key, (int)value);
+			}
+		});
+	}
+	
+	/**
+	 * Gets the value for the given key without boxing
+	 * 
+	 * @param notFound Value to return if the key is not present
+	 */
+	public int getInt(int key, int notFound) {
+		IntLongMap.ILEntry entry=getEntry(key);
+		if (entry!=null) return (int)entry.value();
+		return notFound;
+	}
+	
+	public IntIntMap include(int key, int value) {
+		return includeBits(key, value);
+	}
+}
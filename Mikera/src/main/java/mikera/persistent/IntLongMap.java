@@ -0,0 +1,949 @@
+package mikera.persistent;
+
+import java.io.ObjectStreamException;
+import java.util.Iterator;
+import java.util.Map;
+
+import mikera.persistent.impl.KeySetWrapper;
+import mikera.persistent.impl.ValueCollectionWrapper;
+import mikera.util.Bits;
+import mikera.util.Tools;
+
+/**
+ * Persistent specialised HashMap implementation for integer keys and primitive 
+ * long values, using the same trie layout as IntMap.
+ * 
+ * Values are stored unboxed in the leaf entries. Use getLong(...) and 
+ * visitEntries(...) to avoid boxing when reading from the map.
+ * 
+ * Also used as the underlying storage for IntIntMap and IntDoubleMap.
+ * 
+ * @author Mike Anderson
+ */
+
+public final class IntLongMap extends PersistentMap<Integer,Long> {
+	private static final long serialVersionUID = 4558872184615130493L;
+
+	/**
+	 * SHIFT_AMOUNT controls the maximum branching factor.
+	 * 
+	 * Valid values are 2 (x4) through to 5 bits (x32 branching). 4 seems to be about the sweet spot.
+	 */
+	public static final int SHIFT_AMOUNT=5;
+	public static final int LOW_MASK=(1<<SHIFT_AMOUNT)-1;
+	public static final int DATA_SIZE=1<<SHIFT_AMOUNT;
+	
+	private final ILNode root;
+
+	private static final ILNullList EMPTY_NODE_LIST=new ILNullList();
+	
+	public static final IntLongMap EMPTY=new IntLongMap();
+
+	
+	private IntLongMap() {
+		this(EMPTY_NODE_LIST);
+	}
+	 
+	public IntLongMap(ILNode newRoot) {
+		if (newRoot==null) newRoot=EMPTY_NODE_LIST;
+		root=newRoot;
+	}
+	
+	public static IntLongMap create() {
+		return EMPTY;
+	}
+	
+	public static IntLongMap create(int key, long value) {
+		return new IntLongMap(new ILEntry(key,value));
+	}
+	
+	public static IntLongMap create(Map<Integer,Long> values) {
+		IntLongMap pm=new IntLongMap();
+		for (Map.Entry<Integer,Long> ent: values.entrySet()) {
+			pm=pm.include(ent.getKey(),ent.getValue());
+		}
+		return pm;
+	}
+
+	public static int countEntries(ILNode node) {
+		if (node==null) return 0;
+		return node.size();
+	}
+	
+	private abstract static class ILNode extends PersistentObject {
+		private static final long serialVersionUID = -7590663827418789802L;
+
+		/**
+		 * Removes key from ILNode, returning a modified HashNode
+		 * 
+		 * @param key
+		 * @return Modified ILNode, the same ILNode if key not found, or null if all data deleted
+		 */
+		protected abstract ILNode delete(int key);
+
+		/**
+		 * Returns a new ILNode including the given (key,value) pair
+		 * 
+		 * @param key
+		 * @param value
+		 * @param shift
+		 * @return
+		 */
+		protected abstract ILNode include(int key, long value, int shift);
+
+		protected abstract ILNode include(ILEntry entry, int shift);
+
+	
+		/**
+		 * Returns the entry for the given key value, or null if not found
+		 * 
+		 * @param key
+		 * @return
+		 */
+		protected abstract ILEntry getEntry(int key);
+		
+		/**
+		 * Finds the next entry in the ILNode map, or null if not found
+		 * Updates the given ILEntrySetIterator
+		 * 
+		 * @param it ILEntrySetIterator to be updated
+		 * @return the next entry, or null if none remaining
+		 */
+		protected abstract ILEntry findNext(ILEntrySetIterator it);
+		
+		/**
+		 * Returns the size of the ILNode, i.e. the total number of distinct entries
+		 * @return
+		 */
+		protected abstract int size();
+		
+		/**
+		 * Determine if the ILNode is a leaf entry
+		 * Used to determine how the nodes can be re-used
+		 * 
+		 * @return true if leaf node, false otherwise
+		 */
+		protected abstract boolean isLeaf();
+		
+		/**
+		 * Determine if the ILNode contains a given key
+		 * 
+		 * @return true if key is present, false otherwise
+		 */
+		public final boolean containsKey(int key) {
+			return getEntry(key)!=null;
+		}
+		
+		/**
+		 * Visits all entries in the ILNode in key trie order
+		 */
+		protected abstract void visit(EntryVisitor visitor);
+
+		/**
+		 * Testing function to validate internal structure of ILNode
+		 */
+		public abstract void validate();
+	}
+	
+	/**
+	 * Represents a full node with DATA_SIZE non-null elements
+	 * @author Mike
+	 */
+	private static final class ILFullNode extends ILNode {
+		private static final long serialVersionUID = 748591198034363992L;
+		
+		
+		private final ILNode[] data;
+		private final int shift;
+		private final int count;
+		
+		
+		protected ILFullNode(ILNode[] newData, int newShift) {
+			data=newData;
+			shift=newShift;
+			count=countEntries();
+		}
+		
+		private static final int slotFromKey(int key, int shift) {
+			return (key>>>shift)&LOW_MASK;
+		}
+
+		@Override
+		protected ILNode delete(int key) {
+			int slot=slotFromKey(key,shift);
+			ILNode n=data[slot];
+			ILNode dn=n.delete(key);
+			if (dn==null) return remove(slot);
+			if (dn==n) return this;
+			return replace(slot,dn);
+		}
+		
+		@SuppressWarnings("unchecked")
+		protected ILNode remove(int i) {
+			ILNode[] newdata=new ILNode[DATA_SIZE-1];
+			System.arraycopy(data, 0, newdata, 0, i);
+			System.arraycopy(data, i+1, newdata, i, DATA_SIZE-i-1);
+			return new ILBitMapNode(newdata,shift,0xFFFFFFFF&(~(1<<i)));
+		}
+		
+		@SuppressWarnings("unchecked")
+		protected ILNode replace(int i, ILNode node) {
+			ILNode[] newData=new ILNode[DATA_SIZE];
+			System.arraycopy(data, 0, newData, 0, DATA_SIZE);
+			newData[i]=node;
+			return new ILFullNode(newData,shift);
+		}
+		
+		@Override
+		protected ILEntry findNext(ILEntrySetIterator it) {
+			int i=slotFromKey(it.position,shift);
+			ILNode n=data[i];
+			if (n!=null) {
+				ILEntry ent=n.findNext(it);
+				if (ent!=null) return ent;
+			}
+			i++;
+			while(i<DATA_SIZE) {
+				n=data[i];
+				if (n!=null) {
+					it.position=(it.position&((1<<shift)-1)) | ((i<<shift));
+					it.index=0;
+					return n.findNext(it);
+				}
+				i++;
+			}
+			return null;
+		}
+
+		@Override
+		protected ILEntry getEntry(int key) {
+			int i=slotFromKey(key,shift);
+			ILNode n=data[i];
+			return n.getEntry(key);
+		}
+
+		@Override
+		protected ILNode include(int key, long value, int shift) {
+			int i=slotFromKey(key,shift);
+			ILNode n=data[i];
+			ILNode dn=n.include(key, value, shift+SHIFT_AMOUNT);
+			if (dn==n) return this;
+			return replace(i,dn);
+		}
+		
+		@Override
+		protected ILNode include(ILEntry entry, int shift) {
+			int key=entry.key();
+			int i=slotFromKey(key,shift);
+			ILNode n=data[i];
+			ILNode dn=n.include(entry, shift+SHIFT_AMOUNT);
+			if (dn==n) return this;
+			return replace(i,dn);
+		}
+
+		
+
+		private int countEntries() {
+			int res=0;
+			for (int i=0; i<data.length; i++) {
+				ILNode n=data[i];
+				res+=n.size();
+			}
+			return res;
+		}
+		
+		@Override
+		protected void visit(EntryVisitor visitor) {
+			for (int i=0; i<data.length; i++) {
+				data[i].visit(visitor);
+			}
+		}
+		
+		@Override
+		protected int size() {
+			return count;
+		}
+
+		@Override
+		public void validate() {
+			int count=0;
+			for (int i=0; i<DATA_SIZE; i++) {
+				ILNode n=data[i];
+				count+=n.size();
+				if (n instanceof ILFullNode) {
+					ILFullNode pfn=(ILFullNode)n;
+					if (pfn.shift!=(this.shift+SHIFT_AMOUNT)) throw new Error();
+				}
+				n.validate();
+			}
+			if (count!=size()) throw new Error();
+		}
+
+		@Override
+		protected boolean isLeaf() {
+			return false;
+		}	
+	}
+	
+	/**
+	 * Represents a bitmapped node with 1 to DATA_SIZE-1 branches
+	 * 
+	 * Inspired by Clojure's persistent data structures
+	 * 
+	 * @author Mike
+	 */
+	public static final class ILBitMapNode extends ILNode {
+		private static final long serialVersionUID = 64618360159960521L;
+		
+		
+		private final ILNode[] data;
+		private final int shift;
+		private final int count;
+		private final int bitmap; // bitmap indicating which slots are present in data array
+		
+		
+		private ILBitMapNode(ILNode[] newData, int newShift, int newBitmap) {
+			data=newData;
+			shift=newShift;
+			bitmap=newBitmap;
+			count=countEntries();
+		}
+		
+		public static final int indexFromSlot(int slot, int bm) {
+			int masInteger = (1<<slot) - 1;
+			return Integer.bitCount( bm & masInteger );
+		}
+		
+		public static final int slotFromHash(int key, int shift) {
+			int slot=(key>>>shift)&LOW_MASK;
+			return slot;
+		}
+		
+		private final int indexFromKey(int hash, int shift) {
+			return indexFromSlot(slotFromHash(hash,shift),bitmap);
+		}
+		
+		private final int slotFromIndex(int index) {
+			int v=bitmap;
+			int m=Bits.lowestSetBit(v);
+			while ((index--)>0) {
+				v=v&(~m);
+				m=Bits.lowestSetBit(v);
+			}
+			return Integer.bitCount(m-1);
+		}
+
+		@Override
+		protected ILNode delete(int key) {
+			int i=indexFromKey(key,shift);
+			if (i>=data.length) return this; // needed in case slot not present in current node
+			ILNode n=data[i];
+			ILNode dn=n.delete(key);
+			if (dn==n) return this;
+			if (dn==null) {
+				return remove(i);
+			}
+			return replace(i,dn);
+		}
+		
+		@SuppressWarnings("unchecked")
+		private ILNode remove(int i) {
+			if (data.length==1) return null;
+			if (data.length==2) {
+				// only return the node if it is a leaf node (otherwise shift levels are disrupted....
+				ILNode node=data[1-i];
+				if (node.isLeaf()) return node; 
+			}
+			ILNode[] newData=new ILNode[data.length-1];
+			System.arraycopy(data, 0, newData, 0, i);
+			System.arraycopy(data, i+1, newData, i, data.length-i-1);
+			return new ILBitMapNode(newData,shift,bitmap&(~(1<<slotFromIndex(i))));
+		}
+		
+		@SuppressWarnings("unchecked")
+		protected ILNode replace(int i, ILNode node) {
+			ILNode[] newData=new ILNode[data.length];
+			System.arraycopy(data, 0, newData, 0, data.length);
+			newData[i]=node;
+			return new ILBitMapNode(newData,shift,bitmap);
+		}
+		
+		@Override
+		protected ILEntry findNext(ILEntrySetIterator it) {
+			// note ugly but fast hack: we store index rather than slot in it.position for bitmap nodes
+			int i=slotFromHash(it.position,shift);
+			ILNode n=data[i];
+			ILEntry ent=n.findNext(it);
+			if (ent!=null) return ent;
+			i++;
+			if(i<data.length) {
+				n=data[i];
+				// here again we store index rather than slot
+				it.position=(it.position&((1<<shift)-1)) | ((i<<shift));
+				it.index=0;
+				return n.findNext(it);
+			}
+			return null;
+		}
+
+		@Override
+		protected ILEntry getEntry(int key) {
+			int i=indexFromKey(key,shift);
+			if (i>=data.length) return null;
+			ILNode n=data[i];
+			if (n!=null) return n.getEntry(key);
+			return null;
+		}
+
+		@Override
+		protected ILNode include(int key, long value, int shift) {
+			int s=slotFromHash(key,shift);
+			int i=indexFromSlot(s,bitmap);
+			if (((1<<s)&bitmap)==0) {
+				return insertSlot(i,s,new ILEntry(key,value));
+			}
+			ILNode n=data[i];
+			ILNode dn=n.include(key, value, shift+SHIFT_AMOUNT);
+			if (dn==n) return this;
+			return replace(i,dn);
+		}
+		
+		@Override
+		protected ILNode include(ILEntry entry, int shift) {
+			int key=entry.key();
+			int s=slotFromHash(key,shift);
+			int i=indexFromSlot(s,bitmap);
+			if (((1<<s)&bitmap)==0) {
+				return insertSlot(i,s,entry);
+			}
+			ILNode n=data[i];
+			ILNode dn=n.include(entry, shift+SHIFT_AMOUNT);
+			if (dn==n) return this;
+			return replace(i,dn);
+		}
+		
+		@SuppressWarnings("unchecked")
+		protected ILNode insertSlot(int i, int s, ILNode node) {
+			ILNode[] newData=new ILNode[data.length+1];
+			System.arraycopy(data, 0, newData, 0, i);
+			System.arraycopy(data, i, newData, i+1, data.length-i);
+			newData[i]=node;
+			if (data.length==31) {
+				return new ILFullNode(newData,shift);
+			} else {
+				return new ILBitMapNode(newData,shift,bitmap|(1<<s));				
+			}
+		}
+		
+		
+		@SuppressWarnings("unchecked")
+		protected static  ILBitMapNode concat(ILNode a, int ha, ILNode b, int hb, int shift) {
+			ILNode[] nodes;
+			int sa=slotFromHash(ha,shift);
+			int sb=slotFromHash(hb,shift);
+			int bitmap=(1<<sa)|(1<<sb);
+			if (sa!=sb) {
+				nodes=new ILNode[2];
+				int ia=indexFromSlot(sa,bitmap);
+				nodes[ia]=a;
+				nodes[1-ia]=b;
+			} else {
+				nodes=new ILNode[1];
+				nodes[0]=concat(a,ha,b,hb,shift+SHIFT_AMOUNT);
+			}
+			ILBitMapNode fn=new ILBitMapNode(nodes,shift,bitmap);
+			return fn;
+		}
+
+		private int countEntries() {
+			int res=0;
+			for (int i=0; i<data.length; i++) {
+				ILNode n=data[i];
+				res+=n.size();
+			}
+			return res;
+		}
+		
+		@Override
+		protected void visit(EntryVisitor visitor) {
+			for (int i=0; i<data.length; i++) {
+				data[i].visit(visitor);
+			}
+		}
+		
+		@Override
+		protected int size() {
+			return count;
+		}
+
+		@Override
+		public void validate() {
+			if (data.length!=Integer.bitCount(bitmap)) throw new Error();
+			int count=0;
+			for (int i=0; i<data.length; i++) {
+				if (i!=indexFromSlot(slotFromIndex(i),bitmap)) throw new Error();
+				ILNode n=data[i];
+				count+=n.size();
+				if (n instanceof ILFullNode) {
+					ILFullNode pfn=(ILFullNode)n;
+					if (pfn.shift!=(this.shift+SHIFT_AMOUNT)) throw new Error();
+				}
+				n.validate();
+			}
+			if (count!=size()) throw new Error();
+		}	
+		
+		@Override
+		protected boolean isLeaf() {
+			return false;
+		}	
+	}
+
+	/**
+	 * Null list implementation for starting root nodes
+	 * @author Mike
+	 */
+	private static final class ILNullList extends ILNode {
+		private static final long serialVersionUID = 2415575965202720510L;
+
+		
+		@Override
+		protected ILNode delete(int key) {
+			return this;
+		}
+
+		@Override
+		protected ILEntry findNext(ILEntrySetIterator it) {
+			return null;
+		}
+
+		@Override
+		protected ILEntry getEntry(int key) {
+			return null;
+		}
+
+		@Override
+		protected ILNode include(int key, long value, int shift) {
+			return new ILEntry(key,value);
+		}
+		
+		@Override
+		protected void visit(EntryVisitor visitor) {
+			// nothing to visit
+		}
+		
+		protected ILNode include(ILEntry entry, int shift) {
+			return entry;
+		}
+
+		@Override
+		protected int size() {
+			return 0;
+		}
+
+		@Override
+		public void validate() {
+		}
+		
+		@Override
+		protected boolean isLeaf() {
+			return true;
+		}	
+		
+		private Object readResolve() throws ObjectStreamException {
+			// needed for deserialisation to the correct static instance
+			return EMPTY_NODE_LIST;
+		}
+	}
+	
+	
+	/**
+	 * Represents a single PersistentHashMap entry
+	 * 
+	 * @author Mike
+	 */
+	public static final class ILEntry extends ILNode implements Map.Entry<Integer,Long> {
+		private static final long serialVersionUID = -4478013572463673876L;
+		
+		
+		private final int key;
+		private final long value;
+		
+		public int key() {
+			return key;
+		}
+		
+		public long value() {
+			return value;
+		}
+		
+		public Integer getKey() {
+			return Integer.valueOf(key);
+		}
+		
+		public Long getValue() {
+			return Long.valueOf(value);
+		}
+				
+		public Long setValue(Long value) {
+			throw new UnsupportedOperationException();
+		}	
+		
+		public ILEntry(int k, long v) {
+			key=k;
+			value=v;
+		}
+		
+		public boolean matches(int key) {
+			return this.key==key;
+		}
+		
+		public boolean matchesValue(long value) {
+			return this.value==value;
+		}
+		
+		@Override
+		protected ILEntry getEntry(int key) {
+			if (matches(key)) return this;
+			return null;
+		}
+		
+		@Override
+		protected ILNode include(int newkey, long value,int shift) {
+			if (newkey==this.key) {
+				// replacement case
+				if (!matchesValue(value)) return new ILEntry(newkey,value);
+				return this;
+			}
+			
+			return ILBitMapNode.concat(this,key,new ILEntry(newkey,value),newkey,shift);
+		}
+		
+		@Override
+		protected ILNode include(ILEntry entry, int shift) {
+			int newkey=entry.key();
+			if (newkey==this.key) {
+				// replacement case
+				if (!matchesValue(entry.value)) return entry;
+				return this;
+			}
+			
+			return ILBitMapNode.concat(this,key,entry,newkey,shift);
+		}
+		
+		@Override
+		protected ILNode delete(int k) {
+			if (k==this.key) return null;
+			return this;
+		}
+		
+		@Override
+		protected void visit(EntryVisitor visitor) {
+			visitor.visit(key, value);
+		}
+		
+		@Override
+		protected int size() {
+			return 1;
+		}
+
+		@Override
+		protected ILEntry findNext(ILEntrySetIterator it) {
+			if (it.index>0) {
+				return null;
+			} else {
+				it.index=1;
+				return this;
+			}
+		}
+
+		@Override
+		public void validate() {
+		}
+		
+		@Override
+		protected boolean isLeaf() {
+			return true;
+		}
+		
+		// toString() consistent with java.util.AbstractMap
+		public String toString() {
+			return String.valueOf(key)+'='+String.valueOf(value);
+		}
+	}
+	
+	/**
+	 * EntrySet implementation
+	 */
+	protected final class ILEntrySet extends PersistentSet<Map.Entry<Integer,Long>> {
+		private static final long serialVersionUID = 6233276018521198517L;
+
+		@Override
+		public int size() {
+			return IntLongMap.this.size();
+		}
+		
+		public boolean contains(Object o) {
+			if (!(o instanceof Map.Entry<?,?>)) return false;
+			Map.Entry<?,?> ent=(Map.Entry<?,?>)o;
+			if (!(ent.getKey() instanceof Integer)) return false;
+			ILEntry pe=IntLongMap.this.getEntry((Integer) ent.getKey());
+			if (pe==null) return false;
+			return Tools.equalsWithNulls(pe.getValue(), ent.getValue());
+		}
+
+		public Iterator<Map.Entry<Integer,Long>> iterator() {
+			return new ILEntrySetIterator(IntLongMap.this);
+		}
+
+		public PersistentSet<Map.Entry<Integer,Long>> include(
+				Map.Entry<Integer,Long> value) {
+			return SetFactory.create(this).include(value);
+		}
+	}
+	
+	
+	/**
+	 * Entry set iterator
+	 * @author Mike
+	 */
+	private static class ILEntrySetIterator implements Iterator<Map.Entry<Integer,Long>> {
+		public ILNode root;
+		public ILEntry next;
+		public int position=0;
+		public int index=0;
+		
+		private ILEntrySetIterator(IntLongMap IM) {
+			root=IM.root;
+			findNext();
+		}
+
+		public boolean hasNext() {
+			return (next!=null);
+		}
+
+		public ILEntry next() {
+			ILEntry result=next;
+			findNext();
+			return result;
+		}
+		
+		private void findNext() {
+			next=root.findNext(this);
+		}
+
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+	}
+
+	/**
+	 * Visitor for IntLongMap entries, allowing iteration without boxing
+	 */
+	public interface EntryVisitor {
+		public void visit(int key, long value);
+	}
+	
+	/**
+	 * Visits every entry in the map with the given visitor
+	 */
+	public void visitEntries(EntryVisitor visitor) {
+		root.visit(visitor);
+	}
+
+	/*
+	 *  IPersistentMap methods
+	 */
+
+	@Override
+	public boolean containsKey(Object key) {
+		if (!(key instanceof Integer)) return false;
+		return root.containsKey(((Integer)key).intValue());
+	}
+	
+	public boolean containsKey(int key) {
+		return root.containsKey(key);
+	}
+
+	@Override
+	public PersistentSet<Map.Entry<Integer,Long>> entrySet() {
+		return new ILEntrySet();
+	}
+
+	@Override
+	public Long get(Object key) {
+		if (!(key instanceof Integer)) return null;
+		ILEntry entry=root.getEntry((Integer)key);
+		if (entry!=null) return entry.getValue();
+		return null;
+	}
+	
+	public Long get(int key) {
+		ILEntry entry=root.getEntry(key);
+		if (entry!=null) return entry.getValue();
+		return null;
+	}
+	
+	/**
+	 * Gets the value for the given key without boxing
+	 * 
+	 * @param notFound Value to return if the key is not present
+	 */
+	public long getLong(int key, long notFound) {
+		ILEntry entry=root.getEntry(key);
+		if (entry!=null) return entry.value;
+		return notFound;
+	}
+	
+	public ILEntry getEntry(Integer key) {
+		return root.getEntry(key);
+	}
+	
+	public ILEntry getEntry(int key) {
+		return root.getEntry(key);
+	}
+	
+	public java.util.Map.Entry<Integer,Long> getMapEntry(Object key) {
+		if (!(key instanceof Integer)) return null;
+		return getEntry((Integer)key);
+	}
+
+	@Override
+	public PersistentSet<Integer> keySet() {
+		return new KeySetWrapper<Integer, Long>(entrySet());
+	}
+
+	@Override
+	public int size() {
+		return root.size();
+	}
+
+	@Override
+	public PersistentCollection<Long> values() {
+		return new ValueCollectionWrapper<Integer, Long>(entrySet());
+	}
+
+	@Override
+	public IntLongMap include(Integer key, Long value) {
+		ILNode newRoot=root.include(key.intValue(), value.longValue(),0);
+		if (root==newRoot) return this;
+		return new IntLongMap(newRoot);
+	}
+	
+	public IntLongMap include(int key, long value) {
+		ILNode newRoot=root.include(key, value,0);
+		if (root==newRoot) return this;
+		return new IntLongMap(newRoot);
+	}
+	
+	@Override
+	public IntLongMap include(Map<Integer,Long> values) {
+		if (values instanceof IntLongMap) {
+			return include((IntLongMap)values);
+		}
+		
+		IntLongMap pm=this;
+		for (Map.Entry<Integer,Long> entry:values.entrySet()) {
+			pm=pm.include(entry.getKey(),entry.getValue());
+		}
+		return pm;
+	}
+	
+	/**
+	 * Merges another IntLongMap into this one at node level, sharing any
+	 * subtrees that are only present in one of the maps
+	 */
+	public IntLongMap include(IntLongMap values) {
+		ILNode newRoot=union(root,values.root,0);
+		if (root==newRoot) return this;
+		if (values.root==newRoot) return values;
+		return new IntLongMap(newRoot);
+	}
+	
+	/**
+	 * Node level union, with entries in b taking precedence
+	 */
+	private static ILNode union(ILNode a, ILNode b, int shift) {
+		if (a==b) return a;
+		if (a.size()==0) return b;
+		if (b.size()==0) return a;
+		if (b instanceof ILEntry) {
+			return a.include((ILEntry)b, shift);
+		}
+		if (a instanceof ILEntry) {
+			ILEntry e=(ILEntry)a;
+			if (b.getEntry(e.key)!=null) return b;
+			return b.include(e, shift);
+		}
+		ILNode[] sa=slots(a);
+		ILNode[] sb=slots(b);
+		ILNode[] nd=new ILNode[DATA_SIZE];
+		boolean sameA=true;
+		boolean sameB=true;
+		for (int s=0; s<DATA_SIZE; s++) {
+			ILNode ca=sa[s];
+			ILNode cb=sb[s];
+			ILNode c=(ca==null)?cb:((cb==null)?ca:union(ca,cb,shift+SHIFT_AMOUNT));
+			nd[s]=c;
+			sameA&=(c==ca);
+			sameB&=(c==cb);
+		}
+		if (sameA) return a;
+		if (sameB) return b;
+		return createFromSlots(nd,shift);
+	}
+	
+	/**
+	 * Returns the children of a branch node indexed by slot, with null for empty slots
+	 */
+	private static ILNode[] slots(ILNode node) {
+		if (node instanceof ILFullNode) return ((ILFullNode)node).data;
+		ILBitMapNode bn=(ILBitMapNode)node;
+		ILNode[] result=new ILNode[DATA_SIZE];
+		int i=0;
+		for (int s=0; s<DATA_SIZE; s++) {
+			if ((bn.bitmap&(1<<s))!=0) result[s]=bn.data[i++];
+		}
+		return result;
+	}
+	
+	/**
+	 * Creates a branch node from an array of children indexed by slot
+	 */
+	private static ILNode createFromSlots(ILNode[] nd, int shift) {
+		int bitmap=0;
+		for (int s=0; s<DATA_SIZE; s++) {
+			if (nd[s]!=null) bitmap|=(1<<s);
+		}
+		if (bitmap==0xFFFFFFFF) return new ILFullNode(nd,shift);
+		ILNode[] data=new ILNode[Integer.bitCount(bitmap)];
+		int i=0;
+		for (int s=0; s<DATA_SIZE; s++) {
+			if (nd[s]!=null) data[i++]=nd[s];
+		}
+		return new ILBitMapNode(data,shift,bitmap);
+	}
+
+	@Override
+	public IntLongMap delete(Integer key) {
+		ILNode newRoot=root.delete(key);
+		if (root==newRoot) return this;
+		return new IntLongMap(newRoot);
+	}
+	
+	public IntLongMap delete(int key) {
+		ILNode newRoot=root.delete(key);
+		if (root==newRoot) return this;
+		return new IntLongMap(newRoot);
+	}
+	
+	public boolean allowsNullKey() {
+		return false;
+	}
+	
+	@Override
+	public void validate() {
+		super.validate();
+		root.validate();
+	}
+}
@@ -4,6 +4,8 @@ import java.io.ObjectStreamException;
 import java.util.Iterator;
 import java.util.Map;
 
+import mikera.data.SharedDataReader;
+import mikera.data.SharedDataWriter;
 import mikera.persistent.impl.KeySetWrapper;
 import mikera.persistent.impl.ValueCollectionWrapper;
 import mikera.util.Bits;
@@ -832,4 +834,88 @@ public final class IntMap<V> extends PersistentMap<Integer,V> {
 		super.validate();
 		root.validate();
 	}
+	
+	/**
+	 * Writes this map to a SharedDataWriter, writing only trie nodes that
+	 * have not previously been written
+	 */
+	public void writeTo(SharedDataWriter w) {
+		writeNode(w,root);
+	}
+	
+	private static final byte NODE_EMPTY=0;
+	private static final byte NODE_ENTRY=1;
+	private static final byte NODE_BITMAP=2;
+	private static final byte NODE_FULL=3;
+	
+	private static <V> void writeNode(SharedDataWriter w, IMNode<V> node) {
+		if (!w.writeReference(node)) return;
+		if (node instanceof IMEntry<?>) {
+			IMEntry<V> e=(IMEntry<V>)node;
+			w.writeByte(NODE_ENTRY);
+			w.writeVarInt(e.key);
+			w.writeValue(e.value);
+		} else if (node instanceof IMBitMapNode<?>) {
+			IMBitMapNode<V> bn=(IMBitMapNode<V>)node;
+			w.writeByte(NODE_BITMAP);
+			w.writeVarInt(bn.shift);
+			w.writeFullInt(bn.bitmap);
+			for (int i=0; i<bn.data.length; i++) {
+				writeNode(w,bn.data[i]);
+			}
+		} else if (node instanceof IMFullNode<?>) {
+			IMFullNode<V> fn=(IMFullNode<V>)node;
+			w.writeByte(NODE_FULL);
+			w.writeVarInt(fn.shift);
+			for (int i=0; i<DATA_SIZE; i++) {
+				writeNode(w,fn.data[i]);
+			}
+		} else {
+			w.writeByte(NODE_EMPTY);
+		}
+	}
+	
+	/**
+	 * Reads a map written with writeTo(SharedDataWriter)
+	 */
+	@SuppressWarnings("unchecked")
+	public static <V> IntMap<V> readFrom(SharedDataReader r) {
+		IMNode<V> root=readNode(r);
+		if (root==EMPTY_NODE_LIST) return (IntMap<V>)EMPTY;
+		return new IntMap<V>(root);
+	}
+	
+	@SuppressWarnings("unchecked")
+	private static <V> IMNode<V> readNode(SharedDataReader r) {
+		int header=r.readReference();
+		if (!SharedDataReader.isNew(header)) return (IMNode<V>)r.getNode(header);
+		byte type=r.readByte();
+		switch (type) {
+			case NODE_ENTRY: {
+				int key=r.readVarInt();
+				V value=(V)r.readValue();
+				return r.putNode(header, new IMEntry<V>(key,value));
+			}
+			case NODE_BITMAP: {
+				int shift=r.readVarInt();
+				int bitmap=r.readFullInt();
+				IMNode<V>[] data=new IMNode[Integer.bitCount(bitmap)];
+				for (int i=0; i<data.length; i++) {
+					data[i]=readNode(r);
+				}
+				return r.putNode(header, new IMBitMapNode<V>(data,shift,bitmap));
+			}
+			case NODE_FULL: {
+				int shift=r.readVarInt();
+				IMNode<V>[] data=new IMNode[DATA_SIZE];
+				for (int i=0; i<DATA_SIZE; i++) {
+					data[i]=readNode(r);
+				}
+				return r.putNode(header, new IMFullNode<V>(data,shift));
+			}
+			case NODE_EMPTY: 
+				return r.putNode(header, (IMNode<V>)EMPTY_NODE_LIST);
+			default: throw new Error("Unknown node type: "+type);
+		}
+	}
 }
@@ -3,98 +3,157 @@ package mikera.persistent;
 import java.io.ObjectStreamException;
 import java.util.Collection;
 import java.util.Iterator;
+import java.util.NoSuchElementException;
 import java.util.Set;
 
 import mikera.annotations.Immutable;
 import mikera.persistent.impl.BasePersistentSet;
+import mikera.persistent.impl.IntContainer;
 import mikera.util.Arrays;
+import mikera.util.Footprint;
 import mikera.util.HashCache;
 import mikera.util.Tools;
 
 /**
- * Immutable small set of integers, stored as a sorted array
+ * Immutable set of integers, stored as a sorted sequence of compressed 64K chunks
  * Stored hashcode designed to enable fast hashtable lookups
  * 
+ * Each chunk is held in the smallest of a sorted array, bitmap or run-length
+ * container (see IntContainer), so dense sets and ranges of integers are compact. 
+ * Set operations work chunk by chunk and share unchanged chunks between sets.
+ * 
  * Should never contain duplicates
  * 
  * @author Mike
  *
  */
 @Immutable
-public final class IntSet extends BasePersistentSet<Integer> {
+public final class IntSet extends BasePersistentSet<Integer> implements Footprint.Measurable {
 	private static final long serialVersionUID = 2677550392326589873L;
-	private static final HashCache<IntSet> cache=new HashCache<IntSet>(401);
+	// weak so interned sets are dropped as soon as they are no longer in use
+	private static volatile HashCache<IntSet> cache=new HashCache<IntSet>(401,HashCache.Retention.WEAK);
 
-	public static final IntSet EMPTY_INTSET=intern(new IntSet(mikera.util.Arrays.NULL_INTS));
+	private static final int[] NULL_KEYS=mikera.util.Arrays.NULL_INTS;
+	private static final IntContainer[] NULL_CONTAINERS=new IntContainer[0];
+	
+	public static final IntSet EMPTY_INTSET=intern(new IntSet(NULL_KEYS,NULL_CONTAINERS));
 
 	/**
-	 * data field contains an ordered list of unique integers
+	 * keys contains the high 16 bits of each chunk in ascending order, 
+	 * containers contains the low 16 bits of the values in each chunk
+	 */
+	private final int[] keys;
+	private final IntContainer[] containers;
+	
+	/**
+	 * offsets contains the index of the first value in each chunk
 	 */
-	private final int[] data;
+	private final int[] offsets;
+	private final int size;
 	private final int hash;	
 	
-	private IntSet(int[] values) {
-		data =values;
+	private IntSet(int[] keys, IntContainer[] containers) {
+		this.keys=keys;
+		this.containers=containers;
+		int n=keys.length;
+		offsets=new int[n];
+		int total=0;
+		for (int i=0; i<n; i++) {
+			offsets[i]=total;
+			total+=containers[i].cardinality();
+		}
+		size=total;
 		hash=calcHashCode();
 	}
 	
+	private static int highBits(int v) {
+		return v>>IntContainer.CHUNK_BITS;
+	}
+	
+	private static int lowBits(int v) {
+		return v&IntContainer.CHUNK_MASK;
+	}
+	
+	private int findChunk(int high) {
+		return java.util.Arrays.binarySearch(keys, high);
+	}
+	
 	public boolean containsAll(IntSet a) {
-		int[] adata=a.data;
-		int[] sdata=data;
-		int ai=0;
-		int si=0;
-		while (ai<adata.length) {
-			int needed=adata[ai++];
-			while (true) {
-				int s=sdata[si++];
-				if (s>needed) return false; // not found
-				if (s==needed) break;
-				if (si>=sdata.length) return false;
-			}
+		if (a.size>size) return false;
+		int[] akeys=a.keys;
+		for (int ai=0; ai<akeys.length; ai++) {
+			int ci=findChunk(akeys[ai]);
+			if (ci<0) return false;
+			if (IntContainer.difference(a.containers[ai], containers[ci])!=null) return false;
 		}
 		return true;
 	}
 	
 	/**
-	 * Testing method to check for duplicates, should always be false
+	 * Testing method to check for duplicates and invalid chunks, should always be false
 	 * 
 	 * @return
 	 */
 	public boolean hasProblem() {
-		for (int i=0; i<data.length-1; i++) {
-			if (data[i]>=data[i+1]) return true;
+		for (int i=0; i<keys.length; i++) {
+			if ((i>0)&&(keys[i-1]>=keys[i])) return true;
+			if (!containers[i].isCanonical()) return true;
 		}
 		return false;
 	}
 
 	public boolean contains (int v) {
-		return findIndex(v,0,data.length)>=0;
+		int ci=findChunk(highBits(v));
+		if (ci<0) return false;
+		return containers[ci].contains(lowBits(v));
 	}
 	
 	public int[] toIntArray() {
-		return data.clone();
+		int[] result=new int[size];
+		for (int i=0; i<keys.length; i++) {
+			containers[i].copyTo(result, offsets[i], keys[i]);
+		}
+		return result;
 	}
 	
 	public int findIndex(int v) {
-		return findIndex(v,0,data.length);
+		int ci=findChunk(highBits(v));
+		if (ci<0) return -1;
+		IntContainer c=containers[ci];
+		int low=lowBits(v);
+		if (!c.contains(low)) return -1;
+		return offsets[ci]+c.rank(low);
 	}
 	
 	public int getIndex(int i) {
-		return data[i];
+		if ((i<0)||(i>=size)) throw new IndexOutOfBoundsException();
+		int ci=java.util.Arrays.binarySearch(offsets, i);
+		if (ci<0) ci=-(ci+1)-1;
+		return (keys[ci]<<IntContainer.CHUNK_BITS)|containers[ci].select(i-offsets[ci]);
 	}
 
 	public int findIndex(int v, int lo, int hi) {
-		while (lo<hi) {
-			int m=(lo+hi)>>>1;
-			int dv=data[m];
-			if (dv==v) return m;
-			if (dv<v) {
-				lo = m+1;
-			} else {
-				hi = m;
-			}
+		int i=findIndex(v);
+		if ((i<lo)||(i>=hi)) return -1;
+		return i;
+	}
+	
+	/**
+	 * Returns the number of 64K chunks used to store the set
+	 */
+	public int countChunks() {
+		return keys.length;
+	}
+	
+	/**
+	 * Returns the approximate number of bytes used to store the set contents
+	 */
+	public int sizeInBytes() {
+		int total=keys.length*12;
+		for (int i=0; i<containers.length; i++) {
+			total+=containers[i].sizeInBytes();
 		} 
-		return -1;
+		return total;
 	}
 
 	/**
@@ -113,9 +172,6 @@ public final class IntSet extends BasePersistentSet<Integer> {
 	 * @return
 	 */
 	public static IntSet create(int value) {
-		int hc=Tools.hashCode(value);
-		IntSet is=cache.getCachedValueForHashCode(hc);
-		if ((is!=null)&&(is.size()==1)&&(is.data[0]==value)) return is;
 		return createLocal(new int[] {value});
 	}
 
@@ -144,103 +200,140 @@ public final class IntSet extends BasePersistentSet<Integer> {
 		java.util.Arrays.sort(idata);
 		return createLocal(idata);
 	}
+	
+	/**
+	 * Creates an IntSet containing all values in the range start (inclusive) to end (exclusive)
+	 */
+	public static IntSet createRange(int start, int end) {
+		if (start>=end) return EMPTY_INTSET;
+		int firstKey=highBits(start);
+		int lastKey=highBits(end-1);
+		int n=lastKey-firstKey+1;
+		int[] nkeys=new int[n];
+		IntContainer[] ncs=new IntContainer[n];
+		IntContainer full=null;
+		for (int i=0; i<n; i++) {
+			int key=firstKey+i;
+			int s=(i==0)?lowBits(start):0;
+			int e=(i==(n-1))?lowBits(end-1):IntContainer.CHUNK_MASK;
+			nkeys[i]=key;
+			if ((s==0)&&(e==IntContainer.CHUNK_MASK)) {
+				if (full==null) full=IntContainer.createRange(0, IntContainer.CHUNK_MASK);
+				ncs[i]=full;
+			} else {
+				ncs[i]=IntContainer.createRange(s, e);
+			}
+		}
+		return intern(new IntSet(nkeys,ncs));
+	}
 
 	public static IntSet createMerged(IntSet a, IntSet b) {
+		if (a==b) return a;
+		int an=a.keys.length;
+		int bn=b.keys.length;
+		if (bn==0) return a;
+		if (an==0) return b;
+		int[] nkeys=new int[an+bn];
+		IntContainer[] ncs=new IntContainer[an+bn];
 		int ai=0;
 		int bi=0;
-		int nsize=0;
-		while ((ai<a.data.length)&&(bi<b.data.length)) {
-			int c=a.data[ai]-b.data[bi];
-			if (c>0) {
-				bi++;
-			} else if (c<0) {
-				ai++;
+		int ni=0;
+		while ((ai<an)||(bi<bn)) {
+			int c;
+			if (ai>=an) {
+				c=1;
+			} else if (bi>=bn) {
+				c=-1;
 			} else {
-				ai++;
-				bi++;
+				c=(a.keys[ai]<b.keys[bi])?-1:((a.keys[ai]>b.keys[bi])?1:0);
 			}
-			nsize++;
-		}
-		nsize+=a.data.length+b.data.length-ai-bi;	
-		int[] ndata=new int[nsize];
-		ai=0;
-		bi=0;
-		for (int i=0; i<nsize; i++) {
-			if (ai>=a.data.length) {ndata[i]=b.data[bi++]; continue;}
-			if (bi>=b.data.length) {ndata[i]=a.data[ai++]; continue;}
-			int c=a.data[ai]-b.data[bi];
-			if (c>0) {
-				ndata[i]=b.data[bi++];
-			} else if (c<0) {
-				ndata[i]=a.data[ai++];
+			if (c<0) {
+				nkeys[ni]=a.keys[ai];
+				ncs[ni++]=a.containers[ai++];
+			} else if (c>0) {
+				nkeys[ni]=b.keys[bi];
+				ncs[ni++]=b.containers[bi++];
 			} else {
-				ndata[i]=a.data[ai++];
-				bi++;
+				nkeys[ni]=a.keys[ai];
+				ncs[ni++]=IntContainer.union(a.containers[ai++], b.containers[bi++]);
 			}
 		}
-		return createLocal(ndata);
+		if (sameChunks(a,nkeys,ncs,ni)) return a;
+		if (sameChunks(b,nkeys,ncs,ni)) return b;
+		return createLocal(nkeys,ncs,ni);
 	}
 	
 	public static IntSet createMerged(IntSet is, int v) {
-		if (is.contains(v)) return is;
-		int[] data=is.data;
-		int ol=data.length;
-		int[] ndata=new int[ol+1];
-		int i=0;
-		while ((i<ol)) {
-			int dv=data[i];
-			if (dv>v) {
-				break;
-			}
-			ndata[i++]=dv;
-		}
-		ndata[i++]=v;
-		while (i<=ol) {
-			ndata[i]=data[i-1];
-			i++;
+		int high=highBits(v);
+		int low=lowBits(v);
+		int ci=is.findChunk(high);
+		if (ci>=0) {
+			IntContainer c=is.containers[ci];
+			IntContainer nc=c.include(low);
+			if (nc==c) return is;
+			return is.replaceChunk(ci,nc);
 		}
-		return createLocal(ndata);
+		int n=is.keys.length;
+		int pos=-(ci+1);
+		int[] nkeys=new int[n+1];
+		IntContainer[] ncs=new IntContainer[n+1];
+		System.arraycopy(is.keys, 0, nkeys, 0, pos);
+		System.arraycopy(is.containers, 0, ncs, 0, pos);
+		nkeys[pos]=high;
+		ncs[pos]=IntContainer.create(new int[] {low},0,1);
+		System.arraycopy(is.keys, pos, nkeys, pos+1, n-pos);
+		System.arraycopy(is.containers, pos, ncs, pos+1, n-pos);
+		return intern(new IntSet(nkeys,ncs));
 	}
 	
 	public static IntSet createWithout(IntSet is, int v) {
-		int pos=is.findIndex(v);
-		if (pos<0) return is; // no removal
-		int[] data=is.data;
-		int ol=data.length;
-		int[] ndata=new int[ol-1];
-		System.arraycopy(data, 0, ndata, 0, pos);
-		System.arraycopy(data, pos+1, ndata, pos, ol-pos-1);
-		return createLocal(ndata);
+		int ci=is.findChunk(highBits(v));
+		if (ci<0) return is; // no removal
+		IntContainer c=is.containers[ci];
+		IntContainer nc=c.delete(lowBits(v));
+		if (nc==c) return is;
+		return is.replaceChunk(ci,nc);
+	}
+	
+	/**
+	 * Creates a new IntSet with one chunk replaced, or removed if the new chunk is null
+	 */
+	private IntSet replaceChunk(int ci, IntContainer nc) {
+		int n=keys.length;
+		if (nc==null) {
+			if (n==1) return EMPTY_INTSET;
+			int[] nkeys=new int[n-1];
+			IntContainer[] ncs=new IntContainer[n-1];
+			System.arraycopy(keys, 0, nkeys, 0, ci);
+			System.arraycopy(containers, 0, ncs, 0, ci);
+			System.arraycopy(keys, ci+1, nkeys, ci, n-ci-1);
+			System.arraycopy(containers, ci+1, ncs, ci, n-ci-1);
+			return intern(new IntSet(nkeys,ncs));
+		}
+		IntContainer[] ncs=containers.clone();
+		ncs[ci]=nc;
+		return intern(new IntSet(keys,ncs));
 	}
 	
 	public static IntSet createWithout(IntSet source, IntSet values) {
 		if ((source.size()==0)||source.equals(values)) return IntSet.EMPTY_INTSET;
 		if (values.size()==0) return source;
-		int sourceLength=source.data.length;
-		int valuesLength=values.data.length;
-		int[] td=new int[sourceLength];
-		int tdi=0;
-		int vi=0;
-		for (int i=0; i<sourceLength; i++) {
-			int s=source.data[i];
-			if (vi<valuesLength) {
-				int v=values.data[vi];
-				while (v<s) {
-					vi++;
-					if (vi<valuesLength) {
-						v=values.data[vi];
-					} else {
-						break;
-					}
-				}
-				if (s==v) continue;	
+		int n=source.keys.length;
+		int[] nkeys=new int[n];
+		IntContainer[] ncs=new IntContainer[n];
+		int ni=0;
+		for (int i=0; i<n; i++) {
+			IntContainer c=source.containers[i];
+			int vi=values.findChunk(source.keys[i]);
+			if (vi>=0) {
+				c=IntContainer.difference(c, values.containers[vi]);
+				if (c==null) continue;
 			}
-			td[tdi++]=s;
+			nkeys[ni]=source.keys[i];
+			ncs[ni++]=c;
 		}
-		if (tdi==sourceLength) return source;
-		int[] ndata=new int[tdi];
-		System.arraycopy(td, 0, ndata, 0, tdi);
-		return createLocal(ndata);
+		if (sameChunks(source,nkeys,ncs,ni)) return source;
+		return createLocal(nkeys,ncs,ni);
 	}
 	
 	public static IntSet createIntersection(IntSet a, IntSet b) {
@@ -248,27 +341,42 @@ public final class IntSet extends BasePersistentSet<Integer> {
 		int alen=a.size(); if (alen==0) return IntSet.EMPTY_INTSET;
 		int blen=b.size(); if (blen==0) return IntSet.EMPTY_INTSET;
 		
-		int[] td=new int[Math.min(alen, blen)];
-		int ii=0;
+		int an=a.keys.length;
+		int bn=b.keys.length;
+		int[] nkeys=new int[Math.min(an, bn)];
+		IntContainer[] ncs=new IntContainer[nkeys.length];
+		int ni=0;
 		int ai=0;
 		int bi=0;
-		while ((ai<alen)&&(bi<blen)) {
-			int av=a.data[ai];
-			int bv=b.data[bi];
-			if (av==bv) {
-				td[ii++]=av;
+		while ((ai<an)&&(bi<bn)) {
+			int ak=a.keys[ai];
+			int bk=b.keys[bi];
+			if (ak==bk) {
+				IntContainer c=IntContainer.intersection(a.containers[ai], b.containers[bi]);
+				if (c!=null) {
+					nkeys[ni]=ak;
+					ncs[ni++]=c;
+				}
 				ai++;
 				bi++;
-			} else if (av<bv){
+			} else if (ak<bk){
 				ai++;
 			} else {
 				bi++;
 			}
 		}
 		
-		int[] ndata=new int[ii];
-		System.arraycopy(td, 0, ndata, 0, ii);
-		return createLocal(ndata);		
+		if (sameChunks(a,nkeys,ncs,ni)) return a;
+		if (sameChunks(b,nkeys,ncs,ni)) return b;
+		return createLocal(nkeys,ncs,ni);
+	}
+	
+	private static boolean sameChunks(IntSet s, int[] nkeys, IntContainer[] ncs, int n) {
+		if (s.keys.length!=n) return false;
+		for (int i=0; i<n; i++) {
+			if ((s.keys[i]!=nkeys[i])||(s.containers[i]!=ncs[i])) return false;
+		}
+		return true;
 	}
 	
 	/**
@@ -295,17 +403,55 @@ public final class IntSet extends BasePersistentSet<Integer> {
 	/**
 	 * Creates an IntSet using a given local int array.
 	 * 
-	 * Assumes the array is already sorted, immutable and deduplicated
+	 * Assumes the array is already sorted and deduplicated
 	 * 
 	 * @param sortedData
 	 * @return
 	 */
 	private static IntSet createLocal(int[] sortedData) {
-		return intern(new IntSet(sortedData));
+		int n=sortedData.length;
+		if (n==0) return EMPTY_INTSET;
+		int numChunks=1;
+		for (int i=1; i<n; i++) {
+			if (highBits(sortedData[i])!=highBits(sortedData[i-1])) numChunks++;
+		}
+		int[] nkeys=new int[numChunks];
+		IntContainer[] ncs=new IntContainer[numChunks];
+		int[] lows=new int[n];
+		for (int i=0; i<n; i++) {
+			lows[i]=lowBits(sortedData[i]);
+		}
+		int ci=0;
+		int start=0;
+		for (int i=1; i<=n; i++) {
+			if ((i==n)||(highBits(sortedData[i])!=highBits(sortedData[start]))) {
+				nkeys[ci]=highBits(sortedData[start]);
+				ncs[ci++]=IntContainer.create(lows,start,i);
+				start=i;
+			}
+		}
+		return intern(new IntSet(nkeys,ncs));
 	}
 	
 	/**
-	 * Interns the given IntSet in a static fixed-size cache.
+	 * Creates an IntSet from the first n entries of the given chunk arrays
+	 */
+	private static IntSet createLocal(int[] nkeys, IntContainer[] ncs, int n) {
+		if (n==0) return EMPTY_INTSET;
+		if (n<nkeys.length) {
+			int[] tkeys=new int[n];
+			IntContainer[] tcs=new IntContainer[n];
+			System.arraycopy(nkeys, 0, tkeys, 0, n);
+			System.arraycopy(ncs, 0, tcs, 0, n);
+			nkeys=tkeys;
+			ncs=tcs;
+		}
+		return intern(new IntSet(nkeys,ncs));
+	}
+	
+	/**
+	 * Interns the given IntSet in a static thread safe cache.
+	 * The cache holds sets weakly by default, see setInternRetention.
 	 * 
 	 * @param is
 	 * @return
@@ -314,6 +460,21 @@ public final class IntSet extends BasePersistentSet<Integer> {
 		is=cache.cache(is);
 		return is;
 	}
+	
+	/**
+	 * Returns the cache used for interning IntSets, e.g. to inspect hit and miss counts
+	 */
+	public static HashCache<IntSet> getInternCache() {
+		return cache;
+	}
+	
+	/**
+	 * Replaces the intern cache with a new empty cache using the given retention
+	 */
+	public static void setInternRetention(HashCache.Retention retention) {
+		cache=new HashCache<IntSet>(401,retention);
+		cache.cache(EMPTY_INTSET);
+	}
 
 	/**
 	 * Calculates the hashcode of an IntSet
@@ -323,7 +484,14 @@ public final class IntSet extends BasePersistentSet<Integer> {
 	}
 	
 	private int calcHashCode() {
-		return Tools.hashCode(data);	
+		int result=0;
+		for (int i=0; i<keys.length; i++) {
+			result^=Tools.hashCode(keys[i]);
+			result=Integer.rotateRight(result, 1);
+			result^=containers[i].hashCode();
+			result=Integer.rotateRight(result, 1);
+		}
+		return result;
 	}
 	
 	@Override 
@@ -340,10 +508,13 @@ public final class IntSet extends BasePersistentSet<Integer> {
 	
 	public boolean equals(IntSet intset) {
 		if (intset==this) return true;
-		int size=size();
-		if (intset.size()!=size) return false;
-		for (int i=0; i<size; i++) {
-			if (data[i]!=intset.data[i]) return false;
+		if (intset.size!=size) return false;
+		if (intset.hash!=hash) return false;
+		int n=keys.length;
+		if (intset.keys.length!=n) return false;
+		for (int i=0; i<n; i++) {
+			if (keys[i]!=intset.keys[i]) return false;
+			if (!containers[i].equals(intset.containers[i])) return false;
 		}
 		return true;
 	}
@@ -394,14 +565,23 @@ public final class IntSet extends BasePersistentSet<Integer> {
 	 */
 	public Iterator<Integer> iterator() {
 		return new Iterator<Integer>() {
+			int chunk=0;
 			int pos=0;
+			int[] buffer=new int[0];
 			
 			public boolean hasNext() {
-				return pos<size();
+				return (pos<buffer.length)||(chunk<keys.length);
 			}
 
 			public Integer next() {
-				return Integer.valueOf(data[pos++]);
+				if (pos>=buffer.length) {
+					if (chunk>=keys.length) throw new NoSuchElementException();
+					IntContainer c=containers[chunk];
+					buffer=new int[c.cardinality()];
+					c.copyTo(buffer, 0, keys[chunk++]);
+					pos=0;
+				}
+				return Integer.valueOf(buffer[pos++]);
 			}
 
 			public void remove() {
@@ -423,7 +603,7 @@ public final class IntSet extends BasePersistentSet<Integer> {
 	}
 
 	public int size() {
-		return data.length;
+		return size;
 	}
 	
 	public Object[] toArray() {
@@ -432,7 +612,6 @@ public final class IntSet extends BasePersistentSet<Integer> {
 
 	@SuppressWarnings("unchecked")
 	public <T> T[] toArray(T[] a) {
-		int size=data.length;
 		if (a.length<size) {
 			a=(T[])new Integer[size];
 		}
@@ -441,7 +620,8 @@ public final class IntSet extends BasePersistentSet<Integer> {
 	
 	@SuppressWarnings("unchecked")
 	private <T> T[] toArrayLocal(T[] a) {
-		for (int i=0; i<a.length; i++) {
+		int[] data=toIntArray();
+		for (int i=0; i<size; i++) {
 			a[i]=(T)Integer.valueOf(data[i]);
 		}
 		return a;
@@ -489,4 +669,15 @@ public final class IntSet extends BasePersistentSet<Integer> {
 		return false;
 	}
 
+	
+	public void addFootprint(Footprint f) {
+		int bytes=Footprint.objectSize(3,8)+Footprint.arraySize(keys.length,4)
+			+Footprint.arraySize(containers.length,Footprint.REFERENCE_BYTES)
+			+Footprint.arraySize(offsets.length,4);
+		if (!f.addNode(this, "IntSet", bytes)) return;
+		for (int i=0; i<containers.length; i++) {
+			IntContainer c=containers[i];
+			f.addNode(c, c.getClass().getSimpleName(), Footprint.objectSize(1,4)+Footprint.ARRAY_HEADER_BYTES+c.sizeInBytes());
+		}
+	}
 }
@@ -5,8 +5,7 @@ import java.util.Collection;
 import java.util.Iterator;
 import java.util.List;
 
-import mikera.persistent.impl.BlockList;
-import mikera.persistent.impl.CompositeList;
+import mikera.persistent.impl.RRBList;
 import mikera.persistent.impl.SingletonList;
 import mikera.persistent.impl.Tuple;
 import mikera.util.emptyobjects.NullList;
@@ -59,8 +58,8 @@ public class ListFactory<T> {
 			return Tuple.create(data,fromIndex,toIndex);
 		}	
 		
-		// otherwise create a block list
-		return BlockList.create(data,fromIndex,toIndex);
+		// otherwise create a RRB tree list
+		return RRBList.create(data,fromIndex,toIndex);
 	}
 
 	@SuppressWarnings("unchecked")
@@ -112,8 +111,8 @@ public class ListFactory<T> {
 			return Tuple.createFrom(source,fromIndex,toIndex);
 		}
 		
-		// create blocklist for larger lists
-		return BlockList.create(source, fromIndex, toIndex);
+		// create RRB tree list for larger lists
+		return RRBList.create(source, fromIndex, toIndex);
 	}
 	
 	public static <T> PersistentList<T> createFromList(PersistentList<T> source, int fromIndex, int toIndex) {
@@ -128,7 +127,11 @@ public class ListFactory<T> {
 		return concat(ListFactory.create(v),a);
 	}
 	
+	/**
+	 * Concatenates two persistent lists. Lists created by this factory are RRB tree lists
+	 * which concatenate in O(log n) time and remain balanced.
+	 */
 	public static <T> PersistentList<T> concat(PersistentList<T> a, PersistentList<T> b) {
-		return CompositeList.concat(a, b);
+		return RRBList.concat(a, b);
 	}
 }
@@ -0,0 +1,468 @@
+package mikera.persistent;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import mikera.persistent.impl.FilteredIterator;
+import mikera.util.BooleanFilter;
+import mikera.util.UnaryFunction;
+
+/**
+ * Lazy view over one or more PersistentLists, created with PersistentList.view()
+ *
+ * Views are composed with map, filter, concat, reverse and slice without copying
+ * any elements. Work is only done when the view is iterated or materialised with
+ * toPersistent(). Operations are fused where possible: consecutive maps become a
+ * single composed function, consecutive filters a single filter, and slices
+ * are pushed down to the source lists.
+ *
+ * Views without a filter are indexed, so size() and get(i) are computed directly
+ * from the sources. Filtered views must be traversed to find their size.
+ *
+ * Functions and filters are applied every time an element is accessed, so
+ * should be free of side effects.
+ *
+ * @author Mike Anderson
+ *
+ * @param <T> Type of elements in the view
+ */
+public abstract class ListView<T> implements Iterable<T> {
+
+	ListView() {
+		// only subclassed within this package
+	}
+
+	public static <T> ListView<T> of(PersistentList<T> list) {
+		return new SourceView<T>(list);
+	}
+
+	/**
+	 * Returns true if size() and get(i) can be computed without traversing the view
+	 */
+	public abstract boolean isIndexed();
+
+	/**
+	 * Returns the number of elements in the view. O(n) if the view is not indexed.
+	 */
+	public abstract int size();
+
+	public abstract Iterator<T> iterator();
+
+	/**
+	 * Returns the element at position i. O(n) if the view is not indexed.
+	 */
+	public T get(int i) {
+		if (i<0) throw new IndexOutOfBoundsException();
+		Iterator<T> it=iterator();
+		while (it.hasNext()) {
+			T value=it.next();
+			if ((i--)==0) return value;
+		}
+		throw new IndexOutOfBoundsException();
+	}
+
+	public boolean isEmpty() {
+		return !iterator().hasNext();
+	}
+
+	public <R> ListView<R> map(UnaryFunction<? super T,? extends R> f) {
+		return new MappedView<T,R>(this,f);
+	}
+
+	public ListView<T> filter(BooleanFilter<? super T> f) {
+		return new FilteredView<T>(this,f);
+	}
+
+	public ListView<T> concat(ListView<T> v) {
+		return new ConcatView<T>(this,v);
+	}
+
+	public ListView<T> concat(PersistentList<T> list) {
+		return concat(of(list));
+	}
+
+	public ListView<T> reverse() {
+		return new ReversedView<T>(this);
+	}
+
+	/**
+	 * Returns a view of the elements from position fromIndex (inclusive) to
+	 * toIndex (exclusive). If this view is not indexed, the bounds are only
+	 * checked against the number of elements available when it is traversed,
+	 * and the slice is truncated accordingly.
+	 */
+	public ListView<T> slice(int fromIndex, int toIndex) {
+		checkSlice(fromIndex,toIndex);
+		return new SlicedView<T>(this,fromIndex,toIndex);
+	}
+
+	final void checkSlice(int fromIndex, int toIndex) {
+		if (fromIndex<0) throw new IndexOutOfBoundsException();
+		if (toIndex<fromIndex) throw new IllegalArgumentException();
+		if (isIndexed()&&(toIndex>size())) throw new IndexOutOfBoundsException();
+	}
+
+	/**
+	 * Materialises the view into a balanced PersistentList
+	 */
+	@SuppressWarnings("unchecked")
+	public PersistentList<T> toPersistent() {
+		if (!isIndexed()) return ListFactory.createFromIterator(iterator());
+		int size=size();
+		Object[] data=new Object[size];
+		int i=0;
+		for (T value: this) {
+			data[i++]=value;
+		}
+		return ListFactory.createFromArray((T[])data);
+	}
+
+	public String toString() {
+		StringBuilder sb=new StringBuilder();
+		sb.append('[');
+		boolean first=true;
+		for (T value: this) {
+			if (!first) sb.append(", ");
+			sb.append(String.valueOf(value));
+			first=false;
+		}
+		sb.append(']');
+		return sb.toString();
+	}
+
+	/**
+	 * View of an existing PersistentList
+	 */
+	private static final class SourceView<T> extends ListView<T> {
+		private final PersistentList<T> list;
+
+		private SourceView(PersistentList<T> list) {
+			this.list=list;
+		}
+
+		public boolean isIndexed() {
+			return true;
+		}
+
+		public int size() {
+			return list.size();
+		}
+
+		public T get(int i) {
+			return list.get(i);
+		}
+
+		public Iterator<T> iterator() {
+			return list.iterator();
+		}
+
+		public ListView<T> slice(int fromIndex, int toIndex) {
+			checkSlice(fromIndex,toIndex);
+			return new SourceView<T>(list.subList(fromIndex, toIndex));
+		}
+
+		public PersistentList<T> toPersistent() {
+			return list;
+		}
+	}
+
+	private static final class MappedView<S,T> extends ListView<T> {
+		private final ListView<S> source;
+		private final UnaryFunction<? super S,? extends T> function;
+
+		private MappedView(ListView<S> source, UnaryFunction<? super S,? extends T> function) {
+			this.source=source;
+			this.function=function;
+		}
+
+		public boolean isIndexed() {
+			return source.isIndexed();
+		}
+
+		public int size() {
+			return source.size();
+		}
+
+		public T get(int i) {
+			return function.apply(source.get(i));
+		}
+
+		public boolean isEmpty() {
+			return source.isEmpty();
+		}
+
+		public Iterator<T> iterator() {
+			final Iterator<S> it=source.iterator();
+			return new Iterator<T>() {
+				public boolean hasNext() {
+					return it.hasNext();
+				}
+
+				public T next() {
+					return function.apply(it.next());
+				}
+
+				public void remove() {
+					throw new UnsupportedOperationException();
+				}
+			};
+		}
+
+		public <R> ListView<R> map(final UnaryFunction<? super T,? extends R> g) {
+			final UnaryFunction<? super S,? extends T> f=function;
+			return new MappedView<S,R>(source,new UnaryFunction<S,R>() {
+				public R apply(S a) {
+					return g.apply(f.apply(a));
+				}
+			});
+		}
+
+		public ListView<T> reverse() {
+			return new MappedView<S,T>(source.reverse(),function);
+		}
+
+		public ListView<T> slice(int fromIndex, int toIndex) {
+			checkSlice(fromIndex,toIndex);
+			return new MappedView<S,T>(source.slice(fromIndex, toIndex),function);
+		}
+	}
+
+	private static final class FilteredView<T> extends ListView<T> {
+		private final ListView<T> source;
+		private final BooleanFilter<? super T> filter;
+
+		private FilteredView(ListView<T> source, BooleanFilter<? super T> filter) {
+			this.source=source;
+			this.filter=filter;
+		}
+
+		public boolean isIndexed() {
+			return false;
+		}
+
+		public int size() {
+			int n=0;
+			for (T value: source) {
+				if (filter.test(value)) n++;
+			}
+			return n;
+		}
+
+		public Iterator<T> iterator() {
+			return new FilteredIterator<T>(source.iterator()) {
+				public boolean filter(T value) {
+					return filter.test(value);
+				}
+			};
+		}
+
+		public ListView<T> filter(final BooleanFilter<? super T> g) {
+			final BooleanFilter<? super T> f=filter;
+			return new FilteredView<T>(source,new BooleanFilter<T>() {
+				public boolean test(T a) {
+					return f.test(a)&&g.test(a);
+				}
+			});
+		}
+
+		public ListView<T> reverse() {
+			return new FilteredView<T>(source.reverse(),filter);
+		}
+	}
+
+	private static final class ConcatView<T> extends ListView<T> {
+		private final ListView<T> first;
+		private final ListView<T> second;
+
+		private ConcatView(ListView<T> first, ListView<T> second) {
+			this.first=first;
+			this.second=second;
+		}
+
+		public boolean isIndexed() {
+			return first.isIndexed()&&second.isIndexed();
+		}
+
+		public int size() {
+			return first.size()+second.size();
+		}
+
+		public T get(int i) {
+			if (!isIndexed()) return super.get(i);
+			int n=first.size();
+			if (i<n) return first.get(i);
+			return second.get(i-n);
+		}
+
+		public boolean isEmpty() {
+			return first.isEmpty()&&second.isEmpty();
+		}
+
+		public Iterator<T> iterator() {
+			return new Iterator<T>() {
+				private Iterator<T> it=first.iterator();
+				private boolean inFirst=true;
+
+				public boolean hasNext() {
+					if (it.hasNext()) return true;
+					if (!inFirst) return false;
+					it=second.iterator();
+					inFirst=false;
+					return it.hasNext();
+				}
+
+				public T next() {
+					if (!hasNext()) throw new NoSuchElementException();
+					return it.next();
+				}
+
+				public void remove() {
+					throw new UnsupportedOperationException();
+				}
+			};
+		}
+
+		public ListView<T> reverse() {
+			return new ConcatView<T>(second.reverse(),first.reverse());
+		}
+
+		public ListView<T> slice(int fromIndex, int toIndex) {
+			if (!isIndexed()) return super.slice(fromIndex, toIndex);
+			checkSlice(fromIndex,toIndex);
+			int n=first.size();
+			if (toIndex<=n) return first.slice(fromIndex, toIndex);
+			if (fromIndex>=n) return second.slice(fromIndex-n, toIndex-n);
+			return new ConcatView<T>(first.slice(fromIndex, n),second.slice(0, toIndex-n));
+		}
+
+		/**
+		 * Concatenates the materialised parts, sharing structure with the source lists
+		 */
+		public PersistentList<T> toPersistent() {
+			return ListFactory.concat(first.toPersistent(),second.toPersistent());
+		}
+	}
+
+	private static final class ReversedView<T> extends ListView<T> {
+		private final ListView<T> source;
+
+		private ReversedView(ListView<T> source) {
+			this.source=source;
+		}
+
+		public boolean isIndexed() {
+			return source.isIndexed();
+		}
+
+		public int size() {
+			return source.size();
+		}
+
+		public T get(int i) {
+			if (!isIndexed()) return super.get(i);
+			int n=source.size();
+			if ((i<0)||(i>=n)) throw new IndexOutOfBoundsException();
+			return source.get(n-1-i);
+		}
+
+		public boolean isEmpty() {
+			return source.isEmpty();
+		}
+
+		public Iterator<T> iterator() {
+			if (source.isIndexed()) {
+				return new Iterator<T>() {
+					private int i=source.size();
+
+					public boolean hasNext() {
+						return i>0;
+					}
+
+					public T next() {
+						if (i<=0) throw new NoSuchElementException();
+						return source.get(--i);
+					}
+
+					public void remove() {
+						throw new UnsupportedOperationException();
+					}
+				};
+			}
+			// source must be traversed before it can be reversed
+			ArrayList<T> buffer=new ArrayList<T>();
+			for (T value: source) {
+				buffer.add(value);
+			}
+			return new ReversedView<T>(new SourceView<T>(ListFactory.createFromList(buffer))).iterator();
+		}
+
+		public ListView<T> reverse() {
+			return source;
+		}
+
+		public ListView<T> slice(int fromIndex, int toIndex) {
+			if (!isIndexed()) return super.slice(fromIndex, toIndex);
+			checkSlice(fromIndex,toIndex);
+			int n=source.size();
+			return new ReversedView<T>(source.slice(n-toIndex, n-fromIndex));
+		}
+	}
+
+	/**
+	 * Slice of a view that is not indexed
+	 */
+	private static final class SlicedView<T> extends ListView<T> {
+		private final ListView<T> source;
+		private final int start;
+		private final int end;
+
+		private SlicedView(ListView<T> source, int start, int end) {
+			this.source=source;
+			this.start=start;
+			this.end=end;
+		}
+
+		public boolean isIndexed() {
+			return false;
+		}
+
+		public int size() {
+			int n=0;
+			for (Iterator<T> it=iterator(); it.hasNext(); it.next()) {
+				n++;
+			}
+			return n;
+		}
+
+		public Iterator<T> iterator() {
+			final Iterator<T> it=source.iterator();
+			for (int i=0; (i<start)&&it.hasNext(); i++) {
+				it.next();
+			}
+			return new Iterator<T>() {
+				private int remaining=end-start;
+
+				public boolean hasNext() {
+					return (remaining>0)&&it.hasNext();
+				}
+
+				public T next() {
+					if (remaining<=0) throw new NoSuchElementException();
+					remaining--;
+					return it.next();
+				}
+
+				public void remove() {
+					throw new UnsupportedOperationException();
+				}
+			};
+		}
+
+		public ListView<T> slice(int fromIndex, int toIndex) {
+			checkSlice(fromIndex,toIndex);
+			int newStart=start+fromIndex;
+			return new SlicedView<T>(source,newStart,Math.min(end,newStart+(toIndex-fromIndex)));
+		}
+	}
+}
@@ -0,0 +1,961 @@
+package mikera.persistent;
+
+import java.io.ObjectStreamException;
+import java.util.Iterator;
+import java.util.Map;
+
+import mikera.persistent.impl.KeySetWrapper;
+import mikera.persistent.impl.ValueCollectionWrapper;
+import mikera.util.Bits;
+import mikera.util.Tools;
+
+/**
+ * Persistent specialised HashMap implementation for long keys, using the
+ * same trie layout as IntMap.
+ * 
+ * Keys are used directly to index the trie so no hashing is needed. 
+ * 
+ * @author Mike Anderson
+ *
+ * @param <V> Value type
+ */
+
+public final class LongMap<V> extends PersistentMap<Long,V> {
+	private static final long serialVersionUID = 6678396929629289803L;
+
+	/**
+	 * SHIFT_AMOUNT controls the maximum branching factor.
+	 * 
+	 * Valid values are 2 (x4) through to 5 bits (x32 branching). 4 seems to be about the sweet spot.
+	 */
+	public static final int SHIFT_AMOUNT=5;
+	public static final int LOW_MASK=(1<<SHIFT_AMOUNT)-1;
+	public static final int DATA_SIZE=1<<SHIFT_AMOUNT;
+	
+	private final LMNode<V> root;
+
+	@SuppressWarnings("rawtypes")
+	private static final LMNullList<?> EMPTY_NODE_LIST=new LMNullList();
+	
+	@SuppressWarnings("rawtypes")
+	public static final LongMap<?> EMPTY=new LongMap();
+
+	
+	@SuppressWarnings("unchecked")
+	private LongMap() {
+		this((LMNode<V>) EMPTY_NODE_LIST);
+	}
+	 
+	@SuppressWarnings("unchecked")
+	public LongMap(LMNode<V> newRoot) {
+		if (newRoot==null) newRoot=(LMNode<V>) EMPTY_NODE_LIST;
+		root=newRoot;
+	}
+	
+	@SuppressWarnings("unchecked")
+	public static<V> LongMap<V> create() {
+		return (LongMap<V>) EMPTY;
+	}
+	
+	public static<V> LongMap<V> create(long key, V value) {
+		return new LongMap<V>(new LMEntry<V>(key,value));
+	}
+	
+	public static<V> LongMap<V> create(Map<Long,V> values) {
+		LongMap<V> pm=new LongMap<V>();
+		for (Map.Entry<Long,V> ent: values.entrySet()) {
+			pm=pm.include(ent.getKey(),ent.getValue());
+		}
+		return pm;
+	}
+
+	public static <V> int countEntries(LMNode<V> node) {
+		if (node==null) return 0;
+		return node.size();
+	}
+	
+	private abstract static class LMNode<V> extends PersistentObject {
+		private static final long serialVersionUID = -2221562328334600789L;
+
+		/**
+		 * Removes key from LMNode, returning a modified HashNode
+		 * 
+		 * @param key
+		 * @return Modified LMNode, the same LMNode if key not found, or null if all data deleted
+		 */
+		protected abstract LMNode<V> delete(long key);
+
+		/**
+		 * Returns a new LMNode including the given (key,value) pair
+		 * 
+		 * @param key
+		 * @param value
+		 * @param shift
+		 * @return
+		 */
+		protected abstract LMNode<V> include(long key, V value, int shift);
+
+		protected abstract LMNode<V> include(LMEntry<V> entry, int shift);
+
+	
+		/**
+		 * Returns the entry for the given key value, or null if not found
+		 * 
+		 * @param key
+		 * @return
+		 */
+		protected abstract LMEntry<V> getEntry(long key);
+		
+		/**
+		 * Finds the next entry in the LMNode map, or null if not found
+		 * Updates the given LMEntrySetIterator
+		 * 
+		 * @param it LMEntrySetIterator to be updated
+		 * @return the next entry, or null if none remaining
+		 */
+		protected abstract LMEntry<V> findNext(LMEntrySetIterator<V> it);
+		
+		/**
+		 * Returns the size of the LMNode, i.e. the total number of distinct entries
+		 * @return
+		 */
+		protected abstract int size();
+		
+		/**
+		 * Determine if the LMNode is a leaf entry
+		 * Used to determine how the nodes can be re-used
+		 * 
+		 * @return true if leaf node, false otherwise
+		 */
+		protected abstract boolean isLeaf();
+		
+		/**
+		 * Determine if the LMNode contains a given key
+		 * 
+		 * @return true if key is present, false otherwise
+		 */
+		public final boolean containsKey(long key) {
+			return getEntry(key)!=null;
+		}
+		
+		/**
+		 * Visits all entries in the LMNode in key trie order
+		 */
+		protected abstract void visit(EntryVisitor<? super V> visitor);
+
+		/**
+		 * Testing function to validate internal structure of LMNode
+		 */
+		public abstract void validate();
+	}
+	
+	/**
+	 * Represents a full node with DATA_SIZE non-null elements
+	 * @author Mike
+	 *
+	 * @param <K>
+	 * @param <V>
+	 */
+	private static final class LMFullNode<V> extends LMNode<V> {
+		private static final long serialVersionUID = -8686622439257333104L;
+		
+		
+		private final LMNode<V>[] data;
+		private final int shift;
+		private final int count;
+		
+		
+		protected LMFullNode(LMNode<V>[] newData, int newShift) {
+			data=newData;
+			shift=newShift;
+			count=countEntries();
+		}
+		
+		private static final int slotFromKey(long key, int shift) {
+			return ((int)(key>>>shift))&LOW_MASK;
+		}
+
+		@Override
+		protected LMNode<V> delete(long key) {
+			int slot=slotFromKey(key,shift);
+			LMNode<V> n=data[slot];
+			LMNode<V> dn=n.delete(key);
+			if (dn==null) return remove(slot);
+			if (dn==n) return this;
+			return replace(slot,dn);
+		}
+		
+		@SuppressWarnings({ "unchecked", "rawtypes" })
+		protected LMNode<V> remove(int i) {
+			LMNode<V>[] newdata=new LMNode[DATA_SIZE-1];
+			System.arraycopy(data, 0, newdata, 0, i);
+			System.arraycopy(data, i+1, newdata, i, DATA_SIZE-i-1);
+			return new LMBitMapNode<V>(newdata,shift,0xFFFFFFFF&(~(1<<i)));
+		}
+		
+		@SuppressWarnings({ "unchecked", "rawtypes" })
+		protected LMNode<V> replace(int i, LMNode<V> node) {
+			LMNode<V>[] newData=new LMNode[DATA_SIZE];
+			System.arraycopy(data, 0, newData, 0, DATA_SIZE);
+			newData[i]=node;
+			return new LMFullNode<V>(newData,shift);
+		}
+		
+		@Override
+		protected LMEntry<V> findNext(LMEntrySetIterator<V> it) {
+			int i=slotFromKey(it.position,shift);
+			LMNode<V> n=data[i];
+			if (n!=null) {
+				LMEntry<V> ent=n.findNext(it);
+				if (ent!=null) return ent;
+			}
+			i++;
+			while(i<DATA_SIZE) {
+				n=data[i];
+				if (n!=null) {
+					it.position=(it.position&((1L<<shift)-1)) | (((long)i)<<shift);
+					it.index=0;
+					return n.findNext(it);
+				}
+				i++;
+			}
+			return null;
+		}
+
+		@Override
+		protected LMEntry<V> getEntry(long key) {
+			int i=slotFromKey(key,shift);
+			LMNode<V> n=data[i];
+			return n.getEntry(key);
+		}
+
+		@Override
+		protected LMNode<V> include(long key, V value, int shift) {
+			int i=slotFromKey(key,shift);
+			LMNode<V> n=data[i];
+			LMNode<V> dn=n.include(key, value, shift+SHIFT_AMOUNT);
+			if (dn==n) return this;
+			return replace(i,dn);
+		}
+		
+		@Override
+		protected LMNode<V> include(LMEntry<V> entry, int shift) {
+			long key=entry.key();
+			int i=slotFromKey(key,shift);
+			LMNode<V> n=data[i];
+			LMNode<V> dn=n.include(entry, shift+SHIFT_AMOUNT);
+			if (dn==n) return this;
+			return replace(i,dn);
+		}
+
+		
+
+		private int countEntries() {
+			int res=0;
+			for (int i=0; i<data.length; i++) {
+				LMNode<V> n=data[i];
+				res+=n.size();
+			}
+			return res;
+		}
+		
+		@Override
+		protected void visit(EntryVisitor<? super V> visitor) {
+			for (int i=0; i<data.length; i++) {
+				data[i].visit(visitor);
+			}
+		}
+		
+		@Override
+		protected int size() {
+			return count;
+		}
+
+		@Override
+		public void validate() {
+			int count=0;
+			for (int i=0; i<DATA_SIZE; i++) {
+				LMNode<V> n=data[i];
+				count+=n.size();
+				if (n instanceof LMFullNode<?>) {
+					LMFullNode<V> pfn=(LMFullNode<V>)n;
+					if (pfn.shift!=(this.shift+SHIFT_AMOUNT)) throw new Error();
+				}
+				n.validate();
+			}
+			if (count!=size()) throw new Error();
+		}
+
+		@Override
+		protected boolean isLeaf() {
+			return false;
+		}	
+	}
+	
+	/**
+	 * Represents a bitmapped node with 1 to DATA_SIZE-1 branches
+	 * 
+	 * Inspired by Clojure's persistent data structures
+	 * 
+	 * @author Mike
+	 *
+	 * @param <K>
+	 * @param <V>
+	 */
+	public static final class LMBitMapNode<V> extends LMNode<V> {
+		private static final long serialVersionUID = 1267092168311099181L;
+		
+		
+		private final LMNode<V>[] data;
+		private final int shift;
+		private final int count;
+		private final int bitmap; // bitmap indicating which slots are present in data array
+		
+		
+		private LMBitMapNode(LMNode<V>[] newData, int newShift, int newBitmap) {
+			data=newData;
+			shift=newShift;
+			bitmap=newBitmap;
+			count=countEntries();
+		}
+		
+		public static final int indexFromSlot(int slot, int bm) {
+			int mask = (1<<slot) - 1;
+			return Integer.bitCount( bm & mask );
+		}
+		
+		public static final int slotFromKey(long key, int shift) {
+			int slot=((int)(key>>>shift))&LOW_MASK;
+			return slot;
+		}
+		
+		private final int indexFromKey(long key, int shift) {
+			return indexFromSlot(slotFromKey(key,shift),bitmap);
+		}
+		
+		private final int slotFromIndex(int index) {
+			int v=bitmap;
+			int m=Bits.lowestSetBit(v);
+			while ((index--)>0) {
+				v=v&(~m);
+				m=Bits.lowestSetBit(v);
+			}
+			return Integer.bitCount(m-1);
+		}
+
+		@Override
+		protected LMNode<V> delete(long key) {
+			int i=indexFromKey(key,shift);
+			if (i>=data.length) return this; // needed in case slot not present in current node
+			LMNode<V> n=data[i];
+			LMNode<V> dn=n.delete(key);
+			if (dn==n) return this;
+			if (dn==null) {
+				return remove(i);
+			}
+			return replace(i,dn);
+		}
+		
+		@SuppressWarnings({ "unchecked", "rawtypes" })
+		private LMNode<V> remove(int i) {
+			if (data.length==1) return null;
+			if (data.length==2) {
+				// only return the node if it is a leaf node (otherwise shift levels are disrupted....
+				LMNode<V> node=data[1-i];
+				if (node.isLeaf()) return node; 
+			}
+			LMNode<V>[] newData=new LMNode[data.length-1];
+			System.arraycopy(data, 0, newData, 0, i);
+			System.arraycopy(data, i+1, newData, i, data.length-i-1);
+			return new LMBitMapNode<V>(newData,shift,bitmap&(~(1<<slotFromIndex(i))));
+		}
+		
+		@SuppressWarnings({ "unchecked", "rawtypes" })
+		protected LMNode<V> replace(int i, LMNode<V> node) {
+			LMNode<V>[] newData=new LMNode[data.length];
+			System.arraycopy(data, 0, newData, 0, data.length);
+			newData[i]=node;
+			return new LMBitMapNode<V>(newData,shift,bitmap);
+		}
+		
+		@Override
+		protected LMEntry<V> findNext(LMEntrySetIterator<V> it) {
+			// note ugly but fast hack: we store index rather than slot in it.position for bitmap nodes
+			int i=slotFromKey(it.position,shift);
+			LMNode<V> n=data[i];
+			LMEntry<V> ent=n.findNext(it);
+			if (ent!=null) return ent;
+			i++;
+			if(i<data.length) {
+				n=data[i];
+				// here again we store index rather than slot
+				it.position=(it.position&((1L<<shift)-1)) | (((long)i)<<shift);
+				it.index=0;
+				return n.findNext(it);
+			}
+			return null;
+		}
+
+		@Override
+		protected LMEntry<V> getEntry(long key) {
+			int i=indexFromKey(key,shift);
+			if (i>=data.length) return null;
+			LMNode<V> n=data[i];
+			if (n!=null) return n.getEntry(key);
+			return null;
+		}
+
+		@Override
+		protected LMNode<V> include(long key, V value, int shift) {
+			int s=slotFromKey(key,shift);
+			int i=indexFromSlot(s,bitmap);
+			if (((1<<s)&bitmap)==0) {
+				return insertSlot(i,s,new LMEntry<V>(key,value));
+			}
+			LMNode<V> n=data[i];
+			LMNode<V> dn=n.include(key, value, shift+SHIFT_AMOUNT);
+			if (dn==n) return this;
+			return replace(i,dn);
+		}
+		
+		@Override
+		protected LMNode<V> include(LMEntry<V> entry, int shift) {
+			long key=entry.key();
+			int s=slotFromKey(key,shift);
+			int i=indexFromSlot(s,bitmap);
+			if (((1<<s)&bitmap)==0) {
+				return insertSlot(i,s,entry);
+			}
+			LMNode<V> n=data[i];
+			LMNode<V> dn=n.include(entry, shift+SHIFT_AMOUNT);
+			if (dn==n) return this;
+			return replace(i,dn);
+		}
+		
+		@SuppressWarnings({ "unchecked", "rawtypes" })
+		protected LMNode<V> insertSlot(int i, int s, LMNode<V> node) {
+			LMNode<V>[] newData=new LMNode[data.length+1];
+			System.arraycopy(data, 0, newData, 0, i);
+			System.arraycopy(data, i, newData, i+1, data.length-i);
+			newData[i]=node;
+			if (data.length==31) {
+				return new LMFullNode<V>(newData,shift);
+			} else {
+				return new LMBitMapNode<V>(newData,shift,bitmap|(1<<s));				
+			}
+		}
+		
+		
+		@SuppressWarnings({ "unchecked", "rawtypes" })
+		protected static <V> LMBitMapNode<V> concat(LMNode<V> a, long ka, LMNode<V> b, long kb, int shift) {
+			LMNode<V>[] nodes;
+			int sa=slotFromKey(ka,shift);
+			int sb=slotFromKey(kb,shift);
+			int bitmap=(1<<sa)|(1<<sb);
+			if (sa!=sb) {
+				nodes=new LMNode[2];
+				int ia=indexFromSlot(sa,bitmap);
+				nodes[ia]=a;
+				nodes[1-ia]=b;
+			} else {
+				nodes=new LMNode[1];
+				nodes[0]=concat(a,ka,b,kb,shift+SHIFT_AMOUNT);
+			}
+			LMBitMapNode<V> fn=new LMBitMapNode<V>(nodes,shift,bitmap);
+			return fn;
+		}
+
+		private int countEntries() {
+			int res=0;
+			for (int i=0; i<data.length; i++) {
+				LMNode<V> n=data[i];
+				res+=n.size();
+			}
+			return res;
+		}
+		
+		@Override
+		protected void visit(EntryVisitor<? super V> visitor) {
+			for (int i=0; i<data.length; i++) {
+				data[i].visit(visitor);
+			}
+		}
+		
+		@Override
+		protected int size() {
+			return count;
+		}
+
+		@Override
+		public void validate() {
+			if (data.length!=Integer.bitCount(bitmap)) throw new Error();
+			int count=0;
+			for (int i=0; i<data.length; i++) {
+				if (i!=indexFromSlot(slotFromIndex(i),bitmap)) throw new Error();
+				LMNode<V> n=data[i];
+				count+=n.size();
+				if (n instanceof LMFullNode<?>) {
+					LMFullNode<V> pfn=(LMFullNode<V>)n;
+					if (pfn.shift!=(this.shift+SHIFT_AMOUNT)) throw new Error();
+				}
+				n.validate();
+			}
+			if (count!=size()) throw new Error();
+		}	
+		
+		@Override
+		protected boolean isLeaf() {
+			return false;
+		}	
+	}
+
+	/**
+	 * Null list implementation for starting root nodes
+	 * @author Mike
+	 *
+	 * @param <K>
+	 * @param <V>
+	 */
+	private static final class LMNullList<V> extends LMNode<V> {
+		private static final long serialVersionUID = 1678601670489051204L;
+
+		
+		@Override
+		protected LMNode<V> delete(long key) {
+			return this;
+		}
+
+		@Override
+		protected LMEntry<V> findNext(LMEntrySetIterator<V> it) {
+			return null;
+		}
+
+		@Override
+		protected LMEntry<V> getEntry(long key) {
+			return null;
+		}
+
+		@Override
+		protected LMNode<V> include(long key, V value, int shift) {
+			return new LMEntry<V>(key,value);
+		}
+		
+		@Override
+		protected void visit(EntryVisitor<? super V> visitor) {
+			// nothing to visit
+		}
+		
+		protected LMNode<V> include(LMEntry<V> entry, int shift) {
+			return entry;
+		}
+
+		@Override
+		protected int size() {
+			return 0;
+		}
+
+		@Override
+		public void validate() {
+		}
+		
+		@Override
+		protected boolean isLeaf() {
+			return true;
+		}	
+		
+		private Object readResolve() throws ObjectStreamException {
+			// needed for deserialisation to the correct static instance
+			return EMPTY_NODE_LIST;
+		}
+	}
+	
+	
+	/**
+	 * Represents a single PersistentHashMap entry
+	 * 
+	 * @author Mike
+	 *
+	 * @param <K>
+	 * @param <V>
+	 */
+	public static final class LMEntry<V> extends LMNode<V> implements Map.Entry<Long,V> {
+		private static final long serialVersionUID = -2614192028686444654L;
+		
+		
+		private final long key;
+		private final V value;
+		
+		public long key() {
+			return key;
+		}
+		
+		public Long getKey() {
+			return Long.valueOf(key);
+		}
+		
+		public V getValue() {
+			return value;
+		}
+				
+		public V setValue(V value) {
+			throw new UnsupportedOperationException();
+		}	
+		
+		public LMEntry(long k, V v) {
+			key=k;
+			value=v;
+		}
+		
+		public boolean matches(long key) {
+			return this.key==key;
+		}
+		
+		public boolean matchesValue(V value) {
+			return this.value==value;
+		}
+		
+		@Override
+		protected LMEntry<V> getEntry(long key) {
+			if (matches(key)) return this;
+			return null;
+		}
+		
+		@Override
+		protected LMNode<V> include(long newkey, V value,int shift) {
+			if (newkey==this.key) {
+				// replacement case
+				if (!matchesValue(value)) return new LMEntry<V>(newkey,value);
+				return this;
+			}
+			
+			return LMBitMapNode.concat(this,key,new LMEntry<V>(newkey,value),newkey,shift);
+		}
+		
+		@Override
+		protected LMNode<V> include(LMEntry<V> entry, int shift) {
+			long newkey=entry.key();
+			if (newkey==this.key) {
+				// replacement case
+				if (!matchesValue(entry.getValue())) return entry;
+				return this;
+			}
+			
+			return LMBitMapNode.concat(this,key,entry,newkey,shift);
+		}
+		
+		@Override
+		protected LMNode<V> delete(long k) {
+			if (k==this.key) return null;
+			return this;
+		}
+		
+		@Override
+		protected void visit(EntryVisitor<? super V> visitor) {
+			visitor.visit(key, value);
+		}
+		
+		@Override
+		protected int size() {
+			return 1;
+		}
+
+		@Override
+		protected LMEntry<V> findNext(LMEntrySetIterator<V> it) {
+			if (it.index>0) {
+				return null;
+			} else {
+				it.index=1;
+				return this;
+			}
+		}
+
+		@Override
+		public void validate() {
+		}
+		
+		@Override
+		protected boolean isLeaf() {
+			return true;
+		}
+		
+		// toString() consistent with java.util.AbstractMap
+		public String toString() {
+			return String.valueOf(key)+'='+String.valueOf(value);
+		}
+	}
+	
+	/**
+	 * EntrySet implementation
+	 */
+	protected final class LMEntrySet extends PersistentSet<Map.Entry<Long,V>> {
+		private static final long serialVersionUID = 6299985501562402684L;
+
+		@Override
+		public int size() {
+			return LongMap.this.size();
+		}
+		
+		public boolean contains(Object o) {
+			if (!(o instanceof Map.Entry<?,?>)) return false;
+			Map.Entry<?,?> ent=(Map.Entry<?,?>)o;
+			if (!(ent.getKey() instanceof Long)) return false;
+			LMEntry<?> pe=LongMap.this.getEntry((Long) ent.getKey());
+			if (pe==null) return false;
+			return Tools.equalsWithNulls(pe.value, ent.getValue());
+		}
+
+		public Iterator<Map.Entry<Long,V>> iterator() {
+			return new LMEntrySetIterator<V>(LongMap.this);
+		}
+
+		public PersistentSet<Map.Entry<Long,V>> include(
+				Map.Entry<Long,V> value) {
+			return SetFactory.create(this).include(value);
+		}
+	}
+	
+	
+	/**
+	 * Entry set iterator
+	 * @author Mike
+	 *
+	 * @param <K>
+	 * @param <V>
+	 */
+	private static class LMEntrySetIterator<V> implements Iterator<Map.Entry<Long,V>> {
+		public LMNode<V> root;
+		public LMEntry<V> next;
+		public long position=0;
+		public int index=0;
+		
+		private LMEntrySetIterator(LongMap<V> LM) {
+			root=LM.root;
+			findNext();
+		}
+
+		public boolean hasNext() {
+			return (next!=null);
+		}
+
+		public LMEntry<V> next() {
+			LMEntry<V> result=next;
+			findNext();
+			return result;
+		}
+		
+		private void findNext() {
+			next=root.findNext(this);
+		}
+
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+	}
+
+	/**
+	 * Visitor for LongMap entries, allowing iteration without boxing keys
+	 *
+	 * @param <V> Value type
+	 */
+	public interface EntryVisitor<V> {
+		public void visit(long key, V value);
+	}
+	
+	/**
+	 * Visits every entry in the map with the given visitor
+	 */
+	public void visitEntries(EntryVisitor<? super V> visitor) {
+		root.visit(visitor);
+	}
+
+	/*
+	 *  IPersistentMap methods
+	 */
+
+	@Override
+	public boolean containsKey(Object key) {
+		if (!(key instanceof Long)) return false;
+		return root.containsKey(((Long)key).longValue());
+	}
+	
+	public boolean containsKey(long key) {
+		return root.containsKey(key);
+	}
+
+	@Override
+	public PersistentSet<Map.Entry<Long,V>> entrySet() {
+		return new LMEntrySet();
+	}
+
+	@Override
+	public V get(Object key) {
+		if (!(key instanceof Long)) return null;
+		LMEntry<V> entry=root.getEntry((Long)key);
+		if (entry!=null) return entry.getValue();
+		return null;
+	}
+	
+	public V get(long key) {
+		LMEntry<V> entry=root.getEntry(key);
+		if (entry!=null) return entry.getValue();
+		return null;
+	}
+	
+	public LMEntry<V> getEntry(Long key) {
+		return root.getEntry(key);
+	}
+	
+	public LMEntry<V> getEntry(long key) {
+		return root.getEntry(key);
+	}
+	
+	public java.util.Map.Entry<Long,V> getMapEntry(Object key) {
+		if (!(key instanceof Long)) return null;
+		return getEntry((Long)key);
+	}
+
+	@Override
+	public PersistentSet<Long> keySet() {
+		return new KeySetWrapper<Long, V>(entrySet());
+	}
+
+	@Override
+	public int size() {
+		return root.size();
+	}
+
+	@Override
+	public PersistentCollection<V> values() {
+		return new ValueCollectionWrapper<Long, V>(entrySet());
+	}
+
+	@Override
+	public LongMap<V> include(Long key, V value) {
+		LMNode<V> newRoot=root.include(key.longValue(), value,0);
+		if (root==newRoot) return this;
+		return new LongMap<V>(newRoot);
+	}
+	
+	public LongMap<V> include(long key, V value) {
+		LMNode<V> newRoot=root.include(key, value,0);
+		if (root==newRoot) return this;
+		return new LongMap<V>(newRoot);
+	}
+	
+	@Override
+	public LongMap<V> include(Map<Long,V> values) {
+		if (values instanceof LongMap<?>) {
+			return include((LongMap<V>)values);
+		}
+		
+		LongMap<V> pm=this;
+		for (Map.Entry<Long,V> entry:values.entrySet()) {
+			pm=pm.include(entry.getKey(),entry.getValue());
+		}
+		return pm;
+	}
+	
+	/**
+	 * Merges another LongMap into this one at node level, sharing any
+	 * subtrees that are only present in one of the maps
+	 */
+	public LongMap<V> include(LongMap<V> values) {
+		LMNode<V> newRoot=union(root,values.root,0);
+		if (root==newRoot) return this;
+		if (values.root==newRoot) return values;
+		return new LongMap<V>(newRoot);
+	}
+	
+	/**
+	 * Node level union, with entries in b taking precedence
+	 */
+	private static <V> LMNode<V> union(LMNode<V> a, LMNode<V> b, int shift) {
+		if (a==b) return a;
+		if (a.size()==0) return b;
+		if (b.size()==0) return a;
+		if (b instanceof LMEntry<?>) {
+			return a.include((LMEntry<V>)b, shift);
+		}
+		if (a instanceof LMEntry<?>) {
+			LMEntry<V> e=(LMEntry<V>)a;
+			if (b.getEntry(e.key)!=null) return b;
+			return b.include(e, shift);
+		}
+		LMNode<V>[] sa=slots(a);
+		LMNode<V>[] sb=slots(b);
+		LMNode<V>[] nd=newSlotArray();
+		boolean sameA=true;
+		boolean sameB=true;
+		for (int s=0; s<DATA_SIZE; s++) {
+			LMNode<V> ca=sa[s];
+			LMNode<V> cb=sb[s];
+			LMNode<V> c=(ca==null)?cb:((cb==null)?ca:union(ca,cb,shift+SHIFT_AMOUNT));
+			nd[s]=c;
+			sameA&=(c==ca);
+			sameB&=(c==cb);
+		}
+		if (sameA) return a;
+		if (sameB) return b;
+		return createFromSlots(nd,shift);
+	}
+	
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private static <V> LMNode<V>[] newSlotArray() {
+		return new LMNode[DATA_SIZE];
+	}
+	
+	/**
+	 * Returns the children of a branch node indexed by slot, with null for empty slots
+	 */
+	private static <V> LMNode<V>[] slots(LMNode<V> node) {
+		if (node instanceof LMFullNode<?>) return ((LMFullNode<V>)node).data;
+		LMBitMapNode<V> bn=(LMBitMapNode<V>)node;
+		LMNode<V>[] result=newSlotArray();
+		int i=0;
+		for (int s=0; s<DATA_SIZE; s++) {
+			if ((bn.bitmap&(1<<s))!=0) result[s]=bn.data[i++];
+		}
+		return result;
+	}
+	
+	/**
+	 * Creates a branch node from an array of children indexed by slot
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private static <V> LMNode<V> createFromSlots(LMNode<V>[] nd, int shift) {
+		int bitmap=0;
+		for (int s=0; s<DATA_SIZE; s++) {
+			if (nd[s]!=null) bitmap|=(1<<s);
+		}
+		if (bitmap==0xFFFFFFFF) return new LMFullNode<V>(nd,shift);
+		LMNode<V>[] data=new LMNode[Integer.bitCount(bitmap)];
+		int i=0;
+		for (int s=0; s<DATA_SIZE; s++) {
+			if (nd[s]!=null) data[i++]=nd[s];
+		}
+		return new LMBitMapNode<V>(data,shift,bitmap);
+	}
+
+	@Override
+	public LongMap<V> delete(Long key) {
+		LMNode<V> newRoot=root.delete(key);
+		if (root==newRoot) return this;
+		return new LongMap<V>(newRoot);
+	}
+	
+	public LongMap<V> delete(long key) {
+		LMNode<V> newRoot=root.delete(key);
+		if (root==newRoot) return this;
+		return new LongMap<V>(newRoot);
+	}
+	
+	public boolean allowsNullKey() {
+		return false;
+	}
+	
+	@Override
+	public void validate() {
+		super.validate();
+		root.validate();
+	}
+}
@@ -28,5 +28,9 @@ public class MapFactory {
 		return IntMap.create(key, value);
 	}
 	
+	public static <V> PersistentMap<Long,V> create(long key, V value) {
+		return LongMap.create(key, value);
+	}
+	
 
 }
@@ -1,14 +1,27 @@
 package mikera.persistent;
 
 import java.io.ObjectStreamException;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
 
 import mikera.annotations.Immutable;
+import mikera.annotations.Mutable;
+import mikera.data.SharedDataReader;
+import mikera.data.SharedDataWriter;
 import mikera.persistent.impl.KeySetWrapper;
 import mikera.persistent.impl.ValueCollectionWrapper;
+import mikera.util.BinaryFunction;
 import mikera.util.Bits;
+import mikera.util.BooleanFilter;
+import mikera.util.Footprint;
+import mikera.util.Parallel;
 import mikera.util.Tools;
+import mikera.util.UnaryFunction;
 
 /**
  * Persistent HashMap implementation, inspired by Clojure's
@@ -20,7 +33,7 @@ import mikera.util.Tools;
  * @param <V> Value type
  */
 @Immutable
-public final class PersistentHashMap<K,V> extends PersistentMap<K,V> {
+public final class PersistentHashMap<K,V> extends PersistentMap<K,V> implements Footprint.Measurable {
 	private static final long serialVersionUID = -6862000512238861885L;
 
 	/**
@@ -32,6 +45,11 @@ public final class PersistentHashMap<K,V> extends PersistentMap<K,V> {
 	private static final int LOW_MASK=(1<<SHIFT_AMOUNT)-1;
 	private static final int DATA_SIZE=1<<SHIFT_AMOUNT;
 	
+	/**
+	 * Minimum number of entries in a subtree before parallel operations will split it further
+	 */
+	private static final int PARALLEL_SPLIT_SIZE=1024;
+	
 	private final PHMNode<K,V> root;
 
 	@SuppressWarnings({ "rawtypes" })
@@ -63,11 +81,25 @@ public final class PersistentHashMap<K,V> extends PersistentMap<K,V> {
 	
 	@SuppressWarnings("unchecked")
 	public static<K,V> PersistentHashMap<K,V> create(Map<K,V> values) {
-		PersistentHashMap<K,V> pm=(PersistentHashMap<K, V>) PersistentHashMap.EMPTY;
-		for (Map.Entry<K,V> ent: values.entrySet()) {
-			pm=pm.include(ent.getKey(),ent.getValue());
-		}
-		return pm;
+		if (values instanceof PersistentHashMap<?,?>) return (PersistentHashMap<K,V>)values;
+		Builder<K,V> b=builder();
+		b.include(values);
+		return b.toPersistentHashMap();
+	}
+	
+	/**
+	 * Creates a new Builder, initially empty
+	 */
+	@SuppressWarnings("unchecked")
+	public static<K,V> Builder<K,V> builder() {
+		return new Builder<K,V>((PHMNode<K,V>)EMPTY_NODE_LIST);
+	}
+	
+	/**
+	 * Creates a new Builder, initially containing all entries in this map
+	 */
+	public Builder<K,V> toBuilder() {
+		return new Builder<K,V>(root);
 	}
 
 	public static <K,V> int countEntries(PHMNode<K,V> node) {
@@ -75,6 +107,13 @@ public final class PersistentHashMap<K,V> extends PersistentMap<K,V> {
 		return node.size();
 	}
 	
+	private static <K,V> boolean sameNodes(PHMNode<K,V>[] a, PHMNode<K,V>[] b) {
+		for (int i=0; i<a.length; i++) {
+			if (a[i]!=b[i]) return false;
+		}
+		return true;
+	}
+	
 	private abstract static class PHMNode<K,V> extends PersistentObject {
 		private static final long serialVersionUID = -4378011224932646278L;
 
@@ -97,6 +136,28 @@ public final class PersistentHashMap<K,V> extends PersistentMap<K,V> {
 		 */
 		protected abstract PHMNode<K,V> include(K key, V value, int hash, int shift);
 		
+		/**
+		 * Includes the given (key,value) pair, mutating nodes in place where they are
+		 * owned by the given edit token. Nodes not owned by the token are copied.
+		 * 
+		 * @param edit Edit token of the owning Builder
+		 * @return The updated PHMNode, which may be this node if it was mutated in place
+		 */
+		protected PHMNode<K,V> include(K key, V value, int hash, int shift, Object edit) {
+			return include(key,value,hash,shift);
+		}
+		
+		/**
+		 * Removes key from PHMNode, mutating nodes in place where they are
+		 * owned by the given edit token. Nodes not owned by the token are copied.
+		 * 
+		 * @param edit Edit token of the owning Builder
+		 * @return The updated PHMNode, or null if all data deleted
+		 */
+		protected PHMNode<K,V> delete(K key, int hash, Object edit) {
+			return delete(key,hash);
+		}
+		
 		/**
 		 * Returns the entry for the given key value, or null if not found
 		 * 
@@ -147,6 +208,36 @@ public final class PersistentHashMap<K,V> extends PersistentMap<K,V> {
 		public final boolean containsKey(K key) {
 			return getEntry(key)!=null;
 		}
+		
+		/**
+		 * Returns the entries of a leaf PHMNode, or null if this is not a leaf node.
+		 * The returned array must not be modified.
+		 */
+		protected PHMEntry<K,V>[] leafEntries() {
+			return null;
+		}
+		
+		/**
+		 * Reduces all entries in this PHMNode with the given accumulator function
+		 */
+		protected abstract <R> R reduce(R acc, BinaryFunction<R,? super Map.Entry<K,V>,R> f);
+		
+		/**
+		 * Calls the given function with the key and value of every entry in this PHMNode
+		 */
+		protected abstract void forEach(BinaryFunction<? super K,? super V,?> f);
+
+		/**
+		 * Returns a PHMNode with identical structure and keys, but with values transformed by f
+		 */
+		protected abstract <R> PHMNode<K,R> mapValues(UnaryFunction<? super V,? extends R> f);
+		
+		/**
+		 * Returns a PHMNode containing only the entries that pass the filter
+		 * 
+		 * @return Filtered PHMNode, the same PHMNode if all entries pass, or null if none pass
+		 */
+		protected abstract PHMNode<K,V> filter(BooleanFilter<? super Map.Entry<K,V>> f);
 
 		/**
 		 * Testing function to validate internal structure of PHMNode
@@ -154,6 +245,35 @@ public final class PersistentHashMap<K,V> extends PersistentMap<K,V> {
 		public abstract void validate();
 	}
 	
+	/**
+	 * Base class for PHMNodes that branch on hash bits to child nodes
+	 *
+	 * @param <K>
+	 * @param <V>
+	 */
+	private abstract static class PHMBranchNode<K,V> extends PHMNode<K,V> {
+		private static final long serialVersionUID = 2390458927374215102L;
+
+		/**
+		 * Returns the child array of this PHMBranchNode. 
+		 * The returned array must not be modified.
+		 */
+		protected abstract PHMNode<K,V>[] children();
+		
+		/**
+		 * Returns the child in the given slot of this PHMBranchNode, or null if the slot is empty. 
+		 */
+		protected abstract PHMNode<K,V> childForSlot(int slot);
+		
+		/**
+		 * Returns a PHMNode equivalent to this node but with the given children. 
+		 * Null children are removed.
+		 * 
+		 * @return The new PHMNode, this node if all children are unchanged, or null if no children remain
+		 */
+		protected abstract PHMNode<K,V> withChildren(PHMNode<K,V>[] newChildren);
+	}
+	
 	/**
 	 * Represents a full node with DATA_SIZE non-null elements
 	 * @author Mike
@@ -161,17 +281,31 @@ public final class PersistentHashMap<K,V> extends PersistentMap<K,V> {
 	 * @param <K>
 	 * @param <V>
 	 */
-	private static final class PHMFullNode<K,V> extends PHMNode<K,V> {
+	private static final class PHMFullNode<K,V> extends PHMBranchNode<K,V> {
 		private static final long serialVersionUID = 5910832730804486676L;
 				
-		private final PHMNode<K,V>[] data;
+		private PHMNode<K,V>[] data;
 		private final int shift;
-		private final int count;	
+		private int count;	
+		private transient final Object edit;
 		
 		protected PHMFullNode(PHMNode<K,V>[] newData, int newShift) {
 			data=newData;
 			shift=newShift;
 			count=countEntries();
+			edit=null;
+		}
+		
+		private PHMFullNode(PHMNode<K,V>[] newData, int newShift, int newCount, Object newEdit) {
+			data=newData;
+			shift=newShift;
+			count=newCount;
+			edit=newEdit;
+		}
+		
+		private PHMFullNode<K,V> ensureEditable(Object edit) {
+			if (this.edit==edit) return this;
+			return new PHMFullNode<K,V>(data.clone(),shift,count,edit);
 		}
 		
 		private static final int slotFromHash(int hash, int shift) {
@@ -241,6 +375,90 @@ public final class PersistentHashMap<K,V> extends PersistentMap<K,V> {
 			return replace(i,dn);
 		}
 		
+		@Override
+		protected PHMNode<K, V> include(K key, V value, int hash, int shift, Object edit) {
+			int i=slotFromHash(hash,shift);
+			PHMNode<K,V> n=data[i];
+			int oldSize=n.size();
+			PHMNode<K, V> dn=n.include(key, value, hash, shift+SHIFT_AMOUNT, edit);
+			if ((dn==n)&&(dn.size()==oldSize)) return this;
+			PHMFullNode<K,V> en=ensureEditable(edit);
+			en.data[i]=dn;
+			en.count+=dn.size()-oldSize;
+			return en;
+		}
+		
+		@SuppressWarnings("unchecked")
+		@Override
+		protected PHMNode<K, V> delete(K key, int hash, Object edit) {
+			int slot=slotFromHash(hash,shift);
+			PHMNode<K,V> n=data[slot];
+			int oldSize=n.size();
+			PHMNode<K,V> dn=n.delete(key, hash, edit);
+			if (dn==null) {
+				PHMNode<K,V>[] newData=new PHMNode[DATA_SIZE-1];
+				System.arraycopy(data, 0, newData, 0, slot);
+				System.arraycopy(data, slot+1, newData, slot, DATA_SIZE-slot-1);
+				return new PHMBitMapNode<K,V>(newData,shift,~(1<<slot),count-oldSize,edit);
+			}
+			if ((dn==n)&&(dn.size()==oldSize)) return this;
+			PHMFullNode<K,V> en=ensureEditable(edit);
+			en.data[slot]=dn;
+			en.count+=dn.size()-oldSize;
+			return en;
+		}
+		
+		@Override
+		protected PHMNode<K,V>[] children() {
+			return data;
+		}
+		
+		@Override
+		protected PHMNode<K,V> withChildren(PHMNode<K,V>[] newChildren) {
+			if (sameNodes(data,newChildren)) return this;
+			return PHMBitMapNode.create(newChildren,0xFFFFFFFF,shift);
+		}
+		
+		@Override
+		protected PHMNode<K,V> childForSlot(int slot) {
+			return data[slot];
+		}
+		
+		@Override
+		protected <R> R reduce(R acc, BinaryFunction<R,? super Map.Entry<K,V>,R> f) {
+			for (int i=0; i<DATA_SIZE; i++) {
+				acc=data[i].reduce(acc, f);
+			}
+			return acc;
+		}
+		
+		@Override
+		protected void forEach(BinaryFunction<? super K,? super V,?> f) {
+			for (int i=0; i<DATA_SIZE; i++) {
+				data[i].forEach(f);
+			}
+		}
+		
+		@SuppressWarnings("unchecked")
+		@Override
+		protected <R> PHMNode<K,R> mapValues(UnaryFunction<? super V,? extends R> f) {
+			PHMNode<K,R>[] newData=new PHMNode[DATA_SIZE];
+			for (int i=0; i<DATA_SIZE; i++) {
+				newData[i]=data[i].mapValues(f);
+			}
+			return new PHMFullNode<K,R>(newData,shift,count,null);
+		}
+		
+		@SuppressWarnings("unchecked")
+		@Override
+		protected PHMNode<K,V> filter(BooleanFilter<? super Map.Entry<K,V>> f) {
+			PHMNode<K,V>[] newData=new PHMNode[DATA_SIZE];
+			for (int i=0; i<DATA_SIZE; i++) {
+				newData[i]=data[i].filter(f);
+			}
+			return withChildren(newData);
+		}
+		
 		/*
 		@SuppressWarnings("unchecked")
 		protected static <K,V> PHMFullNode<K,V> concat(PHMNode a, int ha, PHMNode b, int hb, int shift) {
@@ -303,21 +521,35 @@ public final class PersistentHashMap<K,V> extends PersistentMap<K,V> {
 	 * @param <K>
 	 * @param <V>
 	 */
-	public static final class PHMBitMapNode<K,V> extends PHMNode<K,V> {
+	public static final class PHMBitMapNode<K,V> extends PHMBranchNode<K,V> {
 		private static final long serialVersionUID = -4936128089990848344L;
 		
 		
-		private final PHMNode<K,V>[] data;
+		private PHMNode<K,V>[] data;
 		private final int shift;
-		private final int count;
-		private final int bitmap; // bitmap indicating which slots are present in data array
-		
+		private int count;
+		private int bitmap; // bitmap indicating which slots are present in data array
+		private transient final Object edit;
 		
 		private PHMBitMapNode(PHMNode<K,V>[] newData, int newShift, int newBitmap) {
 			data=newData;
 			shift=newShift;
 			bitmap=newBitmap;
 			count=countEntries();
+			edit=null;
+		}
+		
+		private PHMBitMapNode(PHMNode<K,V>[] newData, int newShift, int newBitmap, int newCount, Object newEdit) {
+			data=newData;
+			shift=newShift;
+			bitmap=newBitmap;
+			count=newCount;
+			edit=newEdit;
+		}
+		
+		private PHMBitMapNode<K,V> ensureEditable(Object edit) {
+			if (this.edit==edit) return this;
+			return new PHMBitMapNode<K,V>(data.clone(),shift,bitmap,count,edit);
 		}
 		
 		public static final int indexFromSlot(int slot, int bm) {
@@ -411,12 +643,77 @@ public final class PersistentHashMap<K,V> extends PersistentMap<K,V> {
 			int s=slotFromHash(hash,shift);
 			int i=indexFromSlot(s,bitmap);
 			if (((1<<s)&bitmap)==0) {
-				return insertSlot(i,s,new PHMEntry<K,V>(key,value));
+				return insertSlot(i,s,new PHMEntry<K,V>(key,value,hash));
 			}
 			PHMNode<K,V> n=data[i];
 			return replace(i,n.include(key, value, hash, shift+SHIFT_AMOUNT));
 		}
 		
+		@SuppressWarnings("unchecked")
+		@Override
+		protected PHMNode<K, V> include(K key, V value, int hash, int shift, Object edit) {
+			int s=slotFromHash(hash,shift);
+			int i=indexFromSlot(s,bitmap);
+			if (((1<<s)&bitmap)==0) {
+				PHMNode<K,V>[] newData=new PHMNode[data.length+1];
+				System.arraycopy(data, 0, newData, 0, i);
+				System.arraycopy(data, i, newData, i+1, data.length-i);
+				newData[i]=new PHMEntry<K,V>(key,value,hash);
+				if (data.length==31) {
+					return new PHMFullNode<K,V>(newData,shift,count+1,edit);
+				}
+				if (this.edit!=edit) {
+					return new PHMBitMapNode<K,V>(newData,shift,bitmap|(1<<s),count+1,edit);
+				}
+				data=newData;
+				bitmap|=(1<<s);
+				count+=1;
+				return this;
+			}
+			PHMNode<K,V> n=data[i];
+			int oldSize=n.size();
+			PHMNode<K,V> dn=n.include(key, value, hash, shift+SHIFT_AMOUNT, edit);
+			if ((dn==n)&&(dn.size()==oldSize)) return this;
+			PHMBitMapNode<K,V> en=ensureEditable(edit);
+			en.data[i]=dn;
+			en.count+=dn.size()-oldSize;
+			return en;
+		}
+		
+		@SuppressWarnings("unchecked")
+		@Override
+		protected PHMNode<K, V> delete(K key, int hash, Object edit) {
+			int s=slotFromHash(hash,shift);
+			if (((1<<s)&bitmap)==0) return this;
+			int i=indexFromSlot(s,bitmap);
+			PHMNode<K,V> n=data[i];
+			int oldSize=n.size();
+			PHMNode<K,V> dn=n.delete(key, hash, edit);
+			if (dn==null) {
+				if (data.length==1) return null;
+				if (data.length==2) {
+					// only return the node if it is a leaf node (otherwise shift levels are disrupted....
+					PHMNode<K,V> node=data[1-i];
+					if (node.isLeaf()) return node; 
+				}
+				PHMNode<K,V>[] newData=new PHMNode[data.length-1];
+				System.arraycopy(data, 0, newData, 0, i);
+				System.arraycopy(data, i+1, newData, i, data.length-i-1);
+				if (this.edit!=edit) {
+					return new PHMBitMapNode<K,V>(newData,shift,bitmap&(~(1<<s)),count-oldSize,edit);
+				}
+				data=newData;
+				bitmap&=~(1<<s);
+				count-=oldSize;
+				return this;
+			}
+			if ((dn==n)&&(dn.size()==oldSize)) return this;
+			PHMBitMapNode<K,V> en=ensureEditable(edit);
+			en.data[i]=dn;
+			en.count+=dn.size()-oldSize;
+			return en;
+		}
+		
 		@SuppressWarnings("unchecked")
 		protected PHMNode<K, V> insertSlot(int i, int s, PHMNode<K,V> node) {
 			PHMNode<K,V>[] newData=new PHMNode[data.length+1];
@@ -431,8 +728,48 @@ public final class PersistentHashMap<K,V> extends PersistentMap<K,V> {
 		}
 		
 		
+		/**
+		 * Creates a node from a set of children, where newData corresponds to the slots set in bitmap. 
+		 * Null children are removed.
+		 * 
+		 * @return The new PHMNode, or null if no children remain
+		 */
 		@SuppressWarnings("unchecked")
+		protected static <K,V> PHMNode<K,V> create(PHMNode<K,V>[] newData, int bitmap, int shift) {
+			int n=0;
+			for (int i=0; i<newData.length; i++) {
+				if (newData[i]!=null) n++;
+			}
+			if (n==0) return null;
+			if (n==1) {
+				// collapse to a single leaf node if possible
+				for (PHMNode<K,V> node: newData) {
+					if ((node!=null)&&(node.isLeaf())) return node;
+				}
+			}
+			if (n==DATA_SIZE) {
+				return new PHMFullNode<K,V>(newData,shift);
+			}
+			PHMNode<K,V>[] nodes=(n==newData.length)?newData:new PHMNode[n];
+			int newBitmap=0;
+			int i=0;
+			int j=0;
+			for (int s=0; s<DATA_SIZE; s++) {
+				if ((bitmap&(1<<s))==0) continue;
+				PHMNode<K,V> node=newData[i++];
+				if (node==null) continue;
+				nodes[j++]=node;
+				newBitmap|=(1<<s);
+			}
+			return new PHMBitMapNode<K,V>(nodes,shift,newBitmap);
+		}
+		
 		protected static <K,V> PHMBitMapNode<K,V> concat(PHMNode<K,V> a, int ha, PHMNode<K,V> b, int hb, int shift) {
+			return concat(a,ha,b,hb,shift,null);
+		}
+		
+		@SuppressWarnings("unchecked")
+		protected static <K,V> PHMBitMapNode<K,V> concat(PHMNode<K,V> a, int ha, PHMNode<K,V> b, int hb, int shift, Object edit) {
 			PHMNode<K,V>[] nodes;
 			int sa=slotFromHash(ha,shift);
 			int sb=slotFromHash(hb,shift);
@@ -444,11 +781,63 @@ public final class PersistentHashMap<K,V> extends PersistentMap<K,V> {
 				nodes[1-ia]=b;
 			} else {
 				nodes=new PHMNode[1];
-				nodes[0]=concat(a,ha,b,hb,shift+SHIFT_AMOUNT);
+				nodes[0]=concat(a,ha,b,hb,shift+SHIFT_AMOUNT,edit);
 			}
-			PHMBitMapNode<K,V> fn=new PHMBitMapNode<K,V>(nodes,shift,bitmap);
+			PHMBitMapNode<K,V> fn=new PHMBitMapNode<K,V>(nodes,shift,bitmap,a.size()+b.size(),edit);
 			return fn;
 		}
+		
+		@Override
+		protected PHMNode<K,V>[] children() {
+			return data;
+		}
+		
+		@Override
+		protected PHMNode<K,V> withChildren(PHMNode<K,V>[] newChildren) {
+			if (sameNodes(data,newChildren)) return this;
+			return create(newChildren,bitmap,shift);
+		}
+		
+		@Override
+		protected PHMNode<K,V> childForSlot(int slot) {
+			if ((bitmap&(1<<slot))==0) return null;
+			return data[indexFromSlot(slot,bitmap)];
+		}
+		
+		@Override
+		protected <R> R reduce(R acc, BinaryFunction<R,? super Map.Entry<K,V>,R> f) {
+			for (int i=0; i<data.length; i++) {
+				acc=data[i].reduce(acc, f);
+			}
+			return acc;
+		}
+		
+		@Override
+		protected void forEach(BinaryFunction<? super K,? super V,?> f) {
+			for (int i=0; i<data.length; i++) {
+				data[i].forEach(f);
+			}
+		}
+		
+		@SuppressWarnings("unchecked")
+		@Override
+		protected <R> PHMNode<K,R> mapValues(UnaryFunction<? super V,? extends R> f) {
+			PHMNode<K,R>[] newData=new PHMNode[data.length];
+			for (int i=0; i<data.length; i++) {
+				newData[i]=data[i].mapValues(f);
+			}
+			return new PHMBitMapNode<K,R>(newData,shift,bitmap,count,null);
+		}
+		
+		@SuppressWarnings("unchecked")
+		@Override
+		protected PHMNode<K,V> filter(BooleanFilter<? super Map.Entry<K,V>> f) {
+			PHMNode<K,V>[] newData=new PHMNode[data.length];
+			for (int i=0; i<data.length; i++) {
+				newData[i]=data[i].filter(f);
+			}
+			return withChildren(newData);
+		}
 
 		private int countEntries() {
 			int res=0;
@@ -515,7 +904,28 @@ public final class PersistentHashMap<K,V> extends PersistentMap<K,V> {
 
 		@Override
 		protected PHMNode<K, V> include(K key, V value, int hash, int shift) {
-			return new PHMEntry<K,V>(key,value);
+			return new PHMEntry<K,V>(key,value,hash);
+		}
+		
+		@Override
+		protected <R> R reduce(R acc, BinaryFunction<R,? super Map.Entry<K,V>,R> f) {
+			return acc;
+		}
+		
+		@Override
+		protected void forEach(BinaryFunction<? super K,? super V,?> f) {
+			// nothing to visit
+		}
+		
+		@SuppressWarnings("unchecked")
+		@Override
+		protected <R> PHMNode<K,R> mapValues(UnaryFunction<? super V,? extends R> f) {
+			return (PHMNode<K,R>)this;
+		}
+		
+		@Override
+		protected PHMNode<K,V> filter(BooleanFilter<? super Map.Entry<K,V>> f) {
+			return this;
 		}
 
 		@Override
@@ -569,7 +979,7 @@ public final class PersistentHashMap<K,V> extends PersistentMap<K,V> {
 		@Override
 		protected PHMNode<K, V> include(K key, V value, int hash, int shift) {
 			if (hashCode!=hash) {
-				return PHMBitMapNode.concat(this,hashCode,new PHMEntry<K,V>(key,value),hash,shift);
+				return PHMBitMapNode.concat(this,hashCode,new PHMEntry<K,V>(key,value,hash),hash,shift);
 
 			}
 			
@@ -587,11 +997,11 @@ public final class PersistentHashMap<K,V> extends PersistentMap<K,V> {
 			PHMEntry<K,V>[] ndata=new PHMEntry[nlen];
 			System.arraycopy(entries, 0, ndata, 0, entries.length);
 			if (pos>=0) {
-				ndata[pos]=new PHMEntry<K,V>(key,value);
+				ndata[pos]=new PHMEntry<K,V>(key,value,hash);
 			} else {
-				ndata[olen]=new PHMEntry<K,V>(key,value);
+				ndata[olen]=new PHMEntry<K,V>(key,value,hash);
 			}
-			return new PHMCollisionList<K,V>(ndata,hash);
+			return createCollision(ndata,hash);
 		}
 		
 		@SuppressWarnings("unchecked")
@@ -623,6 +1033,57 @@ public final class PersistentHashMap<K,V> extends PersistentMap<K,V> {
 		protected int size() {
 			return entries.length;
 		}
+		
+		@Override
+		protected PHMEntry<K,V>[] leafEntries() {
+			return entries;
+		}
+		
+		@Override
+		protected <R> R reduce(R acc, BinaryFunction<R,? super Map.Entry<K,V>,R> f) {
+			for (PHMEntry<K,V> ent: entries) {
+				acc=f.apply(acc, ent);
+			}
+			return acc;
+		}
+		
+		@Override
+		protected void forEach(BinaryFunction<? super K,? super V,?> f) {
+			for (int i=0; i<entries.length; i++) {
+				PHMEntry<K,V> ent=entries[i];
+				f.apply(ent.key, ent.value);
+			}
+		}
+		
+		@SuppressWarnings("unchecked")
+		@Override
+		protected <R> PHMNode<K,R> mapValues(UnaryFunction<? super V,? extends R> f) {
+			int len=entries.length;
+			PHMEntry<K,R>[] ndata=new PHMEntry[len];
+			for (int i=0; i<len; i++) {
+				PHMEntry<K,V> ent=entries[i];
+				ndata[i]=new PHMEntry<K,R>(ent.key,f.apply(ent.value),ent.hash);
+			}
+			return new PHMCollisionList<K,R>(ndata,hashCode);
+		}
+		
+		@SuppressWarnings("unchecked")
+		@Override
+		protected PHMNode<K,V> filter(BooleanFilter<? super Map.Entry<K,V>> f) {
+			int len=entries.length;
+			PHMEntry<K,V>[] ndata=new PHMEntry[len];
+			int n=0;
+			for (int i=0; i<len; i++) {
+				PHMEntry<K,V> ent=entries[i];
+				if (f.test(ent)) ndata[n++]=ent;
+			}
+			if (n==len) return this;
+			if (n==0) return null;
+			if (n==1) return ndata[0];
+			PHMEntry<K,V>[] rdata=new PHMEntry[n];
+			System.arraycopy(ndata, 0, rdata, 0, n);
+			return createCollision(rdata,hashCode);
+		}
 
 		@Override
 		protected PHMEntry<K, V> findNext(PHMEntrySetIterator<K, V> it) {
@@ -637,7 +1098,7 @@ public final class PersistentHashMap<K,V> extends PersistentMap<K,V> {
 		public void validate() {
 			for (PHMEntry<K,V> e:entries) {
 				e.validate();
-				if (hashCode!=e.key.hashCode()) throw new Error();
+				if (hashCode!=e.hash) throw new Error();
 			}
 		}
 		
@@ -648,40 +1109,263 @@ public final class PersistentHashMap<K,V> extends PersistentMap<K,V> {
 	}
 	
 	/**
-	 * Represents a single PersistentHashMap entry
+	 * Maximum number of entries in a PHMCollisionList before it is converted
+	 * to a PHMCollisionTree, where the keys allow this
+	 */
+	private static final int COLLISION_TREE_THRESHOLD=8;
+	
+	/**
+	 * Creates a leaf node for two or more entries that share the same hash value.
 	 * 
-	 * @author Mike
+	 * Large collision sets are held in a sorted tree if all keys are Comparable
+	 * instances of the same class, so that lookups remain O(log n) even if
+	 * many keys deliberately share the same hash. If any two keys compare as
+	 * equal without being equal, a list is used instead.
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private static <K,V> PHMNode<K,V> createCollision(PHMEntry<K,V>[] entries, int hash) {
+		int n=entries.length;
+		if (n<=COLLISION_TREE_THRESHOLD) return new PHMCollisionList<K,V>(entries,hash);
+		Class<?> keyClass=entries[0].key.getClass();
+		if (!Comparable.class.isAssignableFrom(keyClass)) return new PHMCollisionList<K,V>(entries,hash);
+		PersistentTreeMap<K,PHMEntry<K,V>> tree=(PersistentTreeMap<K,PHMEntry<K,V>>)(PersistentTreeMap)PersistentTreeMap.EMPTY;
+		for (PHMEntry<K,V> e: entries) {
+			if (e.key.getClass()!=keyClass) return new PHMCollisionList<K,V>(entries,hash);
+			if (tree.get(e.key)!=null) return new PHMCollisionList<K,V>(entries,hash);
+			tree=tree.include(e.key, e);
+		}
+		return new PHMCollisionTree<K,V>(tree,keyClass,hash);
+	}
+	
+	/**
+	 * Collision node holding a large number of entries with the same hash value
+	 * in a PersistentTreeMap. All keys are Comparable instances of the same class,
+	 * and no two keys compare as equal. Matches found in the tree are confirmed
+	 * with equals, and a key that compares as equal to an existing key without
+	 * being equal to it forces a fallback to a PHMCollisionList.
+	 * 
+	 * @author Mike Anderson
 	 *
 	 * @param <K>
 	 * @param <V>
 	 */
-	private static final class PHMEntry<K,V> extends PHMNode<K,V> implements Map.Entry<K, V> {
-		private static final long serialVersionUID = -4668010646096033269L;
-			
-		private final K key;
-		private final V value;		
+	private static final class PHMCollisionTree<K,V> extends PHMNode<K,V> {
+		private static final long serialVersionUID = 2930766624359370573L;
+
+		private final PersistentTreeMap<K,PHMEntry<K,V>> tree;
+		private final Class<?> keyClass;
+		private final int hashCode;
 		
-		public K getKey() {
-			return key;
+		private PHMCollisionTree(PersistentTreeMap<K,PHMEntry<K,V>> tree, Class<?> keyClass, int hash) {
+			this.tree=tree;
+			this.keyClass=keyClass;
+			this.hashCode=hash;
 		}
 		
-		public V getValue() {
-			return value;
-		}
+		@Override
+		protected PHMEntry<K, V> getEntry(K key, int hash) {
+			if ((hash!=hashCode)||(key.getClass()!=keyClass)) return null;
+			PHMEntry<K,V> ent=tree.get(key);
+			if ((ent==null)||(!ent.matches(key))) return null;
+			return ent;
+		}
+		
+		@Override
+		protected PHMEntry<K, V> getEntry(K key) {
+			return getEntry(key,key.hashCode());
+		}
+		
+		@Override
+		protected PHMNode<K, V> include(K key, V value, int hash, int shift) {
+			PHMEntry<K,V> newEntry=new PHMEntry<K,V>(key,value,hash);
+			if (hashCode!=hash) {
+				return PHMBitMapNode.concat(this,hashCode,newEntry,hash,shift);
+			}
+			if (key.getClass()!=keyClass) {
+				// keys no longer mutually comparable, so fall back to a list
+				return toList(newEntry);
+			}
+			PHMEntry<K,V> ent=tree.get(key);
+			if (ent!=null) {
+				// compareTo is inconsistent with equals, so the tree cannot hold both keys
+				if (!ent.matches(key)) return toList(newEntry);
+				if (ent.matchesValue(value)) return this;
+				// the tree keeps its existing key instance, so the entry must use it too
+				newEntry=new PHMEntry<K,V>(ent.key,value,hash);
+			}
+			return new PHMCollisionTree<K,V>(tree.include(key, newEntry),keyClass,hash);
+		}
+		
+		/**
+		 * Converts this node to a PHMCollisionList with an additional entry
+		 */
+		@SuppressWarnings("unchecked")
+		private PHMNode<K,V> toList(PHMEntry<K,V> newEntry) {
+			PHMEntry<K,V>[] entries=leafEntries();
+			int n=entries.length;
+			PHMEntry<K,V>[] ndata=new PHMEntry[n+1];
+			System.arraycopy(entries, 0, ndata, 0, n);
+			ndata[n]=newEntry;
+			return new PHMCollisionList<K,V>(ndata,hashCode);
+		}
+		
+		@Override
+		protected PHMNode<K, V> delete(K key, int hash) {
+			if (getEntry(key,hash)==null) return this;
+			PersistentTreeMap<K,PHMEntry<K,V>> newTree=tree.delete(key);
+			if (newTree.size()>COLLISION_TREE_THRESHOLD) return new PHMCollisionTree<K,V>(newTree,keyClass,hash);
+			return new PHMCollisionList<K,V>(entriesOf(newTree),hash);
+		}
+		
+		@SuppressWarnings("unchecked")
+		private static <K,V> PHMEntry<K,V>[] entriesOf(PersistentTreeMap<K,PHMEntry<K,V>> tree) {
+			PHMEntry<K,V>[] entries=new PHMEntry[tree.size()];
+			int i=0;
+			for (Map.Entry<K,PHMEntry<K,V>> e: tree.entrySet()) {
+				entries[i++]=e.getValue();
+			}
+			return entries;
+		}
+
+		@Override
+		protected int size() {
+			return tree.size();
+		}
+		
+		/**
+		 * Returns a new array of the entries in this node, in key order
+		 */
+		@Override
+		protected PHMEntry<K,V>[] leafEntries() {
+			return entriesOf(tree);
+		}
+		
+		@Override
+		protected <R> R reduce(R acc, BinaryFunction<R,? super Map.Entry<K,V>,R> f) {
+			for (Map.Entry<K,PHMEntry<K,V>> e: tree.entrySet()) {
+				acc=f.apply(acc, e.getValue());
+			}
+			return acc;
+		}
+		
+		@Override
+		protected void forEach(BinaryFunction<? super K,? super V,?> f) {
+			for (Map.Entry<K,PHMEntry<K,V>> e: tree.entrySet()) {
+				PHMEntry<K,V> ent=e.getValue();
+				f.apply(ent.key, ent.value);
+			}
+		}
+		
+		@SuppressWarnings("unchecked")
+		@Override
+		protected <R> PHMNode<K,R> mapValues(UnaryFunction<? super V,? extends R> f) {
+			PHMEntry<K,V>[] entries=leafEntries();
+			int n=entries.length;
+			K[] keys=(K[])new Object[n];
+			PHMEntry<K,R>[] ndata=new PHMEntry[n];
+			for (int i=0; i<n; i++) {
+				PHMEntry<K,V> ent=entries[i];
+				keys[i]=ent.key;
+				ndata[i]=new PHMEntry<K,R>(ent.key,f.apply(ent.value),ent.hash);
+			}
+			return new PHMCollisionTree<K,R>(PersistentTreeMap.createFromSorted(keys, ndata, tree.comparator()),keyClass,hashCode);
+		}
+		
+		@SuppressWarnings("unchecked")
+		@Override
+		protected PHMNode<K,V> filter(BooleanFilter<? super Map.Entry<K,V>> f) {
+			PHMEntry<K,V>[] entries=leafEntries();
+			int len=entries.length;
+			PHMEntry<K,V>[] ndata=new PHMEntry[len];
+			int n=0;
+			for (int i=0; i<len; i++) {
+				PHMEntry<K,V> ent=entries[i];
+				if (f.test(ent)) ndata[n++]=ent;
+			}
+			if (n==len) return this;
+			if (n==0) return null;
+			if (n==1) return ndata[0];
+			PHMEntry<K,V>[] rdata=new PHMEntry[n];
+			System.arraycopy(ndata, 0, rdata, 0, n);
+			return createCollision(rdata,hashCode);
+		}
+
+		@Override
+		protected PHMEntry<K, V> findNext(PHMEntrySetIterator<K, V> it) {
+			if (it.index>=tree.size()) {
+				return null;
+			} else {
+				return tree.entryAt(it.index++).getValue();
+			}
+		}
+
+		@Override
+		public void validate() {
+			tree.validate();
+			if (tree.size()<=COLLISION_TREE_THRESHOLD) throw new Error("Collision tree too small");
+			for (Map.Entry<K,PHMEntry<K,V>> e: tree.entrySet()) {
+				PHMEntry<K,V> ent=e.getValue();
+				ent.validate();
+				if (ent.key!=e.getKey()) throw new Error("Key mismatch");
+				if (ent.key.getClass()!=keyClass) throw new Error("Wrong key class");
+				if (hashCode!=ent.hash) throw new Error();
+			}
+		}
+		
+		@Override
+		protected boolean isLeaf() {
+			return true;
+		}
+	}
+	
+	/**
+	 * Represents a single PersistentHashMap entry
+	 * 
+	 * @author Mike
+	 *
+	 * @param <K>
+	 * @param <V>
+	 */
+	private static final class PHMEntry<K,V> extends PHMNode<K,V> implements Map.Entry<K, V> {
+		private static final long serialVersionUID = -4668010646096033269L;
+			
+		private final K key;
+		private final V value;		
+		private final int hash; // memoized key hashcode
+		
+		public K getKey() {
+			return key;
+		}
+		
+		public V getValue() {
+			return value;
+		}
 				
 		public V setValue(V value) {
 			throw new UnsupportedOperationException();
 		}	
 		
 		public PHMEntry(K k, V v) {
+			this(k,v,k.hashCode());
+		}
+		
+		public PHMEntry(K k, V v, int hash) {
 			key=k;
 			value=v;
+			this.hash=hash;
 		}
 		
 		public boolean matches(K key) {
 			return this.key.equals(key);
 		}
 		
+		/**
+		 * Tests for a matching key, comparing hashes before calling equals
+		 */
+		public boolean matches(K key, int hash) {
+			return (this.hash==hash)&&((this.key==key)||this.key.equals(key));
+		}
+		
 		public boolean matchesValue(V value) {
 			return this.value==value;
 		}
@@ -694,31 +1378,37 @@ public final class PersistentHashMap<K,V> extends PersistentMap<K,V> {
 		
 		@Override
 		protected PHMEntry<K, V> getEntry(K key, int hash) {
-			return getEntry(key);
+			if (matches(key,hash)) return this;
+			return null;
 		}
 		
 		@SuppressWarnings("unchecked")
 		@Override
 		protected PHMNode<K, V> include(K newkey, V value, int hash, int shift) {
-			if (newkey.equals(this.key)) {
+			if (matches(newkey,hash)) {
 				// replacement case
-				if (!matchesValue(value)) return new PHMEntry<K,V>(newkey,value);
+				if (!matchesValue(value)) return new PHMEntry<K,V>(newkey,value,hash);
 				return this;
 			}
 
-			int hashCode=this.key.hashCode();
-			if (hash==hashCode) return new PHMCollisionList<K,V>(
+			if (hash==this.hash) return createCollision(
 					new PHMEntry[] {
 							this,
-							new PHMEntry<K,V>(newkey,value)},
+							new PHMEntry<K,V>(newkey,value,hash)},
 					hash);
 			
-			return PHMBitMapNode.concat(this,hashCode,new PHMEntry<K,V>(newkey,value),hash,shift);
+			return PHMBitMapNode.concat(this,this.hash,new PHMEntry<K,V>(newkey,value,hash),hash,shift);
+		}
+		
+		@Override
+		protected PHMNode<K, V> include(K newkey, V value, int hash, int shift, Object edit) {
+			if (hash==this.hash) return include(newkey,value,hash,shift);
+			return PHMBitMapNode.concat(this,this.hash,new PHMEntry<K,V>(newkey,value,hash),hash,shift,edit);
 		}
 		
 		@Override
 		protected PHMNode<K, V> delete(K k, int hash) {
-			if (k.equals(key)) return null;
+			if (matches(k,hash)) return null;
 			return this;
 		}
 		
@@ -736,10 +1426,37 @@ public final class PersistentHashMap<K,V> extends PersistentMap<K,V> {
 				return this;
 			}
 		}
+		
+		@Override
+		protected <R> R reduce(R acc, BinaryFunction<R,? super Map.Entry<K,V>,R> f) {
+			return f.apply(acc, this);
+		}
+		
+		@Override
+		protected void forEach(BinaryFunction<? super K,? super V,?> f) {
+			f.apply(key, value);
+		}
+		
+		@Override
+		protected <R> PHMNode<K,R> mapValues(UnaryFunction<? super V,? extends R> f) {
+			return new PHMEntry<K,R>(key,f.apply(value),hash);
+		}
+		
+		@SuppressWarnings("unchecked")
+		@Override
+		protected PHMEntry<K,V>[] leafEntries() {
+			return new PHMEntry[] {this};
+		}
+		
+		@Override
+		protected PHMNode<K,V> filter(BooleanFilter<? super Map.Entry<K,V>> f) {
+			return f.test(this)?this:null;
+		}
 
 		@Override
 		public void validate() {
 			if (key==null) throw new Error();
+			if (hash!=key.hashCode()) throw new Error("Bad memoized hash");
 		}
 		
 		@Override
@@ -821,6 +1538,323 @@ public final class PersistentHashMap<K,V> extends PersistentMap<K,V> {
 		}
 	}
 
+	/**
+	 * Mutable builder for constructing PersistentHashMap instances.
+	 * 
+	 * Nodes created by the builder are owned by it and are updated in place
+	 * rather than path-copied, so bulk operations allocate far less than 
+	 * repeated calls to PersistentHashMap.include(...). Nodes shared with
+	 * existing persistent maps are copied on first modification.
+	 * 
+	 * A builder may only be used by the thread that created it, and cannot
+	 * be used after toPersistentHashMap() has been called.
+	 * 
+	 * @author Mike Anderson
+	 *
+	 * @param <K> Key type
+	 * @param <V> Value type
+	 */
+	@Mutable
+	public static final class Builder<K,V> {
+		private PHMNode<K,V> root;
+		private Object edit;
+		private final Thread owner;
+		
+		private Builder(PHMNode<K,V> root) {
+			this.root=root;
+			this.edit=new Object();
+			this.owner=Thread.currentThread();
+		}
+		
+		private void ensureEditable() {
+			if (edit==null) throw new IllegalStateException("Builder has already been converted to a persistent map");
+			if (owner!=Thread.currentThread()) throw new IllegalStateException("Builder used by a thread other than its owner");
+		}
+		
+		@SuppressWarnings("unchecked")
+		public Builder<K,V> include(K key, V value) {
+			ensureEditable();
+			PHMNode<K,V> newRoot=root.include(key, value, key.hashCode(), 0, edit);
+			root=(newRoot==null)?(PHMNode<K,V>)EMPTY_NODE_LIST:newRoot;
+			return this;
+		}
+		
+		public Builder<K,V> include(Map<K,V> values) {
+			for (Map.Entry<K,V> ent: values.entrySet()) {
+				include(ent.getKey(),ent.getValue());
+			}
+			return this;
+		}
+		
+		@SuppressWarnings("unchecked")
+		public Builder<K,V> delete(K key) {
+			ensureEditable();
+			PHMNode<K,V> newRoot=root.delete(key, key.hashCode(), edit);
+			root=(newRoot==null)?(PHMNode<K,V>)EMPTY_NODE_LIST:newRoot;
+			return this;
+		}
+		
+		public Builder<K,V> delete(Collection<K> keys) {
+			for (K key: keys) {
+				delete(key);
+			}
+			return this;
+		}
+		
+		@SuppressWarnings("unchecked")
+		public V get(Object key) {
+			PHMEntry<K,V> entry=root.getEntry((K)key);
+			if (entry!=null) return entry.getValue();
+			return null;
+		}
+		
+		@SuppressWarnings("unchecked")
+		public boolean containsKey(Object key) {
+			return root.containsKey((K)key);
+		}
+		
+		public int size() {
+			return root.size();
+		}
+		
+		/**
+		 * Converts the builder into a PersistentHashMap in O(1) time.
+		 * The builder may not be used afterwards.
+		 */
+		public PersistentHashMap<K,V> toPersistentHashMap() {
+			ensureEditable();
+			edit=null;
+			if (root.size()==0) return create();
+			return new PersistentHashMap<K,V>(root);
+		}
+	}
+
+	/*
+	 *  Bulk operations
+	 */
+	
+	/**
+	 * Reduces all entries in the map with the given accumulator function
+	 */
+	public <R> R reduce(R initial, BinaryFunction<R,? super Map.Entry<K,V>,R> accumulator) {
+		return root.reduce(initial, accumulator);
+	}
+	
+	/**
+	 * Calls the given function with the key and value of every entry in the map.
+	 * 
+	 * Walks the node arrays directly, without allocating iterators or entry objects.
+	 * The return value of the function is ignored.
+	 */
+	public void forEachEntry(BinaryFunction<? super K,? super V,?> f) {
+		root.forEach(f);
+	}
+	
+	/**
+	 * Calls the given function with every key in the map
+	 */
+	public void forEachKey(final UnaryFunction<? super K,?> f) {
+		root.forEach(new BinaryFunction<K,V,Object>() {
+			public Object apply(K key, V value) {
+				return f.apply(key);
+			}
+		});
+	}
+	
+	/**
+	 * Calls the given function with every value in the map
+	 */
+	public void forEachValue(final UnaryFunction<? super V,?> f) {
+		root.forEach(new BinaryFunction<K,V,Object>() {
+			public Object apply(K key, V value) {
+				return f.apply(value);
+			}
+		});
+	}
+	
+	/**
+	 * Reduces all values in the map with the given accumulator function
+	 */
+	public <R> R reduceValues(R initial, final BinaryFunction<R,? super V,R> accumulator) {
+		return root.reduce(initial, new BinaryFunction<R,Map.Entry<K,V>,R>() {
+			public R apply(R acc, Map.Entry<K,V> e) {
+				return accumulator.apply(acc, ((PHMEntry<K,V>)e).value);
+			}
+		});
+	}
+	
+	/**
+	 * Returns a map with the same keys, with each value transformed by the given function.
+	 * 
+	 * The new map is built directly from the structure of this map without re-hashing any keys.
+	 */
+	public <R> PersistentHashMap<K,R> mapValues(UnaryFunction<? super V,? extends R> f) {
+		return new PersistentHashMap<K,R>(root.mapValues(f));
+	}
+	
+	/**
+	 * Returns a map containing only those entries that pass the given filter.
+	 * 
+	 * Subtrees where all entries pass the filter are shared with this map.
+	 */
+	public PersistentHashMap<K,V> filter(BooleanFilter<? super Map.Entry<K,V>> f) {
+		PHMNode<K,V> newRoot=root.filter(f);
+		if (newRoot==root) return this;
+		return new PersistentHashMap<K,V>(newRoot);
+	}
+	
+	public void parallelForEach(UnaryFunction<? super Map.Entry<K,V>,?> f) {
+		parallelForEach(f,Parallel.getDefaultExecutor());
+	}
+	
+	/**
+	 * Applies the given function to every entry in the map, using the given executor.
+	 * The function may be called concurrently from multiple threads.
+	 * Nested calls run sequentially, see parallelReduce.
+	 */
+	public void parallelForEach(final UnaryFunction<? super Map.Entry<K,V>,?> f, ExecutorService executor) {
+		BinaryFunction<Object,Map.Entry<K,V>,Object> visitor=new BinaryFunction<Object,Map.Entry<K,V>,Object>() {
+			public Object apply(Object acc, Map.Entry<K,V> ent) {
+				f.apply(ent);
+				return null;
+			}
+		};
+		parallelReduce(null, visitor, new BinaryFunction<Object,Object,Object>() {
+			public Object apply(Object a, Object b) {
+				return null;
+			}
+		}, executor);
+	}
+	
+	public <R> R parallelReduce(R initial, BinaryFunction<R,? super Map.Entry<K,V>,R> accumulator, BinaryFunction<R,R,R> combiner) {
+		return parallelReduce(initial,accumulator,combiner,Parallel.getDefaultExecutor());
+	}
+	
+	/**
+	 * Reduces all entries in the map in parallel. Each independent subtree of the map is 
+	 * reduced separately starting from the initial value, and the partial results
+	 * are then merged with the combiner function. 
+	 * 
+	 * The initial value should therefore be an identity for the combiner function.
+	 * 
+	 * When called from within a task of another parallel operation (e.g. from the 
+	 * function passed to parallelForEach) the work is done sequentially in the calling
+	 * thread, so nested calls cannot deadlock a fixed size pool. The functions must not 
+	 * otherwise block waiting for tasks on the same executor.
+	 */
+	public <R> R parallelReduce(final R initial, final BinaryFunction<R,? super Map.Entry<K,V>,R> accumulator, BinaryFunction<R,R,R> combiner, ExecutorService executor) {
+		int splitSize=parallelSplitSize();
+		if (size()<=splitSize) return root.reduce(initial, accumulator);
+		
+		ArrayList<Callable<R>> tasks=new ArrayList<Callable<R>>();
+		for (final PHMNode<K,V> part: split(splitSize)) {
+			tasks.add(new Callable<R>() {
+				public R call() {
+					return part.reduce(initial, accumulator);
+				}
+			});
+		}
+		List<R> results=Parallel.invokeAll(executor, tasks);
+		R result=results.get(0);
+		for (int i=1; i<results.size(); i++) {
+			result=combiner.apply(result, results.get(i));
+		}
+		return result;
+	}
+	
+	public <R> PersistentHashMap<K,R> parallelMapValues(UnaryFunction<? super V,? extends R> f) {
+		return parallelMapValues(f,Parallel.getDefaultExecutor());
+	}
+	
+	/**
+	 * Parallel version of mapValues(...). Independent subtrees are transformed 
+	 * concurrently and the upper levels of the trie are then rebuilt around the results.
+	 * Nested calls run sequentially, see parallelReduce.
+	 */
+	public <R> PersistentHashMap<K,R> parallelMapValues(final UnaryFunction<? super V,? extends R> f, ExecutorService executor) {
+		int splitSize=parallelSplitSize();
+		if (size()<=splitSize) return mapValues(f);
+		
+		ArrayList<Callable<PHMNode<K,R>>> tasks=new ArrayList<Callable<PHMNode<K,R>>>();
+		for (final PHMNode<K,V> part: split(splitSize)) {
+			tasks.add(new Callable<PHMNode<K,R>>() {
+				public PHMNode<K,R> call() {
+					return part.mapValues(f);
+				}
+			});
+		}
+		List<PHMNode<K,R>> results=Parallel.invokeAll(executor, tasks);
+		return new PersistentHashMap<K,R>(assemble(root,splitSize,results.iterator()));
+	}
+	
+	public PersistentHashMap<K,V> parallelFilter(BooleanFilter<? super Map.Entry<K,V>> f) {
+		return parallelFilter(f,Parallel.getDefaultExecutor());
+	}
+	
+	/**
+	 * Parallel version of filter(...). Independent subtrees are filtered 
+	 * concurrently and the upper levels of the trie are then rebuilt around the results.
+	 * Nested calls run sequentially, see parallelReduce.
+	 */
+	public PersistentHashMap<K,V> parallelFilter(final BooleanFilter<? super Map.Entry<K,V>> f, ExecutorService executor) {
+		int splitSize=parallelSplitSize();
+		if (size()<=splitSize) return filter(f);
+		
+		ArrayList<Callable<PHMNode<K,V>>> tasks=new ArrayList<Callable<PHMNode<K,V>>>();
+		for (final PHMNode<K,V> part: split(splitSize)) {
+			tasks.add(new Callable<PHMNode<K,V>>() {
+				public PHMNode<K,V> call() {
+					return part.filter(f);
+				}
+			});
+		}
+		List<PHMNode<K,V>> results=Parallel.invokeAll(executor, tasks);
+		PHMNode<K,V> newRoot=assemble(root,splitSize,results.iterator());
+		if (newRoot==root) return this;
+		return new PersistentHashMap<K,V>(newRoot);
+	}
+	
+	private int parallelSplitSize() {
+		return Math.max(PARALLEL_SPLIT_SIZE, size()/(Parallel.getParallelism()*4));
+	}
+	
+	/**
+	 * Splits the trie at child array boundaries into independent subtrees 
+	 * of no more than splitSize entries (unless a subtree is a leaf node)
+	 */
+	private ArrayList<PHMNode<K,V>> split(int splitSize) {
+		ArrayList<PHMNode<K,V>> parts=new ArrayList<PHMNode<K,V>>();
+		split(root,splitSize,parts);
+		return parts;
+	}
+	
+	private static <K,V> void split(PHMNode<K,V> node, int splitSize, ArrayList<PHMNode<K,V>> parts) {
+		if ((!(node instanceof PHMBranchNode<?,?>))||(node.size()<=splitSize)) {
+			parts.add(node);
+			return;
+		}
+		PHMNode<K,V>[] cs=((PHMBranchNode<K,V>)node).children();
+		for (int i=0; i<cs.length; i++) {
+			split(cs[i],splitSize,parts);
+		}
+	}
+	
+	/**
+	 * Rebuilds a trie from the results of processing each subtree produced by split(...)
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private static <K,V,R> PHMNode<K,R> assemble(PHMNode<K,V> node, int splitSize, Iterator<PHMNode<K,R>> results) {
+		if ((!(node instanceof PHMBranchNode<?,?>))||(node.size()<=splitSize)) {
+			return results.next();
+		}
+		PHMNode<K,V>[] cs=((PHMBranchNode<K,V>)node).children();
+		PHMNode[] newChildren=new PHMNode[cs.length];
+		for (int i=0; i<cs.length; i++) {
+			newChildren[i]=assemble(cs[i],splitSize,results);
+		}
+		return ((PHMBranchNode)node).withChildren(newChildren);
+	}
+
 	/*
 	 *  IPersistentMap methods
 	 */
@@ -881,20 +1915,204 @@ public final class PersistentHashMap<K,V> extends PersistentMap<K,V> {
 			return include((PersistentHashMap<K,V>)values);
 		}
 		
-		PersistentMap<K, V> pm=this;
-		for (Map.Entry<K, V> entry:values.entrySet()) {
-			pm=pm.include(entry.getKey(),entry.getValue());
+		Builder<K,V> b=toBuilder();
+		b.include(values);
+		return b.toPersistentHashMap();
+	}
+	
+	/**
+	 * Returns the union of this map with the given map. Where keys are present in 
+	 * both maps the values from the given map take precedence.
+	 * 
+	 * Both tries are walked in lockstep, so subtrees shared between the two 
+	 * maps are reused without any further work.
+	 */
+	public PersistentHashMap<K, V> include(PersistentHashMap<K, V> values) {
+		PHMNode<K,V> newRoot=union(root,values.root,0);
+		if (newRoot==root) return this;
+		if (newRoot==values.root) return values;
+		return new PersistentHashMap<K,V>(newRoot);
+	}
+	
+	/**
+	 * Returns a map containing the entries of this map whose keys are also present in the given map
+	 */
+	public PersistentHashMap<K, V> intersection(PersistentHashMap<K, ?> other) {
+		PHMNode<K,V> newRoot=intersection(root,other.root,0);
+		if (newRoot==root) return this;
+		return new PersistentHashMap<K,V>(newRoot);
+	}
+	
+	/**
+	 * Returns a map containing the entries of this map whose keys are not present in the given map
+	 */
+	public PersistentHashMap<K, V> difference(PersistentHashMap<K, ?> other) {
+		PHMNode<K,V> newRoot=difference(root,other.root,0,false);
+		if (newRoot==root) return this;
+		return new PersistentHashMap<K,V>(newRoot);
+	}
+	
+	/**
+	 * Computes the changes between two versions of a map. Subtrees shared between 
+	 * the two versions are skipped, so the cost is proportional to the size of the changes.
+	 * 
+	 * @return A pair (a,b) where a contains the entries of newMap that were added or changed,
+	 * and b contains the entries of oldMap that were removed.
+	 */
+	public static <K,V> Pair<PersistentHashMap<K,V>,PersistentHashMap<K,V>> diff(PersistentHashMap<K,V> oldMap, PersistentHashMap<K,V> newMap) {
+		PersistentHashMap<K,V> changed=new PersistentHashMap<K,V>(difference(newMap.root,oldMap.root,0,true));
+		PersistentHashMap<K,V> removed=new PersistentHashMap<K,V>(difference(oldMap.root,newMap.root,0,false));
+		return new Pair<PersistentHashMap<K,V>,PersistentHashMap<K,V>>(changed,removed);
+	}
+	
+	private static boolean isEmpty(PHMNode<?,?> node) {
+		return (node==null)||(node.size()==0);
+	}
+	
+	/**
+	 * Node level union, with entries in b taking precedence
+	 */
+	private static <K,V> PHMNode<K,V> union(PHMNode<K,V> a, PHMNode<K,V> b, int shift) {
+		if (a==b) return a;
+		if (isEmpty(a)) return b;
+		if (isEmpty(b)) return a;
+		PHMEntry<K,V>[] aEntries=a.leafEntries();
+		if (aEntries!=null) {
+			PHMNode<K,V> result=b;
+			for (PHMEntry<K,V> e: aEntries) {
+				if (b.getEntry(e.key,e.hash)==null) result=result.include(e.key, e.value, e.hash, shift);
+			}
+			return result;
+		}
+		PHMEntry<K,V>[] bEntries=b.leafEntries();
+		if (bEntries!=null) {
+			PHMNode<K,V> result=a;
+			for (PHMEntry<K,V> e: bEntries) {
+				result=result.include(e.key, e.value, e.hash, shift);
+			}
+			return result;
+		}
+		PHMBranchNode<K,V> ba=(PHMBranchNode<K,V>)a;
+		PHMBranchNode<K,V> bb=(PHMBranchNode<K,V>)b;
+		PHMNode<K,V>[] nd=newSlotArray();
+		for (int s=0; s<DATA_SIZE; s++) {
+			PHMNode<K,V> ca=ba.childForSlot(s);
+			PHMNode<K,V> cb=bb.childForSlot(s);
+			nd[s]=(ca==null)?cb:((cb==null)?ca:union(ca,cb,shift+SHIFT_AMOUNT));
+		}
+		return createFromSlots(ba,bb,nd,shift);
+	}
+	
+	/**
+	 * Node level intersection, returning entries in a with keys present in b
+	 */
+	private static <K,V> PHMNode<K,V> intersection(PHMNode<K,V> a, PHMNode<K,?> b, int shift) {
+		if (a==b) return a;
+		if (isEmpty(a)||isEmpty(b)) return null;
+		PHMEntry<K,V>[] aEntries=a.leafEntries();
+		if (aEntries!=null) {
+			return filterLeaf(a,aEntries,b,false,false);
+		}
+		PHMEntry<K,?>[] bEntries=b.leafEntries();
+		if (bEntries!=null) {
+			PHMNode<K,V> result=null;
+			for (PHMEntry<K,?> e: bEntries) {
+				int hash=e.hash;
+				PHMEntry<K,V> ae=a.getEntry(e.key, hash);
+				if (ae==null) continue;
+				result=(result==null)?ae:result.include(ae.key, ae.value, hash, shift);
+			}
+			return result;
+		}
+		PHMBranchNode<K,V> ba=(PHMBranchNode<K,V>)a;
+		PHMBranchNode<K,?> bb=(PHMBranchNode<K,?>)b;
+		PHMNode<K,V>[] nd=newSlotArray();
+		for (int s=0; s<DATA_SIZE; s++) {
+			PHMNode<K,V> ca=ba.childForSlot(s);
+			PHMNode<K,?> cb=bb.childForSlot(s);
+			nd[s]=((ca==null)||(cb==null))?null:intersection(ca,cb,shift+SHIFT_AMOUNT);
 		}
-		return pm;
+		return createFromSlots(ba,null,nd,shift);
+	}
+	
+	/**
+	 * Node level difference, returning entries in a with keys not present in b. If
+	 * matchValues is true, entries are only removed if b contains an equal value for the key.
+	 */
+	private static <K,V> PHMNode<K,V> difference(PHMNode<K,V> a, PHMNode<K,?> b, int shift, boolean matchValues) {
+		if (a==b) return null;
+		if (isEmpty(a)) return null;
+		if (isEmpty(b)) return a;
+		PHMEntry<K,V>[] aEntries=a.leafEntries();
+		if (aEntries!=null) {
+			return filterLeaf(a,aEntries,b,true,matchValues);
+		}
+		PHMEntry<K,?>[] bEntries=b.leafEntries();
+		if (bEntries!=null) {
+			PHMNode<K,V> result=a;
+			for (PHMEntry<K,?> e: bEntries) {
+				int hash=e.hash;
+				if (matchValues) {
+					PHMEntry<K,V> ae=a.getEntry(e.key, hash);
+					if ((ae==null)||!Tools.equalsWithNulls(ae.value, e.value)) continue;
+				}
+				result=result.delete(e.key, hash);
+				if (result==null) return null;
+			}
+			return result;
+		}
+		PHMBranchNode<K,V> ba=(PHMBranchNode<K,V>)a;
+		PHMBranchNode<K,?> bb=(PHMBranchNode<K,?>)b;
+		PHMNode<K,V>[] nd=newSlotArray();
+		for (int s=0; s<DATA_SIZE; s++) {
+			PHMNode<K,V> ca=ba.childForSlot(s);
+			PHMNode<K,?> cb=bb.childForSlot(s);
+			nd[s]=((ca==null)||(cb==null))?ca:difference(ca,cb,shift+SHIFT_AMOUNT,matchValues);
+		}
+		return createFromSlots(ba,null,nd,shift);
+	}
+	
+	/**
+	 * Filters the entries of a leaf node according to their presence in node b
+	 */
+	@SuppressWarnings("unchecked")
+	private static <K,V> PHMNode<K,V> filterLeaf(PHMNode<K,V> leaf, PHMEntry<K,V>[] entries, PHMNode<K,?> b, boolean keepMissing, boolean matchValues) {
+		int len=entries.length;
+		PHMEntry<K,V>[] kept=new PHMEntry[len];
+		int n=0;
+		for (PHMEntry<K,V> e: entries) {
+			PHMEntry<K,?> be=b.getEntry(e.key, e.hash);
+			boolean present=(be!=null)&&((!matchValues)||Tools.equalsWithNulls(e.value, be.value));
+			if (present!=keepMissing) kept[n++]=e;
+		}
+		if (n==len) return leaf;
+		if (n==0) return null;
+		if (n==1) return kept[0];
+		PHMEntry<K,V>[] rdata=new PHMEntry[n];
+		System.arraycopy(kept, 0, rdata, 0, n);
+		return createCollision(rdata,entries[0].hash);
+	}
+	
+	@SuppressWarnings("unchecked")
+	private static <K,V> PHMNode<K,V>[] newSlotArray() {
+		return new PHMNode[DATA_SIZE];
+	}
+	
+	/**
+	 * Creates a node from an array of children indexed by slot, returning 
+	 * one of the original nodes a or b if the children are identical
+	 */
+	private static <K,V> PHMNode<K,V> createFromSlots(PHMBranchNode<K,V> a, PHMBranchNode<K,V> b, PHMNode<K,V>[] nd, int shift) {
+		if (sameSlots(a,nd)) return a;
+		if ((b!=null)&&sameSlots(b,nd)) return b;
+		return PHMBitMapNode.create(nd, 0xFFFFFFFF, shift);
 	}
 	
-	public PersistentMap<K, V> include(PersistentHashMap<K, V> values) {
-		// TODO: Consider fast node-level merging implementation
-		PersistentHashMap<K, V> pm=this;
-		for (Map.Entry<K, V> entry:values.entrySet()) {
-			pm=pm.include(entry.getKey(),entry.getValue());
+	private static <K,V> boolean sameSlots(PHMBranchNode<K,V> node, PHMNode<K,V>[] nd) {
+		for (int s=0; s<DATA_SIZE; s++) {
+			if (node.childForSlot(s)!=nd[s]) return false;
 		}
-		return pm;
+		return true;
 	}
 
 	@Override
@@ -904,6 +2122,14 @@ public final class PersistentHashMap<K,V> extends PersistentMap<K,V> {
 		return new PersistentHashMap<K,V>(newRoot);
 	}
 	
+	@Override
+	public PersistentMap<K, V> delete(Collection<K> keys) {
+		Builder<K,V> b=toBuilder();
+		b.delete(keys);
+		if (b.root==root) return this;
+		return b.toPersistentHashMap();
+	}
+	
 	@Override
 	public void validate() {
 		super.validate();
@@ -913,4 +2139,144 @@ public final class PersistentHashMap<K,V> extends PersistentMap<K,V> {
 	public boolean allowsNullKey() {
 		return false;
 	}
+	
+	/**
+	 * Writes this map to a SharedDataWriter, writing only trie nodes that
+	 * have not previously been written
+	 */
+	public void writeTo(SharedDataWriter w) {
+		writeNode(w,root);
+	}
+	
+	private static final byte NODE_EMPTY=0;
+	private static final byte NODE_ENTRY=1;
+	private static final byte NODE_BITMAP=2;
+	private static final byte NODE_FULL=3;
+	private static final byte NODE_COLLISION=4;
+	
+	private static <K,V> void writeNode(SharedDataWriter w, PHMNode<K,V> node) {
+		if (!w.writeReference(node)) return;
+		if (node instanceof PHMEntry<?,?>) {
+			PHMEntry<K,V> e=(PHMEntry<K,V>)node;
+			w.writeByte(NODE_ENTRY);
+			w.writeValue(e.key);
+			w.writeValue(e.value);
+		} else if (node instanceof PHMBitMapNode<?,?>) {
+			PHMBitMapNode<K,V> bn=(PHMBitMapNode<K,V>)node;
+			w.writeByte(NODE_BITMAP);
+			w.writeVarInt(bn.shift);
+			w.writeFullInt(bn.bitmap);
+			for (int i=0; i<bn.data.length; i++) {
+				writeNode(w,bn.data[i]);
+			}
+		} else if (node instanceof PHMFullNode<?,?>) {
+			PHMFullNode<K,V> fn=(PHMFullNode<K,V>)node;
+			w.writeByte(NODE_FULL);
+			w.writeVarInt(fn.shift);
+			for (int i=0; i<DATA_SIZE; i++) {
+				writeNode(w,fn.data[i]);
+			}
+		} else if ((node instanceof PHMCollisionList<?,?>)||(node instanceof PHMCollisionTree<?,?>)) {
+			PHMEntry<K,V>[] entries=node.leafEntries();
+			w.writeByte(NODE_COLLISION);
+			w.writeFullInt(entries[0].hash);
+			w.writeVarInt(entries.length);
+			for (int i=0; i<entries.length; i++) {
+				writeNode(w,entries[i]);
+			}
+		} else {
+			w.writeByte(NODE_EMPTY);
+		}
+	}
+	
+	/**
+	 * Reads a map written with writeTo(SharedDataWriter)
+	 */
+	public static <K,V> PersistentHashMap<K,V> readFrom(SharedDataReader r) {
+		PHMNode<K,V> root=readNode(r);
+		if (root==EMPTY_NODE_LIST) return create();
+		return new PersistentHashMap<K,V>(root);
+	}
+	
+	@SuppressWarnings("unchecked")
+	private static <K,V> PHMNode<K,V> readNode(SharedDataReader r) {
+		int header=r.readReference();
+		if (!SharedDataReader.isNew(header)) return (PHMNode<K,V>)r.getNode(header);
+		byte type=r.readByte();
+		switch (type) {
+			case NODE_ENTRY: {
+				K key=(K)r.readValue();
+				V value=(V)r.readValue();
+				return r.putNode(header, new PHMEntry<K,V>(key,value));
+			}
+			case NODE_BITMAP: {
+				int shift=r.readVarInt();
+				int bitmap=r.readFullInt();
+				PHMNode<K,V>[] data=new PHMNode[Integer.bitCount(bitmap)];
+				for (int i=0; i<data.length; i++) {
+					data[i]=readNode(r);
+				}
+				return r.putNode(header, new PHMBitMapNode<K,V>(data,shift,bitmap));
+			}
+			case NODE_FULL: {
+				int shift=r.readVarInt();
+				PHMNode<K,V>[] data=new PHMNode[DATA_SIZE];
+				for (int i=0; i<DATA_SIZE; i++) {
+					data[i]=readNode(r);
+				}
+				return r.putNode(header, new PHMFullNode<K,V>(data,shift));
+			}
+			case NODE_COLLISION: {
+				int hash=r.readFullInt();
+				PHMEntry<K,V>[] entries=new PHMEntry[r.readVarInt()];
+				for (int i=0; i<entries.length; i++) {
+					entries[i]=(PHMEntry<K,V>)readNode(r);
+				}
+				return r.putNode(header, createCollision(entries,hash));
+			}
+			case NODE_EMPTY: 
+				return r.putNode(header, (PHMNode<K,V>)EMPTY_NODE_LIST);
+			default: throw new Error("Unknown node type: "+type);
+		}
+	}
+	
+	public void addFootprint(Footprint f) {
+		if (f.addNode(this, "PersistentHashMap", Footprint.objectSize(1,0))) {
+			addFootprint(f,root);
+		}
+	}
+	
+	private static <K,V> void addFootprint(Footprint f, PHMNode<K,V> node) {
+		if (node instanceof PHMEntry<?,?>) {
+			f.addNode(node, "PHMEntry", Footprint.objectSize(2,4));
+		} else if (node instanceof PHMBitMapNode<?,?>) {
+			PHMBitMapNode<K,V> bn=(PHMBitMapNode<K,V>)node;
+			if (!f.addNode(node, "PHMBitMapNode", Footprint.objectSize(2,12)+Footprint.arraySize(bn.data.length,Footprint.REFERENCE_BYTES))) return;
+			for (int i=0; i<bn.data.length; i++) {
+				addFootprint(f,bn.data[i]);
+			}
+		} else if (node instanceof PHMFullNode<?,?>) {
+			PHMFullNode<K,V> fn=(PHMFullNode<K,V>)node;
+			if (!f.addNode(node, "PHMFullNode", Footprint.objectSize(2,8)+Footprint.arraySize(DATA_SIZE,Footprint.REFERENCE_BYTES))) return;
+			for (int i=0; i<DATA_SIZE; i++) {
+				addFootprint(f,fn.data[i]);
+			}
+		} else if (node instanceof PHMCollisionList<?,?>) {
+			PHMCollisionList<K,V> cl=(PHMCollisionList<K,V>)node;
+			if (!f.addNode(node, "PHMCollisionList", Footprint.objectSize(1,4)+Footprint.arraySize(cl.entries.length,Footprint.REFERENCE_BYTES))) return;
+			for (int i=0; i<cl.entries.length; i++) {
+				addFootprint(f,cl.entries[i]);
+			}
+		} else if (node instanceof PHMCollisionTree<?,?>) {
+			// estimate includes the nodes of the backing PersistentTreeMap
+			PHMEntry<K,V>[] entries=node.leafEntries();
+			int treeBytes=Footprint.objectSize(2,0)+entries.length*Footprint.objectSize(4,4);
+			if (!f.addNode(node, "PHMCollisionTree", Footprint.objectSize(2,4)+treeBytes)) return;
+			for (int i=0; i<entries.length; i++) {
+				addFootprint(f,entries[i]);
+			}
+		} else {
+			f.addNode(node, "PHMNullList", Footprint.objectSize(0,0));
+		}
+	}
 }
@@ -152,6 +152,14 @@ public final class PersistentHashSet<T> extends BasePersistentSet<T> {
 		public final boolean containsKey(T key) {
 			return getEntry(key)!=null;
 		}
+		
+		/**
+		 * Returns the entries of a leaf PHSNode, or null if this is not a leaf node.
+		 * The returned array must not be modified.
+		 */
+		protected PHSEntry<T>[] leafEntries() {
+			return null;
+		}
 
 		/**
 		 * Testing function to validate internal structure of PHSNode
@@ -159,11 +167,23 @@ public final class PersistentHashSet<T> extends BasePersistentSet<T> {
 		public abstract void validate();
 	}
 	
+	/**
+	 * Base class for PHSNodes that branch on hash bits to child nodes
+	 */
+	private abstract static class PHSBranchNode<T> extends PHSNode<T> {
+		private static final long serialVersionUID = 6154937420561028893L;
+
+		/**
+		 * Returns the child in the given slot of this PHSBranchNode, or null if the slot is empty. 
+		 */
+		protected abstract PHSNode<T> childForSlot(int slot);
+	}
+	
 	/**
 	 * Represents a full node with DATA_SIZE non-null elements
 	 * @author Mike
 	 */
-	private static final class PHSFullNode<T> extends PHSNode<T> {
+	private static final class PHSFullNode<T> extends PHSBranchNode<T> {
 		private static final long serialVersionUID = 5910832730804486676L;
 		
 		
@@ -254,6 +274,11 @@ public final class PersistentHashSet<T> extends BasePersistentSet<T> {
 			return replace(i,dn);
 		}
 		
+		@Override
+		protected PHSNode<T> childForSlot(int slot) {
+			return data[slot];
+		}
+		
 		private int countEntries() {
 			int res=0;
 			for (int i=0; i<data.length; i++) {
@@ -297,7 +322,7 @@ public final class PersistentHashSet<T> extends BasePersistentSet<T> {
 	 * @author Mike
 	 *
 	 */
-	public static final class PHSBitSetNode<T> extends PHSNode<T> {
+	public static final class PHSBitSetNode<T> extends PHSBranchNode<T> {
 		private static final long serialVersionUID = -4936128089990848344L;
 		
 		
@@ -454,6 +479,48 @@ public final class PersistentHashSet<T> extends BasePersistentSet<T> {
 			PHSBitSetNode<T> fn=new PHSBitSetNode<T>(nodes,shift,bitSet);
 			return fn;
 		}
+		
+		/**
+		 * Creates a node from a set of children, where newData corresponds to the slots set in bitSet. 
+		 * Null children are removed.
+		 * 
+		 * @return The new PHSNode, or null if no children remain
+		 */
+		@SuppressWarnings("unchecked")
+		protected static <T> PHSNode<T> create(PHSNode<T>[] newData, int bitSet, int shift) {
+			int n=0;
+			for (int i=0; i<newData.length; i++) {
+				if (newData[i]!=null) n++;
+			}
+			if (n==0) return null;
+			if (n==1) {
+				// collapse to a single leaf node if possible
+				for (PHSNode<T> node: newData) {
+					if ((node!=null)&&(node.isLeaf())) return node;
+				}
+			}
+			if (n==DATA_SIZE) {
+				return new PHSFullNode<T>(newData,shift);
+			}
+			PHSNode<T>[] nodes=(n==newData.length)?newData:new PHSNode[n];
+			int newBitSet=0;
+			int i=0;
+			int j=0;
+			for (int s=0; s<DATA_SIZE; s++) {
+				if ((bitSet&(1<<s))==0) continue;
+				PHSNode<T> node=newData[i++];
+				if (node==null) continue;
+				nodes[j++]=node;
+				newBitSet|=(1<<s);
+			}
+			return new PHSBitSetNode<T>(nodes,shift,newBitSet);
+		}
+		
+		@Override
+		protected PHSNode<T> childForSlot(int slot) {
+			if ((bitSet&(1<<slot))==0) return null;
+			return data[indexFromSlot(slot,bitSet)];
+		}
 
 		private int countEntries() {
 			int res=0;
@@ -656,6 +723,11 @@ public final class PersistentHashSet<T> extends BasePersistentSet<T> {
 		protected int size() {
 			return entries.length;
 		}
+		
+		@Override
+		protected PHSEntry<T>[] leafEntries() {
+			return entries;
+		}
 
 		@Override
 		protected PHSEntry<T> findNext(PHSIterator<T> it) {
@@ -703,7 +775,7 @@ public final class PersistentHashSet<T> extends BasePersistentSet<T> {
 		}
 		
 		public int hash() {
-			return localKey.hashCode();
+			return calcHash(localKey);
 		}
 		
 		@Override
@@ -755,7 +827,7 @@ public final class PersistentHashSet<T> extends BasePersistentSet<T> {
 		
 		@Override
 		protected PHSNode<T> delete(T k, int hash) {
-			if (k.equals(localKey)) return null;
+			if (matches(k)) return null;
 			return this;
 		}
 		
@@ -773,6 +845,12 @@ public final class PersistentHashSet<T> extends BasePersistentSet<T> {
 				return this;
 			}
 		}
+		
+		@SuppressWarnings("unchecked")
+		@Override
+		protected PHSEntry<T>[] leafEntries() {
+			return new PHSEntry[] {this};
+		}
 
 		@Override
 		public void validate() {
@@ -885,19 +963,186 @@ public final class PersistentHashSet<T> extends BasePersistentSet<T> {
 		return pm;
 	}
 	
-	public PersistentSet<T> include(PersistentHashSet<T> values) {
-		// TODO: Consider fast node-level merging implementation
-		PersistentHashSet<T> pm=this;
-		PHSIterator<T> it=values.iterator();
-		while (it.hasNext()) {
-			pm=pm.include(it.nextEntry());
+	/**
+	 * Returns the union of this set with the given set.
+	 * 
+	 * Both tries are walked in lockstep, so subtrees shared between the two 
+	 * sets are reused without any further work.
+	 */
+	public PersistentHashSet<T> include(PersistentHashSet<T> values) {
+		PHSNode<T> newRoot=union(root,values.root,0);
+		if (newRoot==root) return this;
+		if (newRoot==values.root) return values;
+		return new PersistentHashSet<T>(newRoot);
+	}
+	
+	/**
+	 * Returns the set of values present in both this set and the given set
+	 */
+	public PersistentHashSet<T> intersection(PersistentHashSet<T> values) {
+		PHSNode<T> newRoot=intersection(root,values.root,0);
+		if (newRoot==root) return this;
+		return new PersistentHashSet<T>(newRoot);
+	}
+	
+	/**
+	 * Returns the set of values present in this set but not in the given set
+	 */
+	public PersistentHashSet<T> difference(PersistentHashSet<T> values) {
+		PHSNode<T> newRoot=difference(root,values.root,0);
+		if (newRoot==root) return this;
+		return new PersistentHashSet<T>(newRoot);
+	}
+	
+	@Override
+	public PersistentSet<T> deleteAll(PersistentCollection<T> values) {
+		if (values instanceof PersistentHashSet<?>) {
+			return difference((PersistentHashSet<T>)values);
 		}
-		return pm;
+		return super.deleteAll(values);
+	}
+	
+	/**
+	 * Computes the changes between two versions of a set. Subtrees shared between 
+	 * the two versions are skipped, so the cost is proportional to the size of the changes.
+	 * 
+	 * @return A pair (a,b) where a contains the values added in newSet and b contains 
+	 * the values removed from oldSet
+	 */
+	public static <T> Pair<PersistentHashSet<T>,PersistentHashSet<T>> diff(PersistentHashSet<T> oldSet, PersistentHashSet<T> newSet) {
+		return new Pair<PersistentHashSet<T>,PersistentHashSet<T>>(newSet.difference(oldSet),oldSet.difference(newSet));
+	}
+	
+	private static boolean isEmpty(PHSNode<?> node) {
+		return (node==null)||(node.size()==0);
+	}
+	
+	private static <T> PHSNode<T> union(PHSNode<T> a, PHSNode<T> b, int shift) {
+		if (a==b) return a;
+		if (isEmpty(a)) return b;
+		if (isEmpty(b)) return a;
+		PHSEntry<T>[] aEntries=a.leafEntries();
+		if (aEntries!=null) {
+			PHSNode<T> result=b;
+			for (PHSEntry<T> e: aEntries) {
+				result=result.include(e, e.hash(), shift);
+			}
+			return result;
+		}
+		PHSEntry<T>[] bEntries=b.leafEntries();
+		if (bEntries!=null) {
+			PHSNode<T> result=a;
+			for (PHSEntry<T> e: bEntries) {
+				result=result.include(e, e.hash(), shift);
+			}
+			return result;
+		}
+		PHSBranchNode<T> ba=(PHSBranchNode<T>)a;
+		PHSBranchNode<T> bb=(PHSBranchNode<T>)b;
+		PHSNode<T>[] nd=newSlotArray();
+		for (int s=0; s<DATA_SIZE; s++) {
+			PHSNode<T> ca=ba.childForSlot(s);
+			PHSNode<T> cb=bb.childForSlot(s);
+			nd[s]=(ca==null)?cb:((cb==null)?ca:union(ca,cb,shift+SHIFT_AMOUNT));
+		}
+		return createFromSlots(ba,bb,nd,shift);
+	}
+	
+	private static <T> PHSNode<T> intersection(PHSNode<T> a, PHSNode<T> b, int shift) {
+		if (a==b) return a;
+		if (isEmpty(a)||isEmpty(b)) return null;
+		PHSEntry<T>[] aEntries=a.leafEntries();
+		if (aEntries!=null) {
+			return filterLeaf(a,aEntries,b,false);
+		}
+		PHSEntry<T>[] bEntries=b.leafEntries();
+		if (bEntries!=null) {
+			return filterLeaf(b,bEntries,a,false);
+		}
+		PHSBranchNode<T> ba=(PHSBranchNode<T>)a;
+		PHSBranchNode<T> bb=(PHSBranchNode<T>)b;
+		PHSNode<T>[] nd=newSlotArray();
+		for (int s=0; s<DATA_SIZE; s++) {
+			PHSNode<T> ca=ba.childForSlot(s);
+			PHSNode<T> cb=bb.childForSlot(s);
+			nd[s]=((ca==null)||(cb==null))?null:intersection(ca,cb,shift+SHIFT_AMOUNT);
+		}
+		return createFromSlots(ba,bb,nd,shift);
+	}
+	
+	private static <T> PHSNode<T> difference(PHSNode<T> a, PHSNode<T> b, int shift) {
+		if (a==b) return null;
+		if (isEmpty(a)) return null;
+		if (isEmpty(b)) return a;
+		PHSEntry<T>[] aEntries=a.leafEntries();
+		if (aEntries!=null) {
+			return filterLeaf(a,aEntries,b,true);
+		}
+		PHSEntry<T>[] bEntries=b.leafEntries();
+		if (bEntries!=null) {
+			PHSNode<T> result=a;
+			for (PHSEntry<T> e: bEntries) {
+				result=result.delete(e.localKey, e.hash());
+				if (result==null) return null;
+			}
+			return result;
+		}
+		PHSBranchNode<T> ba=(PHSBranchNode<T>)a;
+		PHSBranchNode<T> bb=(PHSBranchNode<T>)b;
+		PHSNode<T>[] nd=newSlotArray();
+		for (int s=0; s<DATA_SIZE; s++) {
+			PHSNode<T> ca=ba.childForSlot(s);
+			PHSNode<T> cb=bb.childForSlot(s);
+			nd[s]=((ca==null)||(cb==null))?ca:difference(ca,cb,shift+SHIFT_AMOUNT);
+		}
+		return createFromSlots(ba,null,nd,shift);
+	}
+	
+	/**
+	 * Filters the entries of a leaf node according to their presence in node b
+	 */
+	@SuppressWarnings("unchecked")
+	private static <T> PHSNode<T> filterLeaf(PHSNode<T> leaf, PHSEntry<T>[] entries, PHSNode<T> b, boolean keepMissing) {
+		int len=entries.length;
+		PHSEntry<T>[] kept=new PHSEntry[len];
+		int n=0;
+		for (PHSEntry<T> e: entries) {
+			boolean present=b.getEntry(e.localKey, e.hash())!=null;
+			if (present!=keepMissing) kept[n++]=e;
+		}
+		if (n==len) return leaf;
+		if (n==0) return null;
+		if (n==1) return kept[0];
+		PHSEntry<T>[] rdata=new PHSEntry[n];
+		System.arraycopy(kept, 0, rdata, 0, n);
+		return new PHSCollisionList<T>(rdata,entries[0].hash());
+	}
+	
+	@SuppressWarnings("unchecked")
+	private static <T> PHSNode<T>[] newSlotArray() {
+		return new PHSNode[DATA_SIZE];
+	}
+	
+	/**
+	 * Creates a node from an array of children indexed by slot, returning 
+	 * one of the original nodes a or b if the children are identical
+	 */
+	private static <T> PHSNode<T> createFromSlots(PHSBranchNode<T> a, PHSBranchNode<T> b, PHSNode<T>[] nd, int shift) {
+		if (sameSlots(a,nd)) return a;
+		if ((b!=null)&&sameSlots(b,nd)) return b;
+		return PHSBitSetNode.create(nd, 0xFFFFFFFF, shift);
+	}
+	
+	private static <T> boolean sameSlots(PHSBranchNode<T> node, PHSNode<T>[] nd) {
+		for (int s=0; s<DATA_SIZE; s++) {
+			if (node.childForSlot(s)!=nd[s]) return false;
+		}
+		return true;
 	}
 
 
 	@Override
-	public PersistentSet<T> delete(T key) {
+	public PersistentHashSet<T> delete(T key) {
 		PHSNode<T> newRoot=root.delete(key,calcHash(key));
 		if (root==newRoot) return this;
 		return new PersistentHashSet<T>(newRoot);
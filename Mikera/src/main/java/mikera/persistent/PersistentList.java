@@ -1,10 +1,12 @@
 package mikera.persistent;
 
+import java.lang.reflect.Array;
 import java.util.Collection;
 import java.util.Iterator;
 import java.util.List;
 import java.util.ListIterator;
 
+import mikera.persistent.impl.ChunkIterator;
 import mikera.persistent.impl.SubList;
 import mikera.util.Tools;
 
@@ -82,6 +84,51 @@ public abstract class PersistentList<T> extends PersistentCollection<T> implemen
 		return new PersistentListIterator();
 	}
 
+	/**
+	 * Sets the current chunk of a ChunkIterator to a contiguous block of
+	 * this list starting at the given index. Lists with backing arrays should
+	 * override this to expose their arrays directly.
+	 */
+	public void findChunk(int index, ChunkIterator<T> it) {
+		it.setBuffered(this, index);
+	}
+	
+	/**
+	 * Copies the elements in the given range of this list into an array
+	 */
+	public void copyInto(Object[] dest, int destIndex, int fromIndex, int toIndex) {
+		ChunkIterator<T> it=new ChunkIterator<T>(this,fromIndex,toIndex);
+		while (it.hasNext()) {
+			it.next();
+			int n=it.length();
+			System.arraycopy(it.array(), it.offset(), dest, destIndex, n);
+			destIndex+=n;
+		}
+	}
+	
+	public void copyInto(Object[] dest, int fromIndex, int toIndex) {
+		copyInto(dest,0,fromIndex,toIndex);
+	}
+	
+	@Override
+	public Object[] toArray() {
+		int size=size();
+		Object[] os=new Object[size];
+		copyInto(os,0,0,size);
+		return os;
+	}
+	
+	@Override
+	@SuppressWarnings("unchecked")
+	public <V> V[] toArray(V[] a, int offset) {
+		int size=size();
+		if (a.length<(size+offset)) {
+			a=(V[]) Array.newInstance(a.getClass().getComponentType(), size+offset);
+		}
+		copyInto(a,offset,0,size);
+		return a;
+	}
+
 	public T set(int index, T element) {
 		throw new UnsupportedOperationException();
 	}
@@ -155,6 +202,14 @@ public abstract class PersistentList<T> extends PersistentCollection<T> implemen
 		return subList(size/2,size);
 	}
 
+	/**
+	 * Returns a lazy view of this list, for composing transformations
+	 * without creating intermediate lists
+	 */
+	public ListView<T> view() {
+		return ListView.of(this);
+	}
+
 	public PersistentList<T> subList(int fromIndex, int toIndex) {
 		// checks that return known lists
 		if ((fromIndex==0)&&(toIndex==size())) return this;
@@ -216,18 +271,67 @@ public abstract class PersistentList<T> extends PersistentCollection<T> implemen
 	}
 	
 	public boolean equals(List<T> pl) {
+		if (pl==this) return true;
 		int size=size();
 		if (size!=pl.size()) return false;
-		for (int i=0; i<size; i++) {
-			if (!Tools.equalsWithNulls(get(i),pl.get(i))) return false;
+		if (pl instanceof PersistentList<?>) return equals((PersistentList<T>)pl);
+		Iterator<T> pit=pl.iterator();
+		ChunkIterator<T> it=new ChunkIterator<T>(this);
+		while (it.hasNext()) {
+			it.next();
+			Object[] a=it.array();
+			for (int i=it.offset(), end=i+it.length(); i<end; i++) {
+				if (!Tools.equalsWithNulls(a[i],pit.next())) return false;
+			}
 		}
 		return true;
 	}
 	
+	/**
+	 * Compares two persistent lists chunk by chunk. Identical regions of 
+	 * shared backing arrays are skipped.
+	 */
+	public boolean equals(PersistentList<T> pl) {
+		if (pl==this) return true;
+		int size=size();
+		if (size!=pl.size()) return false;
+		ChunkIterator<T> a=new ChunkIterator<T>(this);
+		ChunkIterator<T> b=new ChunkIterator<T>(pl);
+		int ai=0; int an=0;
+		int bi=0; int bn=0;
+		int pos=0;
+		while (pos<size) {
+			if (an==0) {a.next(); ai=a.offset(); an=a.length();}
+			if (bn==0) {b.next(); bi=b.offset(); bn=b.length();}
+			int n=Math.min(an, bn);
+			Object[] aa=a.array();
+			Object[] ba=b.array();
+			if ((aa!=ba)||(ai!=bi)) {
+				for (int i=0; i<n; i++) {
+					if (!Tools.equalsWithNulls(aa[ai+i],ba[bi+i])) return false;
+				}
+			}
+			ai+=n; an-=n;
+			bi+=n; bn-=n;
+			pos+=n;
+		}
+		return true;
+	}
+	
+	@SuppressWarnings("unchecked")
 	public PersistentList<T> copyFrom(int index, PersistentList<T> values,
 			int srcIndex, int length) {
-		if ((index<0)||((index+length)>size())) throw new IndexOutOfBoundsException();
+		int size=size();
+		if ((index<0)||((index+length)>size)) throw new IndexOutOfBoundsException();
 		if (length==0) return this;
-		return subList(0,index).append(values.subList(srcIndex, srcIndex+length)).append(subList(index+length,size()));
+		if (size<=ListFactory.MAX_TUPLE_BUILD_SIZE) {
+			// small result, so copy directly into a new array
+			T[] data=(T[])new Object[size];
+			copyInto(data,0,0,index);
+			values.copyInto(data,index,srcIndex,srcIndex+length);
+			copyInto(data,index+length,index+length,size);
+			return ListFactory.createFromArray(data);
+		}
+		return subList(0,index).append(values.subList(srcIndex, srcIndex+length)).append(subList(index+length,size));
 	}
 }
@@ -0,0 +1,351 @@
+package mikera.persistent;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Persistent priority queue, implemented as a skew binomial heap with the
+ * minimum element held separately at the root.
+ *
+ * include and peek are O(1) worst case, deleteMin and merge are O(log n).
+ *
+ * Elements are ordered either by a Comparator, or by a double rank supplied
+ * with each element (lowest rank first, as with RankedQueue). Ranks are stored
+ * unboxed, and are available for any element via peekRank().
+ *
+ * @author Mike Anderson
+ *
+ * @param <T> Type of queued elements
+ */
+public final class PersistentPriorityQueue<T> extends PersistentCollection<T> {
+	private static final long serialVersionUID = 6049962136436318287L;
+
+	private static final PersistentPriorityQueue<?> EMPTY_RANKED=new PersistentPriorityQueue<Object>(null,null,0.0,null,0);
+
+	private final Comparator<? super T> comparator;
+	private final T minValue;
+	private final double minRank;
+	private final TreeList rest;
+	private final int size;
+
+	private PersistentPriorityQueue(Comparator<? super T> comparator, T minValue, double minRank, TreeList rest, int size) {
+		this.comparator=comparator;
+		this.minValue=minValue;
+		this.minRank=minRank;
+		this.rest=rest;
+		this.size=size;
+	}
+
+	/**
+	 * Returns an empty queue ordered by element rank
+	 */
+	@SuppressWarnings("unchecked")
+	public static <T> PersistentPriorityQueue<T> createRanked() {
+		return (PersistentPriorityQueue<T>) EMPTY_RANKED;
+	}
+
+	/**
+	 * Returns an empty queue ordered by the given comparator
+	 */
+	public static <T> PersistentPriorityQueue<T> create(Comparator<? super T> comparator) {
+		if (comparator==null) throw new IllegalArgumentException("Comparator required");
+		return new PersistentPriorityQueue<T>(comparator,null,0.0,null,0);
+	}
+
+	/**
+	 * Skew binomial tree. The node holds the minimum element of the tree,
+	 * up to rank additional elements and the list of child trees.
+	 */
+	private static final class Tree implements java.io.Serializable {
+		private static final long serialVersionUID = -2811155592049716233L;
+
+		private final int rank;
+		private final Object value;
+		private final double key;
+		private final ElementList extras;
+		private final TreeList children;
+
+		private Tree(int rank, Object value, double key, ElementList extras, TreeList children) {
+			this.rank=rank;
+			this.value=value;
+			this.key=key;
+			this.extras=extras;
+			this.children=children;
+		}
+	}
+
+	private static final class TreeList implements java.io.Serializable {
+		private static final long serialVersionUID = 5337437046398569914L;
+
+		private final Tree head;
+		private final TreeList tail;
+
+		private TreeList(Tree head, TreeList tail) {
+			this.head=head;
+			this.tail=tail;
+		}
+	}
+
+	private static final class ElementList implements java.io.Serializable {
+		private static final long serialVersionUID = -1318669463346519066L;
+
+		private final Object value;
+		private final double key;
+		private final ElementList tail;
+
+		private ElementList(Object value, double key, ElementList tail) {
+			this.value=value;
+			this.key=key;
+			this.tail=tail;
+		}
+	}
+
+	/**
+	 * Returns true if element a should be dequeued no later than element b
+	 */
+	@SuppressWarnings("unchecked")
+	private boolean before(Object av, double ak, Object bv, double bk) {
+		if (comparator==null) return ak<=bk;
+		return comparator.compare((T)av, (T)bv)<=0;
+	}
+
+	private Tree link(Tree t1, Tree t2) {
+		if (before(t1.value,t1.key,t2.value,t2.key)) {
+			return new Tree(t1.rank+1,t1.value,t1.key,t1.extras,new TreeList(t2,t1.children));
+		} else {
+			return new Tree(t2.rank+1,t2.value,t2.key,t2.extras,new TreeList(t1,t2.children));
+		}
+	}
+
+	private Tree skewLink(Object v, double k, Tree t1, Tree t2) {
+		Tree t=link(t1,t2);
+		if (before(v,k,t.value,t.key)) {
+			return new Tree(t.rank,v,k,new ElementList(t.value,t.key,t.extras),t.children);
+		} else {
+			return new Tree(t.rank,t.value,t.key,new ElementList(v,k,t.extras),t.children);
+		}
+	}
+
+	private TreeList insert(Object v, double k, TreeList ts) {
+		if ((ts!=null)&&(ts.tail!=null)&&(ts.head.rank==ts.tail.head.rank)) {
+			return new TreeList(skewLink(v,k,ts.head,ts.tail.head),ts.tail.tail);
+		}
+		return new TreeList(new Tree(0,v,k,null,null),ts);
+	}
+
+	private TreeList insertTree(Tree t, TreeList ts) {
+		while ((ts!=null)&&(t.rank>=ts.head.rank)) {
+			t=link(t,ts.head);
+			ts=ts.tail;
+		}
+		return new TreeList(t,ts);
+	}
+
+	private TreeList mergeTrees(TreeList a, TreeList b) {
+		if (a==null) return b;
+		if (b==null) return a;
+		if (a.head.rank<b.head.rank) return new TreeList(a.head,mergeTrees(a.tail,b));
+		if (b.head.rank<a.head.rank) return new TreeList(b.head,mergeTrees(a,b.tail));
+		return insertTree(link(a.head,b.head),mergeTrees(a.tail,b.tail));
+	}
+
+	private TreeList normalise(TreeList ts) {
+		if (ts==null) return null;
+		return insertTree(ts.head,ts.tail);
+	}
+
+	private TreeList merge(TreeList a, TreeList b) {
+		return mergeTrees(normalise(a),normalise(b));
+	}
+
+	private Tree findMinTree(TreeList ts) {
+		Tree best=ts.head;
+		for (TreeList l=ts.tail; l!=null; l=l.tail) {
+			Tree t=l.head;
+			if (!before(best.value,best.key,t.value,t.key)) best=t;
+		}
+		return best;
+	}
+
+	private static TreeList without(TreeList ts, Tree t) {
+		if (ts.head==t) return ts.tail;
+		return new TreeList(ts.head,without(ts.tail,t));
+	}
+
+	private static TreeList reverse(TreeList ts) {
+		TreeList result=null;
+		for (; ts!=null; ts=ts.tail) {
+			result=new TreeList(ts.head,result);
+		}
+		return result;
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+	public Comparator<? super T> comparator() {
+		return comparator;
+	}
+
+	/**
+	 * Returns the first element in the queue, or null if the queue is empty
+	 */
+	public T peek() {
+		return minValue;
+	}
+
+	/**
+	 * Returns the rank of the first element in the queue
+	 */
+	public double peekRank() {
+		if (size==0) throw new NoSuchElementException();
+		return minRank;
+	}
+
+	/**
+	 * Includes a value with rank 0.0
+	 */
+	@Override
+	public PersistentPriorityQueue<T> include(T value) {
+		return include(value,0.0);
+	}
+
+	/**
+	 * Includes a value with the given rank, in O(1) time
+	 */
+	public PersistentPriorityQueue<T> include(T value, double rank) {
+		if (size==0) return new PersistentPriorityQueue<T>(comparator,value,rank,null,1);
+		if (before(value,rank,minValue,minRank)&&!before(minValue,minRank,value,rank)) {
+			return new PersistentPriorityQueue<T>(comparator,value,rank,insert(minValue,minRank,rest),size+1);
+		}
+		return new PersistentPriorityQueue<T>(comparator,minValue,minRank,insert(value,rank,rest),size+1);
+	}
+
+	/**
+	 * Returns a queue containing all elements of this queue and another queue
+	 * with the same ordering, in O(log n) time
+	 */
+	public PersistentPriorityQueue<T> merge(PersistentPriorityQueue<T> q) {
+		if (q.comparator!=comparator) throw new IllegalArgumentException("Queues have different ordering");
+		if (q.size==0) return this;
+		if (size==0) return q;
+		PersistentPriorityQueue<T> a=this;
+		PersistentPriorityQueue<T> b=q;
+		if (!before(a.minValue,a.minRank,b.minValue,b.minRank)) {
+			a=q;
+			b=this;
+		}
+		TreeList ts=insert(b.minValue,b.minRank,merge(a.rest,b.rest));
+		return new PersistentPriorityQueue<T>(comparator,a.minValue,a.minRank,ts,size+q.size);
+	}
+
+	/**
+	 * Returns the queue with the first element removed, in O(log n) time
+	 */
+	@SuppressWarnings("unchecked")
+	public PersistentPriorityQueue<T> deleteMin() {
+		if (size==0) throw new NoSuchElementException();
+		if (rest==null) return new PersistentPriorityQueue<T>(comparator,null,0.0,null,0);
+		Tree t=findMinTree(rest);
+		TreeList ts=merge(reverse(t.children),without(rest,t));
+		for (ElementList e=t.extras; e!=null; e=e.tail) {
+			ts=insert(e.value,e.key,ts);
+		}
+		return new PersistentPriorityQueue<T>(comparator,(T)t.value,t.key,ts,size-1);
+	}
+
+	/**
+	 * Iterates over all elements, in no particular order
+	 */
+	public Iterator<T> iterator() {
+		return new PPQIterator();
+	}
+
+	private final class PPQIterator implements Iterator<T> {
+		private final ArrayList<Object> pending=new ArrayList<Object>();
+		private Object next=null;
+		private boolean hasNext;
+
+		private PPQIterator() {
+			hasNext=(size>0);
+			next=minValue;
+			if (rest!=null) pending.add(rest);
+		}
+
+		public boolean hasNext() {
+			return hasNext;
+		}
+
+		@SuppressWarnings("unchecked")
+		public T next() {
+			if (!hasNext) throw new NoSuchElementException();
+			T result=(T)next;
+			findNext();
+			return result;
+		}
+
+		private void findNext() {
+			while (!pending.isEmpty()) {
+				Object o=pending.remove(pending.size()-1);
+				if (o instanceof TreeList) {
+					TreeList l=(TreeList)o;
+					if (l.tail!=null) pending.add(l.tail);
+					Tree t=l.head;
+					if (t.children!=null) pending.add(t.children);
+					if (t.extras!=null) pending.add(t.extras);
+					next=t.value;
+					return;
+				} else {
+					ElementList e=(ElementList)o;
+					if (e.tail!=null) pending.add(e.tail);
+					next=e.value;
+					return;
+				}
+			}
+			hasNext=false;
+		}
+
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+	}
+
+	@Override
+	public void validate() {
+		super.validate();
+		int count=(size>0)?1:0;
+		int lastRank=-1;
+		for (TreeList l=rest; l!=null; l=l.tail) {
+			Tree t=l.head;
+			if (t.rank<lastRank) throw new Error("Trees out of rank order");
+			lastRank=t.rank;
+			if (!before(minValue,minRank,t.value,t.key)) throw new Error("Root is not minimum");
+			count+=validateTree(t);
+		}
+		if (count!=size) throw new Error("Size mismatch: "+count+" vs "+size);
+	}
+
+	private int validateTree(Tree t) {
+		int count=1;
+		int extras=0;
+		for (ElementList e=t.extras; e!=null; e=e.tail) {
+			if (!before(t.value,t.key,e.value,e.key)) throw new Error("Heap order violated");
+			extras++;
+		}
+		if (extras>t.rank) throw new Error("Too many extra elements");
+		count+=extras;
+		int childCount=0;
+		for (TreeList l=t.children; l!=null; l=l.tail) {
+			Tree c=l.head;
+			if (!before(t.value,t.key,c.value,c.key)) throw new Error("Heap order violated");
+			count+=validateTree(c);
+			childCount++;
+		}
+		if (childCount!=t.rank) throw new Error("Bad child count: "+childCount+" for rank "+t.rank);
+		return count;
+	}
+}
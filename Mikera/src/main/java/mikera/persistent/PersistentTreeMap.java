@@ -0,0 +1,674 @@
+package mikera.persistent;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.SortedMap;
+
+import mikera.persistent.impl.KeySetWrapper;
+import mikera.persistent.impl.ValueCollectionWrapper;
+import mikera.util.Tools;
+
+/**
+ * Persistent sorted map, implemented as a weight balanced binary tree
+ * with path copying.
+ *
+ * Lookup, include, delete, floor/ceiling queries and positional access
+ * are all O(log n). Range views (subMap, headMap, tailMap) are themselves
+ * PersistentTreeMaps that share all but O(log n) nodes with the original map.
+ *
+ * Maps can be built in O(n) from sorted input with createFromSorted(...)
+ *
+ * @author Mike Anderson
+ *
+ * @param <K> Key type
+ * @param <V> Value type
+ */
+public final class PersistentTreeMap<K,V> extends PersistentMap<K,V> {
+	private static final long serialVersionUID = -6209530536722787313L;
+
+	/**
+	 * Balance parameters, as used in Adams' weight balanced trees
+	 */
+	private static final int DELTA=3;
+	private static final int RATIO=2;
+
+	@SuppressWarnings("rawtypes")
+	private static final Comparator<?> NATURAL_ORDER=new Tools.DefaultComparator();
+
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	public static final PersistentTreeMap<?,?> EMPTY=new PersistentTreeMap(null,NATURAL_ORDER);
+
+	private final TMNode<K,V> root;
+	private final Comparator<? super K> comparator;
+
+	private PersistentTreeMap(TMNode<K,V> root, Comparator<? super K> comparator) {
+		this.root=root;
+		this.comparator=comparator;
+	}
+
+	@SuppressWarnings("unchecked")
+	public static <K,V> PersistentTreeMap<K,V> create() {
+		return (PersistentTreeMap<K,V>) EMPTY;
+	}
+
+	public static <K,V> PersistentTreeMap<K,V> create(Comparator<? super K> comparator) {
+		return new PersistentTreeMap<K,V>(null,comparator);
+	}
+
+	@SuppressWarnings("unchecked")
+	public static <K,V> PersistentTreeMap<K,V> create(K key, V value) {
+		return new PersistentTreeMap<K,V>(new TMNode<K,V>(key,value,null,null),(Comparator<? super K>)NATURAL_ORDER);
+	}
+
+	/**
+	 * Creates a map containing all entries of the given map. If the source is
+	 * a SortedMap then its ordering is retained and the map is built in O(n).
+	 */
+	@SuppressWarnings("unchecked")
+	public static <K,V> PersistentTreeMap<K,V> create(Map<K,V> values) {
+		if (values instanceof PersistentTreeMap<?,?>) return (PersistentTreeMap<K,V>)values;
+		if (values instanceof SortedMap<?,?>) {
+			Comparator<? super K> c=((SortedMap<K,V>)values).comparator();
+			if (c==null) c=(Comparator<? super K>)NATURAL_ORDER;
+			return create(values,c);
+		}
+		return create(values,(Comparator<? super K>)NATURAL_ORDER);
+	}
+
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	public static <K,V> PersistentTreeMap<K,V> create(Map<K,V> values, Comparator<? super K> comparator) {
+		int n=values.size();
+		Map.Entry<K,V>[] entries=values.entrySet().toArray(new Map.Entry[n]);
+		if (!((values instanceof SortedMap<?,?>)&&isSorted(entries,comparator))) {
+			final Comparator<? super K> c=comparator;
+			Arrays.sort(entries,new Comparator<Map.Entry<K,V>>() {
+				public int compare(Map.Entry<K,V> a, Map.Entry<K,V> b) {
+					return c.compare(a.getKey(), b.getKey());
+				}
+			});
+		}
+		Object[] keys=new Object[n];
+		Object[] vals=new Object[n];
+		for (int i=0; i<n; i++) {
+			keys[i]=entries[i].getKey();
+			vals[i]=entries[i].getValue();
+		}
+		checkSorted(keys,comparator);
+		return new PersistentTreeMap<K,V>((TMNode<K,V>)build(keys,vals,0,n),comparator);
+	}
+
+	/**
+	 * Creates a map in O(n) from keys in strictly ascending natural order
+	 */
+	@SuppressWarnings("unchecked")
+	public static <K,V> PersistentTreeMap<K,V> createFromSorted(K[] keys, V[] values) {
+		return createFromSorted(keys,values,(Comparator<? super K>)NATURAL_ORDER);
+	}
+
+	/**
+	 * Creates a map in O(n) from keys in strictly ascending order according
+	 * to the given comparator
+	 */
+	@SuppressWarnings("unchecked")
+	public static <K,V> PersistentTreeMap<K,V> createFromSorted(K[] keys, V[] values, Comparator<? super K> comparator) {
+		if (keys.length!=values.length) throw new IllegalArgumentException("Key and value arrays differ in length");
+		checkSorted(keys,comparator);
+		return new PersistentTreeMap<K,V>((TMNode<K,V>)build(keys,values,0,keys.length),comparator);
+	}
+
+	@SuppressWarnings("unchecked")
+	private static <K,V> boolean isSorted(Map.Entry<K,V>[] entries, Comparator<? super K> c) {
+		for (int i=1; i<entries.length; i++) {
+			if (c.compare(entries[i-1].getKey(), entries[i].getKey())>=0) return false;
+		}
+		return true;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static <K> void checkSorted(Object[] keys, Comparator<? super K> c) {
+		for (int i=1; i<keys.length; i++) {
+			if (c.compare((K)keys[i-1], (K)keys[i])>=0) throw new IllegalArgumentException("Keys not in strictly ascending order at position "+i);
+		}
+	}
+
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private static TMNode<?,?> build(Object[] keys, Object[] values, int from, int to) {
+		if (from>=to) return null;
+		int mid=(from+to)>>>1;
+		return new TMNode(keys[mid],values[mid],build(keys,values,from,mid),build(keys,values,mid+1,to));
+	}
+
+	/**
+	 * Tree node, which also serves as the map entry for its key
+	 */
+	private static final class TMNode<K,V> extends PersistentObject implements Map.Entry<K,V> {
+		private static final long serialVersionUID = 4519722981306826409L;
+
+		private final K key;
+		private final V value;
+		private final TMNode<K,V> left;
+		private final TMNode<K,V> right;
+		private final int size;
+
+		private TMNode(K key, V value, TMNode<K,V> left, TMNode<K,V> right) {
+			this.key=key;
+			this.value=value;
+			this.left=left;
+			this.right=right;
+			this.size=1+size(left)+size(right);
+		}
+
+		public K getKey() {
+			return key;
+		}
+
+		public V getValue() {
+			return value;
+		}
+
+		public V setValue(V value) {
+			throw new UnsupportedOperationException();
+		}
+
+		public int hashCode() {
+			return Tools.hashCodeWithNulls(key)^Tools.hashCodeWithNulls(value);
+		}
+
+		public boolean equals(Object o) {
+			if (!(o instanceof Map.Entry<?,?>)) return false;
+			Map.Entry<?,?> e=(Map.Entry<?,?>)o;
+			return Tools.equalsWithNulls(key, e.getKey())&&Tools.equalsWithNulls(value, e.getValue());
+		}
+
+		// toString() consistent with java.util.AbstractMap
+		public String toString() {
+			return String.valueOf(key)+'='+String.valueOf(value);
+		}
+	}
+
+	private static int size(TMNode<?,?> n) {
+		return (n==null)?0:n.size;
+	}
+
+	/**
+	 * Creates a node, restoring balance after a single include or delete
+	 * in either subtree
+	 */
+	private static <K,V> TMNode<K,V> balance(K k, V v, TMNode<K,V> l, TMNode<K,V> r) {
+		int sl=size(l);
+		int sr=size(r);
+		if ((sl+sr)<=1) return new TMNode<K,V>(k,v,l,r);
+		if (sr>DELTA*sl) return rotateLeft(k,v,l,r);
+		if (sl>DELTA*sr) return rotateRight(k,v,l,r);
+		return new TMNode<K,V>(k,v,l,r);
+	}
+
+	private static <K,V> TMNode<K,V> rotateLeft(K k, V v, TMNode<K,V> l, TMNode<K,V> r) {
+		TMNode<K,V> rl=r.left;
+		if (size(rl)<RATIO*size(r.right)) {
+			return new TMNode<K,V>(r.key,r.value,new TMNode<K,V>(k,v,l,rl),r.right);
+		}
+		return new TMNode<K,V>(rl.key,rl.value,new TMNode<K,V>(k,v,l,rl.left),new TMNode<K,V>(r.key,r.value,rl.right,r.right));
+	}
+
+	private static <K,V> TMNode<K,V> rotateRight(K k, V v, TMNode<K,V> l, TMNode<K,V> r) {
+		TMNode<K,V> lr=l.right;
+		if (size(lr)<RATIO*size(l.left)) {
+			return new TMNode<K,V>(l.key,l.value,l.left,new TMNode<K,V>(k,v,lr,r));
+		}
+		return new TMNode<K,V>(lr.key,lr.value,new TMNode<K,V>(l.key,l.value,l.left,lr.left),new TMNode<K,V>(k,v,lr.right,r));
+	}
+
+	/**
+	 * Joins two trees with a separating key, where all keys in l are less
+	 * than k and all keys in r are greater than k
+	 */
+	private static <K,V> TMNode<K,V> link(K k, V v, TMNode<K,V> l, TMNode<K,V> r) {
+		if (l==null) return insertMin(k,v,r);
+		if (r==null) return insertMax(k,v,l);
+		if (DELTA*l.size<r.size) return balance(r.key,r.value,link(k,v,l,r.left),r.right);
+		if (DELTA*r.size<l.size) return balance(l.key,l.value,l.left,link(k,v,l.right,r));
+		return new TMNode<K,V>(k,v,l,r);
+	}
+
+	private static <K,V> TMNode<K,V> insertMin(K k, V v, TMNode<K,V> n) {
+		if (n==null) return new TMNode<K,V>(k,v,null,null);
+		return balance(n.key,n.value,insertMin(k,v,n.left),n.right);
+	}
+
+	private static <K,V> TMNode<K,V> insertMax(K k, V v, TMNode<K,V> n) {
+		if (n==null) return new TMNode<K,V>(k,v,null,null);
+		return balance(n.key,n.value,n.left,insertMax(k,v,n.right));
+	}
+
+	private static <K,V> TMNode<K,V> deleteMin(TMNode<K,V> n) {
+		if (n.left==null) return n.right;
+		return balance(n.key,n.value,deleteMin(n.left),n.right);
+	}
+
+	private static <K,V> TMNode<K,V> deleteMax(TMNode<K,V> n) {
+		if (n.right==null) return n.left;
+		return balance(n.key,n.value,n.left,deleteMax(n.right));
+	}
+
+	private static <K,V> TMNode<K,V> minNode(TMNode<K,V> n) {
+		while (n.left!=null) n=n.left;
+		return n;
+	}
+
+	private static <K,V> TMNode<K,V> maxNode(TMNode<K,V> n) {
+		while (n.right!=null) n=n.right;
+		return n;
+	}
+
+	/**
+	 * Joins two trees where all keys in l are less than all keys in r
+	 */
+	private static <K,V> TMNode<K,V> glue(TMNode<K,V> l, TMNode<K,V> r) {
+		if (l==null) return r;
+		if (r==null) return l;
+		if (l.size>r.size) {
+			TMNode<K,V> m=maxNode(l);
+			return balance(m.key,m.value,deleteMax(l),r);
+		} else {
+			TMNode<K,V> m=minNode(r);
+			return balance(m.key,m.value,l,deleteMin(r));
+		}
+	}
+
+	private TMNode<K,V> include(TMNode<K,V> n, K k, V v) {
+		if (n==null) return new TMNode<K,V>(k,v,null,null);
+		int c=comparator.compare(k, n.key);
+		if (c<0) {
+			TMNode<K,V> nl=include(n.left,k,v);
+			if (nl==n.left) return n;
+			return balance(n.key,n.value,nl,n.right);
+		} else if (c>0) {
+			TMNode<K,V> nr=include(n.right,k,v);
+			if (nr==n.right) return n;
+			return balance(n.key,n.value,n.left,nr);
+		}
+		if (n.value==v) return n;
+		return new TMNode<K,V>(n.key,v,n.left,n.right);
+	}
+
+	private TMNode<K,V> delete(TMNode<K,V> n, K k) {
+		if (n==null) return null;
+		int c=comparator.compare(k, n.key);
+		if (c<0) {
+			TMNode<K,V> nl=delete(n.left,k);
+			if (nl==n.left) return n;
+			return balance(n.key,n.value,nl,n.right);
+		} else if (c>0) {
+			TMNode<K,V> nr=delete(n.right,k);
+			if (nr==n.right) return n;
+			return balance(n.key,n.value,n.left,nr);
+		}
+		return glue(n.left,n.right);
+	}
+
+	/**
+	 * Returns the tree of all entries with keys less than (or equal to, if inclusive) the given key
+	 */
+	private TMNode<K,V> headTree(TMNode<K,V> n, K k, boolean inclusive) {
+		if (n==null) return null;
+		int c=comparator.compare(k, n.key);
+		if (c<0) return headTree(n.left,k,inclusive);
+		if (c==0) return inclusive?insertMax(n.key,n.value,n.left):n.left;
+		TMNode<K,V> nr=headTree(n.right,k,inclusive);
+		if (nr==n.right) return n;
+		return link(n.key,n.value,n.left,nr);
+	}
+
+	/**
+	 * Returns the tree of all entries with keys greater than (or equal to, if inclusive) the given key
+	 */
+	private TMNode<K,V> tailTree(TMNode<K,V> n, K k, boolean inclusive) {
+		if (n==null) return null;
+		int c=comparator.compare(k, n.key);
+		if (c>0) return tailTree(n.right,k,inclusive);
+		if (c==0) return inclusive?insertMin(n.key,n.value,n.right):n.right;
+		TMNode<K,V> nl=tailTree(n.left,k,inclusive);
+		if (nl==n.left) return n;
+		return link(n.key,n.value,nl,n.right);
+	}
+
+	private PersistentTreeMap<K,V> withRoot(TMNode<K,V> newRoot) {
+		if (newRoot==root) return this;
+		return new PersistentTreeMap<K,V>(newRoot,comparator);
+	}
+
+	/*
+	 * Sorted map methods
+	 */
+
+	public Comparator<? super K> comparator() {
+		return comparator;
+	}
+
+	public Map.Entry<K,V> firstEntry() {
+		if (root==null) return null;
+		return minNode(root);
+	}
+
+	public Map.Entry<K,V> lastEntry() {
+		if (root==null) return null;
+		return maxNode(root);
+	}
+
+	public K firstKey() {
+		if (root==null) throw new NoSuchElementException();
+		return minNode(root).key;
+	}
+
+	public K lastKey() {
+		if (root==null) throw new NoSuchElementException();
+		return maxNode(root).key;
+	}
+
+	/**
+	 * Returns the entry with the greatest key less than or equal to the given key, or null if none exists
+	 */
+	public Map.Entry<K,V> floorEntry(K key) {
+		return lowerNode(key,true);
+	}
+
+	/**
+	 * Returns the entry with the greatest key strictly less than the given key, or null if none exists
+	 */
+	public Map.Entry<K,V> lowerEntry(K key) {
+		return lowerNode(key,false);
+	}
+
+	/**
+	 * Returns the entry with the least key greater than or equal to the given key, or null if none exists
+	 */
+	public Map.Entry<K,V> ceilingEntry(K key) {
+		return higherNode(key,true);
+	}
+
+	/**
+	 * Returns the entry with the least key strictly greater than the given key, or null if none exists
+	 */
+	public Map.Entry<K,V> higherEntry(K key) {
+		return higherNode(key,false);
+	}
+
+	public K floorKey(K key) {
+		TMNode<K,V> n=lowerNode(key,true);
+		return (n==null)?null:n.key;
+	}
+
+	public K lowerKey(K key) {
+		TMNode<K,V> n=lowerNode(key,false);
+		return (n==null)?null:n.key;
+	}
+
+	public K ceilingKey(K key) {
+		TMNode<K,V> n=higherNode(key,true);
+		return (n==null)?null:n.key;
+	}
+
+	public K higherKey(K key) {
+		TMNode<K,V> n=higherNode(key,false);
+		return (n==null)?null:n.key;
+	}
+
+	private TMNode<K,V> lowerNode(K key, boolean inclusive) {
+		TMNode<K,V> n=root;
+		TMNode<K,V> best=null;
+		while (n!=null) {
+			int c=comparator.compare(key, n.key);
+			if ((c==0)&&inclusive) return n;
+			if (c>0) {
+				best=n;
+				n=n.right;
+			} else {
+				n=n.left;
+			}
+		}
+		return best;
+	}
+
+	private TMNode<K,V> higherNode(K key, boolean inclusive) {
+		TMNode<K,V> n=root;
+		TMNode<K,V> best=null;
+		while (n!=null) {
+			int c=comparator.compare(key, n.key);
+			if ((c==0)&&inclusive) return n;
+			if (c<0) {
+				best=n;
+				n=n.left;
+			} else {
+				n=n.right;
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * Returns the entry at the given position in key order
+	 */
+	public Map.Entry<K,V> entryAt(int index) {
+		if ((index<0)||(index>=size())) throw new IndexOutOfBoundsException("Index: "+index);
+		TMNode<K,V> n=root;
+		while (true) {
+			int ls=size(n.left);
+			if (index<ls) {
+				n=n.left;
+			} else if (index==ls) {
+				return n;
+			} else {
+				index-=ls+1;
+				n=n.right;
+			}
+		}
+	}
+
+	/**
+	 * Returns the number of keys strictly less than the given key
+	 */
+	public int rank(K key) {
+		int result=0;
+		TMNode<K,V> n=root;
+		while (n!=null) {
+			int c=comparator.compare(key, n.key);
+			if (c<=0) {
+				if (c==0) return result+size(n.left);
+				n=n.left;
+			} else {
+				result+=size(n.left)+1;
+				n=n.right;
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Returns the map of entries with keys from fromKey (inclusive) to toKey (exclusive)
+	 */
+	public PersistentTreeMap<K,V> subMap(K fromKey, K toKey) {
+		return subMap(fromKey,true,toKey,false);
+	}
+
+	public PersistentTreeMap<K,V> subMap(K fromKey, boolean fromInclusive, K toKey, boolean toInclusive) {
+		int c=comparator.compare(fromKey, toKey);
+		if (c>0) throw new IllegalArgumentException("fromKey > toKey");
+		if ((c==0)&&!(fromInclusive&&toInclusive)) return withRoot(null);
+		return withRoot(headTree(tailTree(root,fromKey,fromInclusive),toKey,toInclusive));
+	}
+
+	/**
+	 * Returns the map of entries with keys less than toKey
+	 */
+	public PersistentTreeMap<K,V> headMap(K toKey) {
+		return headMap(toKey,false);
+	}
+
+	public PersistentTreeMap<K,V> headMap(K toKey, boolean inclusive) {
+		return withRoot(headTree(root,toKey,inclusive));
+	}
+
+	/**
+	 * Returns the map of entries with keys greater than or equal to fromKey
+	 */
+	public PersistentTreeMap<K,V> tailMap(K fromKey) {
+		return tailMap(fromKey,true);
+	}
+
+	public PersistentTreeMap<K,V> tailMap(K fromKey, boolean inclusive) {
+		return withRoot(tailTree(root,fromKey,inclusive));
+	}
+
+	/*
+	 *  IPersistentMap methods
+	 */
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public boolean containsKey(Object key) {
+		return getNode((K)key)!=null;
+	}
+
+	private TMNode<K,V> getNode(K key) {
+		TMNode<K,V> n=root;
+		while (n!=null) {
+			int c=comparator.compare(key, n.key);
+			if (c==0) return n;
+			n=(c<0)?n.left:n.right;
+		}
+		return null;
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public Map.Entry<K,V> getMapEntry(Object key) {
+		return getNode((K)key);
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public V get(Object key) {
+		TMNode<K,V> n=getNode((K)key);
+		return (n==null)?null:n.value;
+	}
+
+	@Override
+	public PersistentSet<Map.Entry<K,V>> entrySet() {
+		return new TMEntrySet();
+	}
+
+	@Override
+	public PersistentSet<K> keySet() {
+		return new KeySetWrapper<K,V>(entrySet());
+	}
+
+	@Override
+	public int size() {
+		return size(root);
+	}
+
+	@Override
+	public PersistentCollection<V> values() {
+		return new ValueCollectionWrapper<K,V>(entrySet());
+	}
+
+	@Override
+	public PersistentTreeMap<K,V> include(K key, V value) {
+		return withRoot(include(root,key,value));
+	}
+
+	@Override
+	public PersistentTreeMap<K,V> delete(K key) {
+		return withRoot(delete(root,key));
+	}
+
+	public boolean allowsNullKey() {
+		return false;
+	}
+
+	/**
+	 * EntrySet implementation, iterating in key order
+	 */
+	protected final class TMEntrySet extends PersistentSet<Map.Entry<K,V>> {
+		private static final long serialVersionUID = -3815744592707301591L;
+
+		@Override
+		public int size() {
+			return PersistentTreeMap.this.size();
+		}
+
+		@SuppressWarnings("unchecked")
+		public boolean contains(Object o) {
+			if (!(o instanceof Map.Entry<?,?>)) return false;
+			Map.Entry<?,?> ent=(Map.Entry<?,?>)o;
+			TMNode<K,V> n=getNode((K)ent.getKey());
+			if (n==null) return false;
+			return Tools.equalsWithNulls(n.value, ent.getValue());
+		}
+
+		public Iterator<Map.Entry<K,V>> iterator() {
+			return new TMIterator<K,V>(root);
+		}
+
+		public PersistentSet<Map.Entry<K,V>> include(Map.Entry<K,V> value) {
+			return SetFactory.create(this).include(value);
+		}
+	}
+
+	/**
+	 * In order iterator using an explicit stack of pending nodes
+	 */
+	private static final class TMIterator<K,V> implements Iterator<Map.Entry<K,V>> {
+		@SuppressWarnings({ "unchecked", "rawtypes" })
+		private TMNode<K,V>[] stack=new TMNode[16];
+		private int sp=0;
+
+		private TMIterator(TMNode<K,V> root) {
+			pushLeft(root);
+		}
+
+		private void pushLeft(TMNode<K,V> n) {
+			while (n!=null) {
+				if (sp==stack.length) stack=Arrays.copyOf(stack, sp*2);
+				stack[sp++]=n;
+				n=n.left;
+			}
+		}
+
+		public boolean hasNext() {
+			return sp>0;
+		}
+
+		public Map.Entry<K,V> next() {
+			if (sp==0) throw new NoSuchElementException();
+			TMNode<K,V> n=stack[--sp];
+			pushLeft(n.right);
+			return n;
+		}
+
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+	}
+
+	@Override
+	public void validate() {
+		super.validate();
+		validate(root,null,null);
+	}
+
+	private int validate(TMNode<K,V> n, K min, K max) {
+		if (n==null) return 0;
+		if ((min!=null)&&(comparator.compare(min, n.key)>=0)) throw new Error("Key out of order: "+n.key);
+		if ((max!=null)&&(comparator.compare(max, n.key)<=0)) throw new Error("Key out of order: "+n.key);
+		int sl=validate(n.left,min,n.key);
+		int sr=validate(n.right,n.key,max);
+		if (n.size!=(1+sl+sr)) throw new Error("Size mismatch");
+		if (((sl+sr)>1)&&((sl>DELTA*sr)||(sr>DELTA*sl))) throw new Error("Unbalanced node: "+sl+" vs "+sr);
+		return n.size;
+	}
+}
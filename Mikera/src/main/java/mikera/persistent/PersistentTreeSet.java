@@ -0,0 +1,193 @@
+package mikera.persistent;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.SortedSet;
+
+import mikera.persistent.impl.BasePersistentSet;
+
+/**
+ * Persistent sorted set, backed by a PersistentTreeMap with each value
+ * mapped to itself.
+ *
+ * @author Mike Anderson
+ *
+ * @param <T> Type of objects stored in the set
+ */
+public final class PersistentTreeSet<T> extends BasePersistentSet<T> {
+	private static final long serialVersionUID = 3016880957201446128L;
+
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	public static final PersistentTreeSet<?> EMPTY=new PersistentTreeSet(PersistentTreeMap.EMPTY);
+
+	private final PersistentTreeMap<T,T> map;
+
+	private PersistentTreeSet(PersistentTreeMap<T,T> map) {
+		this.map=map;
+	}
+
+	@SuppressWarnings("unchecked")
+	public static <T> PersistentTreeSet<T> create() {
+		return (PersistentTreeSet<T>) EMPTY;
+	}
+
+	public static <T> PersistentTreeSet<T> create(Comparator<? super T> comparator) {
+		return new PersistentTreeSet<T>(PersistentTreeMap.<T,T>create(comparator));
+	}
+
+	/**
+	 * Creates a set containing all the given values. If the source is a
+	 * SortedSet then its ordering is retained.
+	 */
+	@SuppressWarnings("unchecked")
+	public static <T> PersistentTreeSet<T> create(Collection<T> values) {
+		if (values instanceof PersistentTreeSet<?>) return (PersistentTreeSet<T>)values;
+		Comparator<? super T> c=null;
+		if (values instanceof SortedSet<?>) c=((SortedSet<T>)values).comparator();
+		if (c==null) c=PersistentTreeMap.<T,T>create().comparator();
+		return create(values,c);
+	}
+
+	@SuppressWarnings("unchecked")
+	public static <T> PersistentTreeSet<T> create(Collection<T> values, Comparator<? super T> comparator) {
+		Object[] vs=values.toArray();
+		if (!(values instanceof SortedSet<?>)) {
+			Arrays.sort(vs,(Comparator<Object>)comparator);
+			vs=removeDuplicates(vs,(Comparator<Object>)comparator);
+		}
+		return new PersistentTreeSet<T>(PersistentTreeMap.createFromSorted((T[])vs, (T[])vs, comparator));
+	}
+
+	/**
+	 * Creates a set in O(n) from values in strictly ascending natural order
+	 */
+	public static <T> PersistentTreeSet<T> createFromSorted(T[] values) {
+		return new PersistentTreeSet<T>(PersistentTreeMap.createFromSorted(values, values));
+	}
+
+	private static Object[] removeDuplicates(Object[] vs, Comparator<Object> c) {
+		int n=0;
+		for (int i=0; i<vs.length; i++) {
+			if ((n==0)||(c.compare(vs[n-1], vs[i])!=0)) vs[n++]=vs[i];
+		}
+		if (n==vs.length) return vs;
+		Object[] result=new Object[n];
+		System.arraycopy(vs, 0, result, 0, n);
+		return result;
+	}
+
+	private PersistentTreeSet<T> withMap(PersistentTreeMap<T,T> newMap) {
+		if (newMap==map) return this;
+		return new PersistentTreeSet<T>(newMap);
+	}
+
+	private static <T> T key(Map.Entry<T,T> e) {
+		return (e==null)?null:e.getKey();
+	}
+
+	public Comparator<? super T> comparator() {
+		return map.comparator();
+	}
+
+	public T first() {
+		return map.firstKey();
+	}
+
+	public T last() {
+		return map.lastKey();
+	}
+
+	public T floor(T value) {
+		return key(map.floorEntry(value));
+	}
+
+	public T lower(T value) {
+		return key(map.lowerEntry(value));
+	}
+
+	public T ceiling(T value) {
+		return key(map.ceilingEntry(value));
+	}
+
+	public T higher(T value) {
+		return key(map.higherEntry(value));
+	}
+
+	/**
+	 * Returns the value at the given position in sorted order
+	 */
+	public T get(int index) {
+		return map.entryAt(index).getKey();
+	}
+
+	/**
+	 * Returns the number of values strictly less than the given value
+	 */
+	public int rank(T value) {
+		return map.rank(value);
+	}
+
+	public PersistentTreeSet<T> subSet(T fromValue, T toValue) {
+		return withMap(map.subMap(fromValue, toValue));
+	}
+
+	public PersistentTreeSet<T> subSet(T fromValue, boolean fromInclusive, T toValue, boolean toInclusive) {
+		return withMap(map.subMap(fromValue, fromInclusive, toValue, toInclusive));
+	}
+
+	public PersistentTreeSet<T> headSet(T toValue) {
+		return withMap(map.headMap(toValue));
+	}
+
+	public PersistentTreeSet<T> headSet(T toValue, boolean inclusive) {
+		return withMap(map.headMap(toValue,inclusive));
+	}
+
+	public PersistentTreeSet<T> tailSet(T fromValue) {
+		return withMap(map.tailMap(fromValue));
+	}
+
+	public PersistentTreeSet<T> tailSet(T fromValue, boolean inclusive) {
+		return withMap(map.tailMap(fromValue,inclusive));
+	}
+
+	@Override
+	public int size() {
+		return map.size();
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public boolean contains(Object o) {
+		if (o==null) return false;
+		return map.containsKey((T)o);
+	}
+
+	public Iterator<T> iterator() {
+		return map.keySet().iterator();
+	}
+
+	@Override
+	public PersistentTreeSet<T> include(T value) {
+		if (map.containsKey(value)) return this;
+		return withMap(map.include(value, value));
+	}
+
+	@Override
+	public PersistentTreeSet<T> delete(T value) {
+		return withMap(map.delete(value));
+	}
+
+	public boolean allowsNulls() {
+		return false;
+	}
+
+	@Override
+	public void validate() {
+		super.validate();
+		map.validate();
+	}
+}
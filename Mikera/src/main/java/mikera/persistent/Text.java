@@ -4,7 +4,10 @@ import java.io.ObjectStreamException;
 import java.util.Iterator;
 
 import mikera.annotations.Immutable;
+import mikera.data.SharedDataReader;
+import mikera.data.SharedDataWriter;
 import mikera.util.Bits;
+import mikera.util.Footprint;
 import mikera.util.Maths;
 import mikera.util.TextUtils;
 import mikera.util.emptyobjects.NullArrays;
@@ -17,13 +20,15 @@ import mikera.util.emptyobjects.NullArrays;
  * Initially creates packed blocks, i.e. all blocks full except from final block, although this is not
  * guaranteed to be maintained (especially with concatenation / substring operations)
  * 
- * Also tries to maintain balanced tree as far as possible
+ * The tree is kept height balanced (AVL style) by concat, so subText, insert and deleteRange 
+ * are O(log n) however the text was built. Each node also caches its count of line breaks 
+ * to allow O(log n) line lookup.
  * 
  * @author Mike
  *
  */
 @Immutable
-public final class Text extends PersistentObject implements CharSequence, Comparable<CharSequence>, Iterable<Character> {
+public final class Text extends PersistentObject implements CharSequence, Comparable<CharSequence>, Iterable<Character>, Footprint.Measurable {
 	private static final long serialVersionUID = 5744895584967327995L;
 	public static final int BLOCK_SIZE_BITS=6;
 	public static final int BLOCK_SIZE=1<<BLOCK_SIZE_BITS;
@@ -34,6 +39,8 @@ public final class Text extends PersistentObject implements CharSequence, Compar
 	private final Text back;
 	private final int count;
 	private final int hashCode;
+	private final int depth;
+	private final int lineBreaks;
 	
 	public static Text create(String s) {
 		return create(s,0,s.length());
@@ -66,6 +73,8 @@ public final class Text extends PersistentObject implements CharSequence, Compar
 		back=b;
 		count=f.count+b.count;
 		hashCode=calculateConcatenatedHash(f,b);
+		depth=1+Maths.max(f.depth,b.depth);
+		lineBreaks=f.lineBreaks+b.lineBreaks;
 	}
 
 	
@@ -75,6 +84,12 @@ public final class Text extends PersistentObject implements CharSequence, Compar
 		back=null;
 		front=null;
 		hashCode=calculateHash(0,charData);
+		depth=0;
+		int lb=0;
+		for (int i=0; i<count; i++) {
+			if (charData[i]=='\n') lb++;
+		}
+		lineBreaks=lb;
 	}
 	
 	public Text subText(int start, int end) {
@@ -126,7 +141,9 @@ public final class Text extends PersistentObject implements CharSequence, Compar
 	}
 	
 	/**
-	 * Concatenates two Text objects, balancing the tree as far as possible
+	 * Concatenates two Text objects, keeping the tree height balanced
+	 * 
+	 * Runs in time proportional to the difference in depth of the two trees
 	 * 
 	 * @param a
 	 * @param b
@@ -136,24 +153,65 @@ public final class Text extends PersistentObject implements CharSequence, Compar
 		int alen=a.length(); if (alen==0) return b;
 		int blen=b.length(); if (blen==0) return a;
 		
-		if (alen+blen<BLOCK_SIZE) {
+		if (alen+blen<=BLOCK_SIZE) {
 			char[] ndata=new char[alen+blen];
 			a.getChars(0, alen, ndata, 0);
 			b.getChars(0, blen, ndata, alen);
 			return new Text(ndata);
 		}
 		
-		if ((alen<(blen>>1))&&(b.data==null)) {
-			return new Text(concat(a,b.front),b.back);
-		} 
+		return join(a,b);
+	}
 		
-		if ((blen<(alen>>1))&&(b.data==null)) {
-			return new Text(a.front,concat(a.back,b));	
+	private static Text join(Text a, Text b) {
+		if ((a.data!=null)&&(b.data!=null)) {
+			int alen=a.count;
+			int blen=b.count;
+			if ((alen+blen)<=BLOCK_SIZE) {
+				char[] ndata=new char[alen+blen];
+				System.arraycopy(a.data, 0, ndata, 0, alen);
+				System.arraycopy(b.data, 0, ndata, alen, blen);
+				return new Text(ndata);
+			}
+			return new Text(a,b);
 		}
 		
+		if (a.depth>b.depth) {
+			return balance(a.front,join(a.back,b));
+		} else if (b.depth>a.depth) {
+			return balance(join(a,b.front),b.back);
+		}
 		return new Text(a,b);
 	}
 	
+	/**
+	 * Creates a node from two balanced subtrees differing in depth by at most two,
+	 * rotating as necessary
+	 */
+	private static Text balance(Text f, Text b) {
+		if (b.depth>(f.depth+1)) {
+			if (b.front.depth>b.back.depth) {
+				Text bf=b.front;
+				return new Text(new Text(f,bf.front),new Text(bf.back,b.back));
+			}
+			return new Text(new Text(f,b.front),b.back);
+		} else if (f.depth>(b.depth+1)) {
+			if (f.back.depth>f.front.depth) {
+				Text fb=f.back;
+				return new Text(new Text(f.front,fb.front),new Text(fb.back,b));
+			}
+			return new Text(f.front,new Text(f.back,b));
+		}
+		return new Text(f,b);
+	}
+	
+	/**
+	 * Returns the depth of the tree, 0 for a single block
+	 */
+	public int depth() {
+		return depth;
+	}
+	
 	public boolean isPacked() {
 		return isFullyPacked(this,true);
 	}
@@ -258,21 +316,173 @@ public final class Text extends PersistentObject implements CharSequence, Compar
 	}
 
 	public char charAt(int index) {
-		if ((index<0)||(index>count)) throw new IndexOutOfBoundsException();
-		return charAtLocal(index);
+		if ((index<0)||(index>=count)) throw new IndexOutOfBoundsException();
+		Text t=this;
+		while (t.data==null) {
+			int fc=t.front.count;
+			if (index<fc) {
+				t=t.front;
+			} else {
+				index-=fc;
+				t=t.back;
+			}
+		}
+		return t.data[index];
 	}
 	
-	private char charAtLocal(int index) {
-		if (data!=null) {
-			return data[index];
-		} else {
-			int fc=front.count;
-			if (fc>index) {
-				return front.charAtLocal(index);
+	/**
+	 * Returns the number of line break ('\n') characters in the text
+	 */
+	public int countLineBreaks() {
+		return lineBreaks;
+	}
+	
+	/**
+	 * Returns the number of lines in the text. This is always one more than
+	 * the number of line breaks, so an empty text has one (empty) line.
+	 */
+	public int countLines() {
+		return lineBreaks+1;
+	}
+	
+	/**
+	 * Returns the index of the first character of the given line
+	 */
+	public int lineStart(int line) {
+		if ((line<0)||(line>lineBreaks)) throw new IndexOutOfBoundsException();
+		if (line==0) return 0;
+		return positionOfLineBreak(line-1)+1;
+	}
+	
+	/**
+	 * Returns the position of the line break with the given index (zero-based)
+	 */
+	private int positionOfLineBreak(int n) {
+		Text t=this;
+		int pos=0;
+		while (t.data==null) {
+			int flb=t.front.lineBreaks;
+			if (n<flb) {
+				t=t.front;
 			} else {
-				return back.charAtLocal(index);
+				n-=flb;
+				pos+=t.front.count;
+				t=t.back;
+			}
+		}
+		char[] d=t.data;
+		for (int i=0; i<d.length; i++) {
+			if (d[i]=='\n') {
+				if (n==0) return pos+i;
+				n--;
 			}
 		}
+		throw new Error("Line break count inconsistent");
+	}
+	
+	/**
+	 * Returns the line number containing the character at the given index
+	 */
+	public int lineAt(int index) {
+		if ((index<0)||(index>count)) throw new IndexOutOfBoundsException();
+		Text t=this;
+		int line=0;
+		while (t.data==null) {
+			int fc=t.front.count;
+			if (index<fc) {
+				t=t.front;
+			} else {
+				index-=fc;
+				line+=t.front.lineBreaks;
+				t=t.back;
+			}
+		}
+		char[] d=t.data;
+		for (int i=0; i<index; i++) {
+			if (d[i]=='\n') line++;
+		}
+		return line;
+	}
+	
+	/**
+	 * Returns the given line, excluding the terminating line break
+	 */
+	public Text getLine(int line) {
+		int start=lineStart(line);
+		int end=(line<lineBreaks)?positionOfLineBreak(line):count;
+		return subText(start,end);
+	}
+	
+	public int indexOf(char c) {
+		return indexOf(c,0);
+	}
+	
+	/**
+	 * Returns the index of the first occurrence of a character at or after 
+	 * the given position, or -1 if not found
+	 */
+	public int indexOf(char c, int fromIndex) {
+		if (fromIndex<0) fromIndex=0;
+		int pos=fromIndex;
+		while (pos<count) {
+			Text block=getBlockLocal(this,pos);
+			int blockStart=getBlockStartPositionLocal(this,pos);
+			char[] d=block.data;
+			for (int i=pos-blockStart; i<d.length; i++) {
+				if (d[i]==c) return blockStart+i;
+			}
+			pos=blockStart+d.length;
+		}
+		return -1;
+	}
+	
+	public int indexOf(CharSequence s) {
+		return indexOf(s,0);
+	}
+	
+	/**
+	 * Returns the index of the first occurrence of a character sequence at or after 
+	 * the given position, or -1 if not found.
+	 * 
+	 * Searches the text block by block, without building a String
+	 */
+	public int indexOf(CharSequence s, int fromIndex) {
+		int n=s.length();
+		if (fromIndex<0) fromIndex=0;
+		if (n==0) return (fromIndex<=count)?fromIndex:-1;
+		char first=s.charAt(0);
+		int last=count-n;
+		int pos=fromIndex;
+		while (pos<=last) {
+			Text block=getBlockLocal(this,pos);
+			int blockStart=getBlockStartPositionLocal(this,pos);
+			char[] d=block.data;
+			int blockEnd=Maths.min(d.length, last-blockStart+1);
+			for (int i=pos-blockStart; i<blockEnd; i++) {
+				if ((d[i]==first)&&(matchesAt(blockStart+i,s))) return blockStart+i;
+			}
+			pos=blockStart+d.length;
+		}
+		return -1;
+	}
+	
+	public boolean contains(CharSequence s) {
+		return indexOf(s,0)>=0;
+	}
+	
+	private boolean matchesAt(int pos, CharSequence s) {
+		int n=s.length();
+		int i=0;
+		while (i<n) {
+			Text block=getBlockLocal(this,pos+i);
+			int blockStart=getBlockStartPositionLocal(this,pos+i);
+			char[] d=block.data;
+			for (int j=pos+i-blockStart; (j<d.length)&&(i<n); j++) {
+				if (d[j]!=s.charAt(i)) return false;
+				i++;
+			}
+		}
+		return true;
 	}
 
 	public int length() {
@@ -422,9 +632,67 @@ public final class Text extends PersistentObject implements CharSequence, Compar
 		return new TextIterator();
 	}
 	
+	@Override
+	public void validate() {
+		super.validate();
+		if (data!=null) {
+			if (depth!=0) throw new Error("Block with non-zero depth");
+			if (hashCode!=calculateHash(0,data)) throw new Error("Bad block hash");
+			return;
+		}
+		front.validate();
+		back.validate();
+		if ((front.count==0)||(back.count==0)) throw new Error("Empty child node");
+		if (count!=(front.count+back.count)) throw new Error("Count mismatch");
+		if (lineBreaks!=(front.lineBreaks+back.lineBreaks)) throw new Error("Line break count mismatch");
+		if (depth!=(1+Maths.max(front.depth,back.depth))) throw new Error("Depth mismatch");
+		if (Maths.abs(front.depth-back.depth)>1) throw new Error("Unbalanced node");
+	}
+	
 	private Object readResolve() throws ObjectStreamException {
 		// needed for deserialisation to the correct static instance
 		if (data.length==0) return EMPTY_TEXT;
 		return this;
 	}
+	
+	/**
+	 * Writes this text to a SharedDataWriter, writing only rope nodes that
+	 * have not previously been written
+	 */
+	public void writeTo(SharedDataWriter w) {
+		if (!w.writeReference(this)) return;
+		if (data!=null) {
+			w.writeByte((byte)0);
+			w.writeChars(data,0,count);
+		} else {
+			w.writeByte((byte)1);
+			front.writeTo(w);
+			back.writeTo(w);
+		}
+	}
+	
+	/**
+	 * Reads text written with writeTo(SharedDataWriter)
+	 */
+	public static Text readFrom(SharedDataReader r) {
+		int header=r.readReference();
+		if (!SharedDataReader.isNew(header)) return (Text)r.getNode(header);
+		byte type=r.readByte();
+		if (type==0) {
+			char[] chars=r.readChars();
+			return r.putNode(header, (chars.length==0)?EMPTY_TEXT:new Text(chars));
+		}
+		Text f=readFrom(r);
+		Text b=readFrom(r);
+		return r.putNode(header, new Text(f,b));
+	}
+	
+	public void addFootprint(Footprint f) {
+		if (data!=null) {
+			f.addNode(this, "TextBlock", Footprint.objectSize(3,16)+Footprint.arraySize(data.length,2));
+		} else if (f.addNode(this, "Text", Footprint.objectSize(3,16))) {
+			front.addFootprint(f);
+			back.addFootprint(f);
+		}
+	}
 }
@@ -0,0 +1,194 @@
+package mikera.persistent.impl;
+
+import java.util.AbstractMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import mikera.persistent.IntLongMap;
+import mikera.persistent.PersistentCollection;
+import mikera.persistent.PersistentMap;
+import mikera.persistent.PersistentSet;
+import mikera.persistent.SetFactory;
+import mikera.util.Tools;
+
+/**
+ * Base class for persistent maps from integer keys to primitive values.
+ *
+ * Values are stored unboxed as 64-bit patterns in the leaf entries of an
+ * underlying IntLongMap. Subclasses define how values are converted to and
+ * from these bits, and add unboxed accessors for their value type.
+ *
+ * @author Mike Anderson
+ *
+ * @param <V> Boxed value type
+ * @param <M> Concrete map type returned by updates
+ */
+public abstract class BaseIntPrimitiveMap<V, M extends BaseIntPrimitiveMap<V,M>> extends PersistentMap<Integer,V> {
+	private static final long serialVersionUID = -6021864318325711042L;
+
+	protected final IntLongMap data;
+
+	protected BaseIntPrimitiveMap(IntLongMap data) {
+		this.data=data;
+	}
+
+	/**
+	 * Creates a map of the concrete type wrapping the given data
+	 */
+	protected abstract M wrap(IntLongMap data);
+
+	/**
+	 * Converts stored bits to a boxed value
+	 */
+	protected abstract V toValue(long bits);
+
+	/**
+	 * Converts a boxed value to stored bits
+	 */
+	protected abstract long toBits(V value);
+
+	/**
+	 * Gets the entry for the given key, or null if not present
+	 */
+	protected IntLongMap.ILEntry getEntry(int key) {
+		return data.getEntry(key);
+	}
+
+	public boolean containsKey(int key) {
+		return data.containsKey(key);
+	}
+
+	@SuppressWarnings("unchecked")
+	protected M includeBits(int key, long bits) {
+		IntLongMap newData=data.include(key, bits);
+		if (newData==data) return (M)this;
+		return wrap(newData);
+	}
+
+	@SuppressWarnings("unchecked")
+	public M delete(int key) {
+		IntLongMap newData=data.delete(key);
+		if (newData==data) return (M)this;
+		return wrap(newData);
+	}
+
+	private Map.Entry<Integer,V> toMapEntry(IntLongMap.ILEntry entry) {
+		if (entry==null) return null;
+		return new AbstractMap.SimpleImmutableEntry<Integer,V>(entry.getKey(),toValue(entry.value()));
+	}
+
+	/**
+	 * EntrySet implementation
+	 */
+	protected final class PrimitiveEntrySet extends PersistentSet<Map.Entry<Integer,V>> {
+		private static final long serialVersionUID = 4218751320568374196L;
+
+		@Override
+		public int size() {
+			return BaseIntPrimitiveMap.this.size();
+		}
+
+		public boolean contains(Object o) {
+			if (!(o instanceof Map.Entry<?,?>)) return false;
+			Map.Entry<?,?> ent=(Map.Entry<?,?>)o;
+			Map.Entry<Integer,V> pe=getMapEntry(ent.getKey());
+			if (pe==null) return false;
+			return Tools.equalsWithNulls(pe.getValue(), ent.getValue());
+		}
+
+		public Iterator<Map.Entry<Integer,V>> iterator() {
+			final Iterator<Map.Entry<Integer,Long>> source=data.entrySet().iterator();
+			return new Iterator<Map.Entry<Integer,V>>() {
+				public boolean hasNext() {
+					return source.hasNext();
+				}
+
+				public Map.Entry<Integer,V> next() {
+					return toMapEntry((IntLongMap.ILEntry)source.next());
+				}
+
+				public void remove() {
+					throw new UnsupportedOperationException();
+				}
+			};
+		}
+
+		public PersistentSet<Map.Entry<Integer,V>> include(
+				Map.Entry<Integer,V> value) {
+			return SetFactory.create(this).include(value);
+		}
+	}
+
+	/*
+	 *  IPersistentMap methods
+	 */
+
+	@Override
+	public boolean containsKey(Object key) {
+		return data.containsKey(key);
+	}
+
+	@Override
+	public PersistentSet<Map.Entry<Integer,V>> entrySet() {
+		return new PrimitiveEntrySet();
+	}
+
+	@Override
+	public V get(Object key) {
+		if (!(key instanceof Integer)) return null;
+		IntLongMap.ILEntry entry=data.getEntry((Integer)key);
+		if (entry!=null) return toValue(entry.value());
+		return null;
+	}
+
+	@Override
+	public Map.Entry<Integer,V> getMapEntry(Object key) {
+		if (!(key instanceof Integer)) return null;
+		return toMapEntry(data.getEntry((Integer)key));
+	}
+
+	@Override
+	public PersistentSet<Integer> keySet() {
+		return new KeySetWrapper<Integer, V>(entrySet());
+	}
+
+	@Override
+	public int size() {
+		return data.size();
+	}
+
+	@Override
+	public PersistentCollection<V> values() {
+		return new ValueCollectionWrapper<Integer, V>(entrySet());
+	}
+
+	@Override
+	public M include(Integer key, V value) {
+		return includeBits(key.intValue(),toBits(value));
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	public M include(Map<Integer,V> values) {
+		M pm=(M)this;
+		for (Map.Entry<Integer,V> entry:values.entrySet()) {
+			pm=pm.include(entry.getKey(),entry.getValue());
+		}
+		return pm;
+	}
+
+	@Override
+	public M delete(Integer key) {
+		return delete(key.intValue());
+	}
+
+	public boolean allowsNullKey() {
+		return false;
+	}
+
+	@Override
+	public void validate() {
+		super.validate();
+		data.validate();
+	}
+}
@@ -41,12 +41,17 @@ public abstract class BasePersistentList<T> extends PersistentList<T> {
 	@Override
 	public int hashCode() {
 		int result=0;
-		for (int i=0; i<size(); i++) {
-			Object v=get(i);
-			if (v!=null) {
-				result^=v.hashCode();
+		ChunkIterator<T> it=new ChunkIterator<T>(this);
+		while (it.hasNext()) {
+			it.next();
+			Object[] a=it.array();
+			for (int i=it.offset(), end=i+it.length(); i<end; i++) {
+				Object v=a[i];
+				if (v!=null) {
+					result^=v.hashCode();
+				}
+				result=Integer.rotateRight(result, 1);
 			}
-			result=Integer.rotateRight(result, 1);
 		}
 		return result;
 	}
@@ -158,6 +158,13 @@ public final class BlockList<T> extends BasePersistentList<T> {
 		return blocks[bi].get(bpos);
 	}
 	
+	@Override
+	public void findChunk(int index, ChunkIterator<T> it) {
+		int pos=index+offset;
+		blocks[pos>>shift].findChunk(pos&((1<<shift)-1), it);
+		it.limitChunk(size-index);
+	}
+	
 	@Override
 	public int size() {
 		return size;
@@ -187,16 +194,6 @@ public final class BlockList<T> extends BasePersistentList<T> {
 		return subBlockList(fromIndex,toIndex);
 	}
 	
-	public int hashCode() {
-		if (blocks.length==0) return 0;
-		int r=blocks[0].hashCode();
-		for (int i=1; i<blocks.length; i++) {
-			r=Integer.rotateRight(r,blocks[i].size());
-			r^=blocks[i].hashCode();
-		}
-		return r;
-	}
-	
 	/**
 	 * Gets a subList as a BlockList with the same shift
 	 * @param fromIndex
@@ -0,0 +1,124 @@
+package mikera.persistent.impl;
+
+import java.util.NoSuchElementException;
+
+import mikera.persistent.PersistentList;
+
+/**
+ * Iterates over a range of a PersistentList in contiguous chunks.
+ *
+ * Where possible each chunk is a region of the backing array of a leaf block,
+ * so elements can be processed with array access or System.arraycopy rather
+ * than a get(i) per element. Lists without backing arrays are copied into
+ * a small buffer.
+ *
+ * Chunk arrays belong to immutable lists and must not be modified.
+ *
+ * @author Mike Anderson
+ *
+ * @param <T>
+ */
+public final class ChunkIterator<T> {
+	public static final int BUFFER_SIZE=32;
+
+	private final PersistentList<T> list;
+	private final int end;
+	private int pos;
+
+	private Object[] array;
+	private int offset;
+	private int length;
+	private int start;
+	private Object[] buffer=null;
+
+	public ChunkIterator(PersistentList<T> list) {
+		this(list,0,list.size());
+	}
+
+	public ChunkIterator(PersistentList<T> list, int fromIndex, int toIndex) {
+		if ((fromIndex<0)||(toIndex>list.size())) throw new IndexOutOfBoundsException();
+		if (fromIndex>toIndex) throw new IllegalArgumentException();
+		this.list=list;
+		this.pos=fromIndex;
+		this.end=toIndex;
+	}
+
+	public boolean hasNext() {
+		return pos<end;
+	}
+
+	/**
+	 * Advances to the next chunk
+	 */
+	public void next() {
+		if (pos>=end) throw new NoSuchElementException();
+		length=end-pos;
+		list.findChunk(pos, this);
+		if (length<=0) throw new Error("Empty chunk at index "+pos);
+		start=pos;
+		pos+=length;
+	}
+
+	/**
+	 * Array containing the current chunk
+	 */
+	public Object[] array() {
+		return array;
+	}
+
+	/**
+	 * Position of the first element of the current chunk in array()
+	 */
+	public int offset() {
+		return offset;
+	}
+
+	/**
+	 * Number of elements in the current chunk
+	 */
+	public int length() {
+		return length;
+	}
+
+	/**
+	 * Index in the list of the first element of the current chunk
+	 */
+	public int index() {
+		return start;
+	}
+
+	@SuppressWarnings("unchecked")
+	public T get(int i) {
+		return (T)array[offset+i];
+	}
+
+	/**
+	 * Sets the current chunk. Called by PersistentList.findChunk(...) with the
+	 * requested element at array[offset] and up to length elements following.
+	 */
+	public void setChunk(Object[] array, int offset, int length) {
+		this.array=array;
+		this.offset=offset;
+		limitChunk(length);
+	}
+
+	/**
+	 * Restricts the current chunk to at most the given number of elements.
+	 * Used by lists that are views over part of a larger list.
+	 */
+	public void limitChunk(int maxLength) {
+		if (length>maxLength) length=maxLength;
+	}
+
+	/**
+	 * Sets the current chunk by copying elements from a list with no backing array
+	 */
+	public void setBuffered(PersistentList<T> source, int index) {
+		if (buffer==null) buffer=new Object[BUFFER_SIZE];
+		int n=Math.min(BUFFER_SIZE, source.size()-index);
+		for (int i=0; i<n; i++) {
+			buffer[i]=source.get(index+i);
+		}
+		setChunk(buffer,0,n);
+	}
+}
@@ -92,6 +92,16 @@ public class CompositeList<T> extends BasePersistentList<T> {
 	public int size() {
 		return size;
 	}
+	
+	@Override
+	public void findChunk(int index, ChunkIterator<T> it) {
+		int fs=front.size();
+		if (index<fs) {
+			front.findChunk(index, it);
+		} else {
+			back.findChunk(index-fs, it);
+		}
+	}
 
 
 	public PersistentList<T> append(T value) {
@@ -101,10 +111,4 @@ public class CompositeList<T> extends BasePersistentList<T> {
 	public PersistentList<T> append(PersistentList<T> value) {
 		return concat(this,value);
 	}
-
-	public int hashCode() {
-		int r= Integer.rotateRight(front.hashCode(),back.size());
-		r^=back.hashCode();
-		return r;
-	}
 }
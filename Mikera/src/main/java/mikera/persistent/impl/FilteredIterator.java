@@ -20,7 +20,7 @@ public abstract class FilteredIterator<T> implements Iterator<T> {
 	
 	public FilteredIterator(Iterator<T> baseIterator) {
 		base=baseIterator;
-		findNext();
+		havenext=findNext();
 	}
 	
 	public abstract boolean filter(T value);
@@ -34,9 +34,10 @@ public abstract class FilteredIterator<T> implements Iterator<T> {
 			T t = base.next();
 			if (filter(t)) {
 				next=t;
-				havenext=true;
+				return true;
 			}
 		}
+		next=null;
 		return false;
 	}
 
@@ -0,0 +1,691 @@
+package mikera.persistent.impl;
+
+import java.io.Serializable;
+
+/**
+ * Immutable container for a set of 16-bit values (0-65535), used for
+ * compressed storage of one 64K chunk of an IntSet.
+ *
+ * Three representations are used:
+ * - ArrayContainer: sorted char[] of values, for sparse chunks
+ * - BitmapContainer: 65536 bit bitmap, for dense chunks
+ * - RunContainer: sorted runs of consecutive values, for chunks containing ranges
+ *
+ * Containers are always created in their smallest representation, so equal
+ * containers always have the same representation.
+ *
+ * @author Mike Anderson
+ */
+public abstract class IntContainer implements Serializable {
+	private static final long serialVersionUID = 4593426931815402851L;
+
+	public static final int CHUNK_BITS=16;
+	public static final int CHUNK_SIZE=1<<CHUNK_BITS;
+	public static final int CHUNK_MASK=CHUNK_SIZE-1;
+
+	protected static final int BITMAP_WORDS=CHUNK_SIZE/64;
+	protected static final int MAX_ARRAY_SIZE=4096;
+
+	public abstract int cardinality();
+
+	public abstract boolean contains(int v);
+
+	/**
+	 * Returns the number of values in the container less than v
+	 */
+	public abstract int rank(int v);
+
+	/**
+	 * Returns the value at the given position in ascending order
+	 */
+	public abstract int select(int i);
+
+	/**
+	 * Returns the number of runs of consecutive values
+	 */
+	public abstract int countRuns();
+
+	/**
+	 * Sets all bits for the values in this container in the given bitmap
+	 */
+	protected abstract void orInto(long[] bits);
+
+	/**
+	 * Writes all values into an int array, combined with the given high bits
+	 *
+	 * @return The number of values written
+	 */
+	public abstract int copyTo(int[] dest, int offset, int high);
+
+	/**
+	 * Returns the approximate number of bytes used to store the container contents
+	 */
+	public abstract int sizeInBytes();
+
+	protected long[] toBitmap() {
+		long[] bits=new long[BITMAP_WORDS];
+		orInto(bits);
+		return bits;
+	}
+
+	public boolean isEmpty() {
+		return cardinality()==0;
+	}
+
+	/**
+	 * Checks whether the container is stored in its canonical (smallest) representation
+	 */
+	public boolean isCanonical() {
+		int card=cardinality();
+		if (card==0) return false;
+		return getClass()==chooseType(card,countRuns());
+	}
+
+	private static Class<?> chooseType(int card, int runs) {
+		int runBytes=4*runs;
+		int arrayBytes=2*card;
+		if ((runBytes<arrayBytes)&&(runBytes<(BITMAP_WORDS*8))) return RunContainer.class;
+		if (card<=MAX_ARRAY_SIZE) return ArrayContainer.class;
+		return BitmapContainer.class;
+	}
+
+	/**
+	 * Creates a container from a sorted, deduplicated array of values in the range 0-65535
+	 */
+	public static IntContainer create(int[] values, int from, int to) {
+		int card=to-from;
+		if (card==0) return null;
+		int runs=1;
+		for (int i=from+1; i<to; i++) {
+			if (values[i]!=values[i-1]+1) runs++;
+		}
+		Class<?> type=chooseType(card,runs);
+		if (type==ArrayContainer.class) {
+			char[] data=new char[card];
+			for (int i=0; i<card; i++) {
+				data[i]=(char)values[from+i];
+			}
+			return new ArrayContainer(data);
+		} else if (type==RunContainer.class) {
+			char[] rs=new char[runs*2];
+			int ri=0;
+			int start=values[from];
+			for (int i=from+1; i<=to; i++) {
+				if ((i==to)||(values[i]!=values[i-1]+1)) {
+					rs[ri++]=(char)start;
+					rs[ri++]=(char)(values[i-1]-start);
+					if (i<to) start=values[i];
+				}
+			}
+			return new RunContainer(rs,card);
+		} else {
+			long[] bits=new long[BITMAP_WORDS];
+			for (int i=from; i<to; i++) {
+				int v=values[i];
+				bits[v>>6]|=1L<<v;
+			}
+			return new BitmapContainer(bits,card);
+		}
+	}
+
+	/**
+	 * Creates a container holding all values from start to end inclusive
+	 */
+	public static IntContainer createRange(int start, int end) {
+		return createFromRuns(new int[] {start}, new int[] {end}, 1);
+	}
+
+	/**
+	 * Creates a container from a bitmap, which may be retained by the container
+	 *
+	 * @return The new container, or null if the bitmap is empty
+	 */
+	protected static IntContainer createFromBitmap(long[] bits) {
+		int card=0;
+		int runs=0;
+		long carry=0;
+		for (int i=0; i<BITMAP_WORDS; i++) {
+			long w=bits[i];
+			card+=Long.bitCount(w);
+			runs+=Long.bitCount(w&~((w<<1)|carry));
+			carry=w>>>63;
+		}
+		if (card==0) return null;
+		Class<?> type=chooseType(card,runs);
+		if (type==BitmapContainer.class) {
+			return new BitmapContainer(bits,card);
+		} else if (type==ArrayContainer.class) {
+			char[] data=new char[card];
+			int di=0;
+			for (int i=0; i<BITMAP_WORDS; i++) {
+				long w=bits[i];
+				while (w!=0) {
+					data[di++]=(char)((i<<6)+Long.numberOfTrailingZeros(w));
+					w&=w-1;
+				}
+			}
+			return new ArrayContainer(data);
+		} else {
+			char[] rs=new char[runs*2];
+			int ri=0;
+			int v=nextSetBit(bits,0);
+			while (v>=0) {
+				int end=nextClearBit(bits,v);
+				rs[ri++]=(char)v;
+				rs[ri++]=(char)(end-1-v);
+				v=(end<CHUNK_SIZE)?nextSetBit(bits,end):-1;
+			}
+			return new RunContainer(rs,card);
+		}
+	}
+
+	/**
+	 * Creates a container from sorted runs given as inclusive start and end values.
+	 * Overlapping or adjacent runs are merged.
+	 */
+	protected static IntContainer createFromRuns(int[] starts, int[] ends, int n) {
+		int[] ms=new int[n];
+		int[] me=new int[n];
+		int mn=0;
+		int card=0;
+		for (int i=0; i<n; i++) {
+			if ((mn>0)&&(starts[i]<=(me[mn-1]+1))) {
+				if (ends[i]>me[mn-1]) {
+					card+=ends[i]-me[mn-1];
+					me[mn-1]=ends[i];
+				}
+			} else {
+				ms[mn]=starts[i];
+				me[mn]=ends[i];
+				card+=ends[i]-starts[i]+1;
+				mn++;
+			}
+		}
+		if (card==0) return null;
+		Class<?> type=chooseType(card,mn);
+		if (type==RunContainer.class) {
+			char[] rs=new char[mn*2];
+			for (int i=0; i<mn; i++) {
+				rs[i*2]=(char)ms[i];
+				rs[i*2+1]=(char)(me[i]-ms[i]);
+			}
+			return new RunContainer(rs,card);
+		}
+		long[] bits=new long[BITMAP_WORDS];
+		for (int i=0; i<mn; i++) {
+			setRange(bits,ms[i],me[i]+1);
+		}
+		return createFromBitmap(bits);
+	}
+
+	private static void setRange(long[] bits, int start, int end) {
+		for (int v=start; v<end; ) {
+			if (((v&63)==0)&&((v+64)<=end)) {
+				bits[v>>6]=-1L;
+				v+=64;
+			} else {
+				bits[v>>6]|=1L<<v;
+				v++;
+			}
+		}
+	}
+
+	private static int nextSetBit(long[] bits, int from) {
+		int wi=from>>6;
+		long w=bits[wi]&(-1L<<from);
+		while (true) {
+			if (w!=0) return (wi<<6)+Long.numberOfTrailingZeros(w);
+			if (++wi>=BITMAP_WORDS) return -1;
+			w=bits[wi];
+		}
+	}
+
+	private static int nextClearBit(long[] bits, int from) {
+		int wi=from>>6;
+		long w=~bits[wi]&(-1L<<from);
+		while (true) {
+			if (w!=0) return (wi<<6)+Long.numberOfTrailingZeros(w);
+			if (++wi>=BITMAP_WORDS) return CHUNK_SIZE;
+			w=~bits[wi];
+		}
+	}
+
+	/**
+	 * Returns the union of two containers
+	 */
+	public static IntContainer union(IntContainer a, IntContainer b) {
+		if (a==b) return a;
+		IntContainer result;
+		if ((a instanceof ArrayContainer)&&(b instanceof ArrayContainer)) {
+			char[] ad=((ArrayContainer)a).data;
+			char[] bd=((ArrayContainer)b).data;
+			int[] t=new int[ad.length+bd.length];
+			int ai=0, bi=0, ti=0;
+			while ((ai<ad.length)||(bi<bd.length)) {
+				if (bi>=bd.length) {t[ti++]=ad[ai++]; continue;}
+				if (ai>=ad.length) {t[ti++]=bd[bi++]; continue;}
+				char av=ad[ai];
+				char bv=bd[bi];
+				if (av<bv) {
+					t[ti++]=av; ai++;
+				} else if (av>bv) {
+					t[ti++]=bv; bi++;
+				} else {
+					t[ti++]=av; ai++; bi++;
+				}
+			}
+			result=create(t,0,ti);
+		} else if ((a instanceof RunContainer)&&(b instanceof RunContainer)) {
+			char[] ar=((RunContainer)a).runs;
+			char[] br=((RunContainer)b).runs;
+			int n=(ar.length+br.length)/2;
+			int[] starts=new int[n];
+			int[] ends=new int[n];
+			int ai=0, bi=0;
+			for (int i=0; i<n; i++) {
+				char[] src;
+				int si;
+				if ((bi>=br.length)||((ai<ar.length)&&(ar[ai]<=br[bi]))) {
+					src=ar; si=ai; ai+=2;
+				} else {
+					src=br; si=bi; bi+=2;
+				}
+				starts[i]=src[si];
+				ends[i]=src[si]+src[si+1];
+			}
+			result=createFromRuns(starts,ends,n);
+		} else {
+			long[] bits=a.toBitmap();
+			b.orInto(bits);
+			result=createFromBitmap(bits);
+		}
+		if (result.equals(a)) return a;
+		if (result.equals(b)) return b;
+		return result;
+	}
+
+	/**
+	 * Returns the intersection of two containers, or null if empty
+	 */
+	public static IntContainer intersection(IntContainer a, IntContainer b) {
+		if (a==b) return a;
+		IntContainer result;
+		if ((a instanceof ArrayContainer)||(b instanceof ArrayContainer)) {
+			if (!(a instanceof ArrayContainer)) {
+				IntContainer t=a; a=b; b=t;
+			}
+			char[] ad=((ArrayContainer)a).data;
+			int[] t=new int[ad.length];
+			int ti=0;
+			for (int i=0; i<ad.length; i++) {
+				if (b.contains(ad[i])) t[ti++]=ad[i];
+			}
+			if (ti==ad.length) return a;
+			result=create(t,0,ti);
+		} else if ((a instanceof RunContainer)&&(b instanceof RunContainer)) {
+			char[] ar=((RunContainer)a).runs;
+			char[] br=((RunContainer)b).runs;
+			int n=(ar.length+br.length)/2;
+			int[] starts=new int[n];
+			int[] ends=new int[n];
+			int ri=0;
+			int ai=0, bi=0;
+			while ((ai<ar.length)&&(bi<br.length)) {
+				int as=ar[ai], ae=as+ar[ai+1];
+				int bs=br[bi], be=bs+br[bi+1];
+				int s=Math.max(as, bs);
+				int e=Math.min(ae, be);
+				if (s<=e) {
+					starts[ri]=s;
+					ends[ri]=e;
+					ri++;
+				}
+				if (ae<be) {
+					ai+=2;
+				} else {
+					bi+=2;
+				}
+			}
+			result=createFromRuns(starts,ends,ri);
+		} else {
+			long[] bits=a.toBitmap();
+			long[] bbits=b.toBitmap();
+			for (int i=0; i<BITMAP_WORDS; i++) {
+				bits[i]&=bbits[i];
+			}
+			result=createFromBitmap(bits);
+		}
+		if (result==null) return null;
+		if (result.equals(a)) return a;
+		if (result.equals(b)) return b;
+		return result;
+	}
+
+	/**
+	 * Returns the values in a that are not in b, or null if empty
+	 */
+	public static IntContainer difference(IntContainer a, IntContainer b) {
+		if (a==b) return null;
+		IntContainer result;
+		if (a instanceof ArrayContainer) {
+			char[] ad=((ArrayContainer)a).data;
+			int[] t=new int[ad.length];
+			int ti=0;
+			for (int i=0; i<ad.length; i++) {
+				if (!b.contains(ad[i])) t[ti++]=ad[i];
+			}
+			if (ti==ad.length) return a;
+			result=create(t,0,ti);
+		} else {
+			long[] bits=a.toBitmap();
+			long[] bbits=b.toBitmap();
+			for (int i=0; i<BITMAP_WORDS; i++) {
+				bits[i]&=~bbits[i];
+			}
+			result=createFromBitmap(bits);
+		}
+		if (result==null) return null;
+		if (result.equals(a)) return a;
+		return result;
+	}
+
+	public IntContainer include(int v) {
+		if (contains(v)) return this;
+		return union(this,new ArrayContainer(new char[] {(char)v}));
+	}
+
+	/**
+	 * Removes a value from the container, returning null if the container becomes empty
+	 */
+	public IntContainer delete(int v) {
+		if (!contains(v)) return this;
+		return difference(this,new ArrayContainer(new char[] {(char)v}));
+	}
+
+	/**
+	 * Sparse container storing a sorted array of values
+	 */
+	public static final class ArrayContainer extends IntContainer {
+		private static final long serialVersionUID = -2316120374052906254L;
+
+		private final char[] data;
+
+		private ArrayContainer(char[] data) {
+			this.data=data;
+		}
+
+		@Override
+		public int cardinality() {
+			return data.length;
+		}
+
+		@Override
+		public boolean contains(int v) {
+			return java.util.Arrays.binarySearch(data, (char)v)>=0;
+		}
+
+		@Override
+		public int rank(int v) {
+			int i=java.util.Arrays.binarySearch(data, (char)v);
+			return (i>=0)?i:-(i+1);
+		}
+
+		@Override
+		public int select(int i) {
+			return data[i];
+		}
+
+		@Override
+		public int countRuns() {
+			int runs=1;
+			for (int i=1; i<data.length; i++) {
+				if (data[i]!=data[i-1]+1) runs++;
+			}
+			return runs;
+		}
+
+		@Override
+		protected void orInto(long[] bits) {
+			for (int i=0; i<data.length; i++) {
+				int v=data[i];
+				bits[v>>6]|=1L<<v;
+			}
+		}
+
+		@Override
+		public int copyTo(int[] dest, int offset, int high) {
+			int h=high<<CHUNK_BITS;
+			for (int i=0; i<data.length; i++) {
+				dest[offset+i]=h|data[i];
+			}
+			return data.length;
+		}
+
+		@Override
+		public int sizeInBytes() {
+			return 2*data.length;
+		}
+
+		public boolean equals(Object o) {
+			if (o==this) return true;
+			if (!(o instanceof ArrayContainer)) return false;
+			return java.util.Arrays.equals(data, ((ArrayContainer)o).data);
+		}
+
+		public int hashCode() {
+			return java.util.Arrays.hashCode(data);
+		}
+	}
+
+	/**
+	 * Dense container storing a bitmap of all 65536 possible values
+	 */
+	public static final class BitmapContainer extends IntContainer {
+		private static final long serialVersionUID = 8227546187218536305L;
+
+		private final long[] bits;
+		private final int card;
+
+		private BitmapContainer(long[] bits, int card) {
+			this.bits=bits;
+			this.card=card;
+		}
+
+		@Override
+		public int cardinality() {
+			return card;
+		}
+
+		@Override
+		public boolean contains(int v) {
+			return (bits[v>>6]&(1L<<v))!=0;
+		}
+
+		@Override
+		public int rank(int v) {
+			int wi=v>>6;
+			int r=0;
+			for (int i=0; i<wi; i++) {
+				r+=Long.bitCount(bits[i]);
+			}
+			return r+Long.bitCount(bits[wi]&((1L<<v)-1));
+		}
+
+		@Override
+		public int select(int i) {
+			for (int wi=0; wi<BITMAP_WORDS; wi++) {
+				long w=bits[wi];
+				int c=Long.bitCount(w);
+				if (i<c) {
+					while (i>0) {
+						w&=w-1;
+						i--;
+					}
+					return (wi<<6)+Long.numberOfTrailingZeros(w);
+				}
+				i-=c;
+			}
+			throw new IndexOutOfBoundsException();
+		}
+
+		@Override
+		public int countRuns() {
+			int runs=0;
+			long carry=0;
+			for (int i=0; i<BITMAP_WORDS; i++) {
+				long w=bits[i];
+				runs+=Long.bitCount(w&~((w<<1)|carry));
+				carry=w>>>63;
+			}
+			return runs;
+		}
+
+		@Override
+		protected void orInto(long[] dest) {
+			for (int i=0; i<BITMAP_WORDS; i++) {
+				dest[i]|=bits[i];
+			}
+		}
+
+		@Override
+		protected long[] toBitmap() {
+			return bits.clone();
+		}
+
+		@Override
+		public int copyTo(int[] dest, int offset, int high) {
+			int h=high<<CHUNK_BITS;
+			int di=offset;
+			for (int i=0; i<BITMAP_WORDS; i++) {
+				long w=bits[i];
+				while (w!=0) {
+					dest[di++]=h|((i<<6)+Long.numberOfTrailingZeros(w));
+					w&=w-1;
+				}
+			}
+			return di-offset;
+		}
+
+		@Override
+		public int sizeInBytes() {
+			return 8*BITMAP_WORDS;
+		}
+
+		public boolean equals(Object o) {
+			if (o==this) return true;
+			if (!(o instanceof BitmapContainer)) return false;
+			BitmapContainer bc=(BitmapContainer)o;
+			if (card!=bc.card) return false;
+			return java.util.Arrays.equals(bits, bc.bits);
+		}
+
+		public int hashCode() {
+			return java.util.Arrays.hashCode(bits);
+		}
+	}
+
+	/**
+	 * Container storing runs of consecutive values as (start, length-1) pairs
+	 */
+	public static final class RunContainer extends IntContainer {
+		private static final long serialVersionUID = -6411947219806591717L;
+
+		private final char[] runs;
+		private final int card;
+
+		private RunContainer(char[] runs, int card) {
+			this.runs=runs;
+			this.card=card;
+		}
+
+		@Override
+		public int cardinality() {
+			return card;
+		}
+
+		@Override
+		public boolean contains(int v) {
+			int lo=0;
+			int hi=runs.length/2;
+			while (lo<hi) {
+				int m=(lo+hi)>>>1;
+				int s=runs[m*2];
+				if (v<s) {
+					hi=m;
+				} else if (v>s+runs[m*2+1]) {
+					lo=m+1;
+				} else {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		@Override
+		public int rank(int v) {
+			int r=0;
+			for (int i=0; i<runs.length; i+=2) {
+				int s=runs[i];
+				int len=runs[i+1]+1;
+				if (v>=s+len) {
+					r+=len;
+				} else {
+					if (v>s) r+=v-s;
+					break;
+				}
+			}
+			return r;
+		}
+
+		@Override
+		public int select(int i) {
+			for (int ri=0; ri<runs.length; ri+=2) {
+				int len=runs[ri+1]+1;
+				if (i<len) return runs[ri]+i;
+				i-=len;
+			}
+			throw new IndexOutOfBoundsException();
+		}
+
+		@Override
+		public int countRuns() {
+			return runs.length/2;
+		}
+
+		@Override
+		protected void orInto(long[] bits) {
+			for (int i=0; i<runs.length; i+=2) {
+				setRange(bits,runs[i],runs[i]+runs[i+1]+1);
+			}
+		}
+
+		@Override
+		public int copyTo(int[] dest, int offset, int high) {
+			int h=high<<CHUNK_BITS;
+			int di=offset;
+			for (int i=0; i<runs.length; i+=2) {
+				int s=runs[i];
+				int e=s+runs[i+1];
+				for (int v=s; v<=e; v++) {
+					dest[di++]=h|v;
+				}
+			}
+			return di-offset;
+		}
+
+		@Override
+		public int sizeInBytes() {
+			return 2*runs.length;
+		}
+
+		public boolean equals(Object o) {
+			if (o==this) return true;
+			if (!(o instanceof RunContainer)) return false;
+			return java.util.Arrays.equals(runs, ((RunContainer)o).runs);
+		}
+
+		public int hashCode() {
+			return java.util.Arrays.hashCode(runs);
+		}
+	}
+}
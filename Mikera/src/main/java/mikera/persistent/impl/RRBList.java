@@ -0,0 +1,636 @@
+package mikera.persistent.impl;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import mikera.data.SharedDataReader;
+import mikera.data.SharedDataWriter;
+import mikera.persistent.ListFactory;
+import mikera.persistent.PersistentList;
+
+/**
+ * Relaxed radix balanced tree (RRB-tree) implementation of a persistent list.
+ *
+ * Elements are stored in leaf arrays of up to 32 elements under a tree of
+ * nodes with a branching factor of 32. Nodes that are not perfectly full
+ * carry a table of cumulative sizes so that concatenation and slicing only
+ * need to rebuild the nodes along the edges of the tree.
+ *
+ * get, update and append are O(log32 n), concat, subList, insert and
+ * deleteRange are O(log n) and the tree remains balanced however it was built.
+ *
+ * @author Mike Anderson
+ *
+ * @param <T>
+ */
+public final class RRBList<T> extends BasePersistentList<T> {
+	private static final long serialVersionUID = -2478233151920335571L;
+
+	protected static final int SHIFT_AMOUNT=5;
+	protected static final int BRANCH=1<<SHIFT_AMOUNT;
+
+	// number of extra nodes tolerated above optimal during concatenation
+	protected static final int EXTRAS=2;
+
+	/**
+	 * Root of the tree. This is an Object[] leaf when shift==0, otherwise a Node
+	 */
+	private final Object root;
+	private final int shift;
+	private final int size;
+
+	private static final class Node implements java.io.Serializable {
+		private static final long serialVersionUID = 5601434851726301113L;
+
+		/**
+		 * Child nodes, each containing at most 1<<shift elements
+		 */
+		private final Object[] children;
+
+		/**
+		 * Cumulative sizes of children, or null if all children except the last are full
+		 */
+		private final int[] sizes;
+		private final int size;
+
+		private Node(Object[] children, int[] sizes, int size) {
+			this.children=children;
+			this.sizes=sizes;
+			this.size=size;
+		}
+
+		private int childIndex(int i, int shift) {
+			int ci=i>>shift;
+			if (sizes!=null) {
+				while (sizes[ci]<=i) ci++;
+			}
+			return ci;
+		}
+
+		private int childStart(int ci, int shift) {
+			if (ci==0) return 0;
+			if (sizes==null) return ci<<shift;
+			return sizes[ci-1];
+		}
+	}
+
+	private RRBList(Object root, int shift, int size) {
+		this.root=root;
+		this.shift=shift;
+		this.size=size;
+	}
+
+	public static <T> RRBList<T> create(T[] data) {
+		return create(data,0,data.length);
+	}
+
+	public static <T> RRBList<T> create(T[] data, int fromIndex, int toIndex) {
+		int n=toIndex-fromIndex;
+		if (n<=0) throw new IllegalArgumentException("RRBList must be non-empty");
+		int numLeaves=((n-1)>>SHIFT_AMOUNT)+1;
+		Object[] nodes=new Object[numLeaves];
+		for (int i=0; i<numLeaves; i++) {
+			int start=i<<SHIFT_AMOUNT;
+			int len=Math.min(BRANCH,n-start);
+			Object[] leaf=new Object[len];
+			System.arraycopy(data, fromIndex+start, leaf, 0, len);
+			nodes[i]=leaf;
+		}
+		return buildTree(nodes,n);
+	}
+
+	public static <T> RRBList<T> create(List<T> source) {
+		return create(source,0,source.size());
+	}
+
+	public static <T> RRBList<T> create(List<T> source, int fromIndex, int toIndex) {
+		int n=toIndex-fromIndex;
+		if (n<=0) throw new IllegalArgumentException("RRBList must be non-empty");
+		int numLeaves=((n-1)>>SHIFT_AMOUNT)+1;
+		Object[] nodes=new Object[numLeaves];
+		int pos=fromIndex;
+		for (int i=0; i<numLeaves; i++) {
+			int len=Math.min(BRANCH,toIndex-pos);
+			Object[] leaf=new Object[len];
+			for (int j=0; j<len; j++) {
+				leaf[j]=source.get(pos++);
+			}
+			nodes[i]=leaf;
+		}
+		return buildTree(nodes,n);
+	}
+
+	/**
+	 * Builds a perfectly balanced tree on top of a sequence of leaves, all full except the last
+	 */
+	private static <T> RRBList<T> buildTree(Object[] nodes, int size) {
+		int sh=0;
+		while (nodes.length>1) {
+			sh+=SHIFT_AMOUNT;
+			int n=nodes.length;
+			Object[] parents=new Object[((n-1)>>SHIFT_AMOUNT)+1];
+			for (int i=0; i<parents.length; i++) {
+				int start=i<<SHIFT_AMOUNT;
+				int len=Math.min(BRANCH,n-start);
+				Object[] children=new Object[len];
+				System.arraycopy(nodes, start, children, 0, len);
+				parents[i]=makeNode(children,sh);
+			}
+			nodes=parents;
+		}
+		return new RRBList<T>(nodes[0],sh,size);
+	}
+
+	/**
+	 * Converts any persistent list to an RRBList
+	 */
+	@SuppressWarnings("unchecked")
+	public static <T> RRBList<T> create(PersistentList<T> source) {
+		if (source instanceof RRBList<?>) return (RRBList<T>)source;
+		return create((List<T>)source,0,source.size());
+	}
+
+	/**
+	 * Concatenates two lists. Uses RRB concatenation where both lists are RRBLists
+	 * or small enough to convert cheaply, otherwise falls back to a CompositeList
+	 */
+	@SuppressWarnings("unchecked")
+	public static <T> PersistentList<T> concat(PersistentList<T> a, PersistentList<T> b) {
+		int as=a.size(); if (as==0) return b;
+		int bs=b.size(); if (bs==0) return a;
+		if ((as+bs)<=ListFactory.MAX_TUPLE_BUILD_SIZE) {
+			return Tuple.concat(a, b);
+		}
+		if (!isConvertible(a)||!isConvertible(b)) {
+			return CompositeList.concat(a, b);
+		}
+		if ((bs==1)&&(a instanceof RRBList<?>)) {
+			return ((RRBList<T>)a).append(b.get(0));
+		}
+		return concat(create(a),create(b));
+	}
+
+	private static boolean isConvertible(PersistentList<?> a) {
+		return (a instanceof RRBList<?>)||(a.size()<=ListFactory.MAX_TUPLE_BUILD_SIZE);
+	}
+
+	public static <T> RRBList<T> concat(RRBList<T> a, RRBList<T> b) {
+		Node wrapper=concatSubTree(a.root,a.shift,b.root,b.shift);
+		int newShift=Math.max(a.shift, b.shift)+SHIFT_AMOUNT;
+		if (wrapper.children.length==1) {
+			return new RRBList<T>(wrapper.children[0],newShift-SHIFT_AMOUNT,a.size+b.size);
+		}
+		return new RRBList<T>(wrapper,newShift,a.size+b.size);
+	}
+
+	/**
+	 * Concatenates two subtrees, returning a node at a shift one level above
+	 * the higher of the two containing either one or two children
+	 */
+	private static Node concatSubTree(Object left, int leftShift, Object right, int rightShift) {
+		if (leftShift>rightShift) {
+			Node ln=(Node)left;
+			Node centre=concatSubTree(ln.children[ln.children.length-1],leftShift-SHIFT_AMOUNT,right,rightShift);
+			return rebalance(ln,centre,null,leftShift);
+		} else if (leftShift<rightShift) {
+			Node rn=(Node)right;
+			Node centre=concatSubTree(left,leftShift,rn.children[0],rightShift-SHIFT_AMOUNT);
+			return rebalance(null,centre,rn,rightShift);
+		} else if (leftShift==0) {
+			Object[] la=(Object[])left;
+			Object[] ra=(Object[])right;
+			int total=la.length+ra.length;
+			if (total<=BRANCH) {
+				Object[] leaf=new Object[total];
+				System.arraycopy(la, 0, leaf, 0, la.length);
+				System.arraycopy(ra, 0, leaf, la.length, ra.length);
+				return makeNode(new Object[] {leaf},SHIFT_AMOUNT);
+			}
+			return makeNode(new Object[] {left,right},SHIFT_AMOUNT);
+		} else {
+			Node ln=(Node)left;
+			Node rn=(Node)right;
+			Node centre=concatSubTree(ln.children[ln.children.length-1],leftShift-SHIFT_AMOUNT,rn.children[0],rightShift-SHIFT_AMOUNT);
+			return rebalance(ln,centre,rn,leftShift);
+		}
+	}
+
+	/**
+	 * Merges the children of left (excluding last), centre and right (excluding first),
+	 * redistributing their contents so that the result has a bounded number of extra nodes.
+	 *
+	 * Returns a node at shift+SHIFT_AMOUNT containing one or two nodes at shift.
+	 */
+	private static Node rebalance(Node left, Node centre, Node right, int shift) {
+		int ln=(left==null)?0:left.children.length-1;
+		int cn=centre.children.length;
+		int rn=(right==null)?0:right.children.length-1;
+		int n=ln+cn+rn;
+		Object[] all=new Object[n];
+		if (ln>0) System.arraycopy(left.children, 0, all, 0, ln);
+		System.arraycopy(centre.children, 0, all, ln, cn);
+		if (rn>0) System.arraycopy(right.children, 1, all, ln+cn, rn);
+
+		int childShift=shift-SHIFT_AMOUNT;
+
+		// compute concatenation plan
+		int[] plan=new int[n];
+		int total=0;
+		for (int i=0; i<n; i++) {
+			int c=slotCount(all[i],childShift);
+			plan[i]=c;
+			total+=c;
+		}
+		int optimal=((total-1)>>SHIFT_AMOUNT)+1;
+		int newN=n;
+		while (newN>(optimal+EXTRAS)) {
+			int i=0;
+			while (plan[i]>=(BRANCH-1)) i++;
+			int r=plan[i];
+			while (r>0) {
+				int m=Math.min(r+plan[i+1],BRANCH);
+				plan[i]=m;
+				r=r+plan[i+1]-m;
+				i++;
+			}
+			for (int j=i; j<(newN-1); j++) {
+				plan[j]=plan[j+1];
+			}
+			newN--;
+		}
+
+		// build redistributed nodes, reusing any that are unchanged
+		Object[] nodes=new Object[newN];
+		int src=0;
+		int srcPos=0;
+		for (int j=0; j<newN; j++) {
+			int c=plan[j];
+			if ((srcPos==0)&&(slotCount(all[src],childShift)==c)) {
+				nodes[j]=all[src++];
+				continue;
+			}
+			Object[] slots=new Object[c];
+			int filled=0;
+			while (filled<c) {
+				Object[] srcSlots=slots(all[src],childShift);
+				int num=Math.min(c-filled, srcSlots.length-srcPos);
+				System.arraycopy(srcSlots, srcPos, slots, filled, num);
+				filled+=num;
+				srcPos+=num;
+				if (srcPos==srcSlots.length) {
+					src++;
+					srcPos=0;
+				}
+			}
+			nodes[j]=(childShift==0)?slots:makeNode(slots,childShift);
+		}
+
+		if (newN<=BRANCH) {
+			return makeNode(new Object[] {makeNode(nodes,shift)},shift+SHIFT_AMOUNT);
+		}
+		Object[] a=new Object[BRANCH];
+		Object[] b=new Object[newN-BRANCH];
+		System.arraycopy(nodes, 0, a, 0, BRANCH);
+		System.arraycopy(nodes, BRANCH, b, 0, newN-BRANCH);
+		return makeNode(new Object[] {makeNode(a,shift),makeNode(b,shift)},shift+SHIFT_AMOUNT);
+	}
+
+	private static int slotCount(Object node, int shift) {
+		return slots(node,shift).length;
+	}
+
+	private static Object[] slots(Object node, int shift) {
+		if (shift==0) return (Object[])node;
+		return ((Node)node).children;
+	}
+
+	private static int nodeSize(Object node, int shift) {
+		if (shift==0) return ((Object[])node).length;
+		return ((Node)node).size;
+	}
+
+	/**
+	 * Creates a node at the given shift, including a size table only if needed
+	 */
+	private static Node makeNode(Object[] children, int shift) {
+		int n=children.length;
+		int childShift=shift-SHIFT_AMOUNT;
+		int[] sizes=new int[n];
+		int total=0;
+		boolean regular=true;
+		for (int i=0; i<n; i++) {
+			int cs=nodeSize(children[i],childShift);
+			if ((i<(n-1))&&(cs!=(1<<shift))) regular=false;
+			total+=cs;
+			sizes[i]=total;
+		}
+		return new Node(children,regular?null:sizes,total);
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	public T get(int i) {
+		if ((i<0)||(i>=size)) throw new IndexOutOfBoundsException();
+		Object node=root;
+		for (int sh=shift; sh>0; sh-=SHIFT_AMOUNT) {
+			Node nd=(Node)node;
+			int ci=nd.childIndex(i, sh);
+			i-=nd.childStart(ci, sh);
+			node=nd.children[ci];
+		}
+		return (T)((Object[])node)[i];
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+	
+	@Override
+	public void findChunk(int index, ChunkIterator<T> it) {
+		if ((index<0)||(index>=size)) throw new IndexOutOfBoundsException();
+		Object node=root;
+		int i=index;
+		for (int sh=shift; sh>0; sh-=SHIFT_AMOUNT) {
+			Node nd=(Node)node;
+			int ci=nd.childIndex(i, sh);
+			i-=nd.childStart(ci, sh);
+			node=nd.children[ci];
+		}
+		Object[] leaf=(Object[])node;
+		it.setChunk(leaf, i, leaf.length-i);
+	}
+
+	@Override
+	public RRBList<T> update(int index, T value) {
+		if ((index<0)||(index>=size)) throw new IndexOutOfBoundsException();
+		return new RRBList<T>(updateNode(root,shift,index,value),shift,size);
+	}
+
+	private static Object updateNode(Object node, int shift, int i, Object value) {
+		if (shift==0) {
+			Object[] leaf=((Object[])node).clone();
+			leaf[i]=value;
+			return leaf;
+		}
+		Node nd=(Node)node;
+		int ci=nd.childIndex(i, shift);
+		Object[] children=nd.children.clone();
+		children[ci]=updateNode(children[ci],shift-SHIFT_AMOUNT,i-nd.childStart(ci, shift),value);
+		return new Node(children,nd.sizes,nd.size);
+	}
+
+	@Override
+	public RRBList<T> append(T value) {
+		Object newRoot=appendNode(root,shift,value);
+		if (newRoot!=null) return new RRBList<T>(newRoot,shift,size+1);
+		Object[] children=new Object[] {root,newPath(shift,value)};
+		return new RRBList<T>(makeNode(children,shift+SHIFT_AMOUNT),shift+SHIFT_AMOUNT,size+1);
+	}
+
+	@Override
+	public PersistentList<T> append(PersistentList<T> values) {
+		return concat(this,values);
+	}
+
+	/**
+	 * Appends a value to the rightmost path of a subtree, returning null if the subtree is full
+	 */
+	private static Object appendNode(Object node, int shift, Object value) {
+		if (shift==0) {
+			Object[] leaf=(Object[])node;
+			int n=leaf.length;
+			if (n>=BRANCH) return null;
+			Object[] newLeaf=new Object[n+1];
+			System.arraycopy(leaf, 0, newLeaf, 0, n);
+			newLeaf[n]=value;
+			return newLeaf;
+		}
+		Node nd=(Node)node;
+		int n=nd.children.length;
+		Object newLast=appendNode(nd.children[n-1],shift-SHIFT_AMOUNT,value);
+		if (newLast!=null) {
+			Object[] children=nd.children.clone();
+			children[n-1]=newLast;
+			int[] sizes=nd.sizes;
+			if (sizes!=null) {
+				sizes=sizes.clone();
+				sizes[n-1]++;
+			}
+			return new Node(children,sizes,nd.size+1);
+		}
+		if (n>=BRANCH) return null;
+		Object[] children=new Object[n+1];
+		System.arraycopy(nd.children, 0, children, 0, n);
+		children[n]=newPath(shift-SHIFT_AMOUNT,value);
+		return makeNode(children,shift);
+	}
+
+	private static Object newPath(int shift, Object value) {
+		if (shift==0) return new Object[] {value};
+		return new Node(new Object[] {newPath(shift-SHIFT_AMOUNT,value)},null,1);
+	}
+
+	@Override
+	public PersistentList<T> subList(int fromIndex, int toIndex) {
+		if ((fromIndex<0)||(toIndex>size)) throw new IndexOutOfBoundsException();
+		if ((fromIndex>=toIndex)) {
+			if (toIndex==fromIndex) return ListFactory.emptyList();
+			throw new IllegalArgumentException();
+		}
+		if ((fromIndex==0)&&(toIndex==size)) return this;
+		int newSize=toIndex-fromIndex;
+		if (newSize<=ListFactory.MAX_TUPLE_BUILD_SIZE) {
+			if (newSize==1) return SingletonList.create(get(fromIndex));
+			return Tuple.createFrom(this, fromIndex, toIndex);
+		}
+
+		Object newRoot=root;
+		if (toIndex<size) newRoot=takeNode(newRoot,shift,toIndex);
+		if (fromIndex>0) newRoot=dropNode(newRoot,shift,fromIndex);
+
+		// remove redundant levels above the root
+		int newShift=shift;
+		while ((newShift>0)&&(((Node)newRoot).children.length==1)) {
+			newRoot=((Node)newRoot).children[0];
+			newShift-=SHIFT_AMOUNT;
+		}
+		return new RRBList<T>(newRoot,newShift,newSize);
+	}
+
+	/**
+	 * Returns a subtree containing the first k elements, 0<k<=size
+	 */
+	private static Object takeNode(Object node, int shift, int k) {
+		if (nodeSize(node,shift)==k) return node;
+		if (shift==0) {
+			Object[] leaf=new Object[k];
+			System.arraycopy(node, 0, leaf, 0, k);
+			return leaf;
+		}
+		Node nd=(Node)node;
+		int ci=nd.childIndex(k-1, shift);
+		Object[] children=new Object[ci+1];
+		System.arraycopy(nd.children, 0, children, 0, ci);
+		children[ci]=takeNode(nd.children[ci],shift-SHIFT_AMOUNT,k-nd.childStart(ci, shift));
+		return makeNode(children,shift);
+	}
+
+	/**
+	 * Returns a subtree with the first k elements removed, 0<=k<size
+	 */
+	private static Object dropNode(Object node, int shift, int k) {
+		if (k==0) return node;
+		if (shift==0) {
+			Object[] leaf=(Object[])node;
+			int n=leaf.length-k;
+			Object[] newLeaf=new Object[n];
+			System.arraycopy(leaf, k, newLeaf, 0, n);
+			return newLeaf;
+		}
+		Node nd=(Node)node;
+		int ci=nd.childIndex(k, shift);
+		int n=nd.children.length-ci;
+		Object[] children=new Object[n];
+		System.arraycopy(nd.children, ci, children, 0, n);
+		children[0]=dropNode(children[0],shift-SHIFT_AMOUNT,k-nd.childStart(ci, shift));
+		return makeNode(children,shift);
+	}
+
+	private class RRBIterator implements Iterator<T> {
+		private int pos=0;
+		private int leafStart=0;
+		private Object[] leaf=null;
+
+		public boolean hasNext() {
+			return pos<size;
+		}
+
+		@SuppressWarnings("unchecked")
+		public T next() {
+			if (pos>=size) throw new NoSuchElementException();
+			if ((leaf==null)||((pos-leafStart)>=leaf.length)) {
+				findLeaf(pos);
+			}
+			return (T)leaf[(pos++)-leafStart];
+		}
+
+		private void findLeaf(int i) {
+			Object node=root;
+			int start=0;
+			for (int sh=shift; sh>0; sh-=SHIFT_AMOUNT) {
+				Node nd=(Node)node;
+				int ci=nd.childIndex(i-start, sh);
+				start+=nd.childStart(ci, sh);
+				node=nd.children[ci];
+			}
+			leaf=(Object[])node;
+			leafStart=start;
+		}
+
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+	}
+
+	@Override
+	public Iterator<T> iterator() {
+		return new RRBIterator();
+	}
+
+	/**
+	 * Returns the depth of the tree, 0 if the root is a single leaf
+	 */
+	public int depth() {
+		return shift/SHIFT_AMOUNT;
+	}
+
+	@Override
+	public void validate() {
+		super.validate();
+		if (size<=0) throw new Error("RRBList must be non-empty");
+		if (validateNode(root,shift)!=size) throw new Error("Size mismatch");
+	}
+
+	private static int validateNode(Object node, int shift) {
+		if (shift==0) {
+			int n=((Object[])node).length;
+			if ((n<1)||(n>BRANCH)) throw new Error("Bad leaf size: "+n);
+			return n;
+		}
+		Node nd=(Node)node;
+		int n=nd.children.length;
+		if ((n<1)||(n>BRANCH)) throw new Error("Bad node size: "+n);
+		int total=0;
+		for (int i=0; i<n; i++) {
+			int cs=validateNode(nd.children[i],shift-SHIFT_AMOUNT);
+			if (cs>(1<<shift)) throw new Error("Child too large: "+cs);
+			if ((nd.sizes==null)&&(i<(n-1))&&(cs!=(1<<shift))) throw new Error("Irregular child in balanced node");
+			total+=cs;
+			if ((nd.sizes!=null)&&(nd.sizes[i]!=total)) throw new Error("Bad size table");
+		}
+		if (total!=nd.size) throw new Error("Node size mismatch");
+		return total;
+	}
+	
+	/**
+	 * Writes this list to a SharedDataWriter, writing only tree nodes that
+	 * have not previously been written
+	 */
+	public void writeTo(SharedDataWriter w) {
+		w.writeVarInt(shift);
+		writeNode(w,root,shift);
+	}
+	
+	private static void writeNode(SharedDataWriter w, Object node, int shift) {
+		if (!w.writeReference(node)) return;
+		if (shift==0) {
+			Object[] leaf=(Object[])node;
+			w.writeVarInt(leaf.length);
+			for (int i=0; i<leaf.length; i++) {
+				w.writeValue(leaf[i]);
+			}
+			return;
+		}
+		Node nd=(Node)node;
+		int n=nd.children.length;
+		w.writeVarInt(n);
+		w.writeByte((byte)((nd.sizes==null)?0:1));
+		for (int i=0; i<n; i++) {
+			writeNode(w,nd.children[i],shift-SHIFT_AMOUNT);
+		}
+	}
+	
+	/**
+	 * Reads a list written with writeTo(SharedDataWriter)
+	 */
+	public static <T> RRBList<T> readFrom(SharedDataReader r) {
+		int shift=r.readVarInt();
+		Object root=readNode(r,shift);
+		return new RRBList<T>(root,shift,nodeSize(root,shift));
+	}
+	
+	private static Object readNode(SharedDataReader r, int shift) {
+		int header=r.readReference();
+		if (!SharedDataReader.isNew(header)) return r.getNode(header);
+		int n=r.readVarInt();
+		if (shift==0) {
+			Object[] leaf=new Object[n];
+			for (int i=0; i<n; i++) {
+				leaf[i]=r.readValue();
+			}
+			return r.putNode(header, leaf);
+		}
+		boolean relaxed=(r.readByte()!=0);
+		Object[] children=new Object[n];
+		int[] sizes=relaxed?new int[n]:null;
+		int total=0;
+		for (int i=0; i<n; i++) {
+			children[i]=readNode(r,shift-SHIFT_AMOUNT);
+			total+=nodeSize(children[i],shift-SHIFT_AMOUNT);
+			if (relaxed) sizes[i]=total;
+		}
+		return r.putNode(header, new Node(children,sizes,total));
+	}
+}
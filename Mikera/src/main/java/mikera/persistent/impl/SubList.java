@@ -70,6 +70,12 @@ public final class SubList<T> extends BasePersistentList<T>   {
 		return data.get(i+offset);
 	}
 	
+	@Override
+	public void findChunk(int index, ChunkIterator<T> it) {
+		data.findChunk(index+offset, it);
+		it.limitChunk(length-index);
+	}
+	
 	public SubList<T> clone() {
 		return this;
 	}
@@ -38,6 +38,11 @@ public final class SubTuple<T> extends BasePersistentList<T>   {
 		return data[i+offset];
 	}
 	
+	@Override
+	public void findChunk(int index, ChunkIterator<T> it) {
+		it.setChunk(data, offset+index, length-index);
+	}
+	
 	public SubTuple<T> clone() {
 		return this;
 	}
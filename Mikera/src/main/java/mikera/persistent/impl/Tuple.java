@@ -109,6 +109,11 @@ public final class Tuple<T> extends BasePersistentList<T> {
 		return data[i];
 	}
 	
+	@Override
+	public void findChunk(int index, ChunkIterator<T> it) {
+		it.setChunk(data, index, data.length-index);
+	}
+	
 	public Tuple<T> clone() {
 		return this;
 	}
@@ -0,0 +1,5 @@
+package mikera.util;
+
+public interface BinaryFunction<A, B, R> {
+	public R apply(A a, B b);
+}
@@ -0,0 +1,142 @@
+package mikera.util;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Accumulates an estimate of the heap memory used by data structures,
+ * broken down by node type.
+ *
+ * Each node is counted once only, so adding several versions of a persistent
+ * structure gives the combined footprint with shared nodes counted once.
+ * Only the structure itself is measured: keys, values and other user objects
+ * held by the structure are not included.
+ *
+ * Sizes are estimated for a 64-bit JVM with compressed references.
+ *
+ * @author Mike Anderson
+ *
+ */
+public final class Footprint {
+	public static final int OBJECT_HEADER_BYTES=12;
+	public static final int ARRAY_HEADER_BYTES=16;
+	public static final int REFERENCE_BYTES=4;
+
+	/**
+	 * Interface for structures that can report their footprint
+	 */
+	public interface Measurable {
+		/**
+		 * Adds each node of this structure to the footprint
+		 */
+		public void addFootprint(Footprint f);
+	}
+
+	private final IdentityHashMap<Object,Integer> nodes=new IdentityHashMap<Object,Integer>();
+	private final TreeMap<String,long[]> types=new TreeMap<String,long[]>();
+	private long totalBytes=0;
+
+	public static Footprint of(Object o) {
+		Footprint f=new Footprint();
+		f.add(o);
+		return f;
+	}
+
+	/**
+	 * Returns the number of bytes used by b that are shared with a
+	 */
+	public static long sharedBytes(Object a, Object b) {
+		return of(b).sharedBytes(of(a));
+	}
+
+	/**
+	 * Estimated size of an object with the given number of reference fields
+	 * and total bytes of primitive fields
+	 */
+	public static int objectSize(int references, int primitiveBytes) {
+		return align(OBJECT_HEADER_BYTES+references*REFERENCE_BYTES+primitiveBytes);
+	}
+
+	/**
+	 * Estimated size of an array
+	 */
+	public static int arraySize(int length, int elementBytes) {
+		return align(ARRAY_HEADER_BYTES+length*elementBytes);
+	}
+
+	private static int align(int bytes) {
+		return (bytes+7)&~7;
+	}
+
+	/**
+	 * Adds a structure to this footprint. Objects that are not Measurable are ignored.
+	 */
+	public void add(Object o) {
+		if (o instanceof Measurable) {
+			((Measurable)o).addFootprint(this);
+		}
+	}
+
+	/**
+	 * Adds a single node. Returns false if the node has already been counted,
+	 * in which case its children need not be visited.
+	 */
+	public boolean addNode(Object node, String type, int bytes) {
+		if (nodes.containsKey(node)) return false;
+		nodes.put(node, bytes);
+		long[] t=types.get(type);
+		if (t==null) {
+			t=new long[2];
+			types.put(type,t);
+		}
+		t[0]++;
+		t[1]+=bytes;
+		totalBytes+=bytes;
+		return true;
+	}
+
+	public long getTotalBytes() {
+		return totalBytes;
+	}
+
+	public int getNodeCount() {
+		return nodes.size();
+	}
+
+	public Set<String> getNodeTypes() {
+		return types.keySet();
+	}
+
+	public long getNodeCount(String type) {
+		long[] t=types.get(type);
+		return (t==null)?0:t[0];
+	}
+
+	public long getBytes(String type) {
+		long[] t=types.get(type);
+		return (t==null)?0:t[1];
+	}
+
+	/**
+	 * Returns the number of bytes in this footprint used by nodes that are
+	 * also present in another footprint
+	 */
+	public long sharedBytes(Footprint other) {
+		long shared=0;
+		for (Map.Entry<Object,Integer> e: nodes.entrySet()) {
+			if (other.nodes.containsKey(e.getKey())) shared+=e.getValue();
+		}
+		return shared;
+	}
+
+	public String toString() {
+		StringBuilder sb=new StringBuilder();
+		sb.append("Footprint: "+totalBytes+" bytes in "+nodes.size()+" nodes");
+		for (Map.Entry<String,long[]> e: types.entrySet()) {
+			sb.append("\n  "+e.getKey()+": "+e.getValue()[0]+" nodes, "+e.getValue()[1]+" bytes");
+		}
+		return sb.toString();
+	}
+}
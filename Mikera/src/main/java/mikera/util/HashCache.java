@@ -1,51 +1,322 @@
 package mikera.util;
 
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
 import java.lang.ref.SoftReference;
+import java.lang.ref.WeakReference;
+import java.util.concurrent.atomic.AtomicLong;
 
+/**
+ * Thread safe interning cache for immutable values.
+ *
+ * cache(value) returns a previously cached value equal to the given value if
+ * one exists, otherwise adds the value to the cache.
+ *
+ * The cache is split into independently locked segments, each of which grows
+ * as entries are added. Values may be retained with strong, soft or weak
+ * references; soft and weak entries are purged once collected.
+ *
+ * @author Mike Anderson
+ *
+ * @param <T> Type of cached values
+ */
 public class HashCache<T> {
-	private SoftReference<T>[] data;
+	/**
+	 * Reference strength used to retain cached values
+	 */
+	public enum Retention {
+		STRONG, SOFT, WEAK
+	}
 	
-	// TODO: Implement cache resizing
-	@SuppressWarnings("unchecked")
+	private static final int SEGMENT_BITS=4;
+	private static final int SEGMENT_COUNT=1<<SEGMENT_BITS;
+	private static final float LOAD_FACTOR=0.75f;
+
+	private final Retention retention;
+	private final Segment<T>[] segments;
+
+	private final AtomicLong hits=new AtomicLong();
+	private final AtomicLong misses=new AtomicLong();
+
+	/**
+	 * Creates a cache using soft references, with the given initial capacity
+	 */
 	public HashCache(int size) {
-		data=new SoftReference[size];
+		this(size,Retention.SOFT);
+	}
+
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	public HashCache(int size, Retention retention) {
+		this.retention=retention;
+		int segmentSize=1;
+		while ((segmentSize*SEGMENT_COUNT)<size) segmentSize<<=1;
+		segments=new Segment[SEGMENT_COUNT];
+		for (int i=0; i<SEGMENT_COUNT; i++) {
+			segments[i]=new Segment<T>(segmentSize,retention);
+		}
 	}
 	
+	public Retention getRetention() {
+		return retention;
+	}
+		
+	/**
+	 * Returns the current capacity of the cache before further resizing is needed
+	 */
 	public int getMaxSize() {
-		return data.length;
+		int total=0;
+		for (Segment<T> s: segments) {
+			total+=s.threshold;
+		}
+		return total;
 	}
-	
+
+	/**
+	 * Returns the number of entries in the cache, including any collected
+	 * entries that have not yet been purged
+	 */
+	public int size() {
+		int total=0;
+		for (Segment<T> s: segments) {
+			total+=s.count;
+		}
+		return total;
+	}
+
+	public long getHitCount() {
+		return hits.get();
+	}
+
+	public long getMissCount() {
+		return misses.get();
+	}
+
+	public void resetStatistics() {
+		hits.set(0);
+		misses.set(0);
+	}
+
+	public void clear() {
+		for (Segment<T> s: segments) {
+			s.clear();
+		}
+	}
+
+	/**
+	 * Returns a cached value equal to the given value, caching the given value
+	 * if no such value is present
+	 */
 	public T cache(T value) {
-		int hc=value.hashCode();
-		int i=getIndex(hc);
-		SoftReference<T> sr= data[i];
-		T result=(sr==null)?null:sr.get();
-		
-		if ((result==null)||(!result.equals(value))) {
-			// cache new value
-			data[i]=new SoftReference<T>(value);
-			return value;
-		} else {
-			// return cached value
+		int hc=spread(value.hashCode());
+		T result=segmentFor(hc).cache(hc, value);
+		if (result!=null) {
+			hits.incrementAndGet();
 			return result;
 		}
+		misses.incrementAndGet();
+		return value;
 	}
 	
-	public T getCachedValueForHashCode(int hc) {
-		int i=getIndex(hc);	
-		SoftReference<T> sr= data[i];
-		if (sr==null) return null;
-		
-		T result=sr.get();
-		if (result==null) {
-			data[i]=null;
+	/**
+	 * Returns a cached value equal to the given value, or null if not present
+	 */
+	public T getCached(T value) {
+		int hc=spread(value.hashCode());
+		T result=segmentFor(hc).find(hc, value);
+		if (result!=null) {
+			hits.incrementAndGet();
+		} else {
+			misses.incrementAndGet();
 		}
 		return result;
 	}
-	
-	private int getIndex(int hc) {
-		hc=hc&0x7FFFFFFF;
-		int i=hc %(data.length);
-		return i;
+
+	/**
+	 * Returns any cached value with the given hashcode, or null if not present
+	 */
+	public T getCachedValueForHashCode(int hc) {
+		hc=spread(hc);
+		return segmentFor(hc).find(hc, null);
+	}
+
+	/**
+	 * Selects a segment using the high bits of a multiplicative hash, so that
+	 * small hash codes are spread across all segments independently of the
+	 * low bits used to index each segment's table
+	 */
+	private Segment<T> segmentFor(int hc) {
+		return segments[(hc*0x9E3779B9)>>>(32-SEGMENT_BITS)];
+	}
+
+	private static int spread(int h) {
+		h^=(h>>>20)^(h>>>12);
+		return h^(h>>>7)^(h>>>4);
+	}
+
+	private interface HashedReference {
+		public int hash();
+	}
+
+	private static final class SoftEntryReference<T> extends SoftReference<T> implements HashedReference {
+		private final int hash;
+
+		SoftEntryReference(T value, int hash, ReferenceQueue<T> queue) {
+			super(value,queue);
+			this.hash=hash;
+		}
+
+		public int hash() {
+			return hash;
+		}
+	}
+
+	private static final class WeakEntryReference<T> extends WeakReference<T> implements HashedReference {
+		private final int hash;
+
+		WeakEntryReference(T value, int hash, ReferenceQueue<T> queue) {
+			super(value,queue);
+			this.hash=hash;
+		}
+
+		public int hash() {
+			return hash;
+		}
+	}
+
+	private static final class Entry<T> {
+		final int hash;
+		final Object holder;
+		Entry<T> next;
+
+		Entry(int hash, Object holder, Entry<T> next) {
+			this.hash=hash;
+			this.holder=holder;
+			this.next=next;
+		}
+
+		@SuppressWarnings("unchecked")
+		T get() {
+			if (holder instanceof Reference<?>) {
+				return ((Reference<T>)holder).get();
+			}
+			return (T)holder;
+		}
+	}
+
+	private static final class Segment<T> {
+		private final Retention retention;
+		private final ReferenceQueue<T> queue;
+		private Entry<T>[] table;
+		private volatile int count=0;
+		private volatile int threshold;
+
+		@SuppressWarnings({ "unchecked", "rawtypes" })
+		Segment(int size, Retention retention) {
+			this.retention=retention;
+			this.queue=(retention==Retention.STRONG)?null:new ReferenceQueue<T>();
+			table=new Entry[size];
+			threshold=(int)(size*LOAD_FACTOR);
+		}
+
+		private Object createHolder(T value, int hc) {
+			switch (retention) {
+				case SOFT: return new SoftEntryReference<T>(value,hc,queue);
+				case WEAK: return new WeakEntryReference<T>(value,hc,queue);
+				default: return value;
+			}
+		}
+
+		synchronized T find(int hc, T value) {
+			Entry<T>[] tab=table;
+			for (Entry<T> e=tab[hc&(tab.length-1)]; e!=null; e=e.next) {
+				if (e.hash!=hc) continue;
+				T v=e.get();
+				if ((v!=null)&&((value==null)||v.equals(value))) return v;
+			}
+			return null;
+		}
+
+		/**
+		 * Returns a cached value equal to the given value, or null if the
+		 * given value was not present and has been added
+		 */
+		synchronized T cache(int hc, T value) {
+			purge();
+			Entry<T>[] tab=table;
+			int i=hc&(tab.length-1);
+			for (Entry<T> e=tab[i]; e!=null; e=e.next) {
+				if (e.hash!=hc) continue;
+				T v=e.get();
+				if ((v!=null)&&v.equals(value)) return v;
+			}
+			if (count>=threshold) {
+				resize();
+				tab=table;
+				i=hc&(tab.length-1);
+			}
+			tab[i]=new Entry<T>(hc,createHolder(value,hc),tab[i]);
+			count++;
+			return null;
+		}
+
+		@SuppressWarnings({ "unchecked", "rawtypes" })
+		private void resize() {
+			Entry<T>[] oldTable=table;
+			int newSize=oldTable.length*2;
+			Entry<T>[] newTable=new Entry[newSize];
+			for (int j=0; j<oldTable.length; j++) {
+				Entry<T> e=oldTable[j];
+				while (e!=null) {
+					Entry<T> next=e.next;
+					int i=e.hash&(newSize-1);
+					e.next=newTable[i];
+					newTable[i]=e;
+					e=next;
+				}
+			}
+			table=newTable;
+			threshold=(int)(newSize*LOAD_FACTOR);
+		}
+
+		/**
+		 * Removes entries whose references have been cleared by the garbage collector
+		 */
+		private void purge() {
+			if (queue==null) return;
+			Reference<? extends T> ref=queue.poll();
+			while (ref!=null) {
+				removeHolder(ref);
+				ref=queue.poll();
+			}
+		}
+
+		private void removeHolder(Object holder) {
+			Entry<T>[] tab=table;
+			int j=((HashedReference)holder).hash()&(tab.length-1);
+			Entry<T> prev=null;
+			for (Entry<T> e=tab[j]; e!=null; e=e.next) {
+				if (e.holder==holder) {
+					if (prev==null) {
+						tab[j]=e.next;
+					} else {
+						prev.next=e.next;
+					}
+					count--;
+					return;
+				}
+				prev=e;
+			}
+		}
+
+		@SuppressWarnings({ "unchecked", "rawtypes" })
+		synchronized void clear() {
+			table=new Entry[table.length];
+			count=0;
+			if (queue!=null) {
+				while (queue.poll()!=null) {
+					// discard pending references
+				}
+			}
+		}
 	}
 }
@@ -0,0 +1,115 @@
+package mikera.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Static utility functions for running tasks in parallel
+ * 
+ * Nested calls to invokeAll from within a running task are executed 
+ * sequentially in the calling thread, so that fixed size pools cannot deadlock 
+ * waiting for their own threads. Tasks must not otherwise block waiting for
+ * other tasks on the same executor.
+ * 
+ * @author Mike Anderson
+ *
+ */
+public final class Parallel {
+	private static ExecutorService defaultExecutor=null;
+	
+	private static final ThreadLocal<Boolean> inTask=new ThreadLocal<Boolean>() {
+		@Override
+		protected Boolean initialValue() {
+			return Boolean.FALSE;
+		}
+	};
+	
+	/**
+	 * Returns true if the current thread is running a task submitted via invokeAll
+	 */
+	public static boolean isInParallelTask() {
+		return inTask.get();
+	}
+	
+	/**
+	 * Returns the number of threads that parallel operations should aim to keep busy
+	 */
+	public static int getParallelism() {
+		return Runtime.getRuntime().availableProcessors();
+	}
+	
+	/**
+	 * Returns a shared executor with one daemon thread per available processor
+	 */
+	public static synchronized ExecutorService getDefaultExecutor() {
+		if (defaultExecutor==null) {
+			defaultExecutor=Executors.newFixedThreadPool(getParallelism(), new ThreadFactory() {
+				private final ThreadFactory factory=Executors.defaultThreadFactory();
+				
+				public Thread newThread(Runnable r) {
+					Thread t=factory.newThread(r);
+					t.setDaemon(true);
+					return t;
+				}			
+			});
+		}
+		return defaultExecutor;
+	}
+	
+	/**
+	 * Runs all tasks on the given executor, returning the results in the same order as the tasks.
+	 * If called from within a task, the tasks are run sequentially in the calling thread instead.
+	 * 
+	 * Any exception thrown by a task is rethrown in the calling thread.
+	 */
+	public static <T> List<T> invokeAll(ExecutorService executor, List<Callable<T>> tasks) {
+		ArrayList<T> results=new ArrayList<T>(tasks.size());
+		if (isInParallelTask()) {
+			for (Callable<T> task: tasks) {
+				try {
+					results.add(task.call());
+				} catch (RuntimeException e) {
+					throw e;
+				} catch (Exception e) {
+					throw new RuntimeException(e);
+				}
+			}
+			return results;
+		}
+		
+		ArrayList<Callable<T>> marked=new ArrayList<Callable<T>>(tasks.size());
+		for (final Callable<T> task: tasks) {
+			marked.add(new Callable<T>() {
+				public T call() throws Exception {
+					inTask.set(Boolean.TRUE);
+					try {
+						return task.call();
+					} finally {
+						inTask.set(Boolean.FALSE);
+					}
+				}
+			});
+		}
+		try {
+			List<Future<T>> futures=executor.invokeAll(marked);
+			for (Future<T> f: futures) {
+				results.add(f.get());
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		} catch (ExecutionException e) {
+			Throwable cause=e.getCause();
+			if (cause instanceof RuntimeException) throw (RuntimeException)cause;
+			if (cause instanceof Error) throw (Error)cause;
+			throw new RuntimeException(cause);
+		}
+		return results;
+	}
+}
@@ -8,14 +8,28 @@ import java.io.EOFException;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.math.BigInteger;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import mikera.data.AtomicRef;
 import mikera.data.ByteArrayCache;
 import mikera.data.Data;
+import mikera.data.SharedDataReader;
+import mikera.data.SharedDataWriter;
+import mikera.data.SnapshotStore;
 import mikera.net.DataInputStream;
 import mikera.net.DataOutputStream;
+import mikera.persistent.IntMap;
+import mikera.persistent.ListFactory;
+import mikera.persistent.PersistentHashMap;
+import mikera.persistent.PersistentList;
+import mikera.persistent.PersistentMap;
+import mikera.persistent.Text;
 import mikera.util.Bits;
 import mikera.util.Rand;
+import mikera.util.UnaryFunction;
 
 import org.junit.Test;
 
@@ -331,4 +345,150 @@ public class TestData {
 		assertEquals(total,d.size());
 	}
 
+	@SuppressWarnings("unchecked")
+	@Test public void testSharedSnapshots() {
+		SharedDataWriter w=new SharedDataWriter();
+		SharedDataReader r=new SharedDataReader();
+		
+		PersistentMap<Integer,Object> pm=PersistentHashMap.create();
+		for (int i=0; i<1000; i++) {
+			pm=pm.include(i, "Value "+i);
+		}
+		pm=pm.include(-1, Text.create("Some text\nwith lines"));
+		pm=pm.include(-2, ListFactory.createFromList(new ArrayList<Integer>(pm.keySet())));
+		pm=pm.include(-3, IntMap.create(7, 2.5));
+		pm=pm.include(-4, new BigInteger("123456789012345678901234567890"));
+		
+		Data d1=w.writeSnapshot(pm);
+		PersistentMap<Integer,Object> rm1=(PersistentMap<Integer,Object>)r.readSnapshot(d1);
+		assertEquals(pm,rm1);
+		rm1.validate();
+		
+		PersistentMap<Integer,Object> pm2=pm.include(500,"Changed");
+		Data d2=w.writeSnapshot(pm2);
+		assertTrue(d2.size()*10<d1.size());
+		PersistentMap<Integer,Object> rm2=(PersistentMap<Integer,Object>)r.readSnapshot(d2);
+		assertEquals(pm2,rm2);
+		assertEquals("Changed",rm2.get(500));
+		assertTrue(rm1.get(-2)==rm2.get(-2));
+		assertTrue(rm1.get(1)==rm2.get(1));
+		assertEquals(w.getNodeCount(),r.getNodeCount());
+		
+		// shared subtrees within a single snapshot
+		Text t=Text.create("Hello World! Hello World! Hello World! Hello World! Hello World! Hello World!");
+		PersistentList<Text> tl=ListFactory.create(t,t.concat(t));
+		PersistentList<Text> rl=(PersistentList<Text>)r.readSnapshot(w.writeSnapshot(tl));
+		assertEquals(tl,rl);
+		assertTrue(rl.get(0)==rl.get(1).subText(0, t.length()));
+		
+		// mutable objects are written again in each snapshot
+		ArrayList<String> al=new ArrayList<String>();
+		al.add("A");
+		PersistentList<Object> ml=ListFactory.<Object>create(al,al);
+		assertEquals(ml,r.readSnapshot(w.writeSnapshot(ml)));
+		al.add("B");
+		assertEquals(ml,r.readSnapshot(w.writeSnapshot(ml)));
+	}
+	
+	@SuppressWarnings("unchecked")
+	@Test public void testSharedSnapshotNodeLimit() {
+		SharedDataWriter w=new SharedDataWriter(100);
+		SharedDataReader r=new SharedDataReader();
+		
+		PersistentMap<Integer,Object> pm=PersistentHashMap.create();
+		for (int i=0; i<1000; i++) {
+			pm=pm.include(i, "Value "+i);
+		}
+		Data d1=w.writeSnapshot(pm);
+		assertEquals(pm,r.readSnapshot(d1));
+		assertTrue(w.getNodeCount()>100);
+		
+		// limit exceeded, so the next snapshot is written in full
+		PersistentMap<Integer,Object> pm2=pm.include(500,"Changed");
+		Data d2=w.writeSnapshot(pm2);
+		assertTrue(d2.size()*2>d1.size());
+		PersistentMap<Integer,Object> rm2=(PersistentMap<Integer,Object>)r.readSnapshot(d2);
+		assertEquals(pm2,rm2);
+		assertEquals(w.getNodeCount(),r.getNodeCount());
+		
+		// explicit reset
+		w.reset();
+		assertEquals(pm,r.readSnapshot(w.writeSnapshot(pm)));
+		assertEquals(w.getNodeCount(),r.getNodeCount());
+	}
+	
+	@Test public void testAtomicRef() throws InterruptedException {
+		final AtomicRef<PersistentMap<Integer,Integer>> ref=new AtomicRef<PersistentMap<Integer,Integer>>(PersistentHashMap.<Integer,Integer>create());
+		final AtomicInteger changes=new AtomicInteger();
+		ref.addWatcher(new AtomicRef.Watcher<PersistentMap<Integer,Integer>>() {
+			public void changed(AtomicRef<PersistentMap<Integer,Integer>> r, PersistentMap<Integer,Integer> oldValue, PersistentMap<Integer,Integer> newValue) {
+				assertEquals(oldValue.size()+1,newValue.size());
+				changes.incrementAndGet();
+			}
+		});
+		
+		Thread[] threads=new Thread[4];
+		for (int t=0; t<threads.length; t++) {
+			final int base=t*1000;
+			threads[t]=new Thread(new Runnable() {
+				public void run() {
+					for (int i=0; i<500; i++) {
+						final int key=base+i;
+						ref.swap(new UnaryFunction<PersistentMap<Integer,Integer>,PersistentMap<Integer,Integer>>() {
+							public PersistentMap<Integer,Integer> apply(PersistentMap<Integer,Integer> m) {
+								return m.include(key,key);
+							}
+						});
+					}
+				}
+			});
+			threads[t].start();
+		}
+		for (Thread t: threads) t.join();
+		
+		assertEquals(2000,ref.get().size());
+		assertEquals(2000,changes.get());
+		
+		PersistentMap<Integer,Integer> m=ref.get();
+		assertTrue(!ref.compareAndSet(PersistentHashMap.<Integer,Integer>create(), m));
+		assertTrue(ref.compareAndSet(m, m.include(-1,-1)));
+		assertEquals(2001,changes.get());
+		assertTrue(ref.clone().get()==ref.get());
+	}
+	
+	@Test public void testSnapshotStore() {
+		SnapshotStore<IntMap<String>> store=new SnapshotStore<IntMap<String>>(IntMap.<String>create(0,"zero"),3);
+		SnapshotStore<IntMap<String>>.Pin early=store.pin();
+		for (int i=1; i<=10; i++) {
+			final int key=i;
+			long v=store.commit(new UnaryFunction<IntMap<String>,IntMap<String>>() {
+				public IntMap<String> apply(IntMap<String> m) {
+					return m.include(key,"v"+key);
+				}
+			});
+			assertEquals(i,v);
+		}
+		assertEquals(10,store.getLatestVersion());
+		assertEquals(11,store.get().size());
+		
+		// pinned version 0 plus latest three
+		assertEquals(4,store.getVersionCount());
+		assertEquals(1,early.get().size());
+		assertEquals(1,store.get(0).size());
+		assertEquals(null,store.get(5));
+		assertEquals(9,store.get(8).size());
+		assertEquals(1,store.getAsOf(5).size());
+		
+		SnapshotStore<IntMap<String>>.Pin p9=store.pin(9);
+		early.release();
+		early.release();
+		assertEquals(8,store.getOldestVersion());
+		store.commit(store.get().delete(1));
+		store.commit(store.get().delete(2));
+		assertEquals(9,store.getOldestVersion());
+		assertEquals(10,p9.get().size());
+		p9.release();
+		assertEquals(3,store.getVersionCount());
+		assertEquals(10,store.getOldestVersion());
+	}
 }
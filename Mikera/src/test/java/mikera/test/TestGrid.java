@@ -2,9 +2,12 @@ package mikera.test;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import mikera.data.Data;
 import mikera.engine.ArrayGrid;
 import mikera.engine.BlockVisitor;
 import mikera.engine.Grid;
+import mikera.engine.GridFormat;
 import mikera.engine.Octreap;
 import mikera.engine.PersistentTreeGrid;
 import mikera.engine.SparseGrid;
@@ -159,4 +162,46 @@ public class TestGrid {
 		tg.set(0,0,0, 1);
 	}
 
+	@Test public void testSaveLoad() {
+		Octreap<String> m=new Octreap<String>();
+		for (int i=0; i<300; i++) {
+			int x=Rand.d(33)-17;
+			int y=Rand.d(33)-17;
+			int z=Rand.d(33)-17;
+			m.setBlock(x,y,z,x+Rand.r(4),y+Rand.r(4),z+Rand.r(4),"V"+(i%6));
+		}
+		
+		Data d=GridFormat.write(m,50);
+		GridFormat.Reader<String> r=new GridFormat.Reader<String>(d);
+		assertTrue(r.getChunkCount()>1);
+		assertEquals(m,r.readOctreap());
+		assertEquals(m,GridFormat.read(d));
+		
+		// other grid types, both for writing and reading
+		Grid<String> tg=GridFormat.read(d, new TreeGrid<String>());
+		assertEquals(m,new Octreap<String>(tg));
+		Grid<String> pg=GridFormat.read(d, new PersistentTreeGrid<String>());
+		assertEquals(m,new Octreap<String>(pg));
+		assertEquals(m,GridFormat.read(GridFormat.write(pg)));
+		
+		// existing contents of the target are replaced
+		Grid<String> full=new TreeGrid<String>().setBlock(-20,-20,-20,20,20,20,"Old");
+		assertEquals(m,new Octreap<String>(GridFormat.read(d, full)));
+		Octreap<String> fo=new Octreap<String>();
+		fo.setBlock(-20,-20,-20,20,20,20,"Old");
+		assertEquals(m,GridFormat.read(d, fo));
+		
+		// region only
+		Grid<String> region=r.readRegion(new Octreap<String>(), -3,-4,-5,6,7,8);
+		for (int i=0; i<1000; i++) {
+			int x=Rand.d(33)-17;
+			int y=Rand.d(33)-17;
+			int z=Rand.d(33)-17;
+			boolean inside=(x>=-3)&&(x<=6)&&(y>=-4)&&(y<=7)&&(z>=-5)&&(z<=8);
+			assertEquals(inside?m.get(x,y,z):null,region.get(x,y,z));
+		}
+		
+		// empty grid
+		assertEquals(0,GridFormat.read(GridFormat.write(new Octreap<String>())).countNodes());
+	}
 }
@@ -3,6 +3,8 @@ package mikera.test;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
+import java.util.TreeSet;
+
 import mikera.persistent.IntSet;
 import mikera.util.Rand;
 
@@ -125,5 +127,96 @@ public class TestIntSet {
 		assertTrue(is1.equals(is2));
 	}
 
+	private static IntSet randomSet(TreeSet<Integer> ts) {
+		int base=Rand.r(4)*50000-100000;
+		switch (Rand.r(3)) {
+			case 0: 
+				// sparse values
+				for (int i=0; i<200; i++) ts.add(base+Rand.r(300000));
+				break;
+			case 1: 
+				// dense random values
+				for (int i=0; i<20000; i++) ts.add(base+Rand.r(40000));
+				break;
+			default: 
+				// ranges
+				for (int i=0; i<5; i++) {
+					int s=base+Rand.r(200000);
+					for (int j=s; j<s+Rand.r(70000); j++) ts.add(j);
+				}
+		}
+		return IntSet.create(ts);
+	}
 
+	private static void assertMatches(TreeSet<Integer> ts, IntSet is) {
+		assertEquals(ts.size(),is.size());
+		assertFalse(is.hasProblem());
+		int i=0;
+		for (Integer v: ts) {
+			if (Rand.r(50)==0) {
+				assertEquals(i,is.findIndex(v));
+				assertEquals(v.intValue(),is.getIndex(i));
+				assertTrue(is.contains(v.intValue()));
+			}
+			i++;
+		}
+		assertTrue(java.util.Arrays.equals(is.toIntArray(), IntSet.create(ts).toIntArray()));
+	}
+	
+	@Test public void testContainers() {
+		for (int round=0; round<10; round++) {
+			TreeSet<Integer> ta=new TreeSet<Integer>();
+			TreeSet<Integer> tb=new TreeSet<Integer>();
+			IntSet a=randomSet(ta);
+			IntSet b=randomSet(tb);
+			assertMatches(ta,a);
+			
+			TreeSet<Integer> union=new TreeSet<Integer>(ta);
+			union.addAll(tb);
+			IntSet u=IntSet.createMerged(a, b);
+			assertMatches(union,u);
+			assertTrue(u.containsAll(a));
+			assertTrue(u.containsAll(b));
+			
+			TreeSet<Integer> inter=new TreeSet<Integer>(ta);
+			inter.retainAll(tb);
+			assertMatches(inter,IntSet.createIntersection(a, b));
+			
+			TreeSet<Integer> diff=new TreeSet<Integer>(ta);
+			diff.removeAll(tb);
+			assertMatches(diff,IntSet.createWithout(a, b));
+			
+			int v=Rand.r(400000)-200000;
+			TreeSet<Integer> tv=new TreeSet<Integer>(ta);
+			tv.add(v);
+			IntSet av=a.include(v);
+			assertMatches(tv,av);
+			tv.remove(v);
+			assertMatches(tv,av.delete(v));
+		}
+	}
+	
+	@Test public void testRanges() {
+		IntSet r=IntSet.createRange(-1000000, 1000000);
+		assertEquals(2000000,r.size());
+		assertTrue(r.contains(-1000000));
+		assertTrue(r.contains(999999));
+		assertFalse(r.contains(1000000));
+		assertEquals(12345-(-1000000),r.findIndex(12345));
+		assertEquals(-5,r.getIndex(1000000-5));
+		assertTrue(r.sizeInBytes()<10000);
+		assertFalse(r.hasProblem());
+		
+		IntSet r2=IntSet.createRange(500000, 1500000);
+		IntSet u=r.include(r2);
+		assertEquals(2500000,u.size());
+		assertEquals(500000,r.intersection(r2).size());
+		assertEquals(IntSet.createRange(-1000000, 500000),r.deleteAll(r2));
+		assertTrue(u.sizeInBytes()<10000);
+		
+		IntSet holed=r.delete(7).delete(8);
+		assertEquals(r.size()-2,holed.size());
+		assertEquals(r,holed.include(7).include(8));
+		assertTrue(r==IntSet.createMerged(r, IntSet.create(new int[] {1,2,3})));
+	}
 }
@@ -8,9 +8,13 @@ import static org.junit.Assert.fail;
 import java.util.HashMap;
 import java.util.Iterator;
 
+import mikera.engine.ArrayOctreap;
 import mikera.engine.BlockVisitor;
 import mikera.engine.Octreap;
 import mikera.engine.Octreap.ZNode;
+import mikera.engine.TreeGrid;
+import mikera.util.BooleanFilter;
+import mikera.util.Footprint;
 import mikera.util.Rand;
 
 import org.junit.Test;
@@ -516,4 +520,218 @@ public class TestOctreap {
 
 		}
 	}
+	
+	@Test public void testBuilder() {
+		Octreap<Integer> m=new Octreap<Integer>();
+		for (int i=0; i<200; i++) {
+			int x1=Rand.d(21)-11;
+			int y1=Rand.d(21)-11;
+			int z1=Rand.d(21)-11;
+			m.setBlock(x1,y1,z1,x1+Rand.r(4),y1+Rand.r(4),z1+Rand.r(4),i%3);
+		}
+		
+		// copy from another Octreap
+		Octreap<Integer> c=new Octreap<Integer>(m);
+		assertTrue(c.check());
+		assertEquals(m,c);
+		assertEquals(m.countNodes(),c.countNodes());
+		
+		// copy from a grid with a different structure
+		TreeGrid<Integer> tg=new TreeGrid<Integer>();
+		tg.paste(m);
+		Octreap<Integer> t=new Octreap<Integer>().set(tg);
+		assertTrue(t.check());
+		assertEquals(m,t);
+		
+		// runs with equal values are merged
+		Octreap.Builder<Integer> b=Octreap.builder();
+		b.add(0,9,1).add(10,19,1).add(20,20,null).add(21,30,1).add(31,1000,2);
+		Octreap<Integer> r=b.toOctreap();
+		assertTrue(r.check());
+		assertEquals(3,r.countNodes());
+		assertEquals(1000,r.countArea());
+		assertEquals(null,r.get(20L));
+		assertEquals(2,(int)r.get(1000L));
+		
+		try {
+			Octreap.<Integer>builder().add(10,20,1).add(15,30,2);
+			fail();
+		} catch (IllegalArgumentException e) {
+			// OK
+		}
+	}
+	
+	@Test public void testBoxQuery() {
+		Octreap<Integer> m=new Octreap<Integer>();
+		for (int i=0; i<300; i++) {
+			int x=Rand.d(17)-9;
+			int y=Rand.d(17)-9;
+			int z=Rand.d(17)-9;
+			m.setBlock(x,y,z,x+Rand.r(3),y+Rand.r(3),z+Rand.r(3),i%4);
+		}
+		
+		for (int i=0; i<100; i++) {
+			int x1=Rand.d(21)-11; int x2=x1+Rand.r(8);
+			int y1=Rand.d(21)-11; int y2=y1+Rand.r(8);
+			int z1=Rand.d(21)-11; int z2=z1+Rand.r(8);
+			
+			int count=0;
+			int threes=0;
+			for (int z=z1; z<=z2; z++) {
+				for (int y=y1; y<=y2; y++) {
+					for (int x=x1; x<=x2; x++) {
+						Integer v=m.get(x,y,z);
+						if (v!=null) count++;
+						if ((v!=null)&&(v==3)) threes++;
+					}
+				}
+			}
+			assertEquals(count,m.countNonNull(x1,y1,z1,x2,y2,z2));
+			assertEquals(count==0,m.isEmpty(x1,y1,z1,x2,y2,z2));
+			assertEquals(threes>0,m.anyMatch(x1,y1,z1,x2,y2,z2,new BooleanFilter<Integer>() {
+				public boolean test(Integer a) {
+					return a==3;
+				}
+			}));
+			
+			BCounter bc=new BCounter();
+			m.visitBlocks(bc,x1,y1,z1,x2,y2,z2);
+			assertEquals(count,bc.size);
+			for (int z=z1; z<=z2; z++) {
+				for (int y=y1; y<=y2; y++) {
+					for (int x=x1; x<=x2; x++) {
+						assertEquals(m.get(x,y,z),bc.oct.get(x,y,z));
+					}
+				}
+			}
+		}
+		
+		m.fillSpace(1);
+		assertEquals(1000,m.countNonNull(-5,-5,-5,4,4,4));
+		assertEquals(1,m.countNonNull(-1,-1,-1,-1,-1,-1));
+	}
+	
+	@Test public void testBigMin() {
+		long zmin=Octreap.calculateZ(3,1,2);
+		long zmax=Octreap.calculateZ(6,5,4);
+		for (long zz=zmin; zz<zmax; zz++) {
+			if (inBox(zz,3,1,2,6,5,4)) continue;
+			long next=zz+1;
+			while (!inBox(next,3,1,2,6,5,4)) next++;
+			assertEquals(next,Octreap.bigMin(zz, zmin, zmax));
+		}
+	}
+	
+	private static boolean inBox(long zz, int x1, int y1, int z1, int x2, int y2, int z2) {
+		int x=Octreap.extractX(zz);
+		int y=Octreap.extractY(zz);
+		int z=Octreap.extractZ(zz);
+		return (x>=x1)&&(x<=x2)&&(y>=y1)&&(y<=y2)&&(z>=z1)&&(z<=z2);
+	}
+	
+	@Test public void testIsEmptyRange() {
+		Octreap<Integer> m=new Octreap<Integer>();
+		m.setRange(5, 5, 1);
+		assertTrue(!m.isEmpty(5, 5));
+		assertTrue(!m.isEmpty(0, 5));
+		assertTrue(m.isEmpty(0, 4));
+		assertTrue(m.isEmpty(6, 10));
+	}
+	
+	@Test public void testArrayOctreap() {
+		Octreap<Integer> m=new Octreap<Integer>();
+		ArrayOctreap<Integer> a=new ArrayOctreap<Integer>();
+		for (int i=0; i<1000; i++) {
+			int x=Rand.d(17)-9;
+			int y=Rand.d(17)-9;
+			int z=Rand.d(17)-9;
+			int x2=x+Rand.r(3);
+			int y2=y+Rand.r(3);
+			int z2=z+Rand.r(3);
+			Integer v=(Rand.r(5)==0)?null:Integer.valueOf(i%4);
+			m.setBlock(x,y,z,x2,y2,z2,v);
+			a.setBlock(x,y,z,x2,y2,z2,v);
+		}
+		assertTrue(a.check());
+		assertEquals(m.countNodes(),a.countNodes());
+		assertEquals(m.countArea(),a.countArea());
+		for (int i=0; i<1000; i++) {
+			int x=Rand.d(21)-11;
+			int y=Rand.d(21)-11;
+			int z=Rand.d(21)-11;
+			assertEquals(m.get(x,y,z),a.get(x,y,z));
+			assertEquals(m.countNonNull(x,y,z,x+5,y+5,z+5),a.countNonNull(x,y,z,x+5,y+5,z+5));
+		}
+		
+		// conversions in both directions
+		assertEquals(m,new Octreap<Integer>(a));
+		ArrayOctreap<Integer> b=new ArrayOctreap<Integer>(m);
+		assertTrue(b.check());
+		assertEquals(a,b);
+		
+		// clones are independent
+		ArrayOctreap<Integer> c=a.clone();
+		c.set(100,100,100,7);
+		assertTrue(c.check());
+		assertEquals(null,a.get(100,100,100));
+		assertTrue(!a.equals(c));
+		assertEquals(a.hashCode(),b.hashCode());
+		assertTrue(a.hashCode()!=c.hashCode());
+		
+		// smaller than the equivalent object nodes
+		assertTrue(Footprint.of(b).getTotalBytes()<Footprint.of(m).getTotalBytes());
+		
+		a.fillSpace(1);
+		assertEquals(1,a.countNodes());
+		assertTrue(a.check());
+	}
+	
+	@Test public void testSnapshot() throws InterruptedException {
+		Octreap<Integer> m=new Octreap<Integer>();
+		for (int i=0; i<500; i++) {
+			int x=Rand.d(17)-9;
+			int y=Rand.d(17)-9;
+			int z=Rand.d(17)-9;
+			m.setBlock(x,y,z,x+Rand.r(3),y+Rand.r(3),z+Rand.r(3),i%4);
+		}
+		final Octreap<Integer> s=m.snapshot();
+		final ArrayOctreap<Integer> expected=new ArrayOctreap<Integer>(m);
+		assertEquals(m,s);
+		
+		// most of the structure is shared after a small change
+		m.set(0,0,0,7);
+		assertTrue(Footprint.sharedBytes(s,m)*2>Footprint.of(m).getTotalBytes());
+		
+		final boolean[] ok=new boolean[] {true};
+		Thread reader=new Thread(new Runnable() {
+			public void run() {
+				for (int i=0; i<20000; i++) {
+					int x=Rand.d(21)-11;
+					int y=Rand.d(21)-11;
+					int z=Rand.d(21)-11;
+					Integer a=s.get(x,y,z);
+					Integer b=expected.get(x,y,z);
+					if ((a==null)?(b!=null):!a.equals(b)) ok[0]=false;
+				}
+			}
+		});
+		reader.start();
+		for (int i=0; i<2000; i++) {
+			int x=Rand.d(21)-11;
+			int y=Rand.d(21)-11;
+			int z=Rand.d(21)-11;
+			m.setBlock(x,y,z,x+Rand.r(3),y+Rand.r(3),z+Rand.r(3),(Rand.r(4)==0)?null:Integer.valueOf(i%5));
+		}
+		reader.join();
+		assertTrue(ok[0]);
+		assertTrue(m.check());
+		assertTrue(s.check());
+		assertEquals(s,new Octreap<Integer>(expected));
+		
+		// writes to the snapshot do not affect the original
+		Octreap<Integer> m2=m.clone();
+		s.fillSpace(1);
+		assertEquals(m2,m);
+		assertEquals(1,s.countNodes());
+	}
 }
@@ -6,10 +6,13 @@ import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 import java.util.ArrayList;
+import java.util.HashSet;
 
 import mikera.persistent.IntSet;
 import mikera.persistent.ListFactory;
+import mikera.persistent.ListView;
 import mikera.persistent.MapFactory;
+import mikera.persistent.Pair;
 import mikera.persistent.PersistentCollection;
 import mikera.persistent.PersistentHashSet;
 import mikera.persistent.PersistentList;
@@ -17,13 +20,16 @@ import mikera.persistent.PersistentSet;
 import mikera.persistent.SetFactory;
 import mikera.persistent.impl.BlockList;
 import mikera.persistent.impl.CompositeList;
+import mikera.persistent.impl.RRBList;
 import mikera.persistent.impl.RepeatList;
 import mikera.persistent.impl.SingletonList;
 import mikera.persistent.impl.SingletonSet;
 import mikera.persistent.impl.SubList;
 import mikera.persistent.impl.Tuple;
+import mikera.util.BooleanFilter;
 import mikera.util.Rand;
 import mikera.util.Tools;
+import mikera.util.UnaryFunction;
 import mikera.util.emptyobjects.NullCollection;
 import mikera.util.emptyobjects.NullList;
 import mikera.util.emptyobjects.NullSet;
@@ -46,6 +52,80 @@ public class TestPersistent {
 		testPersistentList(BlockList.create(pl));
 		testPersistentList(BlockList.create(RepeatList.create("MM", 1000)));
 		testPersistentList(SubList.create(pl,2,3));
+		testPersistentList(RRBList.create(pl));
+		testPersistentList(RRBList.create(RepeatList.create("MM", 1000)));
+	}
+	
+	@Test public void testRRBList() {
+		ArrayList<Integer> al=new ArrayList<Integer>();
+		PersistentList<Integer> pl=ListFactory.emptyList();
+		for (int i=0; i<2000; i++) {
+			int size=al.size();
+			switch (Rand.r(6)) {
+				case 0: {
+					int v=Rand.r(1000);
+					al.add(v);
+					pl=pl.append(v);
+					break;
+				}
+				case 1: {
+					int pos=Rand.r(size+1);
+					al.add(pos,i);
+					pl=pl.insert(pos,i);
+					break;
+				}
+				case 2: {
+					if (size==0) break;
+					int start=Rand.r(size);
+					int end=Rand.range(start, Math.min(size,start+40));
+					al.subList(start,end).clear();
+					pl=pl.deleteRange(start, end);
+					break;
+				}
+				case 3: {
+					if (size==0) break;
+					int pos=Rand.r(size);
+					al.set(pos,-i);
+					pl=pl.update(pos,-i);
+					break;
+				}
+				case 4: {
+					ArrayList<Integer> copy=new ArrayList<Integer>(al);
+					int pos=Rand.r(size+1);
+					al.addAll(pos,copy.subList(0, Math.min(size, 100)));
+					pl=pl.insertAll(pos, pl.subList(0, Math.min(size, 100)));
+					break;
+				}
+				default: {
+					PersistentList<Integer> ins=ListFactory.createFromList(al);
+					pl=ins.append(pl).subList(ins.size(), ins.size()+size);
+					break;
+				}
+			}
+			assertEquals(al.size(),pl.size());
+		}
+		assertEquals(al,pl);
+		assertEquals(ListFactory.createFromList(al).hashCode(),pl.hashCode());
+		pl.validate();
+		
+		// repeated concatenation must keep the tree shallow
+		PersistentList<Integer> cl=ListFactory.emptyList();
+		for (int i=0; i<3000; i++) {
+			cl=ListFactory.concat(cl, ListFactory.createFromArray(new Integer[] {i,i,i}));
+		}
+		assertTrue(cl instanceof RRBList<?>);
+		assertTrue(((RRBList<Integer>)cl).depth()<=3);
+		assertEquals(Integer.valueOf(1234),cl.get(1234*3+2));
+		cl.validate();
+		
+		// many small slices concatenated back together
+		PersistentList<Integer> sl=ListFactory.emptyList();
+		for (int i=0; i<cl.size(); i+=37) {
+			sl=sl.append(cl.subList(i, Math.min(cl.size(), i+37)));
+		}
+		assertEquals(cl,sl);
+		assertTrue(((RRBList<Integer>)sl).depth()<=3);
+		sl.validate();
 	}
 	
 	@Test public void testCollectionTypes() {
@@ -416,6 +496,153 @@ public class TestPersistent {
 		assertEquals(Tuple.create(new Integer[] {1,1,2,2,1}),t2);
 	}
 	
+	@Test public void testHashSetMerge() {
+		PersistentHashSet<Integer> a=PersistentHashSet.create();
+		PersistentHashSet<Integer> b=PersistentHashSet.create();
+		HashSet<Integer> ha=new HashSet<Integer>();
+		HashSet<Integer> hb=new HashSet<Integer>();
+		for (int i=0; i<2000; i++) {
+			int x=Rand.r(3000);
+			int y=Rand.r(3000);
+			a=a.include(x);
+			ha.add(x);
+			b=b.include(y);
+			hb.add(y);
+		}
+		
+		HashSet<Integer> hu=new HashSet<Integer>(ha);
+		hu.addAll(hb);
+		PersistentHashSet<Integer> u=a.include(b);
+		u.validate();
+		assertEquals(hu,new HashSet<Integer>(u));
+		
+		HashSet<Integer> hi=new HashSet<Integer>(ha);
+		hi.retainAll(hb);
+		PersistentHashSet<Integer> in=a.intersection(b);
+		in.validate();
+		assertEquals(hi,new HashSet<Integer>(in));
+		
+		HashSet<Integer> hd=new HashSet<Integer>(ha);
+		hd.removeAll(hb);
+		PersistentHashSet<Integer> d=a.difference(b);
+		d.validate();
+		assertEquals(hd,new HashSet<Integer>(d));
+		
+		assertTrue(a==a.include(a));
+		
+		Pair<PersistentHashSet<Integer>,PersistentHashSet<Integer>> diff=PersistentHashSet.diff(a, a.include(-1).delete(ha.iterator().next()));
+		assertEquals(1,diff.a.size());
+		assertTrue(diff.a.contains(-1));
+		assertEquals(1,diff.b.size());
+	}
+	
+	@Test public void testListViews() {
+		Integer[] data=new Integer[100];
+		for (int i=0; i<100; i++) data[i]=i;
+		PersistentList<Integer> pl=ListFactory.createFromArray(data);
+		
+		ListView<Integer> v=pl.view();
+		assertTrue(v.isIndexed());
+		assertTrue(pl==v.toPersistent());
+		assertEquals(pl.subList(10, 20),v.slice(10, 20).toPersistent());
+		
+		ListView<Integer> doubled=v.slice(10, 60).map(new UnaryFunction<Integer,Integer>() {
+			public Integer apply(Integer a) {
+				return a*2;
+			}
+		});
+		assertTrue(doubled.isIndexed());
+		assertEquals(50,doubled.size());
+		assertEquals(Integer.valueOf(20),doubled.get(0));
+		assertEquals(Integer.valueOf(118),doubled.reverse().get(0));
+		assertEquals(Integer.valueOf(24),doubled.slice(2, 5).get(0));
+		
+		ListView<Integer> evens=v.filter(new BooleanFilter<Integer>() {
+			public boolean test(Integer a) {
+				return (a&1)==0;
+			}
+		});
+		assertFalse(evens.isIndexed());
+		assertEquals(50,evens.size());
+		assertEquals(Integer.valueOf(98),evens.reverse().get(0));
+		ListView<Integer> fours=evens.filter(new BooleanFilter<Integer>() {
+			public boolean test(Integer a) {
+				return (a&3)==0;
+			}
+		});
+		assertEquals(25,fours.size());
+		assertEquals(Integer.valueOf(8),fours.slice(2, 10).get(0));
+		assertEquals(3,fours.slice(2, 10).slice(5, 100).size());
+		assertEquals(Integer.valueOf(92),fours.slice(20, 30).reverse().get(1));
+		
+		ListView<Integer> cat=v.slice(90, 100).concat(evens).concat(pl.subList(0, 5));
+		assertEquals(65,cat.size());
+		PersistentList<Integer> cl=cat.toPersistent();
+		cl.validate();
+		assertEquals(cat.size(),cl.size());
+		assertEquals(Integer.valueOf(90),cl.get(0));
+		assertEquals(Integer.valueOf(0),cl.get(10));
+		assertEquals(Integer.valueOf(4),cl.get(64));
+		assertEquals(cl,cat.reverse().reverse().toPersistent());
+		assertEquals(Integer.valueOf(4),cat.reverse().get(0));
+		
+		ListView<Integer> icat=v.concat(v);
+		assertTrue(icat.isIndexed());
+		assertEquals(Integer.valueOf(5),icat.slice(95, 110).get(10));
+		assertEquals(pl.subList(50, 100).append(pl.subList(0, 10)),icat.slice(50, 110).toPersistent());
+		
+		assertTrue(v.slice(5, 5).isEmpty());
+		try {
+			v.slice(10, 101);
+			fail();
+		} catch (IndexOutOfBoundsException e) {
+			// OK
+		}
+	}
+	
+	@Test public void testChunkedCopy() {
+		Integer[] data=new Integer[1000];
+		ArrayList<Integer> al=new ArrayList<Integer>();
+		for (int i=0; i<1000; i++) {
+			data[i]=(i%7==0)?null:Integer.valueOf(i);
+			al.add(data[i]);
+		}
+		ArrayList<PersistentList<Integer>> lists=new ArrayList<PersistentList<Integer>>();
+		lists.add(BlockList.create(data,0,1000));
+		lists.add(CompositeList.create(data,0,1000));
+		lists.add(RRBList.create(data,0,1000));
+		lists.add(ListFactory.createFromArray(data,0,10).append(CompositeList.create(data,10,1000)));
+		
+		for (PersistentList<Integer> pl: lists) {
+			assertEquals(al,pl);
+			assertTrue(pl.equals(al));
+			assertEquals(lists.get(0).hashCode(),pl.hashCode());
+			assertTrue(java.util.Arrays.equals(data,pl.toArray()));
+			
+			for (int j=0; j<20; j++) {
+				int a=Rand.r(1000);
+				int b=a+Rand.r(1001-a);
+				PersistentList<Integer> sl=pl.subList(a, b);
+				PersistentList<Integer> expected=Tuple.create(data,a,b);
+				assertTrue(sl.equals(expected));
+				assertTrue(expected.equals(sl));
+				assertEquals(expected.hashCode(),sl.hashCode());
+				
+				Object[] dest=new Object[b-a+5];
+				pl.copyInto(dest, 5, a, b);
+				for (int i=a; i<b; i++) {
+					assertEquals(data[i],dest[i-a+5]);
+				}
+			}
+		}
+		
+		PersistentList<Integer> small=Tuple.create(data,0,20);
+		PersistentList<Integer> copied=small.copyFrom(5, lists.get(0), 100, 10);
+		assertEquals(20,copied.size());
+		assertEquals(data[104],copied.get(9));
+		assertEquals(data[15],copied.get(15));
+	}
+	
 	@Test public void testDeleting() {
 		PersistentList<Integer> tl=(Tuple.create(new Integer[] {1,2,3,4,5}));
 		PersistentList<Integer> ol=(Tuple.create(new Integer[] {1,3,5}));
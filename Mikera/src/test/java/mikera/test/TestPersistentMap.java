@@ -2,20 +2,36 @@ package mikera.test;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import mikera.persistent.IntDoubleMap;
+import mikera.persistent.IntIntMap;
+import mikera.persistent.IntLongMap;
 import mikera.persistent.IntMap;
 import mikera.persistent.ListFactory;
+import mikera.persistent.LongMap;
 import mikera.persistent.MapFactory;
+import mikera.persistent.Pair;
 import mikera.persistent.PersistentHashMap;
 import mikera.persistent.PersistentList;
 import mikera.persistent.PersistentMap;
 import mikera.persistent.PersistentSet;
+import mikera.persistent.PersistentTreeMap;
+import mikera.persistent.PersistentTreeSet;
 import mikera.persistent.SetFactory;
+import mikera.util.BinaryFunction;
+import mikera.util.BooleanFilter;
+import mikera.util.Parallel;
 import mikera.util.Rand;
 import mikera.util.Tools;
+import mikera.util.UnaryFunction;
 import mikera.util.emptyobjects.NullMap;
 
 import org.junit.Test;
@@ -180,11 +196,618 @@ public class TestPersistentMap {
 		return pm;
 	}
 	
+	@Test public void testBuilder() {
+		PersistentHashMap<Integer,String> base=PersistentHashMap.create();
+		base=base.include(1, "Hello");
+		PersistentHashMap.Builder<Integer,String> b=base.toBuilder();
+		HashMap<Integer,String> hm=new HashMap<Integer,String>();
+		hm.put(1, "Hello");
+		for (int i=0; i<2000; i++) {
+			int key=Rand.r(1000);
+			String value=Rand.nextString();
+			b.include(key, value);
+			hm.put(key, value);
+			
+			int delKey=Rand.r(1000);
+			b.delete(delKey);
+			hm.remove(delKey);
+		}
+		assertEquals(hm.size(),b.size());
+		PersistentHashMap<Integer,String> pm=b.toPersistentHashMap();
+		pm.validate();
+		assertEquals(hm,pm.toHashMap());
+		
+		// original map must be unaffected
+		assertEquals(1,base.size());
+		assertEquals("Hello",base.get(1));
+		
+		try {
+			b.include(2,"World");
+			fail();
+		} catch (IllegalStateException e) {
+			// OK
+		}
+		testMap(pm);
+	}
+	
+	@Test public void testBulkDelete() {
+		HashMap<Integer,String> hm=new HashMap<Integer,String>();
+		for (int i=0; i<500; i++) {
+			hm.put(i, Rand.nextString());
+		}
+		PersistentMap<Integer,String> pm=PersistentHashMap.create(hm);
+		pm.validate();
+		assertEquals(500,pm.size());
+		
+		ArrayList<Integer> keys=new ArrayList<Integer>();
+		for (int i=0; i<500; i+=3) {
+			keys.add(i);
+			hm.remove(i);
+		}
+		PersistentMap<Integer,String> dm=pm.delete(keys);
+		dm.validate();
+		assertEquals(hm,dm.toHashMap());
+		assertEquals(500,pm.size());
+		
+		assertTrue(dm==dm.delete(keys));
+	}
+	
+	@Test public void testParallelOperations() {
+		HashMap<Integer,Integer> hm=new HashMap<Integer,Integer>();
+		for (int i=0; i<20000; i++) {
+			hm.put(Rand.r(1000000), i);
+		}
+		PersistentHashMap<Integer,Integer> pm=PersistentHashMap.create(hm);
+		
+		BinaryFunction<Long,Map.Entry<Integer,Integer>,Long> sum=new BinaryFunction<Long,Map.Entry<Integer,Integer>,Long>() {
+			public Long apply(Long acc, Map.Entry<Integer,Integer> ent) {
+				return acc+ent.getValue();
+			}
+		};
+		BinaryFunction<Long,Long,Long> add=new BinaryFunction<Long,Long,Long>() {
+			public Long apply(Long a, Long b) {
+				return a+b;
+			}
+		};
+		long total=0;
+		for (int v: hm.values()) total+=v;
+		assertEquals(total,(long)pm.reduce(0L, sum));
+		assertEquals(total,(long)pm.parallelReduce(0L, sum, add));
+		
+		final AtomicInteger count=new AtomicInteger();
+		pm.parallelForEach(new UnaryFunction<Map.Entry<Integer,Integer>,Object>() {
+			public Object apply(Map.Entry<Integer,Integer> ent) {
+				count.incrementAndGet();
+				return null;
+			}
+		});
+		assertEquals(hm.size(),count.get());
+		
+		UnaryFunction<Integer,String> toString=new UnaryFunction<Integer,String>() {
+			public String apply(Integer a) {
+				return a.toString();
+			}
+		};
+		PersistentHashMap<Integer,String> mm=pm.parallelMapValues(toString);
+		mm.validate();
+		assertEquals(pm.mapValues(toString),mm);
+		assertEquals(hm.size(),mm.size());
+		for (Map.Entry<Integer,Integer> ent: hm.entrySet()) {
+			assertEquals(ent.getValue().toString(),mm.get(ent.getKey()));
+		}
+		
+		BooleanFilter<Map.Entry<Integer,Integer>> even=new BooleanFilter<Map.Entry<Integer,Integer>>() {
+			public boolean test(Map.Entry<Integer,Integer> ent) {
+				return (ent.getKey()&1)==0;
+			}
+		};
+		PersistentHashMap<Integer,Integer> fm=pm.parallelFilter(even);
+		fm.validate();
+		PersistentHashMap<Integer,Integer> sfm=pm.filter(even);
+		sfm.validate();
+		assertEquals(sfm,fm);
+		for (Map.Entry<Integer,Integer> ent: hm.entrySet()) {
+			assertEquals(even.test(ent),fm.containsKey(ent.getKey()));
+		}
+		
+		assertTrue(pm==pm.parallelFilter(new BooleanFilter<Map.Entry<Integer,Integer>>() {
+			public boolean test(Map.Entry<Integer,Integer> ent) {
+				return true;
+			}
+		}));
+	}
+	
+	@Test(timeout=20000) public void testNestedParallelOperations() {
+		HashMap<Integer,Integer> hm=new HashMap<Integer,Integer>();
+		for (int i=0; i<20000; i++) {
+			hm.put(i, i);
+		}
+		final PersistentHashMap<Integer,Integer> pm=PersistentHashMap.create(hm);
+		final ExecutorService executor=Executors.newFixedThreadPool(2);
+		try {
+			final AtomicInteger count=new AtomicInteger();
+			pm.parallelForEach(new UnaryFunction<Map.Entry<Integer,Integer>,Object>() {
+				public Object apply(Map.Entry<Integer,Integer> ent) {
+					if ((ent.getKey()%5000)!=0) return null;
+					assertTrue(Parallel.isInParallelTask());
+					pm.parallelForEach(new UnaryFunction<Map.Entry<Integer,Integer>,Object>() {
+						public Object apply(Map.Entry<Integer,Integer> e) {
+							count.incrementAndGet();
+							return null;
+						}
+					},executor);
+					return null;
+				}
+			},executor);
+			assertEquals(4*pm.size(),count.get());
+			assertTrue(!Parallel.isInParallelTask());
+		} finally {
+			executor.shutdown();
+		}
+	}
+	
+	@Test public void testStructuralMerge() {
+		HashMap<Integer,String> ha=new HashMap<Integer,String>();
+		HashMap<Integer,String> hb=new HashMap<Integer,String>();
+		for (int i=0; i<3000; i++) {
+			ha.put(Rand.r(5000), Rand.nextString());
+			hb.put(Rand.r(5000), Rand.nextString());
+		}
+		PersistentHashMap<Integer,String> a=PersistentHashMap.create(ha);
+		PersistentHashMap<Integer,String> b=PersistentHashMap.create(hb);
+		
+		HashMap<Integer,String> hu=new HashMap<Integer,String>(ha);
+		hu.putAll(hb);
+		PersistentHashMap<Integer,String> u=a.include(b);
+		u.validate();
+		assertEquals(hu,u.toHashMap());
+		
+		HashMap<Integer,String> hi=new HashMap<Integer,String>(ha);
+		hi.keySet().retainAll(hb.keySet());
+		PersistentHashMap<Integer,String> in=a.intersection(b);
+		in.validate();
+		assertEquals(hi,in.toHashMap());
+		
+		HashMap<Integer,String> hd=new HashMap<Integer,String>(ha);
+		hd.keySet().removeAll(hb.keySet());
+		PersistentHashMap<Integer,String> d=a.difference(b);
+		d.validate();
+		assertEquals(hd,d.toHashMap());
+		
+		// shared structure should be returned unchanged
+		assertTrue(a==a.include(a));
+		assertTrue(a==a.intersection(a));
+		assertEquals(0,a.difference(a).size());
+	}
+	
+	@Test public void testDiff() {
+		PersistentHashMap<Integer,String> a=PersistentHashMap.create();
+		for (int i=0; i<2000; i++) {
+			a=a.include(i, Rand.nextString());
+		}
+		PersistentHashMap<Integer,String> b=a.include(5, "Changed");
+		b=b.include(3000, "Added");
+		b=(PersistentHashMap<Integer,String>)b.delete(7);
+		b=b.include(8, a.get(8));
+		
+		Pair<PersistentHashMap<Integer,String>,PersistentHashMap<Integer,String>> diff=PersistentHashMap.diff(a, b);
+		diff.a.validate();
+		diff.b.validate();
+		assertEquals(2,diff.a.size());
+		assertEquals("Changed",diff.a.get(5));
+		assertEquals("Added",diff.a.get(3000));
+		assertEquals(1,diff.b.size());
+		assertTrue(diff.b.containsKey(7));
+		
+		PersistentMap<Integer,String> c=a.delete(diff.b.keySet()).include(diff.a);
+		assertEquals(b,c);
+	}
+	
+	@Test public void testLongMap() {
+		LongMap<String> lm=LongMap.create();
+		HashMap<Long,String> hm=new HashMap<Long,String>();
+		for (int i=0; i<1000; i++) {
+			long key=Rand.nextLong()>>Rand.r(64);
+			String value=Rand.nextString();
+			lm=lm.include(key, value);
+			hm.put(key, value);
+			
+			if (Rand.d(4)==1) {
+				long delKey=key+Rand.r(2);
+				lm=lm.delete(delKey);
+				hm.remove(delKey);
+			}
+		}
+		lm.validate();
+		assertEquals(hm.size(),lm.size());
+		assertEquals(hm,lm.toHashMap());
+		for (Map.Entry<Long,String> ent: hm.entrySet()) {
+			assertEquals(ent.getValue(),lm.get(ent.getKey().longValue()));
+		}
+		assertEquals(null,lm.get(Integer.valueOf(1)));
+		
+		final HashMap<Long,String> visited=new HashMap<Long,String>();
+		lm.visitEntries(new LongMap.EntryVisitor<String>() {
+			public void visit(long key, String value) {
+				visited.put(key, value);
+			}
+		});
+		assertEquals(hm,visited);
+		
+		assertEquals("Hello",LongMap.create(Long.MIN_VALUE,"Hello").include(Long.MAX_VALUE,"World").get(Long.MIN_VALUE));
+		CommonTests.testCommonData(lm);
+	}
+	
+	@Test public void testLongMapMerge() {
+		LongMap<String> a=LongMap.create();
+		LongMap<String> b=LongMap.create();
+		for (int i=0; i<1000; i++) {
+			long key=Rand.nextLong()>>Rand.r(64);
+			String value=String.valueOf(i);
+			if (Rand.d(2)==1) {
+				a=a.include(key, value);
+			} else {
+				b=b.include(key, value);
+			}
+		}
+		HashMap<Long,String> hm=a.toHashMap();
+		hm.putAll(b.toHashMap());
+		LongMap<String> m=a.include(b);
+		m.validate();
+		assertEquals(hm,m.toHashMap());
+		assertTrue(m==m.include(b));
+		assertTrue(b==LongMap.<String>create().include(b));
+		assertTrue(a==a.include(LongMap.<String>create()));
+	}
+	
+	@Test public void testPrimitiveIntMaps() {
+		IntIntMap im=IntIntMap.create();
+		IntDoubleMap dm=IntDoubleMap.create();
+		IntLongMap lm=IntLongMap.create();
+		HashMap<Integer,Integer> hm=new HashMap<Integer,Integer>();
+		for (int i=0; i<1000; i++) {
+			int key=Rand.nextInt()>>Rand.r(32);
+			int value=Rand.nextInt();
+			im=im.include(key, value);
+			dm=dm.include(key, value*0.5);
+			lm=lm.include(key, value*3L);
+			hm.put(key, value);
+			
+			if (Rand.d(4)==1) {
+				int delKey=key+Rand.r(2);
+				im=im.delete(delKey);
+				dm=dm.delete(delKey);
+				lm=lm.delete(delKey);
+				hm.remove(delKey);
+			}
+		}
+		im.validate();
+		dm.validate();
+		lm.validate();
+		assertEquals(hm.size(),im.size());
+		assertEquals(hm.size(),dm.size());
+		assertEquals(hm.size(),lm.size());
+		assertEquals(hm,im.toHashMap());
+		for (Map.Entry<Integer,Integer> ent: hm.entrySet()) {
+			int key=ent.getKey();
+			int value=ent.getValue();
+			assertEquals(value,im.getInt(key,0));
+			assertEquals(value*0.5,dm.getDouble(key,0.0),0.0);
+			assertEquals(value*3L,lm.getLong(key,0));
+			assertEquals(Double.valueOf(value*0.5),dm.get(key));
+		}
+		assertEquals(-1,im.getInt(Integer.MIN_VALUE+7,-1));
+		IntIntMap im2=im.include(Integer.MIN_VALUE+7, 1);
+		assertTrue(im2==im2.include(Integer.MIN_VALUE+7, 1));
+		assertTrue(im==im.delete(Integer.MIN_VALUE+7));
+		
+		final HashMap<Integer,Integer> visited=new HashMap<Integer,Integer>();
+		im.visitEntries(new IntIntMap.EntryVisitor() {
+			public void visit(int key, int value) {
+				visited.put(key, value);
+			}
+		});
+		assertEquals(hm,visited);
+		
+		final double[] sum=new double[1];
+		dm.visitEntries(new IntDoubleMap.EntryVisitor() {
+			public void visit(int key, double value) {
+				sum[0]+=value;
+			}
+		});
+		double expected=0.0;
+		for (Double d: dm.values()) expected+=d;
+		assertEquals(expected,sum[0],0.0);
+		
+		assertEquals(Double.NaN,IntDoubleMap.create(1,Double.NaN).getDouble(1,0.0),0.0);
+		CommonTests.testCommonData(im);
+		CommonTests.testCommonData(dm);
+		CommonTests.testCommonData(lm);
+	}
+	
+	@Test public void testIntLongMapMerge() {
+		IntLongMap a=IntLongMap.create();
+		IntLongMap b=IntLongMap.create();
+		for (int i=0; i<1000; i++) {
+			int key=Rand.nextInt()>>Rand.r(32);
+			if (Rand.d(2)==1) {
+				a=a.include(key, i);
+			} else {
+				b=b.include(key, i);
+			}
+		}
+		HashMap<Integer,Long> hm=a.toHashMap();
+		hm.putAll(b.toHashMap());
+		IntLongMap m=a.include(b);
+		m.validate();
+		assertEquals(hm,m.toHashMap());
+		assertTrue(m==m.include(b));
+		assertTrue(b==IntLongMap.create().include(b));
+		assertTrue(a==a.include(IntLongMap.create()));
+	}
+	
 	@Test public void testManyChanges() {
 		PersistentMap<Integer,String> pm=PersistentHashMap.create();
 		pm=addRandomStuff(pm,1000,40);
 		assertEquals(40,pm.size());
 		testMap(pm);
 	}
-
+	
+	@Test public void testTreeMap() {
+		PersistentTreeMap<Integer,String> tm=PersistentTreeMap.create();
+		testMap(tm);
+		testMap(addRandomMaps(tm));
+		
+		java.util.TreeMap<Integer,String> ref=new java.util.TreeMap<Integer,String>();
+		for (int i=0; i<1000; i++) {
+			int k=Rand.r(500);
+			if (Rand.chance(0.3)) {
+				tm=tm.delete(k);
+				ref.remove(k);
+			} else {
+				String v=Rand.nextString();
+				tm=tm.include(k,v);
+				ref.put(k, v);
+			}
+		}
+		tm.validate();
+		assertEquals(ref.size(),tm.size());
+		assertEquals(new ArrayList<Integer>(ref.keySet()),new ArrayList<Integer>(tm.keySet()));
+		assertTrue(tm.equals(PersistentTreeMap.create(ref)));
+		
+		for (int k=-2; k<503; k++) {
+			assertEquals(ref.floorKey(k),tm.floorKey(k));
+			assertEquals(ref.ceilingKey(k),tm.ceilingKey(k));
+			assertEquals(ref.lowerKey(k),tm.lowerKey(k));
+			assertEquals(ref.higherKey(k),tm.higherKey(k));
+			assertEquals(ref.headMap(k).size(),tm.rank(k));
+		}
+		
+		PersistentTreeMap<Integer,String> sm=tm.subMap(100, 200);
+		sm.validate();
+		assertEquals(ref.subMap(100, 200),sm.toHashMap());
+		assertEquals(ref.headMap(250, true),tm.headMap(250, true).toHashMap());
+		assertEquals(ref.tailMap(250, false),tm.tailMap(250, false).toHashMap());
+		for (int i=0; i<sm.size(); i++) {
+			assertEquals(sm.entryAt(i).getKey(),tm.entryAt(tm.rank(sm.firstKey())+i).getKey());
+		}
+		
+		Integer[] keys=new Integer[1000];
+		for (int i=0; i<keys.length; i++) keys[i]=i*2;
+		PersistentTreeMap<Integer,Integer> bm=PersistentTreeMap.createFromSorted(keys, keys);
+		bm.validate();
+		assertEquals(Integer.valueOf(500),bm.get(500));
+		assertEquals(Integer.valueOf(500),bm.floorKey(501));
+		assertEquals(Integer.valueOf(502),bm.ceilingKey(501));
+		try {
+			PersistentTreeMap.createFromSorted(new Integer[] {2,1}, new Integer[] {2,1});
+			fail();
+		} catch (IllegalArgumentException e) {
+			// OK
+		}
+		
+		PersistentTreeSet<Integer> ts=PersistentTreeSet.create(ListFactory.create(3,1));
+		ts=ts.include(2).include(5).include(3);
+		ts.validate();
+		assertEquals(4,ts.size());
+		assertEquals(Integer.valueOf(3),ts.floor(4));
+		assertEquals(Integer.valueOf(5),ts.higher(3));
+		assertEquals(Integer.valueOf(1),ts.first());
+		assertEquals(2,ts.subSet(2, 5).size());
+		assertEquals(Integer.valueOf(5),ts.get(3));
+		assertTrue(ts.equals(SetFactory.create(ts)));
+	}
+	
+	@Test public void testForEach() {
+		PersistentHashMap<Integer,Integer> pm=PersistentHashMap.create();
+		long expectedKeys=0;
+		for (int i=0; i<3000; i++) {
+			pm=pm.include(i,i*2);
+			expectedKeys+=i;
+		}
+		pm=pm.include(Integer.valueOf(0x10000),1);
+		
+		final long[] sums=new long[3];
+		pm.forEachEntry(new BinaryFunction<Integer,Integer,Object>() {
+			public Object apply(Integer k, Integer v) {
+				sums[0]+=k;
+				sums[1]+=v;
+				return null;
+			}
+		});
+		pm.forEachKey(new UnaryFunction<Integer,Object>() {
+			public Object apply(Integer k) {
+				sums[2]+=k;
+				return null;
+			}
+		});
+		assertEquals(expectedKeys+0x10000,sums[0]);
+		assertEquals(expectedKeys*2+1,sums[1]);
+		assertEquals(sums[0],sums[2]);
+		
+		long total=pm.reduceValues(0L, new BinaryFunction<Long,Integer,Long>() {
+			public Long apply(Long acc, Integer v) {
+				return acc+v;
+			}
+		});
+		assertEquals(sums[1],total);
+		
+		final AtomicInteger count=new AtomicInteger();
+		pm.forEachValue(new UnaryFunction<Integer,Object>() {
+			public Object apply(Integer v) {
+				count.incrementAndGet();
+				return null;
+			}
+		});
+		assertEquals(pm.size(),count.get());
+		
+		PersistentHashMap.<Integer,Integer>create().forEachEntry(new BinaryFunction<Integer,Integer,Object>() {
+			public Object apply(Integer k, Integer v) {
+				fail();
+				return null;
+			}
+		});
+	}
+	
+	private static final class CollidingKey implements Comparable<CollidingKey> {
+		private final int id;
+		
+		private CollidingKey(int id) {
+			this.id=id;
+		}
+		
+		public int hashCode() {
+			return 7;
+		}
+		
+		public boolean equals(Object o) {
+			return (o instanceof CollidingKey)&&(((CollidingKey)o).id==id);
+		}
+		
+		public int compareTo(CollidingKey k) {
+			return (id<k.id)?-1:((id==k.id)?0:1);
+		}
+	}
+	
+	/**
+	 * Colliding key where compareTo is coarser than equals
+	 */
+	private static final class CoarseKey implements Comparable<CoarseKey> {
+		private final int id;
+		
+		private CoarseKey(int id) {
+			this.id=id;
+		}
+		
+		public int hashCode() {
+			return 11;
+		}
+		
+		public boolean equals(Object o) {
+			return (o instanceof CoarseKey)&&(((CoarseKey)o).id==id);
+		}
+		
+		public int compareTo(CoarseKey k) {
+			int a=id/4;
+			int b=k.id/4;
+			return (a<b)?-1:((a==b)?0:1);
+		}
+	}
+	
+	@Test public void testInconsistentCompareCollisions() {
+		HashMap<CoarseKey,Integer> hm=new HashMap<CoarseKey,Integer>();
+		PersistentHashMap<CoarseKey,Integer> pm=PersistentHashMap.create();
+		
+		// keys that are all distinct under compareTo build a collision tree
+		for (int i=0; i<400; i+=4) {
+			hm.put(new CoarseKey(i), i);
+			pm=pm.include(new CoarseKey(i), i);
+		}
+		pm.validate();
+		assertEquals(null,pm.get(new CoarseKey(1)));
+		assertTrue(pm==pm.delete(new CoarseKey(1)));
+		
+		// keys that compare equal to existing keys without being equal
+		for (int i=0; i<400; i++) {
+			hm.put(new CoarseKey(i), i);
+			pm=pm.include(new CoarseKey(i), i);
+		}
+		pm.validate();
+		assertEquals(hm,pm.toHashMap());
+		for (int i=0; i<400; i++) {
+			assertEquals(Integer.valueOf(i),pm.get(new CoarseKey(i)));
+		}
+		
+		for (int i=0; i<400; i+=3) {
+			hm.remove(new CoarseKey(i));
+			pm=(PersistentHashMap<CoarseKey,Integer>)pm.delete(new CoarseKey(i));
+		}
+		pm.validate();
+		assertEquals(hm,pm.toHashMap());
+		
+		// a large collision set built in one go
+		PersistentHashMap<CoarseKey,Integer> cm=PersistentHashMap.create(hm);
+		cm.validate();
+		assertEquals(hm,cm.toHashMap());
+		assertEquals(pm,cm);
+	}
+	
+	@Test public void testHashCollisions() {
+		PersistentHashMap<Object,Integer> pm=PersistentHashMap.create();
+		pm=pm.include(7, -1);
+		for (int i=0; i<500; i++) {
+			pm=pm.include(new CollidingKey(i), i);
+		}
+		pm.validate();
+		assertEquals(501,pm.size());
+		for (int i=0; i<500; i++) {
+			assertEquals(Integer.valueOf(i),pm.get(new CollidingKey(i)));
+		}
+		assertEquals(Integer.valueOf(-1),pm.get(7));
+		assertEquals(null,pm.get(new CollidingKey(500)));
+		assertTrue(pm==pm.include(new CollidingKey(10), 10));
+		
+		// updating a collision tree with an equal but different key instance
+		PersistentHashMap<Object,Integer> um=PersistentHashMap.create();
+		for (int i=0; i<20; i++) {
+			um=um.include(new CollidingKey(i), i);
+		}
+		um=um.include(new CollidingKey(3), 99);
+		um.validate();
+		assertEquals(20,um.size());
+		assertEquals(Integer.valueOf(99),um.get(new CollidingKey(3)));
+		
+		int n=0;
+		for (Map.Entry<Object,Integer> e: pm.entrySet()) {
+			if (e.getKey() instanceof CollidingKey) assertEquals(((CollidingKey)e.getKey()).id,e.getValue().intValue());
+			n++;
+		}
+		assertEquals(501,n);
+		
+		PersistentHashMap<Object,Integer> fm=pm.filter(new BooleanFilter<Map.Entry<Object,Integer>>() {
+			public boolean test(Map.Entry<Object,Integer> e) {
+				return (e.getValue()&1)==0;
+			}
+		});
+		fm.validate();
+		assertEquals(250,fm.size());
+		
+		// a non-comparable colliding key forces a fallback to a collision list
+		PersistentHashMap<Object,Integer> mixed=pm.include(new Object() {
+			public int hashCode() {
+				return 7;
+			}
+		}, 1000);
+		mixed.validate();
+		assertEquals(502,mixed.size());
+		assertEquals(Integer.valueOf(250),mixed.get(new CollidingKey(250)));
+		
+		for (int i=0; i<500; i++) {
+			pm=(PersistentHashMap<Object,Integer>)pm.delete(new CollidingKey(i));
+			if ((i%50)==0) pm.validate();
+		}
+		pm.validate();
+		assertEquals(1,pm.size());
+		assertEquals(Integer.valueOf(-1),pm.get(7));
+	}
 }
\ No newline at end of file
@@ -2,6 +2,7 @@ package mikera.test;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
+import mikera.persistent.PersistentPriorityQueue;
 import mikera.util.Rand;
 import mikera.util.RankedQueue;
 
@@ -56,5 +57,43 @@ public class TestRankedQueue {
 		}
 		assertEquals(null,rq.poll());
 	}
-
+	
+	@Test public void testPersistentQueue() {
+		PersistentPriorityQueue<Integer> pq=PersistentPriorityQueue.createRanked();
+		RankedQueue<Integer> rq=new RankedQueue<Integer>();
+		for (int i=0 ; i<200; i++) {
+			double rank=Rand.nextDouble();
+			pq=pq.include(i,rank);
+			rq.add(i,rank);
+		}
+		pq.validate();
+		assertEquals(200,pq.size());
+		
+		PersistentPriorityQueue<Integer> snapshot=pq;
+		for (int i=0 ; i<200; i++) {
+			assertEquals(rq.peekRank(),pq.peekRank(),0.0);
+			assertEquals(rq.poll(),pq.peek());
+			pq=pq.deleteMin();
+			if ((i%17)==0) pq.validate();
+		}
+		assertEquals(0,pq.size());
+		assertEquals(null,pq.peek());
+		
+		// snapshot unaffected
+		assertEquals(200,snapshot.size());
+		int count=0;
+		for (Integer i: snapshot) {
+			assertTrue(i!=null);
+			count++;
+		}
+		assertEquals(200,count);
+		
+		PersistentPriorityQueue<String> sq=PersistentPriorityQueue.create(String.CASE_INSENSITIVE_ORDER);
+		sq=sq.include("b").include("C").include("a");
+		sq=sq.merge(PersistentPriorityQueue.create(String.CASE_INSENSITIVE_ORDER).include("B").include("d"));
+		sq.validate();
+		assertEquals("a",sq.peek());
+		sq=sq.deleteMin().deleteMin().deleteMin();
+		assertEquals("C",sq.peek());
+	}
 }
\ No newline at end of file
@@ -57,4 +57,55 @@ public class TestSoftHashMap {
 		assertTrue(ca!=cb);
 		assertTrue(cc!=c);
 	}
+	
+	@Test public void testHashCacheRetention() {
+		for (HashCache.Retention r: HashCache.Retention.values()) {
+			HashCache<String> h=new HashCache<String>(4,r);
+			assertEquals(r,h.getRetention());
+			String[] kept=new String[1000];
+			for (int i=0; i<1000; i++) {
+				kept[i]=h.cache(new String("Value"+i));
+			}
+			assertEquals(1000,h.getMissCount());
+			assertTrue(h.getMaxSize()>=1000);
+			for (int i=0; i<1000; i++) {
+				assertTrue(kept[i]==h.cache(new String("Value"+i)));
+			}
+			assertEquals(1000,h.getHitCount());
+			assertTrue(kept[0]==h.cache(kept[0]));
+			assertEquals(1001,h.getHitCount());
+			assertEquals(1000,h.getMissCount());
+			assertTrue(kept[5]==h.getCached("Value5"));
+			assertEquals(null,h.getCached("Missing"));
+			h.clear();
+			assertEquals(0,h.size());
+		}
+	}
+	
+	@Test public void testHashCacheConcurrency() throws InterruptedException {
+		final HashCache<Integer> h=new HashCache<Integer>(16,HashCache.Retention.STRONG);
+		final Integer[][] results=new Integer[4][2000];
+		Thread[] threads=new Thread[4];
+		for (int t=0; t<4; t++) {
+			final int ti=t;
+			threads[t]=new Thread(new Runnable() {
+				public void run() {
+					for (int i=0; i<2000; i++) {
+						results[ti][i]=h.cache(new Integer(i));
+					}
+				}
+			});
+			threads[t].start();
+		}
+		for (Thread t: threads) t.join();
+		
+		assertEquals(2000,h.size());
+		assertEquals(8000,h.getHitCount()+h.getMissCount());
+		assertEquals(2000,h.getMissCount());
+		for (int i=0; i<2000; i++) {
+			for (int t=1; t<4; t++) {
+				assertTrue(results[0][i]==results[t][i]);
+			}
+		}
+	}
 }
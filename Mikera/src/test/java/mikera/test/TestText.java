@@ -4,6 +4,8 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
+import mikera.data.Data;
+import mikera.persistent.ASCIIString;
 import mikera.persistent.Text;
 import mikera.util.Rand;
 import mikera.util.TextUtils;
@@ -137,6 +139,89 @@ public class TestText {
 		assertEquals("ACDB",t1.insert(1, t2).toString());		
 	}
 	
+	@Test public void testBalance() {
+		Text t=Text.EMPTY_TEXT;
+		StringBuilder sb=new StringBuilder();
+		for (int i=0; i<2000; i++) {
+			String s=Integer.toString(Rand.r(1000))+((Rand.d(5)==1)?"\n":" ");
+			int pos=Rand.r(sb.length()+1);
+			switch (Rand.r(4)) {
+				case 0: 
+					t=t.insert(pos, s);
+					sb.insert(pos, s);
+					break;
+				case 1: 
+					int end=Rand.range(pos, Math.min(sb.length(), pos+10));
+					t=t.deleteRange(pos, end);
+					sb.delete(pos, end);
+					break;
+				default: 
+					t=t.append(s);
+					sb.append(s);
+					break;
+			}
+		}
+		t.validate();
+		assertEquals(sb.toString(),t.toString());
+		assertTrue(t.depth()<=2*(32-Integer.numberOfLeadingZeros(t.countBlocks())));
+		for (int i=0; i<100; i++) {
+			int pos=Rand.r(sb.length());
+			assertEquals(sb.charAt(pos),t.charAt(pos));
+		}
+		
+		Text big=Text.EMPTY_TEXT;
+		for (int i=0; i<1000; i++) {
+			big=big.concat(Text.create("abc"));
+		}
+		big.validate();
+		assertTrue(big.depth()<=8);
+	}
+	
+	@Test public void testLines() {
+		Text t=Text.create("first\nsecond\n\nfourth");
+		assertEquals(3,t.countLineBreaks());
+		assertEquals(4,t.countLines());
+		assertEquals("second",t.getLine(1).toString());
+		assertEquals("",t.getLine(2).toString());
+		assertEquals("fourth",t.getLine(3).toString());
+		assertEquals(6,t.lineStart(1));
+		assertEquals(1,t.lineAt(6));
+		assertEquals(0,t.lineAt(5));
+		
+		StringBuilder sb=new StringBuilder();
+		for (int i=0; i<500; i++) {
+			sb.append("Line number ").append(i).append('\n');
+		}
+		Text lt=Text.create(sb.toString());
+		assertEquals(501,lt.countLines());
+		assertEquals("Line number 321",lt.getLine(321).toString());
+		assertEquals(321,lt.lineAt(lt.lineStart(321)+3));
+		assertEquals(1,Text.EMPTY_TEXT.countLines());
+	}
+	
+	@Test public void testSearch() {
+		StringBuilder sb=new StringBuilder();
+		for (int i=0; i<300; i++) {
+			sb.append(Integer.toString(i*7));
+		}
+		String s=sb.toString();
+		Text t=Text.create(s.substring(0,500)).concat(Text.create(s.substring(500)));
+		
+		for (int i=0; i<100; i++) {
+			int a=Rand.r(s.length());
+			int b=Rand.range(a, Math.min(s.length(), a+Rand.r(80)));
+			String sub=s.substring(a,b);
+			assertEquals(s.indexOf(sub),t.indexOf(sub));
+			int from=Rand.r(s.length());
+			assertEquals(s.indexOf(sub,from),t.indexOf(sub,from));
+			assertTrue(t.contains(sub));
+		}
+		assertEquals(-1,t.indexOf("xyz"));
+		assertEquals(s.indexOf('9'),t.indexOf('9'));
+		assertEquals(s.indexOf('5',300),t.indexOf('5',300));
+		assertTrue(!t.contains(s+"0"));
+	}
+	
 	public void testTextObject(Text t) {
 		int len=t.length();
 		
@@ -148,7 +233,45 @@ public class TestText {
 			assertNotNull(t.getBlock(len-1));
 		}
 		t.isPacked();
+		t.validate();
 		assertTrue(t.countNodes()>=t.countBlocks());
 		assertEquals(len*2,Text.concat(t, t).length());
 	}
+	
+	@Test public void testASCIIString() {
+		String str="Hello World \u00e9\u00ff";
+		ASCIIString s=new ASCIIString(str);
+		assertEquals(str,s.toString());
+		assertEquals(str.hashCode(),s.hashCode());
+		assertEquals('\u00ff',s.charAt(13));
+		
+		ASCIIString world=s.substring(6, 11);
+		assertEquals("World",world.toString());
+		assertEquals(new ASCIIString("World"),world);
+		assertEquals("World".hashCode(),world.hashCode());
+		assertEquals(6,s.indexOf("World"));
+		assertTrue(s.contains(world));
+		assertEquals("Hellx",s.substring(0,5).replace('o', 'x').toString());
+		assertEquals("Hello",s.substring(0,5).toString());
+		assertEquals("HeLLo",s.substring(0,5).replace('l', 'L').toString());
+		
+		assertTrue(new ASCIIString("abc").compareTo(new ASCIIString("abd"))<0);
+		assertTrue(new ASCIIString("ab").compareTo(new ASCIIString("abc"))<0);
+		assertTrue(new ASCIIString("\u00e9").compareTo(new ASCIIString("z"))>0);
+		assertEquals(0,world.compareTo(new ASCIIString("World")));
+		
+		ASCIIString a=new ASCIIString("identifier").intern();
+		ASCIIString b=new ASCIIString("an identifier").substring(3).intern();
+		assertTrue(a==b);
+		assertEquals("identifier",b.toString());
+		
+		Data d=new Data();
+		d.appendInt(17);
+		int size=d.appendASCIIString(s);
+		assertEquals(Data.sizeOfASCIIString(s),size);
+		assertEquals(s,d.getASCIIString(1));
+		assertEquals(Text.create(str).toString(),s.toText().toString());
+		assertTrue(ASCIIString.isValid(str));
+		assertTrue(!ASCIIString.isValid("\u0100"));
+	}
 }
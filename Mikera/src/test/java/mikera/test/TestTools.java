@@ -9,7 +9,15 @@ import java.nio.charset.Charset;
 import java.util.HashMap;
 import java.util.Map;
 
+import mikera.engine.Octreap;
+import mikera.engine.PersistentTreeGrid;
+import mikera.engine.TreeGrid;
+import mikera.persistent.IntSet;
+import mikera.persistent.PersistentHashMap;
+import mikera.persistent.PersistentMap;
+import mikera.persistent.Text;
 import mikera.util.Arrays;
+import mikera.util.Footprint;
 import mikera.util.Rand;
 import mikera.util.Tools;
 
@@ -100,4 +108,51 @@ public class TestTools {
 		assertEquals(true, Tools.equalsWithNulls(null, null));
 		assertEquals(true, Tools.equalsWithNulls(1, 1));
 	}
+	
+	@Test public void testFootprint() {
+		PersistentMap<Integer,Integer> pm=PersistentHashMap.create();
+		for (int i=0; i<10000; i++) {
+			pm=pm.include(i,i);
+		}
+		Footprint f=Footprint.of(pm);
+		assertEquals(10000,f.getNodeCount("PHMEntry"));
+		assertTrue(f.getNodeCount("PHMFullNode")>0);
+		assertTrue(f.getTotalBytes()>10000*16);
+		assertEquals(f.getTotalBytes(),f.sharedBytes(f));
+		
+		// a small change shares almost everything
+		PersistentMap<Integer,Integer> pm2=pm.include(5,-5);
+		long shared=Footprint.sharedBytes(pm,pm2);
+		assertTrue(shared>0.9*f.getTotalBytes());
+		assertTrue(shared<Footprint.of(pm2).getTotalBytes());
+		
+		// two versions together count shared nodes once
+		f.add(pm2);
+		assertTrue(f.getTotalBytes()<1.1*Footprint.of(pm2).getTotalBytes());
+		
+		Text t=Text.create("Hello World");
+		assertEquals(1,Footprint.of(t).getNodeCount("TextBlock"));
+		for (int i=0; i<5; i++) t=t.concat(t);
+		Footprint ft=Footprint.of(t);
+		// repeated concatenation shares nodes, which are counted once
+		assertTrue(ft.getNodeCount()<t.countNodes());
+		assertTrue(ft.getNodeCount("Text")>0);
+		
+		IntSet is=IntSet.createRange(0, 200000);
+		assertTrue(Footprint.of(is).getNodeCount("RunContainer")>0);
+		
+		Octreap<Integer> o=new Octreap<Integer>();
+		o.setBlock(0, 0, 0, 10, 10, 10, 1);
+		assertTrue(Footprint.of(o).getNodeCount("ZNode")>0);
+		
+		PersistentTreeGrid<Integer> g=new PersistentTreeGrid<Integer>();
+		g=g.set(1, 2, 3, 4);
+		PersistentTreeGrid<Integer> g2=g.set(100, 2, 3, 4);
+		assertTrue(Footprint.sharedBytes(g,g2)>0);
+		
+		TreeGrid<Integer> tg=new TreeGrid<Integer>();
+		tg.set(1, 2, 3, 4);
+		assertEquals(tg.countNodes(),Footprint.of(tg).getNodeCount());
+		assertEquals(0,Footprint.of("not measurable").getNodeCount());
+	}
 }